@@ -1,13 +1,14 @@
 package com.github.kkomitski.opal.aeron;
 
 import java.io.File;
-import java.util.concurrent.ThreadFactory;
 
+import com.github.kkomitski.opal.aeron.archive.ArchiveConfig;
+import com.github.kkomitski.opal.aeron.archive.StreamRecorder;
 import com.github.kkomitski.opal.utils.OpalConfig;
 
+import io.aeron.Aeron;
+import io.aeron.archive.ArchivingMediaDriver;
 import io.aeron.driver.MediaDriver;
-import io.aeron.driver.ThreadingMode;
-import net.openhft.affinity.AffinityLock;
 
 public class LaunchAeronMediaDriver {
     public static void main(String[] args) {
@@ -21,23 +22,25 @@ public class LaunchAeronMediaDriver {
             deleteDir(dir);
         }
 
-        // Configure the media driver
-        final MediaDriver.Context ctx = new MediaDriver.Context()
-                .aeronDirectoryName(aeronDir)
-                .threadingMode(ThreadingMode.DEDICATED)
-                // Pin the agents to their own cores
-                .conductorThreadFactory(pinnedThreadFactory("aeron-conductor", OpalConfig.AERON_CONDUCTOR_CORE))
-                .senderThreadFactory(pinnedThreadFactory("aeron-sender", OpalConfig.AERON_SENDER_CORE))
-                .receiverThreadFactory(pinnedThreadFactory("aeron-receiver", OpalConfig.AERON_RECEIVER_CORE))
-                .dirDeleteOnStart(true)
-                // Enable both UDP and IPC (default)
-                .termBufferSparseFile(true)
-                .spiesSimulateConnection(true)
-                .dirDeleteOnShutdown(true);
+        // Configure the media driver, threading mode and tuning from config.properties
+        final MediaDriver.Context ctx = MediaDriverConfig.context(aeronDir);
 
         System.out.println("Starting Aeron Media Driver (standalone)...");
         System.out.println("Aeron directory: " + aeronDir);
-        System.out.println("Listening for UDP and IPC channels.");
+        System.out.println("Listening for UDP and IPC channels (" + ctx.threadingMode() + ").");
+
+        if (OpalConfig.AERON_ARCHIVE) {
+            // The archive runs alongside the driver and records from it directly
+            try (ArchivingMediaDriver ignore = ArchivingMediaDriver.launch(ctx, ArchiveConfig.archiveContext(aeronDir));
+                    Aeron aeron = Aeron.connect(new Aeron.Context().aeronDirectoryName(aeronDir));
+                    StreamRecorder recorder = new StreamRecorder(aeron)) {
+                System.out.println("Media Driver and Archive started. Press Ctrl+C to exit.");
+                Thread.currentThread().join();
+            } catch (InterruptedException e) {
+                System.out.println("Media Driver interrupted, shutting down.");
+            }
+            return;
+        }
 
         try (MediaDriver ignore = MediaDriver.launch(ctx)) {
             System.out.println("Media Driver started. Press Ctrl+C to exit.");
@@ -48,24 +51,6 @@ public class LaunchAeronMediaDriver {
         }
     }
 
-    private static ThreadFactory pinnedThreadFactory(final String threadName, final int cpuId) {
-        return (runnable) -> {
-            final Runnable wrapped = () -> {
-                try (AffinityLock lock = AffinityLock.acquireLock(cpuId)) {
-                    runnable.run();
-                } catch (Throwable t) {
-                    System.err
-                            .println("Failed to set CPU affinity for '" + threadName + "' to CPU " + cpuId + ": " + t);
-                    runnable.run();
-                }
-            };
-
-            final Thread thread = new Thread(wrapped);
-            thread.setName(threadName);
-            return thread;
-        };
-    }
-
     // Recursively delete directory
     private static void deleteDir(File dir) {
         File[] files = dir.listFiles();
@@ -0,0 +1,105 @@
+package com.github.kkomitski.opal.aeron;
+
+import java.util.concurrent.ThreadFactory;
+
+import org.agrona.concurrent.BackoffIdleStrategy;
+import org.agrona.concurrent.BusySpinIdleStrategy;
+import org.agrona.concurrent.IdleStrategy;
+import org.agrona.concurrent.NoOpIdleStrategy;
+import org.agrona.concurrent.SleepingMillisIdleStrategy;
+import org.agrona.concurrent.YieldingIdleStrategy;
+
+import com.github.kkomitski.opal.utils.OpalConfig;
+
+import io.aeron.driver.MediaDriver;
+import io.aeron.driver.ThreadingMode;
+import net.openhft.affinity.AffinityLock;
+
+/**
+ * Media driver settings from OpalConfig, shared by the standalone driver and
+ * the one a process embeds. Agent threads are pinned to the AERON_* cores:
+ * DEDICATED uses all three, SHARED_NETWORK runs the conductor and the shared
+ * sender / receiver agent on the conductor and sender cores, SHARED runs
+ * everything on the conductor core.
+ */
+public final class MediaDriverConfig {
+
+    private MediaDriverConfig() {}
+
+    public static MediaDriver.Context context(final String aeronDir) {
+        final MediaDriver.Context ctx = new MediaDriver.Context()
+                .aeronDirectoryName(aeronDir)
+                .threadingMode(ThreadingMode.valueOf(OpalConfig.AERON_THREADING_MODE.toUpperCase()))
+                // Pin the agents to their own cores
+                .conductorThreadFactory(pinnedThreadFactory("aeron-conductor", OpalConfig.AERON_CONDUCTOR_CORE))
+                .senderThreadFactory(pinnedThreadFactory("aeron-sender", OpalConfig.AERON_SENDER_CORE))
+                .receiverThreadFactory(pinnedThreadFactory("aeron-receiver", OpalConfig.AERON_RECEIVER_CORE))
+                .sharedNetworkThreadFactory(pinnedThreadFactory("aeron-shared-network", OpalConfig.AERON_SENDER_CORE))
+                .sharedThreadFactory(pinnedThreadFactory("aeron-shared", OpalConfig.AERON_CONDUCTOR_CORE))
+                .conductorIdleStrategy(idleStrategy(OpalConfig.AERON_CONDUCTOR_IDLE))
+                .senderIdleStrategy(idleStrategy(OpalConfig.AERON_SENDER_IDLE))
+                .receiverIdleStrategy(idleStrategy(OpalConfig.AERON_RECEIVER_IDLE))
+                .sharedNetworkIdleStrategy(idleStrategy(OpalConfig.AERON_SHARED_IDLE))
+                .sharedIdleStrategy(idleStrategy(OpalConfig.AERON_SHARED_IDLE))
+                .dirDeleteOnStart(true)
+                // Pre-touch allocates the whole term buffer files up front
+                // instead of faulting pages in on the hot path
+                .termBufferSparseFile(!OpalConfig.AERON_PRE_TOUCH)
+                .spiesSimulateConnection(true)
+                .dirDeleteOnShutdown(true);
+
+        // 0 keeps the driver's default
+        if (OpalConfig.AERON_TERM_BUFFER_LENGTH > 0) {
+            ctx.publicationTermBufferLength(OpalConfig.AERON_TERM_BUFFER_LENGTH)
+                    .ipcTermBufferLength(OpalConfig.AERON_TERM_BUFFER_LENGTH);
+        }
+        if (OpalConfig.AERON_MTU > 0) {
+            ctx.mtuLength(OpalConfig.AERON_MTU).ipcMtuLength(OpalConfig.AERON_MTU);
+        }
+        if (OpalConfig.AERON_SOCKET_SNDBUF > 0) {
+            ctx.socketSndbufLength(OpalConfig.AERON_SOCKET_SNDBUF);
+        }
+        if (OpalConfig.AERON_SOCKET_RCVBUF > 0) {
+            ctx.socketRcvbufLength(OpalConfig.AERON_SOCKET_RCVBUF);
+        }
+        return ctx;
+    }
+
+    /**
+     * busy, noop, yield, backoff or sleep (1ms).
+     */
+    public static IdleStrategy idleStrategy(final String name) {
+        switch (name.trim().toLowerCase()) {
+            case "busy":
+                return new BusySpinIdleStrategy();
+            case "noop":
+                return new NoOpIdleStrategy();
+            case "yield":
+                return new YieldingIdleStrategy();
+            case "backoff":
+                return new BackoffIdleStrategy();
+            case "sleep":
+                return new SleepingMillisIdleStrategy(1);
+            default:
+                throw new IllegalArgumentException("Unknown idle strategy: " + name);
+        }
+    }
+
+    private static ThreadFactory pinnedThreadFactory(final String threadName, final int cpuId) {
+        return (runnable) -> {
+            final Runnable wrapped = () -> {
+                try (AffinityLock lock = AffinityLock.acquireLock(cpuId)) {
+                    runnable.run();
+                } catch (Throwable t) {
+                    System.err
+                            .println("Failed to set CPU affinity for '" + threadName + "' to CPU " + cpuId + ": " + t);
+                    runnable.run();
+                }
+            };
+
+            final Thread thread = new Thread(wrapped);
+            thread.setName(threadName);
+            return thread;
+        };
+    }
+}
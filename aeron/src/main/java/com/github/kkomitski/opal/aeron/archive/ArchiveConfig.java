@@ -0,0 +1,44 @@
+package com.github.kkomitski.opal.aeron.archive;
+
+import com.github.kkomitski.opal.utils.OpalConfig;
+
+import io.aeron.Aeron;
+import io.aeron.archive.Archive;
+import io.aeron.archive.ArchiveThreadingMode;
+import io.aeron.archive.client.AeronArchive;
+
+/**
+ * Archive settings for the one running next to the media driver. It is only
+ * reachable over IPC on its local control stream, so only processes on this
+ * host's driver can record or replay.
+ */
+public final class ArchiveConfig {
+    public static final String CONTROL_CHANNEL = "aeron:ipc";
+    public static final int CONTROL_STREAM_ID = 10;
+    public static final int CONTROL_RESPONSE_STREAM_ID = 20;
+
+    private ArchiveConfig() {}
+
+    public static Archive.Context archiveContext(final String aeronDir) {
+        return new Archive.Context()
+                .aeronDirectoryName(aeronDir)
+                .archiveDirectoryName(OpalConfig.AERON_ARCHIVE_DIR)
+                // One archive thread, recording happens off the matching cores
+                .threadingMode(ArchiveThreadingMode.SHARED)
+                .controlChannelEnabled(false)
+                .localControlChannel(CONTROL_CHANNEL)
+                .localControlStreamId(CONTROL_STREAM_ID)
+                .replicationChannel("aeron:udp?endpoint=localhost:0")
+                .archiveClientContext(new AeronArchive.Context().controlResponseChannel(CONTROL_CHANNEL))
+                .recordingEventsEnabled(false);
+    }
+
+    public static AeronArchive.Context clientContext(final Aeron aeron) {
+        return new AeronArchive.Context()
+                .aeron(aeron)
+                .controlRequestChannel(CONTROL_CHANNEL)
+                .controlRequestStreamId(CONTROL_STREAM_ID)
+                .controlResponseChannel(CONTROL_CHANNEL)
+                .controlResponseStreamId(CONTROL_RESPONSE_STREAM_ID);
+    }
+}
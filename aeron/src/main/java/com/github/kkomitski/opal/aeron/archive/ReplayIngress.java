@@ -0,0 +1,185 @@
+package com.github.kkomitski.opal.aeron.archive;
+
+import java.util.concurrent.locks.LockSupport;
+
+import org.agrona.DirectBuffer;
+import org.agrona.concurrent.BackoffIdleStrategy;
+import org.agrona.concurrent.IdleStrategy;
+
+import com.github.kkomitski.opal.aeron.utils.AeronPublisher;
+import com.github.kkomitski.opal.aeron.utils.AttachAeronMediaDriver;
+
+import io.aeron.FragmentAssembler;
+import io.aeron.Image;
+import io.aeron.Publication;
+import io.aeron.Subscription;
+import io.aeron.archive.client.AeronArchive;
+import io.aeron.archive.client.RecordingDescriptorConsumer;
+import io.aeron.logbuffer.Header;
+
+/**
+ * Re-feeds a recorded ingress session into the engine, to reproduce an
+ * incident or drive a benchmark with real order flow.
+ *
+ * <pre>
+ *   list                                  recordings in the archive
+ *   &lt;recordingId&gt; [max|&lt;speed&gt;] [channel]   replay one, by default at its original
+ *                                         pace (speed 1) into the channel it was
+ *                                         recorded from
+ * </pre>
+ *
+ * The original pace comes from the send times AeronPublisher stamps when
+ * asked to; sessions recorded without them replay at maximum speed.
+ */
+public class ReplayIngress {
+    private static final int REPLAY_STREAM_ID = 1001;
+    private static final long MAX_PARK_NS = 1_000_000;
+
+    private final AeronPublisher target;
+    private final double speed; // 0 = as fast as the engine takes it
+    private final IdleStrategy offerIdleStrategy = new BackoffIdleStrategy();
+    private long firstSendTime;
+    private long replayStartTime;
+    private long messages;
+
+    public ReplayIngress(final AeronPublisher target, final double speed) {
+        this.target = target;
+        this.speed = speed;
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: list | <recordingId> [max|<speed>] [channel]");
+            return;
+        }
+
+        try (AttachAeronMediaDriver mediaDriver = new AttachAeronMediaDriver();
+                AeronArchive archive = AeronArchive.connect(ArchiveConfig.clientContext(mediaDriver.aeron()))) {
+            if ("list".equalsIgnoreCase(args[0])) {
+                archive.listRecordings(0, Integer.MAX_VALUE, printer());
+                return;
+            }
+
+            final long recordingId = Long.parseLong(args[0]);
+            final double speed = args.length < 2 ? 1 : "max".equalsIgnoreCase(args[1]) ? 0 : Double.parseDouble(args[1]);
+            final Recording recording = Recording.describe(archive, recordingId);
+            final String channel = args.length > 2 ? args[2] : recording.publicationChannel();
+
+            try (AeronPublisher target = new AeronPublisher(mediaDriver, channel, recording.streamId, true)) {
+                while (!target.publication().isConnected()) {
+                    System.out.println("Waiting for a subscriber on " + channel + "...");
+                    LockSupport.parkNanos(1_000_000_000L);
+                }
+                System.out.println("Replaying recording " + recordingId + " (" + recording.length() + " bytes) into "
+                        + channel + (speed == 0 ? " at maximum speed" : " at " + speed + "x"));
+                final long messages = new ReplayIngress(target, speed).replay(mediaDriver, archive, recording);
+                System.out.println("Replayed " + messages + " messages");
+            }
+        }
+    }
+
+    public long replay(final AttachAeronMediaDriver mediaDriver, final AeronArchive archive,
+            final Recording recording) {
+        try (Subscription subscription = mediaDriver.aeron().addSubscription("aeron:ipc", REPLAY_STREAM_ID)) {
+            final int sessionId = (int) archive.startReplay(recording.recordingId, recording.startPosition,
+                    recording.length(), "aeron:ipc", REPLAY_STREAM_ID);
+            Image image;
+            while ((image = subscription.imageBySessionId(sessionId)) == null) {
+                Thread.onSpinWait();
+            }
+
+            final FragmentAssembler assembler = new FragmentAssembler(this::onMessage);
+            final IdleStrategy idleStrategy = new BackoffIdleStrategy();
+            final long endPosition = recording.startPosition + recording.length();
+            while (image.position() < endPosition && !image.isClosed()) {
+                idleStrategy.idle(image.poll(assembler, 10));
+            }
+        }
+        return messages;
+    }
+
+    private void onMessage(final DirectBuffer buffer, final int offset, final int length, final Header header) {
+        final long sendTime = header.reservedValue();
+        if (speed > 0 && sendTime != 0) {
+            if (firstSendTime == 0) {
+                firstSendTime = sendTime;
+                replayStartTime = System.nanoTime();
+            }
+            final long due = replayStartTime + (long) ((sendTime - firstSendTime) / speed);
+            long remaining;
+            while ((remaining = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(Math.min(remaining, MAX_PARK_NS));
+            }
+        }
+
+        long result;
+        while ((result = target.offer(buffer, offset, length)) < 0) {
+            if (result == Publication.CLOSED || result == Publication.MAX_POSITION_EXCEEDED) {
+                throw new IllegalStateException("Replay target closed (" + result + ")");
+            }
+            offerIdleStrategy.idle(); // Back pressured or not connected yet
+        }
+        offerIdleStrategy.reset();
+        messages++;
+    }
+
+    private static RecordingDescriptorConsumer printer() {
+        return (controlSessionId, correlationId, recordingId, startTimestamp, stopTimestamp, startPosition,
+                stopPosition, initialTermId, segmentFileLength, termBufferLength, mtuLength, sessionId, streamId,
+                strippedChannel, originalChannel, sourceIdentity) -> System.out.println(recordingId + ": "
+                        + originalChannel + " stream " + streamId + " session " + sessionId + ", "
+                        + (stopPosition == AeronArchive.NULL_POSITION ? "recording" : (stopPosition - startPosition)
+                                + " bytes")
+                        + ", started " + new java.util.Date(startTimestamp));
+    }
+
+    /**
+     * What replay needs from a recording's descriptor.
+     */
+    public static final class Recording {
+        public final long recordingId;
+        public final long startPosition;
+        public final long stopPosition; // The live position while still recording
+        public final int streamId;
+        public final String originalChannel;
+
+        private Recording(final long recordingId, final long startPosition, final long stopPosition,
+                final int streamId, final String originalChannel) {
+            this.recordingId = recordingId;
+            this.startPosition = startPosition;
+            this.stopPosition = stopPosition;
+            this.streamId = streamId;
+            this.originalChannel = originalChannel;
+        }
+
+        public static Recording describe(final AeronArchive archive, final long recordingId) {
+            final Recording[] found = new Recording[1];
+            archive.listRecording(recordingId, (controlSessionId, correlationId, id, startTimestamp, stopTimestamp,
+                    startPosition, stopPosition, initialTermId, segmentFileLength, termBufferLength, mtuLength,
+                    sessionId, streamId, strippedChannel, originalChannel, sourceIdentity) -> found[0] = new Recording(
+                            id, startPosition, stopPosition, streamId, originalChannel));
+            if (found[0] == null) {
+                throw new IllegalArgumentException("No recording " + recordingId);
+            }
+            if (found[0].stopPosition == AeronArchive.NULL_POSITION) {
+                // Still recording, replay up to where it has got to
+                final Recording live = found[0];
+                return new Recording(live.recordingId, live.startPosition, archive.getRecordingPosition(recordingId),
+                        live.streamId, live.originalChannel);
+            }
+            return found[0];
+        }
+
+        public long length() {
+            return stopPosition - startPosition;
+        }
+
+        /**
+         * The channel the recording was subscribed on, turned around to
+         * publish to it from this host.
+         */
+        public String publicationChannel() {
+            return originalChannel.replace("0.0.0.0", "localhost");
+        }
+    }
+}
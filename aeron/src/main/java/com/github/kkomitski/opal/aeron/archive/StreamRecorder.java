@@ -0,0 +1,37 @@
+package com.github.kkomitski.opal.aeron.archive;
+
+import com.github.kkomitski.opal.utils.IngressChannel;
+import com.github.kkomitski.opal.utils.OpalConfig;
+
+import io.aeron.Aeron;
+import io.aeron.archive.client.AeronArchive;
+import io.aeron.archive.codecs.SourceLocation;
+
+/**
+ * Records every configured ingress channel and the egress stream into the
+ * local archive, for as long as it stays open. The archive subscribes to the
+ * streams itself, the engine's threads never see the recording.
+ */
+public final class StreamRecorder implements AutoCloseable {
+    private final AeronArchive archive;
+
+    public StreamRecorder(final Aeron aeron) {
+        this.archive = AeronArchive.connect(ArchiveConfig.clientContext(aeron));
+        for (final IngressChannel channel : IngressChannel.configured()) {
+            record(channel.uri(), channel.streamId);
+        }
+        record("aeron:ipc", OpalConfig.MATCHER_EGRESS_STREAM_ID);
+    }
+
+    private void record(final String channel, final int streamId) {
+        // UDP ingress arrives from other hosts, IPC from publishers on this driver
+        final SourceLocation location = channel.startsWith("aeron:ipc") ? SourceLocation.LOCAL : SourceLocation.REMOTE;
+        archive.startRecording(channel, streamId, location);
+        System.out.println("Recording " + channel + " stream " + streamId + " to " + OpalConfig.AERON_ARCHIVE_DIR);
+    }
+
+    @Override
+    public void close() {
+        archive.close();
+    }
+}
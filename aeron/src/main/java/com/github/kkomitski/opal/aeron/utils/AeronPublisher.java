@@ -3,17 +3,32 @@ package com.github.kkomitski.opal.aeron.utils;
 import org.agrona.DirectBuffer;
 
 import io.aeron.Publication;
+import io.aeron.ReservedValueSupplier;
 
 public class AeronPublisher implements AutoCloseable {
     public static final String UDP_ENDPOINT_PROP = "opal.aeron.udp.pub.endpoint";
 
+    // Send time in the frame header's reserved value, replay paces by it
+    private static final ReservedValueSupplier SEND_TIME = (termBuffer, termOffset, frameLength) -> System.nanoTime();
+
     protected final AttachAeronMediaDriver mediaDriver;
     protected final String transport;
     protected final int streamId;
     protected final String channel;
+    protected final boolean exclusive;
     protected final Publication publication;
+    private boolean sendTimestamps;
 
     public AeronPublisher(final AttachAeronMediaDriver mediaDriver, final String transport, final int streamId) {
+        this(mediaDriver, transport, streamId, false);
+    }
+
+    /**
+     * An exclusive publication skips the atomic tail update of the concurrent
+     * one on every offer, but only one thread may ever offer to it.
+     */
+    public AeronPublisher(final AttachAeronMediaDriver mediaDriver, final String transport, final int streamId,
+            final boolean exclusive) {
         if (mediaDriver == null)
         {
             throw new IllegalArgumentException("mediaDriver must not be null");
@@ -23,14 +38,23 @@ public class AeronPublisher implements AutoCloseable {
             throw new IllegalArgumentException("transport must not be blank");
         }
         this.mediaDriver = mediaDriver;
-        this.transport = transport.trim().toLowerCase();
+        // A full channel URI is used as given, it may carry case sensitive
+        // parameters
+        final String trimmed = transport.trim();
+        this.transport = trimmed.startsWith("aeron:") ? trimmed : trimmed.toLowerCase();
         this.streamId = streamId;
+        this.exclusive = exclusive;
 
         this.channel = resolveChannel();
-        this.publication = mediaDriver.aeron().addPublication(channel, streamId);
+        this.publication = exclusive ? mediaDriver.aeron().addExclusivePublication(channel, streamId)
+                : mediaDriver.aeron().addPublication(channel, streamId);
     }
 
     protected String resolveChannel() {
+        if (transport.startsWith("aeron:")) {
+            return transport;
+        }
+
         if ("ipc".equals(transport)) {
             return "aeron:ipc";
         }
@@ -67,8 +91,22 @@ public class AeronPublisher implements AutoCloseable {
         return streamId;
     }
 
+    public boolean isExclusive() {
+        return exclusive;
+    }
+
+    /**
+     * Stamps every message with its send time (System.nanoTime, so only
+     * comparable within this publication), lets an archived recording of the
+     * stream be replayed at its original pace.
+     */
+    public void setSendTimestamps(final boolean sendTimestamps) {
+        this.sendTimestamps = sendTimestamps;
+    }
+
     public long offer(final DirectBuffer buffer, final int offset, final int length) {
-        return publication.offer(buffer, offset, length);
+        return sendTimestamps ? publication.offer(buffer, offset, length, SEND_TIME)
+                : publication.offer(buffer, offset, length);
     }
 
     @Override
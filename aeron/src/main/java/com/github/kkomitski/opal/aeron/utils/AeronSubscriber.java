@@ -1,6 +1,7 @@
 package com.github.kkomitski.opal.aeron.utils;
 
 import io.aeron.Subscription;
+import io.aeron.logbuffer.ControlledFragmentHandler;
 import io.aeron.logbuffer.FragmentHandler;
 
 public class AeronSubscriber implements AutoCloseable {
@@ -27,7 +28,10 @@ public class AeronSubscriber implements AutoCloseable {
             throw new IllegalArgumentException("transport must not be blank");
         }
         this.mediaDriver = mediaDriver;
-        this.transport = transport.trim().toLowerCase();
+        // A full channel URI is used as given, it may carry case sensitive
+        // parameters
+        final String trimmed = transport.trim();
+        this.transport = trimmed.startsWith("aeron:") ? trimmed : trimmed.toLowerCase();
         this.streamId = streamId;
         this.port = port;
 
@@ -36,6 +40,10 @@ public class AeronSubscriber implements AutoCloseable {
     }
 
     protected String resolveChannel() {
+        if (transport.startsWith("aeron:")) {
+            return transport;
+        }
+
         if ("ipc".equals(transport)) {
             return "aeron:ipc";
         }
@@ -63,6 +71,10 @@ public class AeronSubscriber implements AutoCloseable {
         return subscription.poll(handler, fragmentLimit);
     }
 
+    public int controlledPoll(final ControlledFragmentHandler handler, final int fragmentLimit) {
+        return subscription.controlledPoll(handler, fragmentLimit);
+    }
+
     @Override
     public void close() {
         subscription.close();
@@ -1,6 +1,18 @@
 package com.github.kkomitski.opal.aeron.utils;
 
+import java.io.File;
+
+import org.agrona.CloseHelper;
+
+import com.github.kkomitski.opal.aeron.MediaDriverConfig;
+import com.github.kkomitski.opal.aeron.archive.ArchiveConfig;
+import com.github.kkomitski.opal.aeron.archive.StreamRecorder;
+import com.github.kkomitski.opal.utils.OpalConfig;
+
 import io.aeron.Aeron;
+import io.aeron.CommonContext;
+import io.aeron.archive.ArchivingMediaDriver;
+import io.aeron.driver.MediaDriver;
 
 /**
  * Small wrapper around an Aeron client connection that attaches to an external Media Driver.
@@ -10,17 +22,31 @@ import io.aeron.Aeron;
  *     Aeron aeron = external.aeron();
  *     // pass aeron into publisher/subscriber factories
  * }
+ *
+ * With AERON_DRIVER=embedded, {@link #configured()} launches the media driver
+ * inside this process instead (see MediaDriverConfig), unless another process
+ * already runs one on the same directory, then it attaches to that.
  */
 public final class AttachAeronMediaDriver implements AutoCloseable {
     public static final String AERON_DIR_PROP = "aeron.dir";
     public static final String DEFAULT_AERON_DIR = System.getProperty("user.dir") + "/shared-memory";
+    private static final long DRIVER_TIMEOUT_MS = 1_000;
 
     private final String aeronDir;
     private final Aeron aeron;
+    private final AutoCloseable embeddedDriver; // null when attached to an external driver
+    private final StreamRecorder recorder; // Embedded driver with AERON_ARCHIVE only
 
     private AttachAeronMediaDriver(final String aeronDir, final Aeron aeron) {
+        this(aeronDir, aeron, null, null);
+    }
+
+    private AttachAeronMediaDriver(final String aeronDir, final Aeron aeron, final AutoCloseable embeddedDriver,
+            final StreamRecorder recorder) {
         this.aeronDir = aeronDir;
         this.aeron = aeron;
+        this.embeddedDriver = embeddedDriver;
+        this.recorder = recorder;
     }
 
     /**
@@ -44,6 +70,42 @@ public final class AttachAeronMediaDriver implements AutoCloseable {
         return new AttachAeronMediaDriver(aeronDir, aeron);
     }
 
+    /**
+     * Embedded or external driver as AERON_DRIVER says.
+     */
+    public static AttachAeronMediaDriver configured() {
+        final String aeronDir = System.getProperty(AERON_DIR_PROP, DEFAULT_AERON_DIR);
+        return "embedded".equalsIgnoreCase(OpalConfig.AERON_DRIVER) ? embedded(aeronDir) : connect(aeronDir);
+    }
+
+    public static AttachAeronMediaDriver embedded(final String aeronDir) {
+        if (CommonContext.isDriverActive(new File(aeronDir), DRIVER_TIMEOUT_MS, message -> {})) {
+            // Another process got there first, IPC only works within one driver
+            System.out.println("Media driver already running in " + aeronDir + ", attaching to it");
+            return connect(aeronDir);
+        }
+
+        final MediaDriver.Context ctx = MediaDriverConfig.context(aeronDir);
+        final AutoCloseable driver = OpalConfig.AERON_ARCHIVE
+                ? ArchivingMediaDriver.launch(ctx, ArchiveConfig.archiveContext(aeronDir))
+                : MediaDriver.launch(ctx);
+        Aeron aeron = null;
+        try {
+            aeron = Aeron.connect(new Aeron.Context().aeronDirectoryName(ctx.aeronDirectoryName()));
+            final StreamRecorder recorder = OpalConfig.AERON_ARCHIVE ? new StreamRecorder(aeron) : null;
+            System.out.println("Embedded media driver started in " + aeronDir + " (" + ctx.threadingMode()
+                    + (recorder != null ? ", archiving" : "") + ")");
+            return new AttachAeronMediaDriver(aeronDir, aeron, driver, recorder);
+        } catch (RuntimeException e) {
+            CloseHelper.closeAll(aeron, driver);
+            throw e;
+        }
+    }
+
+    public boolean isEmbedded() {
+        return embeddedDriver != null;
+    }
+
     public String aeronDir() {
         return aeronDir;
     }
@@ -54,6 +116,6 @@ public final class AttachAeronMediaDriver implements AutoCloseable {
 
     @Override
     public void close() {
-        aeron.close();
+        CloseHelper.closeAll(recorder, aeron, embeddedDriver);
     }
 }
@@ -32,7 +32,7 @@ public class LoadTestClient {
 
     // --- CONFIGURATION HANDLES ---
 
-    // Per-instrument price deviation (set from markets.xml: limitsPerBook / 2)
+    // Per-instrument price deviation (set from markets.xml: limitsPerBook / 2 ticks)
     private int[] maxPriceDeviationPerInstrument = null;
 
     // The gap between the best bid and best ask in ticks (simulated)
@@ -117,7 +117,7 @@ public class LoadTestClient {
             maxPriceDeviationPerInstrument = new int[markets.length];
             maxOrderQtyPerInstrument = new int[markets.length];
             for (int i = 0; i < markets.length; i++) {
-                maxPriceDeviationPerInstrument[i] = Math.max(1, markets[i].limitsPerBook / 2);
+                maxPriceDeviationPerInstrument[i] = Math.max(1, markets[i].limitsPerBook / 2) * markets[i].tickSize;
                 maxOrderQtyPerInstrument[i] = Math.max(1, markets[i].ordersPerLimit / 2);
             }
         } else {
@@ -364,14 +364,18 @@ public class LoadTestClient {
             // Final safety clamp relative to Current Price
             // Calculate the valid price collar (centered around currentPrice, width = bookDepth)
             if (!isMarket) {
-                int halfBook = bookDepth / 2;
+                int tickSize = (m != null) ? m.tickSize : 1;
+                int halfBook = (bookDepth / 2) * tickSize;
                 int collarMin = Math.max(1, currentPrice - halfBook);
                 int collarMax = currentPrice + halfBook;
                 price = Math.max(collarMin, Math.min(collarMax, price));
+
+                // Snap onto the instrument's tick grid, the engine rejects off-tick prices
+                price = (price / tickSize) * tickSize;
                 
                 // Hard clamp against zero
                 if (price <= 0)
-                    price = 1;
+                    price = tickSize;
             }
 
             // 4. Determine Quantity (exponential decay from spread)
@@ -387,7 +391,7 @@ public class LoadTestClient {
             int orderId = random.nextInt(Integer.MAX_VALUE);
 
             // 5. Send
-            byte[] orderBytes = encodeOrder(instrumentIndex, price, quantity, isBid, orderId);
+            byte[] orderBytes = SbeRequests.newOrder(instrumentIndex, price, quantity, isBid, orderId);
             ByteBuf buffer = Unpooled.wrappedBuffer(orderBytes);
             channel.writeAndFlush(buffer).addListener((ChannelFutureListener) f -> {
                 if (f.isSuccess()) {
@@ -401,31 +405,6 @@ public class LoadTestClient {
         }
     }
 
-    private byte[] encodeOrder(int instrumentIndex, int price, short quantity, boolean isBid, int orderId) {
-        byte[] bytes = new byte[11];
-        // Header: Side (1 bit) + Index (15 bits)
-        int header = (((isBid ? 1 : 0) << 15) | (instrumentIndex & 0x7FFF));
-        bytes[0] = (byte) (header >>> 8);
-        bytes[1] = (byte) header;
-
-        // Price (24 bits)
-        bytes[2] = (byte) (price >>> 16);
-        bytes[3] = (byte) (price >>> 8);
-        bytes[4] = (byte) price;
-
-        // Quantity (16 bits)
-        bytes[5] = (byte) (quantity >>> 8);
-        bytes[6] = (byte) quantity;
-
-        // Order ID (32 bits)
-        bytes[7] = (byte) (orderId >>> 24);
-        bytes[8] = (byte) (orderId >>> 16);
-        bytes[9] = (byte) (orderId >>> 8);
-        bytes[10] = (byte) orderId;
-
-        return bytes;
-    }
-
     // Helper for fallback symbol lookup
     private String getSymbolForIndex(int index) {
         return "UNK" + index;
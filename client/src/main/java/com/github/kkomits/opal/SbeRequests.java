@@ -0,0 +1,128 @@
+package com.github.kkomits.opal;
+
+import org.agrona.concurrent.UnsafeBuffer;
+
+import com.github.kkomitski.opal.sbe.AmendOrderEncoder;
+import com.github.kkomitski.opal.sbe.CancelOrderEncoder;
+import com.github.kkomitski.opal.sbe.MassCancelEncoder;
+import com.github.kkomitski.opal.sbe.MassCancelScope;
+import com.github.kkomitski.opal.sbe.MassQuoteEncoder;
+import com.github.kkomitski.opal.sbe.MessageHeaderEncoder;
+import com.github.kkomitski.opal.sbe.NewOrderEncoder;
+import com.github.kkomitski.opal.sbe.PostOnly;
+import com.github.kkomitski.opal.sbe.Side;
+import com.github.kkomitski.opal.sbe.TimeInForce;
+
+/**
+ * Builds the engine's ingress messages with the schema's generated encoders
+ * (sbe/src/main/resources/opal-schema.xml), each framed by the message header.
+ * Each sending thread encodes into a scratch buffer of its own.
+ */
+public class SbeRequests {
+
+	public static final int NEW_ORDER_LENGTH = MessageHeaderEncoder.ENCODED_LENGTH + NewOrderEncoder.BLOCK_LENGTH;
+
+	private static final int MAX_MESSAGE_SIZE = 1024;
+
+	private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+	private static final class Scratch {
+		final UnsafeBuffer buffer = new UnsafeBuffer(new byte[MAX_MESSAGE_SIZE]);
+		final MessageHeaderEncoder header = new MessageHeaderEncoder();
+		final NewOrderEncoder newOrder = new NewOrderEncoder();
+		final CancelOrderEncoder cancel = new CancelOrderEncoder();
+		final AmendOrderEncoder amend = new AmendOrderEncoder();
+		final MassCancelEncoder massCancel = new MassCancelEncoder();
+		final MassQuoteEncoder massQuote = new MassQuoteEncoder();
+
+		byte[] copy(int length) {
+			final byte[] bytes = new byte[length];
+			buffer.getBytes(0, bytes);
+			return bytes;
+		}
+	}
+
+	/**
+	 * A GTC limit order, or a market order if price is 0.
+	 */
+	public static byte[] newOrder(int instrumentIndex, int price, int quantity, boolean isBid, int orderId) {
+		return newOrder(instrumentIndex, price, quantity, isBid, orderId, TimeInForce.GTC, PostOnly.NONE, 0, 0, 0, 0L);
+	}
+
+	/**
+	 * A display quantity below the quantity makes an iceberg, a stop price holds
+	 * the order off book until the last trade reaches it and GTD orders expire at
+	 * expiryTime (epoch millis), or the session end if it is 0.
+	 */
+	public static byte[] newOrder(int instrumentIndex, int price, int quantity, boolean isBid, int orderId,
+			TimeInForce timeInForce, PostOnly postOnly, int displayQuantity, int stopPrice, int participantId,
+			long expiryTime) {
+		final Scratch scratch = SCRATCH.get();
+		scratch.newOrder.wrapAndApplyHeader(scratch.buffer, 0, scratch.header)
+				.instrumentIndex(instrumentIndex)
+				.side(isBid ? Side.BID : Side.ASK)
+				.timeInForce(timeInForce)
+				.price(price)
+				.quantity(quantity)
+				.orderId(orderId)
+				.postOnly(postOnly)
+				.displayQuantity(displayQuantity)
+				.stopPrice(stopPrice)
+				.participantId(participantId)
+				.expiryTime(expiryTime);
+		return scratch.copy(MessageHeaderEncoder.ENCODED_LENGTH + scratch.newOrder.encodedLength());
+	}
+
+	public static byte[] cancel(int instrumentIndex, int orderId) {
+		final Scratch scratch = SCRATCH.get();
+		scratch.cancel.wrapAndApplyHeader(scratch.buffer, 0, scratch.header)
+				.instrumentIndex(instrumentIndex)
+				.orderId(orderId);
+		return scratch.copy(MessageHeaderEncoder.ENCODED_LENGTH + scratch.cancel.encodedLength());
+	}
+
+	public static byte[] amend(int instrumentIndex, int orderId, int price, int quantity, int participantId) {
+		final Scratch scratch = SCRATCH.get();
+		scratch.amend.wrapAndApplyHeader(scratch.buffer, 0, scratch.header)
+				.instrumentIndex(instrumentIndex)
+				.orderId(orderId)
+				.price(price)
+				.quantity(quantity)
+				.participantId(participantId);
+		return scratch.copy(MessageHeaderEncoder.ENCODED_LENGTH + scratch.amend.encodedLength());
+	}
+
+	/**
+	 * The side is only used by the INSTRUMENT_SIDE scope, the participant scopes
+	 * need a non-zero participant id.
+	 */
+	public static byte[] massCancel(int instrumentIndex, int requestId, MassCancelScope scope, boolean isBid,
+			int participantId) {
+		final Scratch scratch = SCRATCH.get();
+		scratch.massCancel.wrapAndApplyHeader(scratch.buffer, 0, scratch.header)
+				.instrumentIndex(instrumentIndex)
+				.side(isBid ? Side.BID : Side.ASK)
+				.scope(scope)
+				.requestId(requestId)
+				.participantId(participantId);
+		return scratch.copy(MessageHeaderEncoder.ENCODED_LENGTH + scratch.massCancel.encodedLength());
+	}
+
+	public static byte[] massQuote(int instrumentIndex, int quoteId, int participantId, int[] bidPrices,
+			int[] bidQuantities, int[] askPrices, int[] askQuantities) {
+		final Scratch scratch = SCRATCH.get();
+		scratch.massQuote.wrapAndApplyHeader(scratch.buffer, 0, scratch.header)
+				.instrumentIndex(instrumentIndex)
+				.quoteId(quoteId)
+				.participantId(participantId);
+		final MassQuoteEncoder.BidsEncoder bids = scratch.massQuote.bidsCount(bidPrices.length);
+		for (int i = 0; i < bidPrices.length; i++) {
+			bids.next().price(bidPrices[i]).quantity(bidQuantities[i]);
+		}
+		final MassQuoteEncoder.AsksEncoder asks = scratch.massQuote.asksCount(askPrices.length);
+		for (int i = 0; i < askPrices.length; i++) {
+			asks.next().price(askPrices[i]).quantity(askQuantities[i]);
+		}
+		return scratch.copy(MessageHeaderEncoder.ENCODED_LENGTH + scratch.massQuote.encodedLength());
+	}
+}
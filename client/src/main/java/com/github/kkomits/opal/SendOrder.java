@@ -7,28 +7,43 @@ import org.agrona.concurrent.UnsafeBuffer;
 
 import com.github.kkomitski.opal.aeron.utils.AeronPublisher;
 import com.github.kkomitski.opal.aeron.utils.AttachAeronMediaDriver;
+import com.github.kkomitski.opal.sbe.MassCancelScope;
+import com.github.kkomitski.opal.sbe.PostOnly;
+import com.github.kkomitski.opal.sbe.TimeInForce;
 import com.github.kkomitski.opal.utils.OpalConfig;
-import com.github.kkomitski.opal.utils.OrderRequestDecoder;
 
 public class SendOrder {
 
 	private static final int INSTRUMENT_INDEX = 0;
 
 	public static void main(String[] args) throws Exception {
-		// Dead simple: publish to matcher ingress UDP endpoint on localhost.
+		// Optional participant id, orders from the same participant never trade
+		// with each other
+		final int participantId = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+
+		// Dead simple: publish to matcher ingress UDP endpoint on localhost, or
+		// over IPC when the engine takes colocated ingress.
 		System.setProperty(
 				AeronPublisher.UDP_ENDPOINT_PROP,
 				"localhost:" + OpalConfig.MATCHER_INGRESS_PORT);
 
 		try (AttachAeronMediaDriver mediaDriver = new AttachAeronMediaDriver();
-				AeronPublisher publisher = new AeronPublisher(mediaDriver, "udp", OpalConfig.MATCHER_INGRESS_STREAM_ID);
+				AeronPublisher publisher = new AeronPublisher(mediaDriver, OpalConfig.MATCHER_INGRESS_TRANSPORT,
+						OpalConfig.MATCHER_INGRESS_STREAM_ID, true);
 				BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
-
-			System.out.println("SendOrder ready. Commands:");
-			System.out.println("  market buy <qty>");
-			System.out.println("  market sell <qty>");
-			System.out.println("  limit buy <qty> <price>");
-			System.out.println("  limit sell <qty> <price>");
+			// Recorded sessions replay at the pace they were typed in
+			publisher.setSendTimestamps(true);
+
+			System.out.println("SendOrder ready (participant=" + participantId + "). Commands:");
+			System.out.println("  market buy <qty> [fok]");
+			System.out.println("  market sell <qty> [fok]");
+			System.out.println("  limit buy <qty> <price> [gtc|ioc|fok|day|gtd=<ms>] [show=<qty>] [post|post-reprice]");
+			System.out.println("  limit sell <qty> <price> [gtc|ioc|fok|day|gtd=<ms>] [show=<qty>] [post|post-reprice]");
+			System.out.println("  stop buy|sell <qty> <stopPrice> [limitPrice]");
+			System.out.println("  cancel <orderId>");
+			System.out.println("  amend <orderId> <qty> <price>");
+			System.out.println("  masscancel all|instrument|bids|asks");
+			System.out.println("  quote <bidPrice>x<qty>,... <askPrice>x<qty>,...  (replaces this participant's quotes, '-' for none)");
 			System.out.println("Type 'quit' to exit.");
 
 			int orderId = 1;
@@ -50,6 +65,66 @@ public class SendOrder {
 
 				try {
 					final String[] parts = trimmed.split("\\s+");
+					if ("cancel".equalsIgnoreCase(parts[0]) && parts.length == 2) {
+						final byte[] bytes = SbeRequests.cancel(INSTRUMENT_INDEX, Integer.parseInt(parts[1]));
+						final long result = publisher.offer(new UnsafeBuffer(bytes), 0, bytes.length);
+						System.out.println(result < 0 ? "offer failed: " + result : "cancel sent");
+						continue;
+					}
+					if ("masscancel".equalsIgnoreCase(parts[0]) && parts.length == 2) {
+						final String scope = parts[1].toLowerCase();
+						final MassCancelScope massCancelScope;
+						if ("all".equals(scope)) {
+							massCancelScope = MassCancelScope.PARTICIPANT;
+						} else if ("instrument".equals(scope)) {
+							massCancelScope = MassCancelScope.PARTICIPANT_INSTRUMENT;
+						} else if ("bids".equals(scope) || "asks".equals(scope)) {
+							massCancelScope = MassCancelScope.INSTRUMENT_SIDE;
+						} else {
+							throw new IllegalArgumentException("Scope must be all|instrument|bids|asks");
+						}
+						final byte[] bytes = SbeRequests.massCancel(INSTRUMENT_INDEX, orderId++, massCancelScope,
+								"bids".equals(scope), participantId);
+						final long result = publisher.offer(new UnsafeBuffer(bytes), 0, bytes.length);
+						System.out.println(result < 0 ? "offer failed: " + result : "mass cancel sent");
+						continue;
+					}
+					if ("amend".equalsIgnoreCase(parts[0]) && parts.length == 4) {
+						final byte[] bytes = SbeRequests.amend(INSTRUMENT_INDEX, Integer.parseInt(parts[1]),
+								Integer.parseInt(parts[3]), Integer.parseInt(parts[2]), participantId);
+						final long result = publisher.offer(new UnsafeBuffer(bytes), 0, bytes.length);
+						System.out.println(result < 0 ? "offer failed: " + result : "amend sent");
+						continue;
+					}
+					if ("quote".equalsIgnoreCase(parts[0]) && parts.length == 3) {
+						if (participantId == 0) {
+							throw new IllegalArgumentException("quotes need a participant id");
+						}
+						final String[] bids = "-".equals(parts[1]) ? new String[0] : parts[1].split(",");
+						final String[] asks = "-".equals(parts[2]) ? new String[0] : parts[2].split(",");
+						final int[] bidPrices = new int[bids.length];
+						final int[] bidQuantities = new int[bids.length];
+						final int[] askPrices = new int[asks.length];
+						final int[] askQuantities = new int[asks.length];
+						for (int i = 0; i < bids.length; i++) {
+							final String[] level = bids[i].split("x");
+							bidPrices[i] = Integer.parseInt(level[0]);
+							bidQuantities[i] = Integer.parseInt(level[1]);
+						}
+						for (int i = 0; i < asks.length; i++) {
+							final String[] level = asks[i].split("x");
+							askPrices[i] = Integer.parseInt(level[0]);
+							askQuantities[i] = Integer.parseInt(level[1]);
+						}
+
+						// Each level takes an order id of its own
+						final byte[] bytes = SbeRequests.massQuote(INSTRUMENT_INDEX, orderId, participantId, bidPrices,
+								bidQuantities, askPrices, askQuantities);
+						orderId += bids.length + asks.length;
+						final long result = publisher.offer(new UnsafeBuffer(bytes), 0, bytes.length);
+						System.out.println(result < 0 ? "offer failed: " + result : "quote sent");
+						continue;
+					}
 					if (parts.length < 3) {
 						throw new IllegalArgumentException("Not enough args");
 					}
@@ -66,34 +141,66 @@ public class SendOrder {
 					}
 
 					final int quantity = Integer.parseInt(parts[2]);
-					if (quantity <= 0 || quantity > 0xFFFF) {
-						throw new IllegalArgumentException("qty must be 1..65535");
+					if (quantity <= 0) {
+						throw new IllegalArgumentException("qty must be > 0");
 					}
 
 					final int price;
+					TimeInForce timeInForce = TimeInForce.GTC;
+					int displayQuantity = 0;
+					int stopPrice = 0;
+					PostOnly postOnly = PostOnly.NONE;
+					long expiryTime = 0;
 					if ("market".equals(type)) {
 						price = 0;
-						if (parts.length != 3) {
-							throw new IllegalArgumentException("market expects: market buy|sell <qty>");
+						if (parts.length != 3 && parts.length != 4) {
+							throw new IllegalArgumentException("market expects: market buy|sell <qty> [fok]");
+						}
+						if (parts.length == 4) {
+							timeInForce = parseTimeInForce(parts[3]);
 						}
 					} else if ("limit".equals(type)) {
-						if (parts.length != 4) {
-							throw new IllegalArgumentException("limit expects: limit buy|sell <qty> <price>");
+						if (parts.length < 4 || parts.length > 7) {
+							throw new IllegalArgumentException(
+									"limit expects: limit buy|sell <qty> <price> [gtc|ioc|fok|day|gtd=<ms>] [show=<qty>] [post|post-reprice]");
+						}
+						for (int i = 4; i < parts.length; i++) {
+							if (parts[i].toLowerCase().startsWith("show=")) {
+								displayQuantity = Integer.parseInt(parts[i].substring(5));
+								if (displayQuantity <= 0 || displayQuantity > quantity) {
+									throw new IllegalArgumentException("show must be 1..qty");
+								}
+							} else if (parts[i].toLowerCase().startsWith("gtd=")) {
+								// Expires the given number of millis from now
+								timeInForce = TimeInForce.GTD;
+								expiryTime = System.currentTimeMillis() + Long.parseLong(parts[i].substring(4));
+							} else if ("post".equalsIgnoreCase(parts[i])) {
+								postOnly = PostOnly.REJECT;
+							} else if ("post-reprice".equalsIgnoreCase(parts[i])) {
+								postOnly = PostOnly.REPRICE;
+							} else {
+								timeInForce = parseTimeInForce(parts[i]);
+							}
 						}
 						price = Integer.parseInt(parts[3]);
 						if (price <= 0) {
 							throw new IllegalArgumentException("price must be > 0 for limit orders");
 						}
+					} else if ("stop".equals(type)) {
+						if (parts.length != 4 && parts.length != 5) {
+							throw new IllegalArgumentException("stop expects: stop buy|sell <qty> <stopPrice> [limitPrice]");
+						}
+						stopPrice = Integer.parseInt(parts[3]);
+						if (stopPrice <= 0) {
+							throw new IllegalArgumentException("stopPrice must be > 0");
+						}
+						price = parts.length == 5 ? Integer.parseInt(parts[4]) : 0;
 					} else {
-						throw new IllegalArgumentException("Type must be market|limit");
+						throw new IllegalArgumentException("Type must be market|limit|stop");
 					}
 
-					final byte[] bytes = OrderRequestDecoder.encode(
-							INSTRUMENT_INDEX,
-							price,
-							(short) quantity,
-							isBid,
-							orderId++);
+					final byte[] bytes = SbeRequests.newOrder(INSTRUMENT_INDEX, price, quantity, isBid, orderId++,
+							timeInForce, postOnly, displayQuantity, stopPrice, participantId, expiryTime);
 
 					final UnsafeBuffer buffer = new UnsafeBuffer(bytes);
 					final long result = publisher.offer(buffer, 0, bytes.length);
@@ -108,4 +215,19 @@ public class SendOrder {
 			}
 		}
 	}
+
+	private static TimeInForce parseTimeInForce(final String value) {
+		switch (value.toLowerCase()) {
+			case "gtc":
+				return TimeInForce.GTC;
+			case "ioc":
+				return TimeInForce.IOC;
+			case "fok":
+				return TimeInForce.FOK;
+			case "day":
+				return TimeInForce.GTD; // No expiry time, lapses at the session end
+			default:
+				throw new IllegalArgumentException("Time in force must be gtc|ioc|fok|day|gtd=<ms>");
+		}
+	}
 }
@@ -45,7 +45,7 @@ public class StaticRequestsBuilder {
         }
 
         // Calculate number of orders based on file size
-        long numOrders = (FILE_SIZE_MB * 1024L * 1024L) / 11;
+        long numOrders = (FILE_SIZE_MB * 1024L * 1024L) / SbeRequests.NEW_ORDER_LENGTH;
         System.out.println("Generating " + numOrders + " orders for ~" + FILE_SIZE_MB + " MB file...");
 
         // Write orders to binary file
@@ -111,7 +111,7 @@ public class StaticRequestsBuilder {
         int orderId = random.nextInt(Integer.MAX_VALUE);
 
         // Encode order using the protocol
-        return encodeOrder(instrumentIndex, price, quantity, isBid, orderId);
+        return SbeRequests.newOrder(instrumentIndex, price, quantity, isBid, orderId);
     }
 
     // Map instrument index to symbol (must match orderBooks in server)
@@ -125,30 +125,4 @@ public class StaticRequestsBuilder {
             return symbols[index];
         return "MSFT";
     }
-
-    private byte[] encodeOrder(int instrumentIndex, int price, short quantity, boolean isBid, int orderId) {
-        byte[] bytes = new byte[11];
-
-        // First 2 bytes: MSB for bid/ask and 15 bits for instrument index
-        int header = (((isBid ? 1 : 0) << 15) | (instrumentIndex & 0x7FFF));
-        bytes[0] = (byte) (header >>> 8);
-        bytes[1] = (byte) header;
-
-        // Next 3 bytes: price (24 bits)
-        bytes[2] = (byte) (price >>> 16);
-        bytes[3] = (byte) (price >>> 8);
-        bytes[4] = (byte) price;
-
-        // Next 2 bytes: quantity (16 bits)
-        bytes[5] = (byte) (quantity >>> 8);
-        bytes[6] = (byte) quantity;
-
-        // Next 4 bytes: order id
-        bytes[7] = (byte) (orderId >>> 24);
-        bytes[8] = (byte) (orderId >>> 16);
-        bytes[9] = (byte) (orderId >>> 8);
-        bytes[10] = (byte) orderId;
-
-        return bytes;
-    }
 }
@@ -1,14 +1,27 @@
 package com.github.kkomitski.opal;
 
+import java.io.File;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+
 import com.github.kkomitski.opal.aeron.utils.AeronPublisher;
 import com.github.kkomitski.opal.aeron.utils.AeronSubscriber;
 import com.github.kkomitski.opal.aeron.utils.AttachAeronMediaDriver;
 import com.github.kkomitski.opal.helpers.LoadOrderBooks;
+import com.github.kkomitski.opal.risk.RiskCheck;
+import com.github.kkomitski.opal.risk.RiskLimits;
+import com.github.kkomitski.opal.router.PartitionMap;
 import com.github.kkomitski.opal.services.EgressService;
 import com.github.kkomitski.opal.services.IngressService;
+import com.github.kkomitski.opal.utils.IngressChannel;
+import com.github.kkomitski.opal.utils.Market;
+import com.github.kkomitski.opal.utils.MarketsLoader;
 import com.github.kkomitski.opal.utils.OpalConfig;
 
+import org.agrona.concurrent.BackoffIdleStrategy;
+
 import io.prometheus.client.exporter.HTTPServer;
+import net.openhft.affinity.AffinityLock;
 
 // Example nc requests
 // AAPL - printf '\x80\x01\x01\x86\xa0\x00\x32' | nc 192.168.1.176 42069
@@ -27,21 +40,96 @@ public class MatchingEngine {
         // }
         
         // Start Aeron communications
-        try (AttachAeronMediaDriver aeronMediaDriver = new AttachAeronMediaDriver()) {
-            final AeronPublisher egressPublication = new AeronPublisher(aeronMediaDriver, "ipc", OpalConfig.MATCHER_EGRESS_STREAM_ID);
-            final EgressService egressService = new EgressService(egressPublication);
-            
-            // Loads a static list of order books per instrument as defined in the markets XML
-            OrderBook[] orderBooks = LoadOrderBooks.fromXML(OpalConfig.MARKETS_XML_URL, egressService);
-            System.out.println("Successfully loaded markets.xml (books=" + orderBooks.length + ")");
-
-            final AeronSubscriber ingressSubscriber = new AeronSubscriber(aeronMediaDriver, "udp", OpalConfig.MATCHER_INGRESS_STREAM_ID, OpalConfig.MATCHER_INGRESS_PORT);
-            final IngressService ingressService = new IngressService(ingressSubscriber);
-            ingressService.subscribe(orderBooks);
+        try (AttachAeronMediaDriver aeronMediaDriver = AttachAeronMediaDriver.configured()) {
+            // Every book's thread is the only writer of its own exclusive egress publication
+            final IntFunction<EgressService> egressServices = instrumentIndex -> new EgressService(
+                    new AeronPublisher(aeronMediaDriver, "ipc", OpalConfig.MATCHER_EGRESS_STREAM_ID, true));
+
+            // Loads a static list of order books per instrument as defined in the markets XML,
+            // behind an ingress router only the ones in this engine's partition
+            final Market[] markets = MarketsLoader.load(OpalConfig.MARKETS_XML_URL);
+            final PartitionMap partitionMap = OpalConfig.ENGINE_ID < 0 ? null
+                    : PartitionMap.open(new File(OpalConfig.PARTITION_MAP_FILE));
+            final IntPredicate hosted = instrumentIndex -> partitionMap == null
+                    || partitionMap.engineFor(instrumentIndex) == OpalConfig.ENGINE_ID;
+            OrderBook[] orderBooks = LoadOrderBooks.fromMarkets(markets, egressServices, hosted);
+            System.out.println("Successfully loaded markets.xml (books=" + orderBooks.length
+                    + (partitionMap == null ? "" : ", engine " + OpalConfig.ENGINE_ID) + ")");
+            if (partitionMap != null) {
+                // Resting order counts keep PartitionMapTool from moving a non-empty book
+                for (final OrderBook orderBook : orderBooks) {
+                    if (orderBook != null) {
+                        orderBook.attachPartitionMap(partitionMap);
+                    }
+                }
+            }
+
+            final RiskLimits riskLimits = new RiskLimits(OpalConfig.RISK_MAX_ORDER_QTY, OpalConfig.RISK_MAX_NOTIONAL,
+                    OpalConfig.RISK_MAX_OPEN_ORDERS, OpalConfig.RISK_MAX_POSITION);
+            if (OpalConfig.MATCHER_INGRESS_RAW && riskLimits.hasLimits()) {
+                // The risk stage needs decoded requests on the ingress thread
+                throw new IllegalStateException("MATCHER_INGRESS_RAW can't be combined with RISK_* limits");
+            }
+
+            final IngressService.FlowControl flowControl = flowControl(OpalConfig.MATCHER_INGRESS_FLOW_CONTROL);
+
+            // One pinned poller per ingress channel, each owning every Nth instrument
+            final IngressChannel[] channels = IngressChannel.configured();
+            final Thread[] ingressThreads = new Thread[channels.length];
+            for (int i = 0; i < channels.length; i++) {
+                final IngressChannel channel = channels[i];
+                final AeronSubscriber ingressSubscriber = new AeronSubscriber(aeronMediaDriver, channel.transport,
+                        channel.streamId, channel.port);
+                // Each channel checks its own instruments, in a table of its own
+                final RiskCheck riskCheck = OpalConfig.MATCHER_INGRESS_RAW ? null
+                        : new RiskCheck(orderBooks.length, OpalConfig.RISK_TABLE_CAPACITY, riskLimits);
+                final IngressService ingressService = new IngressService(ingressSubscriber, new BackoffIdleStrategy(),
+                        riskCheck, OpalConfig.MATCHER_INGRESS_RAW, i,
+                        channels.length);
+                // BOOK_BUSY rejects go out on a publication of the ingress thread's own
+                ingressService.setFlowControl(flowControl, OpalConfig.MATCHER_RING_HIGH_WATER_PERCENT,
+                        flowControl != IngressService.FlowControl.REJECT ? null : new EgressService(new AeronPublisher(
+                                aeronMediaDriver, "ipc", OpalConfig.MATCHER_EGRESS_STREAM_ID, true)));
+                if (partitionMap != null) {
+                    // Instruments moved here while running are loaded on their first request
+                    ingressService.setBookLoader(instrumentIndex -> {
+                        if (!hosted.test(instrumentIndex)) {
+                            return null;
+                        }
+                        final OrderBook orderBook = LoadOrderBooks.load(markets, instrumentIndex,
+                                egressServices.apply(instrumentIndex));
+                        orderBook.attachPartitionMap(partitionMap);
+                        return orderBook;
+                    });
+                }
+                final int core = i < OpalConfig.MATCHER_INGRESS_CORES.length ? OpalConfig.MATCHER_INGRESS_CORES[i] : -1;
+                ingressThreads[i] = new Thread(() -> {
+                    try (AffinityLock lock = core >= 0 ? AffinityLock.acquireLock(core) : null) {
+                        ingressService.subscribe(orderBooks);
+                    }
+                }, "opal-ingress-" + i);
+                ingressThreads[i].start();
+                System.out.println("Ingress channel " + i + ": " + channel);
+            }
+
+            for (final Thread ingressThread : ingressThreads) {
+                ingressThread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
 
         // if (prometheusServer != null) {
         //     prometheusServer.close();
         // }
     }
+
+    private static IngressService.FlowControl flowControl(final String mode) {
+        for (final IngressService.FlowControl flowControl : IngressService.FlowControl.values()) {
+            if (flowControl.name().equalsIgnoreCase(mode)) {
+                return flowControl;
+            }
+        }
+        throw new IllegalStateException("MATCHER_INGRESS_FLOW_CONTROL must be block, abort or reject, not " + mode);
+    }
 }
\ No newline at end of file
@@ -1,26 +1,40 @@
-/* 
-TODO:
- - implement a tick size (decimal precision)
- - set the price collar (MAX_LIMITS_PER_BOOK) to a percentage of the price and tick size
-*/
-
 package com.github.kkomitski.opal;
 
+import java.util.Arrays;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import org.agrona.BufferUtil;
+import org.agrona.DeadlineTimerWheel;
+import org.agrona.DirectBuffer;
+import org.agrona.MutableDirectBuffer;
 import org.agrona.collections.Int2ObjectHashMap;
+import org.agrona.collections.Long2LongHashMap;
 import org.agrona.concurrent.EpochClock;
 import org.agrona.concurrent.UnsafeBuffer;
 
 import com.github.kkomitski.opal.helpers.OrderBookDump;
+import com.github.kkomitski.opal.orderbook.LevelVolumeTree;
 import com.github.kkomitski.opal.orderbook.Limit;
 import com.github.kkomitski.opal.orderbook.LimitPool;
 import com.github.kkomitski.opal.orderbook.Order;
+import com.github.kkomitski.opal.orderbook.OrderIndex;
 import com.github.kkomitski.opal.orderbook.OrderRequest;
+import com.github.kkomitski.opal.orderbook.RequestDecoder;
+import com.github.kkomitski.opal.orderbook.StopBook;
+import com.github.kkomitski.opal.risk.RiskCheck;
+import com.github.kkomitski.opal.router.PartitionMap;
+import com.github.kkomitski.opal.sbe.FillEncoder;
+import com.github.kkomitski.opal.sbe.OrderStatusEncoder;
+import com.github.kkomitski.opal.sbe.OrderStatusType;
+import com.github.kkomitski.opal.sbe.TopOfBookEncoder;
 import com.github.kkomitski.opal.services.EgressService;
-import com.github.kkomitski.opal.utils.MatchEventDecoder;
-import com.lmax.disruptor.BlockingWaitStrategy;
+import com.github.kkomitski.opal.utils.Market;
+import com.github.kkomitski.opal.utils.OrderStatusBatch;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.InsufficientCapacityException;
 import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.TimeoutBlockingWaitStrategy;
 import com.lmax.disruptor.dsl.Disruptor;
 import com.lmax.disruptor.dsl.ProducerType;
 
@@ -31,8 +45,39 @@ public class OrderBook {
   private final EpochClock epochClock;
 
   // Constants
-  private final int MAX_LIMITS_PER_BOOK; // Price collar
+  private final int MAX_LIMITS_PER_BOOK; // Price collar (in ticks)
   private static final int MAX_ORDERS_PER_CHUNK = 256;
+  private static final int BASIS_POINTS = 10_000;
+
+  // Price grid - levels are keyed by tick index (price / tickSize), so a book
+  // of N limits covers N ticks regardless of the instrument's price
+  private final int tickSize;
+  private final int priceScale;
+  private final int collarBasisPoints; // 0 = fixed MAX_LIMITS_PER_BOOK / 2 ticks
+
+  private final Market.SelfTradePrevention selfTradePrevention;
+  private final Market.Allocation allocation;
+  private final int marketProtectionTicks; // 0 = market orders sweep unbounded
+
+  // Dynamic price band around the last trade. Kept as [bandLowTick,
+  // bandLowTick + bandWidthTicks] so a fill price is checked with a single
+  // unsigned compare, the band is wide open until the first trade
+  private final int bandBasisPoints; // 0 = no band
+  private final Market.BandBreach bandBreach;
+  private int bandReferenceTick = 0;
+  private int bandLowTick = 0;
+  private int bandWidthTicks = Integer.MAX_VALUE;
+  private boolean halted = false;
+  private boolean bandBreached; // Set by the last MatchOrder call
+
+  // Pro-rata passes report their fills here, the taker and tick are set
+  // before each pass so the listener never allocates
+  private final Limit.FillListener proRataFillListener = this::onProRataFill;
+  private int proRataTakerId;
+  private int proRataTakerParticipant;
+  private boolean proRataTakerBid;
+  private int proRataTick;
+  private boolean proRataEmit;
 
   // Metadata
   private final String name;
@@ -42,41 +87,159 @@ public class OrderBook {
   private final RingBuffer<OrderRequest> ringBuffer;
   private final int RING_BUFFER_SIZE = 32_768; // Increased from 8132
 
+  // Raw ingress - a byte slot per ring slot (same index) that ingress copies
+  // undecoded requests into, this book's thread decodes them. Allocated by
+  // enableRawIngress, 2 MB per book
+  public static final int RAW_SLOT_SIZE = 64; // Every request but a mass quote fits
+  private UnsafeBuffer rawSlots;
+  private RequestDecoder rawDecoder;
+
   private final Int2ObjectHashMap<Limit> bidLimits;
   private final Int2ObjectHashMap<Limit> askLimits;
 
-  private final IntHeapPriorityQueue bidPrices; // Max-heap
-  private final IntHeapPriorityQueue askPrices; // Min-heap
+  private final IntHeapPriorityQueue bidPrices; // Max-heap (ticks)
+  private final IntHeapPriorityQueue askPrices; // Min-heap (ticks)
+
+  // Cumulative resting volume per side over a ladder of ticks, used to answer
+  // "is there enough liquidity up to price X" for FOK orders in O(log n)
+  private final LevelVolumeTree bidVolumes;
+  private final LevelVolumeTree askVolumes;
+
+  // Stop orders waiting for the last trade price to reach them
+  private final StopBook stopBook;
+  private int lastTradeTick = 0; // 0 = no trade yet
+
+  // Call auction - while set, limit orders rest without matching until the
+  // uncross. Fills of the uncross are packed into bursts of egress messages
+  private boolean inAuction = false;
+  private static final int AUCTION_FILLS_PER_BURST = 56; // 1344 bytes, one MTU
+  private final UnsafeBuffer auctionFillBuffer = new UnsafeBuffer(
+      new byte[FillEncoder.BLOCK_LENGTH * AUCTION_FILLS_PER_BURST]);
+  private int auctionFillCount = 0;
+
+  // The cancels of a mass cancel go out packed into as few messages as possible
+  private static final int STATUS_EVENTS_PER_BURST = 64; // 1282 bytes, one MTU
+  private final UnsafeBuffer statusBatchBuffer = new UnsafeBuffer(
+      new byte[OrderStatusBatch.HEADER_SIZE + OrderStatusEncoder.BLOCK_LENGTH * STATUS_EVENTS_PER_BURST]);
+  private int statusBatchCount = 0;
+  private long statusBatchTimestamp;
+  private final StopBook.StopVisitor stopCancelWriter = this::appendStopCancel;
 
   // 1000 chunks * 256 orders = 256,000 orders total across 300 levels
   private final LimitPool limitPool;
 
+  // Every resting order by id and by participant, maintained by the limits of
+  // the pool
+  private final OrderIndex restingOrders;
+
+  // GTD / day expiry. The wheel is advanced between batches (and on idle
+  // timeouts) with one clock read, expiring at most EXPIRY_BATCH_LIMIT orders
+  // per pass. Timers of orders that fill first are left to lapse and ignored
+  private static final int EXPIRY_TICK_MS = 16;
+  private static final int EXPIRY_TICKS_PER_WHEEL = 512;
+  private static final int EXPIRY_BATCH_LIMIT = 256;
+  private static final long IDLE_TIMEOUT_MS = EXPIRY_TICK_MS;
+  private static final long NO_ORDER = -1;
+  private final DeadlineTimerWheel expiryWheel;
+  private final DeadlineTimerWheel.TimerHandler expiryHandler = this::onOrderExpiry;
+  private final Long2LongHashMap timerOrders = new Long2LongHashMap(NO_ORDER); // Timer id -> order id
+  private final Market market;
+
+  // Mass quotes: each participant's resting quote ids, [0] holds the count
+  private final Int2ObjectHashMap<int[]> quoteIds = new Int2ObjectHashMap<>();
+  private final Order[] previousQuotes = new Order[2 * OrderRequest.MAX_QUOTE_LEVELS];
+  private final boolean[] quoteLevelKept = new boolean[2 * OrderRequest.MAX_QUOTE_LEVELS];
+  private final OrderRequest quoteOrderBuffer = new OrderRequest();
+  private final OrderRequest amendOrderBuffer = new OrderRequest();
+
   // Used to throw messages out of the orderbook to via IPC
   private final EgressService egressService;
 
+  // Pre-trade risk stage fed with this book's fills and resting orders, null
+  // when ingress runs without one
+  private RiskCheck riskCheck;
+
+  // Behind an ingress router, where this book's resting order count goes, null
+  // otherwise
+  private PartitionMap partitionMap;
+  private int publishedRestingOrders = -1;
+
   // Diagnostics
   private double disruptorUsage = 0;
+  private long processed = 0; // Requests handled through process()
+
+  // Snapshot writing state, see writeSnapshot
+  private static final OrderRequest.TimeInForce[] TIME_IN_FORCE = OrderRequest.TimeInForce.values();
+  private final Limit.OrderVisitor snapshotOrderWriter = this::writeSnapshotOrder;
+  private final StopBook.StopVisitor snapshotStopWriter = this::writeSnapshotStop;
+  private MutableDirectBuffer snapshotBuffer;
+  private int snapshotOffset;
+  private int snapshotCount;
+  private boolean snapshotBid;
 
   // Reusable buffers for order request processing
   private OrderRequest orderRequestBuffer = new OrderRequest();
-  private final byte[] matchEventBytes = new byte[MatchEventDecoder.SIZE];
+  private final OrderRequest stopOrderBuffer = new OrderRequest();
+  private final byte[] matchEventBytes = new byte[FillEncoder.BLOCK_LENGTH];
   private final UnsafeBuffer matchEventBuffer = new UnsafeBuffer(matchEventBytes);
+  private final UnsafeBuffer statusEventBuffer = new UnsafeBuffer(new byte[OrderStatusEncoder.BLOCK_LENGTH]);
+  // Egress is written through the schema's flyweights, headerless (see
+  // opal-schema.xml). One pair per book, the book's thread owns them
+  private final FillEncoder fillEncoder = new FillEncoder();
+  private final OrderStatusEncoder statusEncoder = new OrderStatusEncoder();
+
+  // Market data, a TopOfBook after any batch of requests that moved the best
+  // prices, the quantities at them or the last trade. Headerless as well, its
+  // 32 bytes tell it apart from fills and status events
+  private final TopOfBookEncoder topOfBookEncoder = new TopOfBookEncoder();
+  private final UnsafeBuffer topOfBookBuffer = new UnsafeBuffer(new byte[TopOfBookEncoder.BLOCK_LENGTH]);
+  private int publishedBestBidTick;
+  private int publishedBestAskTick;
+  private int publishedBidQuantity;
+  private int publishedAskQuantity;
+  private int publishedLastTradeTick;
 
   private static final int ticksToRender = 50_000;
 
   public OrderBook(String name, int instrumentIndex, int limitsPerBook, int ordersPerLimit,
       EgressService egressService,
       EpochClock epochClock) {
+    this(new Market(name, 0, limitsPerBook, ordersPerLimit), instrumentIndex, egressService, epochClock);
+  }
+
+  public OrderBook(Market market, int instrumentIndex, EgressService egressService, EpochClock epochClock) {
+    this(market, instrumentIndex, egressService, epochClock, true);
+  }
+
+  /**
+   * Without a thread of its own the book is driven through {@link #process} and
+   * {@link #expire} by the caller, which also owns the clock. Given the same
+   * requests at the same clock times it always ends up in the same state, the
+   * replicas of the replication package rely on that.
+   */
+  public OrderBook(Market market, int instrumentIndex, EgressService egressService, EpochClock epochClock,
+      boolean threaded) {
     this.instrumentIndex = instrumentIndex;
-    this.name = name;
-    this.MAX_LIMITS_PER_BOOK = limitsPerBook;
+    this.name = market.symbol;
+    this.MAX_LIMITS_PER_BOOK = market.limitsPerBook;
+    this.tickSize = market.tickSize;
+    this.priceScale = market.priceScale;
+    this.collarBasisPoints = (int) Math.round(market.collarPercent * 100);
+    this.selfTradePrevention = market.selfTradePrevention;
+    this.allocation = market.allocation;
+    this.marketProtectionTicks = market.marketProtectionTicks;
+    this.bandBasisPoints = (int) Math.round(market.priceBandPercent * 100);
+    this.bandBreach = market.bandBreach;
     this.egressService = egressService;
     this.epochClock = epochClock;
+    this.market = market;
 
+    int ordersPerLimit = market.ordersPerLimit;
     int chunksPerLimit = (int) Math.ceil((double) ordersPerLimit / MAX_ORDERS_PER_CHUNK);
     int chunkPoolSize = MAX_LIMITS_PER_BOOK * chunksPerLimit;
 
-    limitPool = new LimitPool(MAX_LIMITS_PER_BOOK, chunkPoolSize, chunksPerLimit);
+    this.restingOrders = new OrderIndex(MAX_LIMITS_PER_BOOK * 2);
+    limitPool = new LimitPool(MAX_LIMITS_PER_BOOK, chunkPoolSize, chunksPerLimit, restingOrders);
 
     this.bidLimits = new Int2ObjectHashMap<>(MAX_LIMITS_PER_BOOK / 2, 0.7f);
     this.askLimits = new Int2ObjectHashMap<>(MAX_LIMITS_PER_BOOK / 2, 0.7f);
@@ -85,37 +248,50 @@ public class OrderBook {
     this.bidPrices = new IntHeapPriorityQueue(MAX_LIMITS_PER_BOOK / 2, IntComparators.OPPOSITE_COMPARATOR);
     this.askPrices = new IntHeapPriorityQueue(MAX_LIMITS_PER_BOOK / 2);
 
+    // The ladder spans twice the book so the collar always fits, it is
+    // re-centered when the market drifts out of it
+    int ladderTicks = Math.max(2, MAX_LIMITS_PER_BOOK * 2);
+    int ladderBase = market.price / tickSize - ladderTicks / 2;
+    this.bidVolumes = new LevelVolumeTree(ladderTicks, ladderBase);
+    this.askVolumes = new LevelVolumeTree(ladderTicks, ladderBase);
+
+    this.stopBook = new StopBook();
+    this.expiryWheel = new DeadlineTimerWheel(TimeUnit.MILLISECONDS, epochClock.time(), EXPIRY_TICK_MS,
+        EXPIRY_TICKS_PER_WHEEL);
+
+    if (!threaded) {
+      this.disruptor = null;
+      this.ringBuffer = null;
+      return;
+    }
+
     this.disruptor = new Disruptor<OrderRequest>(
         OrderRequest::new,
         RING_BUFFER_SIZE,
         Executors.defaultThreadFactory(),
         ProducerType.MULTI,
-        new BlockingWaitStrategy());
+        new TimeoutBlockingWaitStrategy(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS));
 
     // Process orders
-    this.disruptor.handleEventsWith((order, sequence, endOfBatch) -> {
-      int price = order.getPrice();
-      int quantity = order.getQuantity();
-      boolean isMarket = price == 0;
-      boolean isCancel = price == 0 && quantity == 0;
-
-      if (isCancel) {
-        this.CancelOrder(order);
-      } else if (isMarket) {
-        this.PlaceMarketOrder(order);
-      } else {
-        this.PlaceLimitOrder(order);
-      }
-
-      // Can run it every N sequence calls instead if we allow a buffer zone in the
-      // levels
-      if (sequence % 100 == 0) {
-        pruneStaleLevels(100);
+    this.disruptor.handleEventsWith(new EventHandler<OrderRequest>() {
+      @Override
+      public void onEvent(OrderRequest order, long sequence, boolean endOfBatch) {
+        if (order.getRawLength() != 0) {
+          decodeRaw(order, sequence);
+        }
+        handleOrder(order, sequence);
+        if (endOfBatch) {
+          expireOrders();
+          publishRestingOrders();
+          publishTopOfBook();
+        }
       }
 
-      OrderBookDump.generateHtml(this, "orderbook-dump.html");
-      if (sequence % ticksToRender == 0) {
-        // pruneStaleLevels(100);
+      @Override
+      public void onTimeout(long sequence) {
+        expireOrders();
+        publishRestingOrders();
+        publishTopOfBook();
       }
     });
 
@@ -123,6 +299,249 @@ public class OrderBook {
     this.ringBuffer = disruptor.getRingBuffer();
   }
 
+  private void handleOrder(OrderRequest order, long sequence) {
+    int price = order.getPrice();
+    int quantity = order.getQuantity();
+    boolean isMarket = price == 0;
+    boolean isCancel = price == 0 && quantity == 0;
+    final OrderRequest.Type type = order.getType();
+
+    if (type == OrderRequest.Type.START_AUCTION) {
+      // Also the way out of a halt, through a reopening auction
+      inAuction = true;
+      halted = false;
+    } else if (type == OrderRequest.Type.UNCROSS) {
+      Uncross();
+    } else if (type == OrderRequest.Type.RESUME) {
+      halted = false;
+    } else if (order.getRiskRejection() != null) {
+      RejectOrder(order, order.getRiskRejection());
+    } else if (order.getTimeInForce() == null || order.getPostOnly() == null) {
+      RejectOrder(order, OrderRequest.RejectionReason.UNSUPPORTED_ORDER_TYPE);
+    } else if (halted && !isCancel && type != OrderRequest.Type.MASS_CANCEL) {
+      // Orders can still be pulled while halted, nothing can trade
+      RejectOrder(order, OrderRequest.RejectionReason.TRADING_HALTED);
+    } else if (type == OrderRequest.Type.MASS_QUOTE) {
+      MassQuote(order);
+    } else if (type == OrderRequest.Type.AMEND) {
+      AmendOrder(order);
+    } else if (type == OrderRequest.Type.MASS_CANCEL) {
+      MassCancel(order);
+    } else if (isCancel) {
+      CancelOrder(order);
+    } else if (order.isStop()) {
+      PlaceStopOrder(order);
+    } else if (inAuction && (isMarket || !order.getTimeInForce().canRest())) {
+      // Only resting orders make sense while nothing matches
+      RejectOrder(order, OrderRequest.RejectionReason.AUCTION_IN_PROGRESS);
+    } else if (isMarket) {
+      PlaceMarketOrder(order);
+    } else {
+      PlaceLimitOrder(order);
+    }
+
+    // Trades from this event (or an already crossed stop) may release stops
+    releaseTriggeredStops();
+
+    if (order.isRiskAccepted() && riskCheck != null) {
+      riskCheck.onProcessed(instrumentIndex, order.getParticipantId());
+    }
+
+    // The band follows the last trade, but only between events so that a
+    // single sweep is measured against where it started
+    if (lastTradeTick != bandReferenceTick) {
+      updatePriceBand();
+    }
+
+    // Can run it every N sequence calls instead if we allow a buffer zone in the
+    // levels
+    if (sequence % 100 == 0) {
+      pruneStaleLevels(100);
+    }
+
+    OrderBookDump.generateHtml(this, "orderbook-dump.html");
+    if (sequence % ticksToRender == 0) {
+      // pruneStaleLevels(100);
+    }
+  }
+
+  /**
+   * Handles a request on the caller's thread, for books created without one.
+   * Orders due to expire by the clock's time go first.
+   */
+  public void process(final OrderRequest request) {
+    expireOrders();
+    handleOrder(request, processed++);
+    publishTopOfBook();
+  }
+
+  /**
+   * Expires the orders due by the clock's time, for books created without a
+   * thread. Call regularly while no requests arrive.
+   */
+  public void expire() {
+    expireOrders();
+    publishTopOfBook();
+  }
+
+  /**
+   * Writes everything later matching depends on at offset, for a replica to
+   * load with {@link #restoreSnapshot}: the auction, halt and last trade
+   * state, every resting order in time priority with its hidden size and
+   * expiry, the stops and the mass quote ladders. Returns the offset after it.
+   * Between requests only, on the thread driving the book.
+   */
+  public int writeSnapshot(final MutableDirectBuffer buffer, final int offset) {
+    int position = offset;
+    buffer.putLong(position, processed);
+    buffer.putByte(position + 8, (byte) (inAuction ? 1 : 0));
+    buffer.putByte(position + 9, (byte) (halted ? 1 : 0));
+    buffer.putInt(position + 10, lastTradeTick);
+    buffer.putInt(position + 14, bidVolumes.getBaseTick());
+    // Start of the current tick, as resetStartTime takes it
+    buffer.putLong(position + 18, expiryWheel.currentTickTime() - expiryWheel.tickResolution());
+    position += 26;
+
+    snapshotBuffer = buffer;
+    snapshotOffset = position + 4;
+    snapshotCount = 0;
+    snapshotBid = true;
+    for (final Limit limit : bidLimits.values()) {
+      limit.forEachOrder(snapshotOrderWriter);
+    }
+    snapshotBid = false;
+    for (final Limit limit : askLimits.values()) {
+      limit.forEachOrder(snapshotOrderWriter);
+    }
+    buffer.putInt(position, snapshotCount);
+    position = snapshotOffset;
+
+    snapshotOffset = position + 4;
+    snapshotCount = 0;
+    stopBook.forEach(instrumentIndex, stopOrderBuffer, snapshotStopWriter);
+    buffer.putInt(position, snapshotCount);
+    position = snapshotOffset;
+    snapshotBuffer = null;
+
+    buffer.putInt(position, quoteIds.size());
+    position += 4;
+    final Int2ObjectHashMap<int[]>.EntryIterator quotes = quoteIds.entrySet().iterator();
+    while (quotes.hasNext()) {
+      quotes.next();
+      final int[] ids = quotes.getValue();
+      buffer.putInt(position, quotes.getIntKey());
+      buffer.putInt(position + 4, ids[0]);
+      position += 8;
+      for (int i = 1; i <= ids[0]; i++) {
+        buffer.putInt(position, ids[i]);
+        position += 4;
+      }
+    }
+    return position;
+  }
+
+  private void writeSnapshotOrder(Order order, int reserve, int displaySize) {
+    final int position = snapshotOffset;
+    snapshotBuffer.putByte(position, (byte) (snapshotBid ? 1 : 0));
+    snapshotBuffer.putInt(position + 1, order.limit.getTick());
+    snapshotBuffer.putInt(position + 5, order.id);
+    snapshotBuffer.putInt(position + 9, order.size);
+    snapshotBuffer.putInt(position + 13, reserve);
+    snapshotBuffer.putInt(position + 17, displaySize);
+    snapshotBuffer.putInt(position + 21, order.participantId);
+    snapshotBuffer.putLong(position + 25, order.expiryTimerId == Order.NO_TIMER ? DeadlineTimerWheel.NULL_DEADLINE
+        : expiryWheel.deadline(order.expiryTimerId));
+    snapshotOffset = position + 33;
+    snapshotCount++;
+  }
+
+  private void writeSnapshotStop(int stopTick, OrderRequest stop) {
+    final int position = snapshotOffset;
+    snapshotBuffer.putInt(position, stopTick);
+    snapshotBuffer.putByte(position + 4, (byte) (stop.isBid() ? 1 : 0));
+    snapshotBuffer.putInt(position + 5, stop.getPrice());
+    snapshotBuffer.putInt(position + 9, stop.getQuantity());
+    snapshotBuffer.putInt(position + 13, stop.getDisplayQuantity());
+    snapshotBuffer.putByte(position + 17, (byte) stop.getTimeInForce().ordinal());
+    snapshotBuffer.putInt(position + 18, stop.getParticipantId());
+    snapshotBuffer.putInt(position + 22, stop.getId());
+    snapshotBuffer.putLong(position + 26, stop.getExpiryTime());
+    snapshotOffset = position + 34;
+    snapshotCount++;
+  }
+
+  /**
+   * Loads a snapshot from {@link #writeSnapshot} into this book, which must be
+   * new and unthreaded. Nothing matches or is reported, orders rest exactly
+   * as they did. Returns the offset after it.
+   */
+  public int restoreSnapshot(final DirectBuffer buffer, final int offset) {
+    int position = offset;
+    processed = buffer.getLong(position);
+    inAuction = buffer.getByte(position + 8) != 0;
+    halted = buffer.getByte(position + 9) != 0;
+    lastTradeTick = buffer.getInt(position + 10);
+    if (lastTradeTick != 0) {
+      updatePriceBand();
+    }
+    bidVolumes.reset(buffer.getInt(position + 14));
+    askVolumes.reset(buffer.getInt(position + 14));
+    // Same tick boundaries as the writer, expiries fire at the same requests
+    expiryWheel.resetStartTime(buffer.getLong(position + 18));
+    position += 26;
+
+    final int orderCount = buffer.getInt(position);
+    position += 4;
+    for (int i = 0; i < orderCount; i++, position += 33) {
+      final boolean isBid = buffer.getByte(position) != 0;
+      final int tick = buffer.getInt(position + 1);
+      final int orderId = buffer.getInt(position + 5);
+      Limit limit = (isBid ? bidLimits : askLimits).get(tick);
+      if (limit == null) {
+        limit = acquireLimit(isBid, tick);
+      }
+      final Order order = limit == null ? null
+          : limit.restoreOrder(orderId, buffer.getInt(position + 9), buffer.getInt(position + 13),
+              buffer.getInt(position + 17), buffer.getInt(position + 21));
+      if (order == null) {
+        throw new IllegalStateException("Order " + orderId + " of the snapshot doesn't fit " + name + " at tick "
+            + tick);
+      }
+      final long deadline = buffer.getLong(position + 25);
+      if (deadline != DeadlineTimerWheel.NULL_DEADLINE) {
+        final long timerId = expiryWheel.scheduleTimer(deadline);
+        order.expiryTimerId = timerId;
+        timerOrders.put(timerId, orderId);
+      }
+    }
+
+    final int stopCount = buffer.getInt(position);
+    position += 4;
+    for (int i = 0; i < stopCount; i++, position += 34) {
+      stopOrderBuffer.set(instrumentIndex, buffer.getByte(position + 4) != 0, buffer.getInt(position + 5),
+          buffer.getInt(position + 9), buffer.getInt(position + 22), TIME_IN_FORCE[buffer.getByte(position + 17)],
+          buffer.getInt(position + 13));
+      stopOrderBuffer.setParticipantId(buffer.getInt(position + 18));
+      stopOrderBuffer.setExpiryTime(buffer.getLong(position + 26));
+      if (!stopBook.add(stopOrderBuffer, buffer.getInt(position))) {
+        throw new IllegalStateException("Stops of the snapshot don't fit " + name);
+      }
+    }
+
+    final int quoteCount = buffer.getInt(position);
+    position += 4;
+    for (int i = 0; i < quoteCount; i++) {
+      final int[] ids = new int[2 * OrderRequest.MAX_QUOTE_LEVELS + 1];
+      ids[0] = buffer.getInt(position + 4);
+      for (int level = 1; level <= ids[0]; level++) {
+        ids[level] = buffer.getInt(position + 4 + 4 * level);
+      }
+      quoteIds.put(buffer.getInt(position), ids);
+      position += 8 + 4 * ids[0];
+    }
+    return position;
+  }
+
   public void publishOrder(final int instrumentIndex, final boolean isBid, final int price, final int quantity,
       final int orderId) {
     final long sequence = ringBuffer.next();
@@ -134,16 +553,568 @@ public class OrderBook {
     }
   }
 
+  /**
+   * Publishes a decoded request, copying it (and any mass quote levels) into
+   * the ring slot so the caller can reuse the instance.
+   */
+  public void publishOrder(final OrderRequest request) {
+    final long sequence = ringBuffer.next();
+    try {
+      ringBuffer.get(sequence).copyFrom(request);
+    } finally {
+      ringBuffer.publish(sequence);
+    }
+  }
+
+  /**
+   * Lets ingress publish undecoded requests with {@link #publishRaw}. Call
+   * before the first raw publish.
+   */
+  public void enableRawIngress() {
+    if (rawSlots == null) {
+      rawSlots = new UnsafeBuffer(BufferUtil.allocateDirectAligned(RING_BUFFER_SIZE * RAW_SLOT_SIZE, RAW_SLOT_SIZE));
+      rawDecoder = new RequestDecoder();
+    }
+  }
+
+  /**
+   * Publishes a request as it came off the wire, one copy into the slot's raw
+   * bytes. It is decoded on this book's thread, ingress only needs to have
+   * framed and routed it. At most RAW_SLOT_SIZE bytes.
+   */
+  public void publishRaw(final DirectBuffer buffer, final int offset, final int length) {
+    final long sequence = ringBuffer.next();
+    try {
+      rawSlots.putBytes(rawSlotOffset(sequence), buffer, offset, length);
+      ringBuffer.get(sequence).setRawLength(length);
+    } finally {
+      ringBuffer.publish(sequence);
+    }
+  }
+
+  /**
+   * {@link #publishOrder(OrderRequest)} without waiting for room, false (and
+   * nothing published) while the ring is full.
+   */
+  public boolean tryPublishOrder(final OrderRequest request) {
+    final long sequence;
+    try {
+      sequence = ringBuffer.tryNext();
+    } catch (InsufficientCapacityException e) {
+      return false;
+    }
+    try {
+      ringBuffer.get(sequence).copyFrom(request);
+    } finally {
+      ringBuffer.publish(sequence);
+    }
+    return true;
+  }
+
+  /**
+   * {@link #publishRaw} without waiting for room, false (and nothing
+   * published) while the ring is full.
+   */
+  public boolean tryPublishRaw(final DirectBuffer buffer, final int offset, final int length) {
+    final long sequence;
+    try {
+      sequence = ringBuffer.tryNext();
+    } catch (InsufficientCapacityException e) {
+      return false;
+    }
+    try {
+      rawSlots.putBytes(rawSlotOffset(sequence), buffer, offset, length);
+      ringBuffer.get(sequence).setRawLength(length);
+    } finally {
+      ringBuffer.publish(sequence);
+    }
+    return true;
+  }
+
+  /**
+   * Requests published to the ring and not yet processed by this book's
+   * thread, out of {@link #getRingBufferCapacity}.
+   */
+  public long getRingOccupancy() {
+    return RING_BUFFER_SIZE - ringBuffer.remainingCapacity();
+  }
+
+  private int rawSlotOffset(final long sequence) {
+    return (int) (sequence & (RING_BUFFER_SIZE - 1)) * RAW_SLOT_SIZE;
+  }
+
+  // Decoding resets the raw length, the slot is a plain request from here on
+  private void decodeRaw(OrderRequest order, long sequence) {
+    final int offset = rawSlotOffset(sequence);
+    if (rawDecoder.decode(rawSlots, offset, offset + order.getRawLength(), order) < 0) {
+      order.set(instrumentIndex, false, 0, 0, 0, null);
+    }
+  }
+
+  /**
+   * Switches the book into a call auction, orders published after this rest
+   * without matching until {@link #uncross()}.
+   */
+  public void startAuction() {
+    publishControl(OrderRequest.Type.START_AUCTION);
+  }
+
+  /**
+   * Ends the auction, executing everything that crosses at a single price and
+   * resuming continuous matching.
+   */
+  public void uncross() {
+    publishControl(OrderRequest.Type.UNCROSS);
+  }
+
+  /**
+   * Lifts a price band halt, continuous matching resumes with the book as it
+   * was left.
+   */
+  public void resume() {
+    publishControl(OrderRequest.Type.RESUME);
+  }
+
+  private void publishControl(final OrderRequest.Type type) {
+    final long sequence = ringBuffer.next();
+    try {
+      final OrderRequest slot = ringBuffer.get(sequence);
+      slot.set(instrumentIndex, false, 0, 0, 0);
+      slot.setType(type);
+    } finally {
+      ringBuffer.publish(sequence);
+    }
+  }
+
+  /**
+   * Reports fills and resting orders to the risk stage from now on. Attach
+   * before any order is published.
+   */
+  public void attachRiskCheck(final RiskCheck riskCheck) {
+    this.riskCheck = riskCheck;
+    restingOrders.setParticipantListener(riskCheck == null ? null : this::onRestingChanged);
+  }
+
+  /**
+   * Publishes this book's resting order count to the partition map from now
+   * on, so the instrument is only moved off this engine once it is empty.
+   * Attach before any order is published.
+   */
+  public void attachPartitionMap(final PartitionMap partitionMap) {
+    this.partitionMap = partitionMap;
+  }
+
+  private void publishRestingOrders() {
+    if (partitionMap != null) {
+      final int count = restingOrders.size() + stopBook.size();
+      if (count != publishedRestingOrders) {
+        partitionMap.publishRestingOrders(instrumentIndex, count);
+        publishedRestingOrders = count;
+      }
+    }
+  }
+
+  private void publishTopOfBook() {
+    final int bestBidTick = bidPrices.isEmpty() ? 0 : bidPrices.firstInt();
+    final int bestAskTick = askPrices.isEmpty() ? 0 : askPrices.firstInt();
+    final Limit bestBid = bestBidTick == 0 ? null : bidLimits.get(bestBidTick);
+    final Limit bestAsk = bestAskTick == 0 ? null : askLimits.get(bestAskTick);
+    final int bidQuantity = bestBid == null ? 0 : bestBid.getTotalVolume();
+    final int askQuantity = bestAsk == null ? 0 : bestAsk.getTotalVolume();
+    if (bestBidTick == publishedBestBidTick && bestAskTick == publishedBestAskTick
+        && bidQuantity == publishedBidQuantity && askQuantity == publishedAskQuantity
+        && lastTradeTick == publishedLastTradeTick) {
+      return;
+    }
+    publishedBestBidTick = bestBidTick;
+    publishedBestAskTick = bestAskTick;
+    publishedBidQuantity = bidQuantity;
+    publishedAskQuantity = askQuantity;
+    publishedLastTradeTick = lastTradeTick;
+    topOfBookEncoder.wrap(topOfBookBuffer, 0)
+        .instrumentIndex(instrumentIndex)
+        .bestBid(bestBidTick == 0 ? 0 : tickToPrice(bestBidTick))
+        .bestAsk(bestAskTick == 0 ? 0 : tickToPrice(bestAskTick))
+        .lastPrice(getLastTradePrice())
+        .bidQuantity(bidQuantity)
+        .askQuantity(askQuantity)
+        .timestamp(epochClock.time());
+    egressService.egress(topOfBookBuffer, 0, TopOfBookEncoder.BLOCK_LENGTH);
+  }
+
+  private void onRestingChanged(int participantId, int delta) {
+    riskCheck.onRestingChanged(instrumentIndex, participantId, delta);
+  }
+
+  // Both sides of a fill, anonymous (0) participants are skipped by the table
+  private void recordFill(int bidParticipant, int askParticipant, int quantity, int price) {
+    if (riskCheck != null) {
+      riskCheck.onFill(instrumentIndex, bidParticipant, quantity, price);
+      riskCheck.onFill(instrumentIndex, askParticipant, -quantity, price);
+    }
+  }
+
   public RingBuffer<OrderRequest> getRingBuffer() {
     return ringBuffer;
   }
 
+  /**
+   * Cancels a resting order by id in O(1), or a parked stop. A cancel
+   * carrying a participant id only applies to that participant's orders.
+   */
   private void CancelOrder(OrderRequest order) {
+    final Order resting = restingOrders.get(order.getId());
+    if (resting == null
+        || (order.getParticipantId() != 0 && resting.participantId != order.getParticipantId())) {
+      if (stopBook.remove(order.getId(), order.getParticipantId(), instrumentIndex, stopOrderBuffer)) {
+        EmitOrderStatus(stopOrderBuffer.getId(), OrderStatusType.CANCELLED,
+            OrderRequest.RejectionReason.USER_CANCELLED, stopOrderBuffer.getQuantity(), stopOrderBuffer.getPrice());
+        return;
+      }
+      RejectOrder(order, OrderRequest.RejectionReason.UNKNOWN_ORDER);
+      return;
+    }
+    removeResting(resting, OrderStatusType.CANCELLED, OrderRequest.RejectionReason.USER_CANCELLED);
+  }
+
+  /**
+   * Amends a resting order. A smaller size at the same price is applied in
+   * place and keeps time priority (icebergs excepted, their hidden size is
+   * re-sliced at the tail). A price change or size increase moves the
+   * order to the tail of its (new) level, where it may also trade. The side,
+   * participant, iceberg display size and expiry carry over. Amending to a
+   * quantity of 0 cancels the order.
+   */
+  private void AmendOrder(OrderRequest amend) {
+    final Order resting = restingOrders.get(amend.getId());
+    if (resting == null
+        || (amend.getParticipantId() != 0 && resting.participantId != amend.getParticipantId())) {
+      RejectOrder(amend, OrderRequest.RejectionReason.UNKNOWN_ORDER);
+      return;
+    }
+    if (amend.getQuantity() == 0) {
+      removeResting(resting, OrderStatusType.CANCELLED, OrderRequest.RejectionReason.USER_CANCELLED);
+      return;
+    }
+    final int newPrice = amend.getPrice();
+    if (newPrice == 0 || newPrice % tickSize != 0) {
+      RejectOrder(amend, OrderRequest.RejectionReason.PRICE_NOT_ON_TICK);
+      return;
+    }
+
+    final int orderId = resting.id;
+    final int newQuantity = amend.getQuantity();
+    final Limit limit = resting.limit;
+    final int tick = limit.getTick();
+    final int reserve = resting.chunk.reserveAt(resting.slot);
+    final boolean isBid = bidLimits.get(tick) == limit;
+
+    // Growing an order is as risky as placing one, reductions always pass
+    final int oldQuantity = resting.size + reserve;
+    if (riskCheck != null && (newQuantity > oldQuantity
+        || (long) newPrice * newQuantity > (long) tickToPrice(tick) * oldQuantity)) {
+      final OrderRequest.RejectionReason rejection = riskCheck.checkAmend(instrumentIndex, resting.participantId,
+          isBid, newQuantity, newPrice);
+      if (rejection != null) {
+        RejectOrder(amend, rejection);
+        return;
+      }
+    }
+
+    if (newPrice / tickSize == tick && reserve == 0 && newQuantity <= resting.size) {
+      limit.reduceOrder(resting, newQuantity);
+      EmitOrderStatus(orderId, OrderStatusType.AMENDED, OrderRequest.RejectionReason.USER_AMENDED,
+          newQuantity, newPrice);
+      return;
+    }
+
+    // Whatever could still reject the order at its new price is checked while
+    // it rests, it only moves once the amend can't fail
+    final int newTick = newPrice / tickSize;
+    final OrderRequest.RejectionReason collarRejection = collarRejection(isBid, newTick);
+    if (collarRejection != null) {
+      RejectOrder(amend, collarRejection);
+      return;
+    }
+    final Limit target = (isBid ? bidLimits : askLimits).get(newTick);
+    if (target != null && target != limit && target.state == Limit.State.FULL) {
+      RejectOrder(amend, OrderRequest.RejectionReason.PRICE_LIMIT_FULL);
+      return;
+    }
+
+    final int participantId = resting.participantId;
+    final int displaySize = resting.chunk.displaySizeAt(resting.slot);
+    // The expiry timer moves with the order rather than being rescheduled
+    final long expiryTimerId = resting.expiryTimerId;
+    resting.expiryTimerId = Order.NO_TIMER;
+    takeOffBook(resting);
+
+    EmitOrderStatus(orderId, OrderStatusType.AMENDED, OrderRequest.RejectionReason.USER_AMENDED,
+        newQuantity, newPrice);
+    amendOrderBuffer.set(instrumentIndex, isBid, newPrice, newQuantity, orderId, OrderRequest.TimeInForce.GTC,
+        displaySize);
+    amendOrderBuffer.setParticipantId(participantId);
+    PlaceLimitOrder(amendOrderBuffer);
+
+    final Order moved = restingOrders.get(orderId);
+    if (moved != null) {
+      moved.expiryTimerId = expiryTimerId;
+    } else if (expiryTimerId != Order.NO_TIMER) {
+      expiryWheel.cancelTimer(expiryTimerId);
+      timerOrders.remove(expiryTimerId);
+    }
+  }
+
+  /**
+   * Pulls every resting order and parked stop in the request's scope.
+   * Participant scopes walk the participant's intrusive order list, so they
+   * cost O(their orders) plus O(parked stops). The cancels are egressed in
+   * batches, followed by one MASS_CANCELLED event carrying the count.
+   */
+  private void MassCancel(OrderRequest request) {
+    final OrderRequest.MassCancelScope scope = request.getMassCancelScope();
+    final int participantId = request.getParticipantId();
+    if (scope != OrderRequest.MassCancelScope.INSTRUMENT_SIDE && participantId == 0) {
+      RejectOrder(request, OrderRequest.RejectionReason.UNSUPPORTED_ORDER_TYPE);
+      return;
+    }
+
+    final long timestamp = epochClock.time();
+    statusBatchTimestamp = timestamp;
+    int cancelled = 0;
+    if (scope == OrderRequest.MassCancelScope.INSTRUMENT_SIDE) {
+      final Int2ObjectHashMap<Limit> limits = request.isBid() ? bidLimits : askLimits;
+      while (!limits.isEmpty()) {
+        // The level is released (and unmapped) with its last order
+        final Limit limit = limits.values().iterator().next();
+        final Order order = limit.peek();
+        if (order == null) {
+          limits.remove(limit.getTick());
+          limitPool.releaseLimit(limit);
+          continue;
+        }
+        appendCancel(order, timestamp);
+        cancelled++;
+      }
+      dropStaleHeapHeads();
+      cancelled += stopBook.removeSide(request.isBid(), instrumentIndex, stopOrderBuffer, stopCancelWriter);
+    } else {
+      Order order;
+      while ((order = restingOrders.firstOf(participantId)) != null) {
+        appendCancel(order, timestamp);
+        cancelled++;
+      }
+      cancelled += stopBook.removeParticipant(participantId, instrumentIndex, stopOrderBuffer, stopCancelWriter);
+    }
+    flushStatusBatch();
+
+    EmitOrderStatus(request.getId(), OrderStatusType.MASS_CANCELLED,
+        OrderRequest.RejectionReason.USER_CANCELLED, cancelled, 0);
+  }
+
+  private void appendCancel(Order order, long timestamp) {
+    final int orderId = order.id;
+    final int price = tickToPrice(order.limit.getTick());
+    final int quantity = takeOffBook(order);
+    encodeStatus(statusBatchBuffer, OrderStatusBatch.HEADER_SIZE + statusBatchCount
+        * OrderStatusEncoder.BLOCK_LENGTH, orderId, OrderStatusType.CANCELLED,
+        OrderRequest.RejectionReason.USER_CANCELLED, quantity, price, timestamp);
+    if (++statusBatchCount == STATUS_EVENTS_PER_BURST) {
+      flushStatusBatch();
+    }
+  }
+
+  private void appendStopCancel(int stopTick, OrderRequest stop) {
+    encodeStatus(statusBatchBuffer, OrderStatusBatch.HEADER_SIZE + statusBatchCount
+        * OrderStatusEncoder.BLOCK_LENGTH, stop.getId(), OrderStatusType.CANCELLED,
+        OrderRequest.RejectionReason.USER_CANCELLED, stop.getQuantity(), stop.getPrice(), statusBatchTimestamp);
+    if (++statusBatchCount == STATUS_EVENTS_PER_BURST) {
+      flushStatusBatch();
+    }
+  }
+
+  private void flushStatusBatch() {
+    if (statusBatchCount > 0) {
+      OrderStatusBatch.encodeCount(statusBatchCount, statusBatchBuffer, 0);
+      egressService.egress(statusBatchBuffer, 0,
+          OrderStatusBatch.HEADER_SIZE + statusBatchCount * OrderStatusEncoder.BLOCK_LENGTH);
+      statusBatchCount = 0;
+    }
+  }
+
+  /**
+   * Takes a resting order off the book and reports it with the given status.
+   */
+  private void removeResting(Order order, OrderStatusType status, OrderRequest.RejectionReason reason) {
+    final int orderId = order.id;
+    final int price = tickToPrice(order.limit.getTick());
+    final int quantity = takeOffBook(order);
+    EmitOrderStatus(orderId, status, reason, quantity, price);
+  }
+
+  /**
+   * Removes a resting order (and its hidden iceberg size) without reporting it,
+   * releasing its level if that empties it. Returns the quantity removed.
+   */
+  private int takeOffBook(Order order) {
+    final Limit limit = order.limit;
+    final int tick = limit.getTick();
+    final int quantity = order.size + order.chunk.reserveAt(order.slot);
+
+    if (order.expiryTimerId != Order.NO_TIMER) {
+      expiryWheel.cancelTimer(order.expiryTimerId);
+      timerOrders.remove(order.expiryTimerId);
+    }
+    limit.cancelOrder(order);
+
+    if (limit.getTotalVolume() == 0) {
+      final Int2ObjectHashMap<Limit> limits = bidLimits.get(tick) == limit ? bidLimits : askLimits;
+      limits.remove(tick);
+      limitPool.releaseLimit(limit);
+      dropStaleHeapHeads();
+    }
+    return quantity;
+  }
+
+  /**
+   * Atomically replaces the participant's quote ladder. Old levels whose price
+   * is quoted again at the same or a smaller size are shrunk in place and keep
+   * their queue position, the rest of the old ladder is pulled and the new
+   * levels are placed as GTC limit orders. Level n (bids first, then asks)
+   * rests under id quoteId + n. One status event acknowledges the whole quote.
+   */
+  private void MassQuote(OrderRequest quote) {
+    final int participantId = quote.getParticipantId();
+    if (participantId == 0) {
+      RejectOrder(quote, OrderRequest.RejectionReason.UNSUPPORTED_ORDER_TYPE);
+      return;
+    }
+    final int quoteId = quote.getId();
+    final int bidCount = quote.getQuoteCount(true);
+    final int levels = bidCount + quote.getQuoteCount(false);
+
+    int[] ids = quoteIds.get(participantId);
+    if (ids == null) {
+      ids = new int[2 * OrderRequest.MAX_QUOTE_LEVELS + 1];
+      quoteIds.put(participantId, ids);
+    }
+
+    // Resolve the whole old ladder first, its ids may be reused by the new one
+    int previousCount = 0;
+    for (int i = 1; i <= ids[0]; i++) {
+      final Order order = restingOrders.get(ids[i]);
+      if (order != null && order.participantId == participantId) {
+        previousQuotes[previousCount++] = order;
+      }
+    }
+
+    Arrays.fill(quoteLevelKept, 0, levels, false);
+    for (int p = 0; p < previousCount; p++) {
+      final Order order = previousQuotes[p];
+      previousQuotes[p] = null;
+      final int tick = order.limit.getTick();
+      final boolean isBid = bidLimits.get(tick) == order.limit;
+      final int level = order.chunk.reserveAt(order.slot) == 0
+          ? findQuoteLevel(quote, isBid, tickToPrice(tick), order.size, bidCount)
+          : -1;
+      if (level < 0) {
+        takeOffBook(order);
+        continue;
+      }
+
+      quoteLevelKept[level] = true;
+      final int quantity = quote.getQuoteQuantity(isBid, isBid ? level : level - bidCount);
+      if (quantity < order.size) {
+        order.limit.reduceOrder(order, quantity);
+      }
+      restingOrders.rekey(order, quoteId + level);
+    }
+
+    int resting = 0;
+    for (int level = 0; level < levels; level++) {
+      final boolean isBid = level < bidCount;
+      final int i = isBid ? level : level - bidCount;
+      final int orderId = quoteId + level;
+      final int quantity = quote.getQuoteQuantity(isBid, i);
+      if (!quoteLevelKept[level] && quantity > 0) {
+        quoteOrderBuffer.set(instrumentIndex, isBid, quote.getQuotePrice(isBid, i), quantity, orderId);
+        quoteOrderBuffer.setParticipantId(participantId);
+        PlaceLimitOrder(quoteOrderBuffer);
+      }
+
+      final Order order = restingOrders.get(orderId);
+      if (order != null && order.participantId == participantId) {
+        ids[++resting] = orderId;
+      }
+    }
+    ids[0] = resting;
+
+    EmitOrderStatus(quoteId, OrderStatusType.QUOTE_ACK, OrderRequest.RejectionReason.QUOTE_APPLIED,
+        resting, 0);
+  }
+
+  // First level of the new quote not yet taken that an old quote order at the
+  // given price and size can be kept in place for, or -1
+  private int findQuoteLevel(OrderRequest quote, boolean isBid, int price, int size, int bidCount) {
+    for (int i = 0; i < quote.getQuoteCount(isBid); i++) {
+      final int level = isBid ? i : bidCount + i;
+      final int quantity = quote.getQuoteQuantity(isBid, i);
+      if (!quoteLevelKept[level] && quote.getQuotePrice(isBid, i) == price && quantity > 0 && quantity <= size) {
+        return level;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Schedules the expiry of a GTD order that has just rested. An expiry time of
+   * 0 makes it a day order, expiring at the market's next session end.
+   */
+  private void scheduleExpiry(int orderId, long expiryTime) {
+    final Order order = restingOrders.get(orderId);
+    if (order == null) {
+      return;
+    }
+    final long deadline = expiryTime != 0 ? expiryTime : market.nextSessionEnd(epochClock.time());
+    final long timerId = expiryWheel.scheduleTimer(deadline);
+    order.expiryTimerId = timerId;
+    timerOrders.put(timerId, orderId);
+  }
+
+  /**
+   * Advances the expiry wheel to the current time, expiring at most
+   * EXPIRY_BATCH_LIMIT orders so a mass expiry can't stall the ring.
+   */
+  private void expireOrders() {
+    final long now = epochClock.time();
+    if (expiryWheel.timerCount() == 0) {
+      // Nothing to expire, skip the empty ticks in one go
+      expiryWheel.resetStartTime(now);
+      return;
+    }
+
+    int budget = EXPIRY_BATCH_LIMIT;
+    while (budget > 0 && expiryWheel.currentTickTime() <= now) {
+      budget -= expiryWheel.poll(now, expiryHandler, budget);
+    }
+  }
+
+  private boolean onOrderExpiry(TimeUnit timeUnit, long now, long timerId) {
+    final long orderId = timerOrders.remove(timerId);
+    if (orderId != NO_ORDER) {
+      final Order order = restingOrders.get((int) orderId);
+      // Filled (or replaced) orders no longer own the timer
+      if (order != null && order.expiryTimerId == timerId) {
+        order.expiryTimerId = Order.NO_TIMER; // Already fired
+        removeResting(order, OrderStatusType.EXPIRED, OrderRequest.RejectionReason.EXPIRED);
+      }
+    }
+    return true;
   }
 
   private void RejectOrder(OrderRequest order, OrderRequest.RejectionReason reason) {
-    int bestBid = bidPrices.isEmpty() ? -1 : bidPrices.firstInt();
-    int bestAsk = askPrices.isEmpty() ? -1 : askPrices.firstInt();
+    int bestBid = bidPrices.isEmpty() ? -1 : tickToPrice(bidPrices.firstInt());
+    int bestAsk = askPrices.isEmpty() ? -1 : tickToPrice(askPrices.firstInt());
     int avgPrice = (bestBid != -1 && bestAsk != -1) ? (bestBid + bestAsk) / 2 : -1;
 
     System.out.printf(
@@ -155,6 +1126,64 @@ public class OrderBook {
         bestAsk,
         reason,
         order.getId());
+
+    EmitOrderStatus(order.getId(), OrderStatusType.REJECTED, reason, order.getQuantity(),
+        order.getPrice());
+  }
+
+  private void EmitOrderStatus(int orderId, OrderStatusType status, OrderRequest.RejectionReason reason, int quantity,
+      int price) {
+    encodeStatus(statusEventBuffer, 0, orderId, status, reason, quantity, price, epochClock.time());
+    egressService.egress(statusEventBuffer, 0, OrderStatusEncoder.BLOCK_LENGTH);
+  }
+
+  private void encodeStatus(UnsafeBuffer buffer, int offset, int orderId, OrderStatusType status,
+      OrderRequest.RejectionReason reason, int quantity, int price, long timestamp) {
+    statusEncoder.wrap(buffer, offset)
+        .orderId(orderId)
+        .status(status)
+        .reason((short) reason.ordinal())
+        .quantity(quantity)
+        .price(price)
+        .timestamp(timestamp);
+  }
+
+  private void encodeFill(UnsafeBuffer buffer, int offset, int takerOrderId, int makerOrderId, int price,
+      int quantity, long timestamp) {
+    fillEncoder.wrap(buffer, offset)
+        .takerOrderId(takerOrderId)
+        .makerOrderId(makerOrderId)
+        .price(price)
+        .quantity(quantity)
+        .timestamp(timestamp);
+  }
+
+  private void PlaceStopOrder(OrderRequest order) {
+    final int stopPrice = order.getStopPrice();
+    if (stopPrice % tickSize != 0) {
+      RejectOrder(order, OrderRequest.RejectionReason.PRICE_NOT_ON_TICK);
+      return;
+    }
+
+    if (!stopBook.add(order, stopPrice / tickSize)) {
+      RejectOrder(order, OrderRequest.RejectionReason.STOP_BOOK_FULL);
+    }
+  }
+
+  /**
+   * Releases every stop crossed by the last trade as a market (stop price only)
+   * or limit order. Released orders can trade and move the last trade price
+   * further, so this keeps going until nothing else triggers.
+   */
+  private void releaseTriggeredStops() {
+    // A band breach may have just halted the book or called an auction
+    while (!halted && !inAuction && lastTradeTick != 0 && stopBook.pollTriggered(lastTradeTick, instrumentIndex, stopOrderBuffer)) {
+      if (stopOrderBuffer.getPrice() == 0) {
+        PlaceMarketOrder(stopOrderBuffer);
+      } else {
+        PlaceLimitOrder(stopOrderBuffer);
+      }
+    }
   }
 
   private void PlaceMarketOrder(OrderRequest order) {
@@ -162,10 +1191,40 @@ public class OrderBook {
     int size = order.getQuantity();
     int orderId = order.getId();
 
-    int remainingSize = MatchOrder(order, size, 0, orderId, isBid, false);
+    // Protected market orders stop a fixed number of ticks through the best
+    // opposite price instead of sweeping the whole side
+    final IntHeapPriorityQueue oppositePrices = isBid ? askPrices : bidPrices;
+    int limitTick = 0;
+    boolean isProtected = false;
+    if (marketProtectionTicks > 0) {
+      dropStaleHeapHeads();
+      if (!oppositePrices.isEmpty()) {
+        final int bestTick = oppositePrices.firstInt();
+        limitTick = isBid ? bestTick + marketProtectionTicks : Math.max(1, bestTick - marketProtectionTicks);
+        isProtected = true;
+      }
+    }
+
+    if (order.getTimeInForce() == OrderRequest.TimeInForce.FOK) {
+      final OrderRequest.RejectionReason rejection = fillOrKillRejection(isBid, limitTick, size, isProtected,
+          order.getParticipantId());
+      if (rejection != null) {
+        RejectOrder(order, rejection);
+        return;
+      }
+    }
+
+    int remainingSize = MatchOrder(order, size, limitTick, orderId, isBid, isProtected);
 
+    // Market orders never rest, report what is left
     if (remainingSize > 0) {
-      // Maybe emit a message?
+      dropStaleHeapHeads();
+      final OrderRequest.RejectionReason reason = bandBreached
+          ? OrderRequest.RejectionReason.PRICE_BAND_BREACHED
+          : oppositePrices.isEmpty()
+              ? OrderRequest.RejectionReason.INSUFFICIENT_LIQUIDITY
+              : OrderRequest.RejectionReason.MARKET_PROTECTION_REACHED;
+      EmitOrderStatus(orderId, OrderStatusType.CANCELLED, reason, remainingSize, 0);
     }
   }
 
@@ -174,78 +1233,149 @@ public class OrderBook {
     int orderId = order.getId();
     int orderPrice = order.getPrice();
 
-    // Enforce price collar based on current book state
-    int center = orderPrice; // Default to order price if no book exists
-    if (!bidPrices.isEmpty()) {
-      center = bidPrices.firstInt();
-      if (!askPrices.isEmpty()) {
-        center = (center + askPrices.firstInt()) / 2;
+    // Prices must sit on the instrument's tick grid
+    if (orderPrice % tickSize != 0) {
+      RejectOrder(order, OrderRequest.RejectionReason.PRICE_NOT_ON_TICK);
+      return;
+    }
+    int orderTick = orderPrice / tickSize;
+
+    // Post-only never takes liquidity, the crossing check is just the best
+    // opposite price. Outside of an auction the book is never crossed
+    final OrderRequest.PostOnly postOnly = order.getPostOnly();
+    boolean repriced = false;
+    if (postOnly != OrderRequest.PostOnly.NONE && !inAuction) {
+      dropStaleHeapHeads();
+      final IntHeapPriorityQueue oppositePrices = isBid ? askPrices : bidPrices;
+      if (!oppositePrices.isEmpty()) {
+        final int bestTick = oppositePrices.firstInt();
+        if (isBid ? orderTick >= bestTick : orderTick <= bestTick) {
+          if (postOnly == OrderRequest.PostOnly.REJECT) {
+            RejectOrder(order, OrderRequest.RejectionReason.POST_ONLY_WOULD_CROSS);
+            return;
+          }
+          // Slide to one tick behind the opposite best
+          orderTick = isBid ? bestTick - 1 : bestTick + 1;
+          repriced = true;
+        }
       }
-    } else if (!askPrices.isEmpty()) {
-      center = askPrices.firstInt();
     }
 
-    int lowerBound = Math.max(1, center - (MAX_LIMITS_PER_BOOK / 2));
-    int upperBound = center + (MAX_LIMITS_PER_BOOK / 2);
+    // Enforce price collar based on current book state. Amends are checked
+    // before they leave their level, so they can't be rejected once moved
+    if (order != amendOrderBuffer) {
+      final OrderRequest.RejectionReason collarRejection = collarRejection(isBid, orderTick);
+      if (collarRejection != null) {
+        RejectOrder(order, collarRejection);
+        return;
+      }
+    }
 
-    // Check price collar
-    if (isBid && orderPrice < lowerBound) {
-      RejectOrder(order, OrderRequest.RejectionReason.BID_PRICE_TOO_LOW);
-      return;
+    // Fill-or-kill: check the opposite side's cumulative volume before touching
+    // any level
+    final OrderRequest.TimeInForce timeInForce = order.getTimeInForce();
+    if (timeInForce == OrderRequest.TimeInForce.FOK) {
+      final OrderRequest.RejectionReason rejection = fillOrKillRejection(isBid, orderTick, order.getQuantity(), true,
+          order.getParticipantId());
+      if (rejection != null) {
+        RejectOrder(order, rejection);
+        return;
+      }
     }
-    if (!isBid && orderPrice > upperBound) {
-      RejectOrder(order, OrderRequest.RejectionReason.ASK_PRICE_TOO_HIGH);
+    // IOC (and FOK) remainders never rest on the book
+    final boolean canRest = timeInForce.canRest();
+    final boolean expires = timeInForce == OrderRequest.TimeInForce.GTD;
+    if (expires && order.getExpiryTime() != 0 && order.getExpiryTime() <= epochClock.time()) {
+      RejectOrder(order, OrderRequest.RejectionReason.EXPIRED);
       return;
     }
 
     if (isBid) { // (buy)
       // Reject bid orders that are too cheap - ie outside of the price collar
-      int bidPrice = orderPrice;
+      int bidPrice = orderTick;
       int size = order.getQuantity();
-      int remainingSize = MatchOrder(order, size, bidPrice, orderId, true, true);
+      int remainingSize = inAuction ? size : MatchOrder(order, size, bidPrice, orderId, true, true);
+      if (remainingSize > 0 && halted) {
+        // Tripped the price band, nothing may rest on a halted book
+        EmitOrderStatus(orderId, OrderStatusType.CANCELLED,
+            OrderRequest.RejectionReason.PRICE_BAND_BREACHED, remainingSize, orderPrice);
+        return;
+      }
 
       // Still some remaining demand that cannot be met - add to the orderbook
-      if (remainingSize > 0) {
+      if (remainingSize > 0 && canRest) {
         // Get or create the limit for this price
-        boolean isNew = !bidLimits.containsKey(bidPrice);
-        Limit bidLimit = bidLimits.computeIfAbsent(bidPrice, k -> limitPool.getLimit());
-
-        if (isNew) { // add new prices to the priority queue
-          bidPrices.enqueue(bidPrice);
+        Limit bidLimit = bidLimits.get(bidPrice);
+        if (bidLimit == null) {
+          bidLimit = acquireLimit(true, bidPrice);
+          if (bidLimit == null) {
+            RejectOrder(order, OrderRequest.RejectionReason.AVG_PRICE_MOVED_TOO_FAR);
+            return;
+          }
         }
 
+        order.setQuantity(remainingSize);
         boolean success = bidLimit.addOrder(order);
+        if (success && expires) {
+          scheduleExpiry(orderId, order.getExpiryTime());
+        }
+        if (success && repriced) {
+          EmitOrderStatus(orderId, OrderStatusType.REPRICED,
+              OrderRequest.RejectionReason.POST_ONLY_WOULD_CROSS, remainingSize, tickToPrice(bidPrice));
+        }
 
         if (!success) {
           if (bidLimit.state == Limit.State.FULL) {
             // Move the order into a limit in the spare hashmap (to be implemented..)
-            System.out.printf("BID Limit for instrument %s '%d' is full!", name, bidPrice);
+            System.out.printf("BID Limit for instrument %s '%d' is full!", name, orderPrice);
             RejectOrder(order, OrderRequest.RejectionReason.PRICE_LIMIT_FULL);
           }
         }
+      } else if (remainingSize > 0) {
+        EmitOrderStatus(orderId, OrderStatusType.CANCELLED,
+            OrderRequest.RejectionReason.INSUFFICIENT_LIQUIDITY, remainingSize, orderPrice);
       }
     } else { // is ask (sell)
-      int askPrice = orderPrice;
+      int askPrice = orderTick;
       int size = order.getQuantity();
 
-      int remainingSize = MatchOrder(order, size, askPrice, orderId, false, true);
+      int remainingSize = inAuction ? size : MatchOrder(order, size, askPrice, orderId, false, true);
+      if (remainingSize > 0 && halted) {
+        // Tripped the price band, nothing may rest on a halted book
+        EmitOrderStatus(orderId, OrderStatusType.CANCELLED,
+            OrderRequest.RejectionReason.PRICE_BAND_BREACHED, remainingSize, orderPrice);
+        return;
+      }
 
       // Still some remaining supply that cannot be met - add to the orderbook
-      if (remainingSize > 0) {
+      if (remainingSize > 0 && canRest) {
         // Get or create the limit for this price
-        boolean isNew = !askLimits.containsKey(askPrice);
-        Limit askLimit = askLimits.computeIfAbsent(askPrice, k -> limitPool.getLimit());
-
-        if (isNew) { // add new prices to the priority queue
-          askPrices.enqueue(askPrice);
+        Limit askLimit = askLimits.get(askPrice);
+        if (askLimit == null) {
+          askLimit = acquireLimit(false, askPrice);
+          if (askLimit == null) {
+            RejectOrder(order, OrderRequest.RejectionReason.AVG_PRICE_MOVED_TOO_FAR);
+            return;
+          }
         }
 
+        order.setQuantity(remainingSize);
         boolean success = askLimit.addOrder(order);
+        if (success && expires) {
+          scheduleExpiry(orderId, order.getExpiryTime());
+        }
+        if (success && repriced) {
+          EmitOrderStatus(orderId, OrderStatusType.REPRICED,
+              OrderRequest.RejectionReason.POST_ONLY_WOULD_CROSS, remainingSize, tickToPrice(askPrice));
+        }
 
         if (!success) {
-          System.out.printf("ASK Limit for instrument %s '%d' is full!", name, askPrice);
+          System.out.printf("ASK Limit for instrument %s '%d' is full!", name, orderPrice);
           RejectOrder(order, OrderRequest.RejectionReason.PRICE_LIMIT_FULL);
         }
+      } else if (remainingSize > 0) {
+        EmitOrderStatus(orderId, OrderStatusType.CANCELLED,
+            OrderRequest.RejectionReason.INSUFFICIENT_LIQUIDITY, remainingSize, orderPrice);
       }
     }
 
@@ -258,6 +1388,8 @@ public class OrderBook {
     Int2ObjectHashMap<Limit> oppositeLimits = isBid ? askLimits : bidLimits;
 
     final boolean shouldEmit = takerOrder != null;
+    final int takerParticipant = takerOrder != null ? takerOrder.getParticipantId() : 0;
+    bandBreached = false;
 
     // While we still have demand/supply and opposing orders exist
     while (remainingSize > 0 && !oppositePrices.isEmpty()) {
@@ -279,61 +1411,84 @@ public class OrderBook {
         continue;
       }
 
+      // Every fill at this level prints at its price, one compare covers both
+      // edges of the band (below the low edge wraps to a huge unsigned value)
+      if (Integer.compareUnsigned(bestOppositePrice - bandLowTick, bandWidthTicks) > 0) {
+        tripPriceBand(orderId, bestOppositePrice);
+        break;
+      }
+
+      // Pro-rata markets share what the level can't fully absorb, the leftover
+      // lots then go through the FIFO loop below
+      if (allocation != Market.Allocation.FIFO && remainingSize < bestOppositeLimit.getTotalVolume()) {
+        remainingSize = allocateProRata(bestOppositeLimit, bestOppositePrice, remainingSize, orderId,
+            takerParticipant, isBid, shouldEmit);
+      }
+
       // Match against orders at this price level
       while (remainingSize > 0 && bestOppositeLimit.getTotalVolume() > 0) {
         Order headOrder = bestOppositeLimit.peek();
 
-        int matchPrice = isBid ? bestOppositePrice : bestOppositePrice;
+        int matchPrice = tickToPrice(bestOppositePrice);
 
         if (headOrder == null)
           break;
 
-        if (headOrder.size == remainingSize) {
-          // Complete fill
-          Order matchedOrder = bestOppositeLimit.removeOrder();
-          if (shouldEmit) {
-            MatchEventDecoder.encode(orderId,
-                matchedOrder.id,
-                matchPrice,
-                matchedOrder.size,
-                epochClock.time(),
-                matchEventBuffer,
-                0);
-
-            egressService.egress(matchEventBuffer, 0, MatchEventDecoder.SIZE);
+        // Self-trade prevention, the second compare only runs on a match and
+        // keeps anonymous (0) orders out of it
+        if (headOrder.participantId == takerParticipant && takerParticipant != 0) {
+          if (selfTradePrevention == Market.SelfTradePrevention.CANCEL_NEWEST) {
+            // Drop the taker's remainder, it must not rest either
+            RejectOrder(takerOrder, OrderRequest.RejectionReason.SELF_TRADE_PREVENTED);
+            return 0;
           }
-          remainingSize = 0;
-        } else if (headOrder.size > remainingSize) {
+
+          if (selfTradePrevention == Market.SelfTradePrevention.CANCEL_OLDEST) {
+            orderRequestBuffer.setFromOrder(headOrder, !isBid, matchPrice, instrumentIndex);
+            bestOppositeLimit.removeOrder();
+            RejectOrder(orderRequestBuffer, OrderRequest.RejectionReason.SELF_TRADE_PREVENTED);
+            continue;
+          }
+
+          // DECREMENT_BOTH - reduce both sides without printing a fill
+          final int decrement = Math.min(headOrder.size, remainingSize);
+          reduceHead(bestOppositeLimit, headOrder, decrement);
+          remainingSize -= decrement;
+          continue;
+        }
+
+        lastTradeTick = bestOppositePrice;
+
+        if (headOrder.size > remainingSize) {
           // Partial fill (more supply/demand left on opposite side)
           if (shouldEmit) {
-            MatchEventDecoder.encode(orderId,
-                headOrder.id,
-                matchPrice,
-                remainingSize,
-                epochClock.time(),
-                matchEventBuffer,
-                0);
-
-            egressService.egress(matchEventBuffer, 0, MatchEventDecoder.SIZE);
+            encodeFill(matchEventBuffer, 0, orderId, headOrder.id, matchPrice, remainingSize, epochClock.time());
+
+            egressService.egress(matchEventBuffer, 0, FillEncoder.BLOCK_LENGTH);
           }
 
-          bestOppositeLimit.partialFill(remainingSize);
+          recordFill(isBid ? takerParticipant : headOrder.participantId,
+              isBid ? headOrder.participantId : takerParticipant, remainingSize, matchPrice);
+          bestOppositeLimit.partialFill(headOrder.size - remainingSize);
           remainingSize = 0;
-        } else { // headOrder.size < remainingSize
-          Order matchedOrder = bestOppositeLimit.removeOrder();
+        } else { // headOrder.size <= remainingSize - complete fill
+          // Read the head before it is replenished or its slot is reused
+          final int matchedId = headOrder.id;
+          final int matchedSize = headOrder.size;
+          recordFill(isBid ? takerParticipant : headOrder.participantId,
+              isBid ? headOrder.participantId : takerParticipant, matchedSize, matchPrice);
 
           if (shouldEmit) {
-            MatchEventDecoder.encode(orderId,
-                matchedOrder.id,
-                matchPrice,
-                matchedOrder.size,
-                epochClock.time(),
-                matchEventBuffer,
-                0);
-            egressService.egress(matchEventBuffer, 0, MatchEventDecoder.SIZE);
+            encodeFill(matchEventBuffer, 0, orderId, matchedId, matchPrice, matchedSize, epochClock.time());
+            egressService.egress(matchEventBuffer, 0, FillEncoder.BLOCK_LENGTH);
+          }
+
+          // Icebergs show their next slice at the back of the queue
+          if (!bestOppositeLimit.replenishHead()) {
+            bestOppositeLimit.removeOrder();
           }
 
-          remainingSize -= headOrder.size;
+          remainingSize -= matchedSize;
         }
       }
 
@@ -342,43 +1497,257 @@ public class OrderBook {
         oppositePrices.dequeueInt();
         oppositeLimits.remove(bestOppositePrice);
         limitPool.releaseLimit(bestOppositeLimit);
+        // Levels emptied by cancels leave their price behind in the heap
+        dropStaleHeapHeads();
       }
     }
 
     return remainingSize;
   }
 
+  /**
+   * Shares remainingSize over a level that holds more than that, returning
+   * what is left for time priority. FIFO_TOP_PRO_RATA first fills the oldest
+   * order. Resting orders of the taker's own participant are skipped so STP
+   * still sees them in the FIFO loop.
+   */
+  private int allocateProRata(Limit limit, int tick, int remainingSize, int orderId, int takerParticipant,
+      boolean takerBid, boolean shouldEmit) {
+    proRataTakerId = orderId;
+    proRataTakerParticipant = takerParticipant;
+    proRataTakerBid = takerBid;
+    proRataTick = tick;
+    proRataEmit = shouldEmit;
+
+    if (allocation == Market.Allocation.FIFO_TOP_PRO_RATA) {
+      final Order top = limit.peek();
+      if (top != null && (top.participantId != takerParticipant || takerParticipant == 0)) {
+        final int qty = Math.min(top.size, remainingSize);
+        onProRataFill(top, qty);
+        reduceHead(limit, top, qty);
+        remainingSize -= qty;
+      }
+      if (remainingSize == 0 || remainingSize >= limit.getTotalVolume()) {
+        return remainingSize;
+      }
+    }
+
+    return remainingSize - limit.allocateProRata(remainingSize, takerParticipant, proRataFillListener);
+  }
+
+  private void onProRataFill(Order order, int quantity) {
+    lastTradeTick = proRataTick;
+    recordFill(proRataTakerBid ? proRataTakerParticipant : order.participantId,
+        proRataTakerBid ? order.participantId : proRataTakerParticipant, quantity, tickToPrice(proRataTick));
+    if (proRataEmit) {
+      encodeFill(matchEventBuffer, 0, proRataTakerId, order.id, tickToPrice(proRataTick), quantity,
+          epochClock.time());
+      egressService.egress(matchEventBuffer, 0, FillEncoder.BLOCK_LENGTH);
+    }
+  }
+
+  /**
+   * Takes qty off the head order of a level, removing it (or showing its next
+   * iceberg slice) once nothing displayed is left.
+   */
+  private void reduceHead(Limit limit, Order headOrder, int qty) {
+    if (headOrder.size > qty) {
+      limit.partialFill(headOrder.size - qty);
+    } else if (!limit.replenishHead()) {
+      limit.removeOrder();
+    }
+  }
+
+  /**
+   * Ends the call auction. The equilibrium price is the one that executes the
+   * most volume, then leaves the smallest imbalance, then sits closest to the
+   * last trade. Both curves come from a single walk over the crossed ticks, and
+   * everything executes at that one price. A participant's own bid and ask never
+   * trade, the market's self-trade prevention applies as in continuous matching.
+   */
+  private void Uncross() {
+    inAuction = false;
+
+    dropStaleHeapHeads();
+    if (bidPrices.isEmpty() || askPrices.isEmpty()) {
+      return;
+    }
+    final int highTick = bidPrices.firstInt();
+    final int lowTick = askPrices.firstInt();
+    if (highTick < lowTick) {
+      return; // Nothing crosses
+    }
+
+    // Demand at a tick is every bid at or above it, supply every ask at or
+    // below it. Nothing bids above highTick or offers below lowTick.
+    long demand = bidVolumes.cumulativeFrom(lowTick);
+    long supply = 0;
+    long bestVolume = 0;
+    long bestImbalance = Long.MAX_VALUE;
+    int equilibriumTick = lowTick;
+
+    for (int tick = lowTick; tick <= highTick; tick++) {
+      final Limit askLimit = askLimits.get(tick);
+      if (askLimit != null) {
+        supply += askLimit.getTotalVolume();
+      }
+
+      final long volume = Math.min(demand, supply);
+      final long imbalance = Math.abs(demand - supply);
+      if (volume > bestVolume
+          || (volume == bestVolume && imbalance < bestImbalance)
+          || (volume == bestVolume && imbalance == bestImbalance && lastTradeTick != 0
+              && Math.abs(tick - lastTradeTick) < Math.abs(equilibriumTick - lastTradeTick))) {
+        bestVolume = volume;
+        bestImbalance = imbalance;
+        equilibriumTick = tick;
+      }
+
+      final Limit bidLimit = bidLimits.get(tick);
+      if (bidLimit != null) {
+        demand -= bidLimit.getTotalVolume();
+      }
+    }
+
+    // Pair off both sides in price-time priority, all at the equilibrium price
+    final int matchPrice = tickToPrice(equilibriumTick);
+    final long timestamp = epochClock.time();
+    long remaining = bestVolume;
+
+    while (remaining > 0) {
+      dropStaleHeapHeads();
+      // Self-trade prevention can take out volume the curves counted
+      if (bidPrices.isEmpty() || askPrices.isEmpty()
+          || bidPrices.firstInt() < equilibriumTick || askPrices.firstInt() > equilibriumTick) {
+        break;
+      }
+      final int bidTick = bidPrices.firstInt();
+      final int askTick = askPrices.firstInt();
+      final Limit bidLimit = bidLimits.get(bidTick);
+      final Limit askLimit = askLimits.get(askTick);
+      final Order bidOrder = bidLimit.peek();
+      final Order askOrder = askLimit.peek();
+
+      if (bidOrder.participantId == askOrder.participantId && bidOrder.participantId != 0) {
+        if (selfTradePrevention != Market.SelfTradePrevention.DECREMENT_BOTH) {
+          cancelAuctionSelfTrade(bidOrder, askOrder);
+          continue;
+        }
+        // DECREMENT_BOTH - reduce both sides without printing a fill
+        final int decrement = Math.min(bidOrder.size, askOrder.size);
+        reduceHead(bidLimit, bidOrder, decrement);
+        reduceHead(askLimit, askOrder, decrement);
+      } else {
+        final int qty = (int) Math.min(remaining, Math.min(bidOrder.size, askOrder.size));
+        appendAuctionFill(bidOrder.id, askOrder.id, matchPrice, qty, timestamp);
+        recordFill(bidOrder.participantId, askOrder.participantId, qty, matchPrice);
+
+        reduceHead(bidLimit, bidOrder, qty);
+        reduceHead(askLimit, askOrder, qty);
+        remaining -= qty;
+      }
+
+      if (bidLimit.getTotalVolume() == 0) {
+        bidPrices.dequeueInt();
+        bidLimits.remove(bidTick);
+        limitPool.releaseLimit(bidLimit);
+      }
+      if (askLimit.getTotalVolume() == 0) {
+        askPrices.dequeueInt();
+        askLimits.remove(askTick);
+        limitPool.releaseLimit(askLimit);
+      }
+    }
+    flushAuctionFills();
+
+    if (bestVolume > 0) {
+      lastTradeTick = equilibriumTick;
+    }
+  }
+
+  /**
+   * Applies CANCEL_NEWEST or CANCEL_OLDEST to a participant's bid and ask
+   * meeting in the uncross. Neither is a taker, so the one that arrived later
+   * stands in for it. The participant's list holds the newest order first.
+   */
+  private void cancelAuctionSelfTrade(Order bidOrder, Order askOrder) {
+    Order newer = restingOrders.firstOf(bidOrder.participantId);
+    while (newer != bidOrder && newer != askOrder) {
+      newer = newer.participantNext;
+    }
+    final Order older = newer == bidOrder ? askOrder : bidOrder;
+    removeResting(selfTradePrevention == Market.SelfTradePrevention.CANCEL_NEWEST ? newer : older,
+        OrderStatusType.CANCELLED, OrderRequest.RejectionReason.SELF_TRADE_PREVENTED);
+  }
+
+  private void appendAuctionFill(int bidId, int askId, int price, int qty, long timestamp) {
+    encodeFill(auctionFillBuffer, auctionFillCount * FillEncoder.BLOCK_LENGTH, bidId, askId, price, qty, timestamp);
+    if (++auctionFillCount == AUCTION_FILLS_PER_BURST) {
+      flushAuctionFills();
+    }
+  }
+
+  private void flushAuctionFills() {
+    if (auctionFillCount > 0) {
+      egressService.egress(auctionFillBuffer, 0, auctionFillCount * FillEncoder.BLOCK_LENGTH);
+      auctionFillCount = 0;
+    }
+  }
+
   // TODO: This can be improved
   private void pruneStaleLevels(int ticksBuffer) {
     // Always prune based on the current valid collar, regardless of book state
     // Center collar around the midpoint of best bid/ask if available, else use
     // bestBid or bestAsk
-    int center;
-    if (!bidPrices.isEmpty() && !askPrices.isEmpty()) {
-      center = (bidPrices.firstInt() + askPrices.firstInt()) / 2;
-    } else if (!bidPrices.isEmpty()) {
-      center = bidPrices.firstInt();
-    } else if (!askPrices.isEmpty()) {
-      center = askPrices.firstInt();
-    } else {
+    if (bidPrices.isEmpty() && askPrices.isEmpty()) {
       // No prices, nothing to prune
       return;
     }
+    int center = centerTick(0);
 
-    int halfBook = MAX_LIMITS_PER_BOOK / 2;
+    int halfBook = collarHalfWidth(center);
     int collarMin = Math.max(1, center - halfBook);
     int collarMax = center + halfBook;
 
+    evictLevelsOutside(collarMin, collarMax);
+
+    // Keep the volume ladder ahead of the collar so new levels rarely force a
+    // re-center on the order path
+    if (!bidVolumes.contains(collarMin) || !bidVolumes.contains(collarMax)) {
+      recenterLadder(center);
+    }
+  }
+
+  /**
+   * Midpoint of the best bid/ask if both exist, else whichever side exists, else
+   * the fallback.
+   */
+  private int centerTick(int fallbackTick) {
+    if (!bidPrices.isEmpty() && !askPrices.isEmpty()) {
+      return (bidPrices.firstInt() + askPrices.firstInt()) / 2;
+    } else if (!bidPrices.isEmpty()) {
+      return bidPrices.firstInt();
+    } else if (!askPrices.isEmpty()) {
+      return askPrices.firstInt();
+    }
+    return fallbackTick;
+  }
+
+  /**
+   * Rejects every resting order on levels outside [minTick, maxTick] and
+   * releases those levels back to the pool.
+   */
+  private void evictLevelsOutside(int minTick, int maxTick) {
     // Prune bids outside collar
     final Int2ObjectHashMap<Limit>.EntryIterator bidIt = bidLimits.entrySet().iterator();
     while (bidIt.hasNext()) {
       bidIt.next();
       final int price = bidIt.getIntKey();
-      if (price < collarMin || price > collarMax) {
+      if (price < minTick || price > maxTick) {
         final Limit limit = bidIt.getValue();
         while (!limit.isEmpty()) {
           Order order = limit.removeOrder();
-          orderRequestBuffer.setFromOrder(order, true, price, instrumentIndex);
+          orderRequestBuffer.setFromOrder(order, true, tickToPrice(price), instrumentIndex);
           RejectOrder(orderRequestBuffer, OrderRequest.RejectionReason.AVG_PRICE_MOVED_TOO_FAR);
         }
         bidIt.remove();
@@ -393,11 +1762,11 @@ public class OrderBook {
     while (askIt.hasNext()) {
       askIt.next();
       final int price = askIt.getIntKey();
-      if (price < collarMin || price > collarMax) {
+      if (price < minTick || price > maxTick) {
         final Limit limit = askIt.getValue();
         while (!limit.isEmpty()) {
           Order order = limit.removeOrder();
-          orderRequestBuffer.setFromOrder(order, false, price, instrumentIndex);
+          orderRequestBuffer.setFromOrder(order, false, tickToPrice(price), instrumentIndex);
           RejectOrder(orderRequestBuffer, OrderRequest.RejectionReason.AVG_PRICE_MOVED_TOO_FAR);
         }
         askIt.remove();
@@ -407,7 +1776,11 @@ public class OrderBook {
       }
     }
 
-    // Clean up heaps: drop prices no longer in maps
+    dropStaleHeapHeads();
+  }
+
+  // Clean up heaps: drop prices no longer in maps
+  private void dropStaleHeapHeads() {
     while (!bidPrices.isEmpty() && !bidLimits.containsKey(bidPrices.firstInt())) {
       bidPrices.dequeueInt();
     }
@@ -416,8 +1789,168 @@ public class OrderBook {
     }
   }
 
+  /**
+   * Moves the volume ladder so it is centered on the given tick. Levels that
+   * would fall off the ladder are evicted (they are already far outside the
+   * collar), the rest are re-added to the fresh trees. O(levels), rare.
+   */
+  private void recenterLadder(int centerTick) {
+    final int ladderTicks = bidVolumes.getCapacity();
+    final int base = centerTick - ladderTicks / 2;
+    evictLevelsOutside(base, base + ladderTicks - 1);
+
+    bidVolumes.reset(base);
+    askVolumes.reset(base);
+    for (final Limit limit : bidLimits.values()) {
+      bidVolumes.add(limit.getTick(), limit.getTotalVolume());
+    }
+    for (final Limit limit : askLimits.values()) {
+      askVolumes.add(limit.getTick(), limit.getTotalVolume());
+    }
+  }
+
+  /**
+   * Takes a limit from the pool for a new price level, binds it to the side's
+   * volume ladder and registers the price. Returns null if the level cannot be
+   * placed on the ladder even after re-centering it.
+   */
+  private Limit acquireLimit(boolean isBid, int tick) {
+    final LevelVolumeTree volumes = isBid ? bidVolumes : askVolumes;
+    if (!volumes.contains(tick)) {
+      recenterLadder(centerTick(tick));
+      if (!volumes.contains(tick)) {
+        return null;
+      }
+    }
+
+    final Limit limit = limitPool.getLimit();
+    limit.bind(volumes, tick);
+    if (isBid) {
+      bidLimits.put(tick, limit);
+      bidPrices.enqueue(tick);
+    } else {
+      askLimits.put(tick, limit);
+      askPrices.enqueue(tick);
+    }
+    return limit;
+  }
+
+  /**
+   * Why a fill-or-kill order would not fill completely, or null if it will.
+   * The opposite side has to hold {@code quantity} at prices the taker accepts
+   * (any for unprotected market orders) and inside the price band, matching
+   * stops at the band's edge. The taker's own resting orders never fill it.
+   * CANCEL_OLDEST just cancels them, so their size is not counted, but
+   * CANCEL_NEWEST and DECREMENT_BOTH would leave the taker part filled, so any
+   * in range rejects it up front. Finding them walks the participant's orders.
+   */
+  private OrderRequest.RejectionReason fillOrKillRejection(boolean isBid, int limitTick, int quantity,
+      boolean isLimit, int participantId) {
+    final LevelVolumeTree opposite = isBid ? askVolumes : bidVolumes;
+    final int bandHighTick = (int) Math.min(Integer.MAX_VALUE, (long) bandLowTick + bandWidthTicks);
+    // Ticks matching reaches, and whether it trips the band before getting
+    // there (levels beyond the near edge come first in the walk)
+    final int lowTick;
+    final int highTick;
+    final boolean tripsBand;
+    if (isBid) {
+      lowTick = bandLowTick;
+      highTick = isLimit ? Math.min(limitTick, bandHighTick) : bandHighTick;
+      tripsBand = opposite.cumulativeUpTo(isLimit ? Math.min(limitTick, bandLowTick - 1) : bandLowTick - 1) > 0;
+    } else {
+      lowTick = isLimit ? Math.max(limitTick, bandLowTick) : bandLowTick;
+      highTick = bandHighTick;
+      tripsBand = bandHighTick != Integer.MAX_VALUE
+          && opposite.cumulativeFrom(isLimit ? Math.max(limitTick, bandHighTick + 1) : bandHighTick + 1) > 0;
+    }
+    if (tripsBand || highTick < lowTick) {
+      return OrderRequest.RejectionReason.INSUFFICIENT_LIQUIDITY;
+    }
+    long available = opposite.cumulativeUpTo(highTick) - opposite.cumulativeUpTo(lowTick - 1);
+
+    if (participantId != 0) {
+      final Int2ObjectHashMap<Limit> oppositeLimits = isBid ? askLimits : bidLimits;
+      for (Order own = restingOrders.firstOf(participantId); own != null; own = own.participantNext) {
+        final int tick = own.limit.getTick();
+        if (tick >= lowTick && tick <= highTick && oppositeLimits.get(tick) == own.limit) {
+          if (selfTradePrevention != Market.SelfTradePrevention.CANCEL_OLDEST) {
+            return OrderRequest.RejectionReason.SELF_TRADE_PREVENTED;
+          }
+          available -= own.size;
+        }
+      }
+    }
+    return available >= quantity ? null : OrderRequest.RejectionReason.INSUFFICIENT_LIQUIDITY;
+  }
+
+  /**
+   * Re-centers the price band on the last trade.
+   */
+  private void updatePriceBand() {
+    bandReferenceTick = lastTradeTick;
+    if (bandBasisPoints == 0) {
+      return;
+    }
+    final int halfWidth = (int) Math.max(1, (long) bandReferenceTick * bandBasisPoints / BASIS_POINTS);
+    bandLowTick = Math.max(1, bandReferenceTick - halfWidth);
+    bandWidthTicks = bandReferenceTick + halfWidth - bandLowTick;
+  }
+
+  /**
+   * Stops matching on a band breach, either halting the book or calling an
+   * auction, and reports it.
+   */
+  private void tripPriceBand(int orderId, int tick) {
+    bandBreached = true;
+    final OrderStatusType status;
+    if (bandBreach == Market.BandBreach.HALT) {
+      halted = true;
+      status = OrderStatusType.HALTED;
+    } else {
+      inAuction = true;
+      status = OrderStatusType.AUCTION_CALLED;
+    }
+    EmitOrderStatus(orderId, status, OrderRequest.RejectionReason.PRICE_BAND_BREACHED, 0, tickToPrice(tick));
+  }
+
+  /**
+   * Why a limit order at the tick is outside the price collar around the
+   * book's mid (the tick itself on an empty book), or null if it is inside.
+   */
+  private OrderRequest.RejectionReason collarRejection(boolean isBid, int tick) {
+    final int center = centerTick(tick);
+    final int halfWidth = collarHalfWidth(center);
+    if (isBid && tick < Math.max(1, center - halfWidth)) {
+      return OrderRequest.RejectionReason.BID_PRICE_TOO_LOW;
+    }
+    if (!isBid && tick > center + halfWidth) {
+      return OrderRequest.RejectionReason.ASK_PRICE_TOO_HIGH;
+    }
+    return null;
+  }
+
+  /**
+   * Half-width of the price collar in ticks around the given center tick.
+   * Percentage collars scale with the price, but never beyond what the limit
+   * pool can hold.
+   */
+  private int collarHalfWidth(int centerTick) {
+    final int halfBook = MAX_LIMITS_PER_BOOK / 2;
+    if (collarBasisPoints == 0) {
+      return halfBook;
+    }
+    final long halfWidth = (long) centerTick * collarBasisPoints / BASIS_POINTS;
+    return (int) Math.max(1, Math.min(halfBook, halfWidth));
+  }
+
+  public int tickToPrice(int tick) {
+    return tick * tickSize;
+  }
+
   public void shutdown() {
-    disruptor.shutdown();
+    if (disruptor != null) {
+      disruptor.shutdown();
+    }
   }
 
   // --- Getters for OrderBookDump ---
@@ -446,11 +1979,35 @@ public class OrderBook {
   }
 
   public int getBestBid() {
-    return bidPrices.isEmpty() ? 0 : bidPrices.firstInt();
+    return bidPrices.isEmpty() ? 0 : tickToPrice(bidPrices.firstInt());
   }
 
   public int getBestAsk() {
-    return askPrices.isEmpty() ? 0 : askPrices.firstInt();
+    return askPrices.isEmpty() ? 0 : tickToPrice(askPrices.firstInt());
+  }
+
+  public int getLastTradePrice() {
+    return lastTradeTick == 0 ? 0 : tickToPrice(lastTradeTick);
+  }
+
+  public boolean isHalted() {
+    return halted;
+  }
+
+  public boolean isInAuction() {
+    return inAuction;
+  }
+
+  public int getPendingStopCount() {
+    return stopBook.size();
+  }
+
+  public int getTickSize() {
+    return tickSize;
+  }
+
+  public int getPriceScale() {
+    return priceScale;
   }
 
   public LimitPool getLimitPool() {
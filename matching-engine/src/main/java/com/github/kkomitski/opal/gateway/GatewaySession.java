@@ -0,0 +1,231 @@
+package com.github.kkomitski.opal.gateway;
+
+import java.util.List;
+
+import org.agrona.DirectBuffer;
+import org.agrona.ExpandableArrayBuffer;
+import org.agrona.ExpandableDirectByteBuffer;
+import org.agrona.collections.IntArrayList;
+import org.agrona.concurrent.BackoffIdleStrategy;
+import org.agrona.concurrent.IdleStrategy;
+import org.agrona.concurrent.UnsafeBuffer;
+
+import com.github.kkomitski.opal.aeron.utils.AeronPublisher;
+import com.github.kkomitski.opal.orderbook.OrderRequest;
+import com.github.kkomitski.opal.orderbook.RequestFrames;
+import com.github.kkomitski.opal.utils.IngressChannel;
+
+import io.aeron.Publication;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+/*
+One TCP client of the gateway, on its event loop's thread. The client sends
+SBE framed requests (opal-schema.xml) back to back. Every read is framed in
+place, straight from the ByteBuf's memory, and its whole requests go out in
+as few offers per ingress channel as fit them. An offer never exceeds the
+publication's max payload, so it arrives as one fragment of whole requests,
+the form every ingress reader expects. A request cut by the end of a read
+waits in the cumulation for the rest.
+
+The session numbers the requests it takes from 1 and answers every read with
+16 byte little endian frames, [type:4][reserved:4][sequence:8]:
+  ACK     every request up to sequence is in the ingress stream, bar the ones
+          rejected before it
+  REJECT  the request with this sequence number wasn't forwarded, its ingress
+          channel has no engine connected or it is too long for one fragment
+Bytes that can't be framed as requests close the connection.
+*/
+final class GatewaySession extends ByteToMessageDecoder {
+  static final int ACK = 1;
+  static final int REJECT = 2;
+  static final int RESPONSE_LENGTH = 16;
+
+  private static final int MAX_REQUEST_LENGTH = 4096; // Anything unframed beyond this is garbage
+
+  private final AeronPublisher[] channels; // This event loop's, only its thread offers to them
+  private final int maxPayloadLength; // Of the channel that allows the least
+  private final IdleStrategy offerIdleStrategy = new BackoffIdleStrategy();
+  private final UnsafeBuffer view = new UnsafeBuffer(0, 0);
+  private final ExpandableArrayBuffer copy = new ExpandableArrayBuffer(); // Reads without a flat memory region
+  // Requests bound for each channel from the current read, and their
+  // positions in it (requests counted from 0)
+  private final ExpandableDirectByteBuffer[] batches;
+  private final int[] batchLengths;
+  private final IntArrayList[] batchRequests;
+  private long sequence; // Last request taken
+
+  GatewaySession(final AeronPublisher[] channels) {
+    this.channels = channels;
+    int maxPayloadLength = Integer.MAX_VALUE;
+    for (final AeronPublisher channel : channels) {
+      maxPayloadLength = Math.min(maxPayloadLength, channel.publication().maxPayloadLength());
+    }
+    this.maxPayloadLength = maxPayloadLength;
+    this.batches = new ExpandableDirectByteBuffer[channels.length];
+    this.batchLengths = new int[channels.length];
+    this.batchRequests = new IntArrayList[channels.length];
+    for (int i = 0; i < channels.length; i++) {
+      batches[i] = new ExpandableDirectByteBuffer(4096);
+      batchRequests[i] = new IntArrayList();
+    }
+  }
+
+  @Override
+  protected void decode(final ChannelHandlerContext ctx, final ByteBuf in, final List<Object> out) {
+    final int limit = in.readableBytes();
+    if (limit < RequestFrames.MIN_LENGTH) {
+      return;
+    }
+    wrap(in, limit);
+
+    final long firstSequence = sequence + 1;
+    int position = 0;
+    int requests = 0;
+    int unsent = 0; // First byte and request of the read not yet offered, single channel only
+    int unsentRequest = 0;
+    while (position + RequestFrames.MIN_LENGTH <= limit) {
+      final int length = RequestFrames.length(view, position, limit);
+      if (length <= 0) {
+        break; // The rest comes with a later read
+      }
+      if (channels.length > 1) {
+        if (length > maxPayloadLength) {
+          respond(ctx, REJECT, firstSequence + requests);
+        } else {
+          route(ctx, firstSequence, view, position, length, requests);
+        }
+      } else if (position + length - unsent > maxPayloadLength) {
+        sendRange(ctx, firstSequence, unsent, position, unsentRequest, requests);
+        if (length > maxPayloadLength) {
+          respond(ctx, REJECT, firstSequence + requests);
+          unsent = position + length;
+          unsentRequest = requests + 1;
+        } else {
+          unsent = position;
+          unsentRequest = requests;
+        }
+      }
+      position += length;
+      requests++;
+    }
+    if (requests == 0) {
+      if (limit >= MAX_REQUEST_LENGTH) {
+        System.err.println("Unreadable requests from " + ctx.channel().remoteAddress() + ", closing");
+        in.skipBytes(limit);
+        ctx.close();
+      }
+      return;
+    }
+    sequence += requests;
+
+    if (channels.length == 1) {
+      sendRange(ctx, firstSequence, unsent, position, unsentRequest, requests);
+    } else {
+      for (int channel = 0; channel < channels.length; channel++) {
+        sendBatch(ctx, firstSequence, channel);
+      }
+    }
+    in.skipBytes(position);
+    respond(ctx, ACK, sequence);
+  }
+
+  // Offers the read's requests [fromRequest, toRequest), the bytes from
+  // offset to limit, to the only channel
+  private void sendRange(final ChannelHandlerContext ctx, final long firstSequence, final int offset,
+      final int limit, final int fromRequest, final int toRequest) {
+    if (limit > offset && !send(channels[0], view, offset, limit - offset)) {
+      for (int request = fromRequest; request < toRequest; request++) {
+        respond(ctx, REJECT, firstSequence + request);
+      }
+    }
+  }
+
+  private void sendBatch(final ChannelHandlerContext ctx, final long firstSequence, final int channel) {
+    if (batchLengths[channel] > 0 && !send(channels[channel], batches[channel], 0, batchLengths[channel])) {
+      final IntArrayList rejected = batchRequests[channel];
+      for (int i = 0; i < rejected.size(); i++) {
+        respond(ctx, REJECT, firstSequence + rejected.getInt(i));
+      }
+    }
+    batchLengths[channel] = 0;
+    batchRequests[channel].clear();
+  }
+
+  @Override
+  public void channelReadComplete(final ChannelHandlerContext ctx) throws Exception {
+    ctx.flush(); // Every response of the reads just handled in one write
+    super.channelReadComplete(ctx);
+  }
+
+  @Override
+  public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+    System.err.println("Gateway session " + ctx.channel().remoteAddress() + " failed: " + cause);
+    ctx.close();
+  }
+
+  // Views the readable bytes without copying when they're one region of
+  // memory, which pooled buffers are
+  private void wrap(final ByteBuf in, final int length) {
+    if (in.hasMemoryAddress()) {
+      view.wrap(in.memoryAddress() + in.readerIndex(), length);
+    } else if (in.hasArray()) {
+      view.wrap(in.array(), in.arrayOffset() + in.readerIndex(), length);
+    } else {
+      copy.checkLimit(length);
+      in.getBytes(in.readerIndex(), copy.byteArray(), 0, length);
+      view.wrap(copy.byteArray(), 0, length);
+    }
+  }
+
+  // Same split as the engine's ingress channels, participant wide mass
+  // cancels go to every channel
+  private void route(final ChannelHandlerContext ctx, final long firstSequence, final DirectBuffer buffer,
+      final int offset, final int length, final int request) {
+    if (RequestFrames.massCancelScope(buffer, offset) == OrderRequest.MassCancelScope.PARTICIPANT) {
+      for (int channel = 0; channel < channels.length; channel++) {
+        append(ctx, firstSequence, channel, buffer, offset, length, request);
+      }
+    } else {
+      final int instrumentIndex = RequestFrames.instrumentIndex(buffer, offset);
+      append(ctx, firstSequence, IngressChannel.channelFor(instrumentIndex, channels.length), buffer, offset,
+          length, request);
+    }
+  }
+
+  private void append(final ChannelHandlerContext ctx, final long firstSequence, final int channel,
+      final DirectBuffer buffer, final int offset, final int length, final int request) {
+    if (batchLengths[channel] + length > maxPayloadLength) {
+      sendBatch(ctx, firstSequence, channel);
+    }
+    batches[channel].putBytes(batchLengths[channel], buffer, offset, length);
+    batchLengths[channel] += length;
+    batchRequests[channel].addInt(request);
+  }
+
+  // Back pressure holds this event loop, and through TCP its clients, until
+  // the engine catches up
+  private boolean send(final AeronPublisher channel, final DirectBuffer buffer, final int offset,
+      final int length) {
+    long result;
+    while ((result = channel.offer(buffer, offset, length)) < 0) {
+      if (result == Publication.NOT_CONNECTED || result == Publication.CLOSED
+          || result == Publication.MAX_POSITION_EXCEEDED) {
+        offerIdleStrategy.reset();
+        return false;
+      }
+      offerIdleStrategy.idle();
+    }
+    offerIdleStrategy.reset();
+    return true;
+  }
+
+  private void respond(final ChannelHandlerContext ctx, final int type, final long sequence) {
+    final ByteBuf response = ctx.alloc().directBuffer(RESPONSE_LENGTH);
+    response.writeIntLE(type);
+    response.writeIntLE(0);
+    response.writeLongLE(sequence);
+    ctx.write(response, ctx.voidPromise());
+  }
+}
@@ -0,0 +1,154 @@
+package com.github.kkomitski.opal.gateway;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.kkomitski.opal.aeron.utils.AeronPublisher;
+import com.github.kkomitski.opal.aeron.utils.AttachAeronMediaDriver;
+import com.github.kkomitski.opal.utils.OpalConfig;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.IoHandlerFactory;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollIoHandler;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.EventExecutor;
+
+/*
+Order entry over TCP for clients that can't speak Aeron, as a process of its
+own in front of the engine. Clients send the same SBE framed requests as the
+engine's ingress (opal-schema.xml) and the gateway republishes them, a read's
+worth in offers of at most one fragment, to the ingress channels in
+GATEWAY_INGRESS_CHANNELS (see GatewaySession for the acks). Requests are split across several channels
+the way the engine splits instruments across MATCHER_INGRESS_CHANNELS.
+
+Sessions are spread over GATEWAY_THREADS event loops on the native epoll
+transport (NIO where epoll isn't available). Every event loop has exclusive
+publications of its own, so its sessions never contend on an offer. A
+session's requests stay in order, requests of different sessions may
+interleave in any order.
+*/
+public final class TcpGateway {
+  private static final int BUFFER_SIZE = 65535;
+
+  private final Map<EventExecutor, AeronPublisher[]> publishers = new IdentityHashMap<>();
+  private final int port;
+  private final MultiThreadIoEventLoopGroup bossGroup;
+  private final MultiThreadIoEventLoopGroup workerGroup;
+  private final Class<? extends ServerChannel> channelClass;
+
+  public TcpGateway(final AttachAeronMediaDriver mediaDriver, final String[] ingressChannels, final int port,
+      final int threads) {
+    if (ingressChannels.length == 0) {
+      throw new IllegalArgumentException("need at least one ingress channel");
+    }
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be at least 1");
+    }
+    this.port = port;
+
+    final boolean epoll = Epoll.isAvailable();
+    if (!epoll) {
+      System.err.println("Native epoll unavailable (" + Epoll.unavailabilityCause() + "), using NIO");
+    }
+    final IoHandlerFactory ioHandlerFactory = epoll ? EpollIoHandler.newFactory() : NioIoHandler.newFactory();
+    this.channelClass = epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    this.bossGroup = new MultiThreadIoEventLoopGroup(1, ioHandlerFactory);
+    this.workerGroup = new MultiThreadIoEventLoopGroup(threads, ioHandlerFactory);
+
+    // Added up front, adding one on an event loop would wait on the driver
+    for (final EventExecutor eventLoop : workerGroup) {
+      final AeronPublisher[] channels = new AeronPublisher[ingressChannels.length];
+      for (int i = 0; i < ingressChannels.length; i++) {
+        final String entry = ingressChannels[i];
+        final int hash = entry.lastIndexOf('#');
+        final String channel = hash < 0 ? entry : entry.substring(0, hash);
+        final int streamId = hash < 0 ? OpalConfig.MATCHER_INGRESS_STREAM_ID
+            : Integer.parseInt(entry.substring(hash + 1));
+        channels[i] = new AeronPublisher(mediaDriver,
+            channel.startsWith("aeron:") ? channel : "aeron:udp?endpoint=" + channel, streamId, true);
+        channels[i].setSendTimestamps(true);
+      }
+      publishers.put(eventLoop, channels);
+    }
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    final String[] ingressChannels = ingressChannels(OpalConfig.GATEWAY_INGRESS_CHANNELS);
+    try (AttachAeronMediaDriver mediaDriver = AttachAeronMediaDriver.configured()) {
+      final TcpGateway gateway = new TcpGateway(mediaDriver, ingressChannels, OpalConfig.GATEWAY_PORT,
+          OpalConfig.GATEWAY_THREADS);
+      for (int i = 0; i < ingressChannels.length; i++) {
+        System.out.println("Ingress channel " + i + ": " + ingressChannels[i]);
+      }
+      try {
+        gateway.run();
+      } finally {
+        gateway.close();
+      }
+    }
+  }
+
+  /**
+   * Comma separated ingress channels, each host:port (UDP) or a full Aeron
+   * channel URI, optionally followed by #streamId. Empty is the engine's
+   * default UDP ingress on this host.
+   */
+  private static String[] ingressChannels(final String spec) {
+    final List<String> channels = new ArrayList<>();
+    for (final String entry : spec.split(",")) {
+      if (!entry.isBlank()) {
+        channels.add(entry.trim());
+      }
+    }
+    if (channels.isEmpty()) {
+      channels.add("localhost:" + OpalConfig.MATCHER_INGRESS_PORT);
+    }
+    return channels.toArray(new String[0]);
+  }
+
+  /**
+   * Serves clients until the listening socket closes.
+   */
+  public void run() throws InterruptedException {
+    final ServerBootstrap bootstrap = new ServerBootstrap();
+    bootstrap.group(bossGroup, workerGroup)
+        .channel(channelClass)
+        .option(ChannelOption.SO_BACKLOG, 128)
+        .option(ChannelOption.SO_REUSEADDR, true)
+        .childOption(ChannelOption.SO_KEEPALIVE, true)
+        .childOption(ChannelOption.TCP_NODELAY, true)
+        .childOption(ChannelOption.SO_RCVBUF, BUFFER_SIZE)
+        .childOption(ChannelOption.SO_SNDBUF, BUFFER_SIZE)
+        .childHandler(new ChannelInitializer<SocketChannel>() {
+          @Override
+          protected void initChannel(SocketChannel ch) {
+            ch.pipeline().addLast(new GatewaySession(publishers.get(ch.eventLoop())));
+          }
+        });
+    final ChannelFuture future = bootstrap.bind(port).sync();
+    System.out.println("Gateway listening on TCP " + port + " (" + channelClass.getSimpleName() + ", "
+        + publishers.size() + " event loops)");
+    future.channel().closeFuture().sync();
+  }
+
+  public void close() {
+    bossGroup.shutdownGracefully().syncUninterruptibly();
+    workerGroup.shutdownGracefully().syncUninterruptibly();
+    for (final AeronPublisher[] channels : publishers.values()) {
+      for (final AeronPublisher channel : channels) {
+        channel.close();
+      }
+    }
+  }
+}
@@ -1,11 +1,12 @@
 package com.github.kkomitski.opal.helpers;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
 
 import org.agrona.concurrent.CachedEpochClock;
+import org.agrona.concurrent.EpochClock;
 
 import com.github.kkomitski.opal.OrderBook;
 import com.github.kkomitski.opal.services.EgressService;
@@ -21,25 +22,48 @@ public class LoadOrderBooks {
   private static final AtomicBoolean CLOCK_STARTED = new AtomicBoolean(false);
 
   public static OrderBook[] fromXML(String source, EgressService egressService) {
-    startEpochClockThread();
+    return fromMarkets(MarketsLoader.load(source), instrumentIndex -> egressService, instrumentIndex -> true);
+  }
 
-    Market[] markets = MarketsLoader.load(source);
-    List<OrderBook> orderBooks = new ArrayList<>();
+  /**
+   * Books for the hosted instruments only, the others are left null so every
+   * book keeps its instrument index. Each book gets the egress service the
+   * function returns for its instrument.
+   */
+  public static OrderBook[] fromMarkets(Market[] markets, IntFunction<EgressService> egressServices,
+      IntPredicate hosted) {
+    OrderBook[] orderBooks = new OrderBook[markets.length];
+    for (int i = 0; i < markets.length; i++) {
+      if (hosted.test(i)) {
+        orderBooks[i] = load(markets, i, egressServices.apply(i));
+      }
+    }
+    return orderBooks;
+  }
 
+  /**
+   * Every market's book without a thread of its own, the caller drives them
+   * on the given clock (see OrderBook#process).
+   */
+  public static OrderBook[] unthreaded(Market[] markets, IntFunction<EgressService> egressServices,
+      EpochClock epochClock) {
+    OrderBook[] orderBooks = new OrderBook[markets.length];
     for (int i = 0; i < markets.length; i++) {
-      Market market = markets[i];
-      // Pass the dynamic sizing parameters from XML
-      orderBooks.add(new OrderBook(
-        market.symbol,
-        i,
-        market.limitsPerBook,
-        market.ordersPerLimit,
-        egressService,
-        EPOCH_CLOCK
-      ));
+      orderBooks[i] = new OrderBook(markets[i], i, egressServices.apply(i), epochClock, false);
     }
+    return orderBooks;
+  }
+
+  public static OrderBook load(Market[] markets, int instrumentIndex, EgressService egressService) {
+    startEpochClockThread();
 
-    return orderBooks.toArray(new OrderBook[0]);
+    // Pass the dynamic sizing, tick size and collar parameters from XML
+    return new OrderBook(
+      markets[instrumentIndex],
+      instrumentIndex,
+      egressService,
+      EPOCH_CLOCK
+    );
   }
 
   private static void startEpochClockThread() {
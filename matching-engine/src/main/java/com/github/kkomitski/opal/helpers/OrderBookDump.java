@@ -14,6 +14,7 @@ import com.github.kkomitski.opal.OrderBook;
 import com.github.kkomitski.opal.orderbook.Limit;
 import com.github.kkomitski.opal.orderbook.LimitChunkPool;
 import com.github.kkomitski.opal.orderbook.LimitPool;
+import com.github.kkomitski.opal.utils.Market;
 
 public class OrderBookDump {
 
@@ -101,10 +102,12 @@ public class OrderBookDump {
             writeStat(writer, "Timestamp", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_TIME));
             writer.println("<hr style='border-color: #3e3e42; opacity: 0.5;'>");
             
-            writeStat(writer, "Best Ask", bestAsk == 0 ? "-" : String.valueOf(bestAsk));
-            writeStat(writer, "Best Bid", bestBid == 0 ? "-" : String.valueOf(bestBid));
-            writeStat(writer, "Spread", String.valueOf(spread));
-            writeStat(writer, "Mid Price", String.valueOf(midPrice));
+            final int priceScale = book.getPriceScale();
+            writeStat(writer, "Best Ask", bestAsk == 0 ? "-" : Market.formatPrice(bestAsk, priceScale));
+            writeStat(writer, "Best Bid", bestBid == 0 ? "-" : Market.formatPrice(bestBid, priceScale));
+            writeStat(writer, "Spread", Market.formatPrice(spread, priceScale));
+            writeStat(writer, "Mid Price", Market.formatPrice(midPrice, priceScale));
+            writeStat(writer, "Tick Size", Market.formatPrice(book.getTickSize(), priceScale));
             writeStat(writer, "Crossed?", crossed ? "<span style='color:red'>YES</span>" : "No");
             
             writer.println("<hr style='border-color: #3e3e42; opacity: 0.5;'>");
@@ -142,7 +145,7 @@ public class OrderBookDump {
             for (int i = 0; i < askShow; i++) {
                 int price = askPrices.get(i);
                 Limit limit = askLimits.get(price);
-                renderRow(writer, limit, price, maxVol, "ask");
+                renderRow(writer, book, limit, price, maxVol, "ask");
             }
             // If more than 11, show 'more' row and outlier
             if (askCount > 10) {
@@ -154,13 +157,13 @@ public class OrderBookDump {
                 // Outlier row (farthest ask)
                 int price = askPrices.get(outlierIdx);
                 Limit limit = askLimits.get(price);
-                renderRow(writer, limit, price, maxVol, "ask");
+                renderRow(writer, book, limit, price, maxVol, "ask");
             } else if (askCount > 9) {
                 // If exactly 10 or 11, just show them all
                 for (int i = askShow; i < askCount; i++) {
                     int price = askPrices.get(i);
                     Limit limit = askLimits.get(price);
-                    renderRow(writer, limit, price, maxVol, "ask");
+                    renderRow(writer, book, limit, price, maxVol, "ask");
                 }
             }
 
@@ -169,11 +172,11 @@ public class OrderBookDump {
             writer.println("<tr><td colspan='3' class='spread-row' style='position:relative;'>");
             writer.println("<div style='display:flex; justify-content:center; align-items:center; width:100%; height:100%;'>");
             if (crossed) {
-                writer.println("<span style='color: #ff6b6b; margin-right:16px;'>MARKET CROSSED (" + spread + ")</span>");
+                writer.println("<span style='color: #ff6b6b; margin-right:16px;'>MARKET CROSSED (" + Market.formatPrice(spread, priceScale) + ")</span>");
             } else {
-                writer.println("<span style='margin-right:16px;'>SPREAD: " + spread + "</span>");
+                writer.println("<span style='margin-right:16px;'>SPREAD: " + Market.formatPrice(spread, priceScale) + "</span>");
             }
-            writer.println("<span style='background:#333; color:#ffd700; border-radius:6px; padding:4px 12px; font-size:1.1em; font-weight:bold; margin-left:16px;'>Mid: " + midPrice + "</span>");
+            writer.println("<span style='background:#333; color:#ffd700; border-radius:6px; padding:4px 12px; font-size:1.1em; font-weight:bold; margin-left:16px;'>Mid: " + Market.formatPrice(midPrice, priceScale) + "</span>");
             writer.println("</div>");
             writer.println("</td></tr>");
 
@@ -183,7 +186,7 @@ public class OrderBookDump {
             for (int i = 0; i < bidShow; i++) {
                 int price = bidPrices.get(i);
                 Limit limit = bidLimits.get(price);
-                renderRow(writer, limit, price, maxVol, "bid");
+                renderRow(writer, book, limit, price, maxVol, "bid");
             }
             if (bidCount > 10) {
                 int moreCount = bidCount - 10;
@@ -192,12 +195,12 @@ public class OrderBookDump {
                 writer.println("<tr class='bid-row'><td colspan='3' style='text-align:center; color:#b3e6cc;'>+" + moreCount + " more bids...</td></tr>");
                 int price = bidPrices.get(outlierIdx);
                 Limit limit = bidLimits.get(price);
-                renderRow(writer, limit, price, maxVol, "bid");
+                renderRow(writer, book, limit, price, maxVol, "bid");
             } else if (bidCount > 9) {
                 for (int i = bidShow; i < bidCount; i++) {
                     int price = bidPrices.get(i);
                     Limit limit = bidLimits.get(price);
-                    renderRow(writer, limit, price, maxVol, "bid");
+                    renderRow(writer, book, limit, price, maxVol, "bid");
                 }
             }
 
@@ -222,7 +225,7 @@ public class OrderBookDump {
         writer.println("</div>");
     }
 
-    private static void renderRow(PrintWriter writer, Limit limit, int price, long maxVol, String type) {
+    private static void renderRow(PrintWriter writer, OrderBook book, Limit limit, int tick, long maxVol, String type) {
         String rowClass = type.equals("ask") ? "ask-row" : "bid-row";
         String fillClass = type.equals("ask") ? "ask-fill" : "bid-fill";
         int vol = limit.getTotalVolume();
@@ -237,7 +240,7 @@ public class OrderBookDump {
         writer.println("<td>" + vol + 
             "<div class='bar-container'><div class='" + fillClass + "' style='width:" + percentage + "%'></div></div>" +
             "</td>");
-        writer.println("<td>" + price + "</td>");
+        writer.println("<td>" + Market.formatPrice(book.tickToPrice(tick), book.getPriceScale()) + "</td>");
         writer.println("</tr>");
     }
 }
@@ -0,0 +1,89 @@
+package com.github.kkomitski.opal.orderbook;
+
+import java.util.Arrays;
+
+/*
+Fenwick (binary indexed) tree of resting volume per price level for one side
+of a book. Covers a window of ticks [baseTick, baseTick + capacity), so the
+cumulative liquidity up to any tick is available in O(log n) without walking
+levels or touching a LimitChunk
+*/
+public class LevelVolumeTree {
+  private final int capacity;
+  private final long[] tree; // 1-based
+  private int baseTick;
+  private long totalVolume = 0;
+
+  public LevelVolumeTree(int capacity, int baseTick) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be > 0");
+    }
+    this.capacity = capacity;
+    this.tree = new long[capacity + 1];
+    this.baseTick = baseTick;
+  }
+
+  public boolean contains(int tick) {
+    final int index = tick - baseTick;
+    return index >= 0 && index < capacity;
+  }
+
+  /**
+   * Applies a volume change at the given tick. The tick must be inside the
+   * window.
+   */
+  public void add(int tick, long delta) {
+    for (int i = tick - baseTick + 1; i <= capacity; i += i & -i) {
+      tree[i] += delta;
+    }
+    totalVolume += delta;
+  }
+
+  /**
+   * Volume resting at or below the given tick.
+   */
+  public long cumulativeUpTo(int tick) {
+    int i = tick - baseTick + 1;
+    if (i <= 0) {
+      return 0;
+    }
+    if (i > capacity) {
+      return totalVolume;
+    }
+
+    long sum = 0;
+    for (; i > 0; i -= i & -i) {
+      sum += tree[i];
+    }
+    return sum;
+  }
+
+  /**
+   * Volume resting at or above the given tick.
+   */
+  public long cumulativeFrom(int tick) {
+    return totalVolume - cumulativeUpTo(tick - 1);
+  }
+
+  public long getTotalVolume() {
+    return totalVolume;
+  }
+
+  public int getBaseTick() {
+    return baseTick;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Clears all volume and moves the window. Callers re-add the volume of the
+   * levels that are still live.
+   */
+  public void reset(int baseTick) {
+    Arrays.fill(tree, 0);
+    totalVolume = 0;
+    this.baseTick = baseTick;
+  }
+}
@@ -14,6 +14,15 @@ public class Limit {
   private int orderCount = 0;
   private int chunksInChain = 0;
 
+  // Book-wide index of resting orders, shared by every limit of the pool (null
+  // when the owner doesn't need cancels by id or participant)
+  private final OrderIndex orderIndex;
+
+  // Price level this limit is bound to while in use, volume changes are
+  // mirrored into the side's volume tree (if any)
+  private LevelVolumeTree volumeTree;
+  private int tick;
+
   public boolean initialized = false;
 
   public static enum State {
@@ -22,32 +31,75 @@ public class Limit {
 
   public State state = State.NORMAL;
 
+  /**
+   * Receives each allocation of a pro-rata pass.
+   */
+  public static interface FillListener {
+    void onFill(Order order, int quantity);
+  }
+
+  /**
+   * Is shown every order of a level, in time priority.
+   */
+  public static interface OrderVisitor {
+    void visit(Order order, int reserve, int displaySize);
+  }
+
   public Limit(LimitChunkPool limitPool) {
     this(limitPool, DEFAULT_MAX_CHUNKS_PER_LIMIT);
   }
 
   public Limit(LimitChunkPool limitPool, int maxChunksPerLevel) {
+    this(limitPool, maxChunksPerLevel, null);
+  }
+
+  public Limit(LimitChunkPool limitPool, int maxChunksPerLevel, OrderIndex orderIndex) {
     this.limitPool = limitPool;
     this.maxChunksPerLevel = maxChunksPerLevel;
+    this.orderIndex = orderIndex;
     this.head = null;
     this.tail = null;
   }
 
+  /**
+   * Binds this limit to a price level so that its volume changes are tracked in
+   * the side's volume tree.
+   */
+  public void bind(LevelVolumeTree volumeTree, int tick) {
+    this.volumeTree = volumeTree;
+    this.tick = tick;
+  }
+
+  public int getTick() {
+    return tick;
+  }
+
+  private void onVolumeChange(int delta) {
+    totalVolume += delta;
+    if (volumeTree != null) {
+      volumeTree.add(tick, delta);
+    }
+  }
+
   /**
    * Adds an order to the chain. Returns true if successful, false if pool
    * exhausted.
    */
   public boolean addOrder(OrderRequest req) {
+    return addOrder(req.getId(), req.getDisplayedQuantity(), req.getReserveQuantity(), req.getDisplayQuantity(),
+        req.getParticipantId());
+  }
+
+  private boolean addOrder(int id, int size, int reserve, int displaySize, int participantId) {
     // initialize the head and tail if first addition or after reset
     if (head == null || tail == null) {
       head = tail = limitPool.getChunk();
       chunksInChain = 1;
     }
 
-    int size = req.getQuantity();
-    if (tail.addOrder(req)) {
-      totalVolume += size;
-      orderCount++;
+    Order order = tail.addOrder(id, size, reserve, displaySize, participantId);
+    if (order != null) {
+      onAdded(order);
       return true;
     } else {
       // Enforce maxChunksPerLevel
@@ -60,9 +112,9 @@ public class Limit {
       chunksInChain++;
       tail.next = newChunk;
       tail = newChunk;
-      if (tail.addOrder(req)) {
-        orderCount++;
-        totalVolume += size;
+      order = tail.addOrder(id, size, reserve, displaySize, participantId);
+      if (order != null) {
+        onAdded(order);
         return true;
       } else {
         // Should not happen unless pool is exhausted
@@ -71,6 +123,60 @@ public class Limit {
     }
   }
 
+  /**
+   * Re-creates a resting order as it was, iceberg state included, behind the
+   * ones already restored. Returns it, or null if the level is full.
+   */
+  public Order restoreOrder(int id, int size, int reserve, int displaySize, int participantId) {
+    return addOrder(id, size, reserve, displaySize, participantId) ? tail.peekTail() : null;
+  }
+
+  public void forEachOrder(OrderVisitor visitor) {
+    for (LimitChunk chunk = head; chunk != null; chunk = chunk.next) {
+      chunk.forEachOrder(visitor);
+    }
+  }
+
+  private void onAdded(Order order) {
+    order.limit = this;
+    orderCount++;
+    onVolumeChange(order.size);
+    if (orderIndex != null) {
+      orderIndex.add(order);
+    }
+  }
+
+  private void unindex(Order order) {
+    if (orderIndex != null) {
+      orderIndex.remove(order);
+    }
+  }
+
+  /**
+   * Removes an order from anywhere in the level in O(1). Its slot becomes a
+   * tombstone that is skipped once it reaches the head.
+   */
+  public void cancelOrder(Order order) {
+    unindex(order);
+    final int size = order.size;
+    order.chunk.cancel(order.slot);
+    orderCount--;
+    onVolumeChange(-size);
+    dropEmptyHeadChunks();
+  }
+
+  // If the head chunk emptied (or only holds cancelled orders) and is chained,
+  // advance and release it so the head order is always in the head chunk
+  private void dropEmptyHeadChunks() {
+    while (head != null && head.next != null && head.peek() == null) {
+      LimitChunk oldHead = head;
+      head = head.next;
+      oldHead.next = null;
+      limitPool.releaseChunk(oldHead);
+      chunksInChain--;
+    }
+  }
+
   /**
    * Removes and returns the oldest order in the chain, or null if empty.
    */
@@ -79,15 +185,9 @@ public class Limit {
       Order order = head.removeOrder();
       if (order != null) {
         orderCount--;
-        totalVolume -= order.size;
-        // If head chunk emptied and chained, advance and release
-        if (head.isEmpty() && head.next != null) {
-          LimitChunk oldHead = head;
-          head = head.next;
-          oldHead.next = null;
-          limitPool.releaseChunk(oldHead);
-          chunksInChain--;
-        }
+        onVolumeChange(-order.size);
+        unindex(order);
+        dropEmptyHeadChunks();
         return order;
       }
       // No order in head; if chained, advance, else stop
@@ -104,6 +204,62 @@ public class Limit {
     return null;
   }
 
+  /**
+   * Called once the head order's displayed size has been fully filled. If the
+   * head is an iceberg with hidden size left, the next slice is shown and
+   * re-queued at the tail, losing time priority. Returns false for plain
+   * orders, which the caller then removes as usual.
+   */
+  public boolean replenishHead() {
+    if (head == null) {
+      return false;
+    }
+    final int reserve = head.peekReserve();
+    if (reserve == 0) {
+      return false;
+    }
+
+    final Order headOrder = head.peek();
+    final int id = headOrder.id;
+    final int participantId = headOrder.participantId;
+    final long expiryTimerId = headOrder.expiryTimerId;
+    final int displaySize = head.peekDisplaySize();
+    final int slice = Math.min(displaySize, reserve);
+
+    if (tail.isFull() && chunksInChain >= maxChunksPerLevel && head != tail) {
+      // No room at the tail, show the next slice in place instead
+      final int oldSize = headOrder.size;
+      head.replenishHead(slice, reserve - slice);
+      onVolumeChange(slice - oldSize);
+      return true;
+    }
+
+    removeOrder();
+    addOrder(id, slice, reserve - slice, displaySize, participantId);
+    final Order replenished = tail.peekTail();
+    if (replenished != null) {
+      replenished.expiryTimerId = expiryTimerId;
+    }
+    return true;
+  }
+
+  /**
+   * Splits quantity across the level in proportion to each order's displayed
+   * size, in a single pass using the level's running volume. Shares round down,
+   * so no order is completely filled and the lots left over are for the caller
+   * to allocate in time priority. Only valid for quantity below the level
+   * volume. Returns the total allocated.
+   */
+  public int allocateProRata(int quantity, int skipParticipant, FillListener listener) {
+    final long levelVolume = totalVolume;
+    int allocated = 0;
+    for (LimitChunk chunk = head; chunk != null; chunk = chunk.next) {
+      allocated += chunk.allocateProRata(quantity, levelVolume, skipParticipant, listener);
+    }
+    onVolumeChange(-allocated);
+    return allocated;
+  }
+
   /**
    * Returns the oldest order without removing it, or null if empty.
    */
@@ -119,6 +275,16 @@ public class Limit {
     return null;
   }
 
+  /**
+   * Shrinks an order anywhere in the level without moving it in the queue, as
+   * partialFill does for the head order.
+   */
+  public void reduceOrder(Order order, int newSize) {
+    final int oldSize = order.size;
+    order.chunk.reduce(order.slot, newSize);
+    onVolumeChange(newSize - oldSize);
+  }
+
   /**
    * Amends the size of the head order (oldest order) to the new size.
    */
@@ -128,7 +294,7 @@ public class Limit {
       if (headOrder != null && headOrder.initialized) {
         int oldSize = headOrder.size;
         head.partialFill(newSize);
-        totalVolume -= (oldSize - newSize);
+        onVolumeChange(newSize - oldSize);
       }
     }
   }
@@ -149,6 +315,14 @@ public class Limit {
     // This is not very cache friendly...
     LimitChunk current = head;
     while (current != null) {
+      if (orderIndex != null) {
+        // Evicted with the level, the ids no longer resolve to a resting order
+        for (Order order : current.orders) {
+          if (order.initialized) {
+            unindex(order);
+          }
+        }
+      }
       limitPool.releaseChunk(current);
       LimitChunk next = current.next;
       orderCount = 0;
@@ -156,6 +330,10 @@ public class Limit {
       current = next;
     }
 
+    if (volumeTree != null && totalVolume != 0) {
+      volumeTree.add(tick, -totalVolume);
+    }
+    volumeTree = null;
     totalVolume = 0;
     initialized = false;
     head = null;
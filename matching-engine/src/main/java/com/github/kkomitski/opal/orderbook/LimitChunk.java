@@ -20,6 +20,11 @@ public class LimitChunk {
   public final Order[] orders;
   public int chunkVolume = 0;
 
+  // Iceberg side arrays, indexed by slot - hidden size still to be shown and
+  // the size of each displayed slice. Zero for plain orders.
+  private final int[] reserves;
+  private final int[] displaySizes;
+
   public LimitChunk() {
     this(DEFAULT_CHUNK_SIZE);
   }
@@ -27,28 +32,88 @@ public class LimitChunk {
   public LimitChunk(int ordersPerChunk) {
     capacity = ordersPerChunk;
     orders = new Order[capacity];
+    reserves = new int[capacity];
+    displaySizes = new int[capacity];
 
     for (int i = 0; i < ordersPerChunk; i++) {
       orders[i] = new Order();
+      orders[i].chunk = this;
+      orders[i].slot = i;
     }
   }
 
   public boolean addOrder(OrderRequest orderRequest) {
+    return addOrder(orderRequest.getId(), orderRequest.getDisplayedQuantity(), orderRequest.getReserveQuantity(),
+        orderRequest.getDisplayQuantity(), orderRequest.getParticipantId()) != null;
+  }
+
+  /**
+   * Appends an order, returning its slot or null if the chunk is full.
+   */
+  public Order addOrder(int id, int size, int reserve, int displaySize, int participantId) {
     if (count < capacity) {
-      orders[tail].size = orderRequest.getQuantity();
-      orders[tail].id = orderRequest.getId();
+      final Order order = orders[tail];
+      orders[tail].size = size;
+      orders[tail].id = id;
+      orders[tail].participantId = participantId;
+      orders[tail].expiryTimerId = Order.NO_TIMER;
       orders[tail].initialized = true;
+      reserves[tail] = reserve;
+      displaySizes[tail] = displaySize;
       chunkVolume += orders[tail].size;
       tail = (short) ((tail + 1) % DEFAULT_CHUNK_SIZE);
       count++;
 
-      return true;
+      return order;
+    }
+
+    return null; // Limit is full
+  }
+
+  // Cancelled orders stay in their slot until they reach the head
+  private void skipCancelled() {
+    while (count > 0 && !orders[head].initialized) {
+      head = (short) ((head + 1) % DEFAULT_CHUNK_SIZE);
+      count--;
+    }
+  }
+
+  /**
+   * Cancels the order in the given slot in O(1) by leaving a tombstone, the
+   * slot is reclaimed once it reaches the head.
+   */
+  public void cancel(int slot) {
+    final Order order = orders[slot];
+    if (order.initialized) {
+      order.initialized = false;
+      chunkVolume -= order.size;
+      order.size = 0;
+      reserves[slot] = 0;
     }
+  }
+
+  /**
+   * Shrinks the order in the given slot in place, it keeps its time priority.
+   */
+  public void reduce(int slot, int newSize) {
+    chunkVolume -= orders[slot].size - newSize;
+    orders[slot].size = newSize;
+  }
 
-    return false; // Limit is full
+  public Order peekTail() {
+    return count > 0 ? orders[(tail - 1 + DEFAULT_CHUNK_SIZE) % DEFAULT_CHUNK_SIZE] : null;
+  }
+
+  public int reserveAt(int slot) {
+    return reserves[slot];
+  }
+
+  public int displaySizeAt(int slot) {
+    return displaySizes[slot];
   }
 
   public Order removeOrder() {
+    skipCancelled();
     if (count > 0) {
       Order order = orders[head];
       orders[head].initialized = false;
@@ -72,6 +137,7 @@ public class LimitChunk {
   }
 
   public Order peek() {
+    skipCancelled();
     if (count > 0) {
       return orders[head];
     }
@@ -79,10 +145,68 @@ public class LimitChunk {
     return null;
   }
 
+  // Shows the next slice of the head iceberg without moving it
+  public void replenishHead(int slice, int reserve) {
+    if (count > 0) {
+      chunkVolume += slice - orders[head].size;
+      orders[head].size = slice;
+      reserves[head] = reserve;
+    }
+  }
+
+  /**
+   * Pro-rata pass over the chunk: every order gets floor(size * quantity /
+   * levelVolume), which is always less than its size while quantity is below
+   * the level volume, so nothing leaves the chunk. Orders of skipParticipant
+   * (if not 0) are left out. Returns the total allocated.
+   */
+  public int allocateProRata(long quantity, long levelVolume, int skipParticipant, Limit.FillListener listener) {
+    int allocated = 0;
+    int idx = head;
+    for (int i = 0; i < count; i++) {
+      final Order order = orders[idx];
+      if (order.participantId != skipParticipant || skipParticipant == 0) {
+        final int share = (int) (order.size * quantity / levelVolume);
+        if (share > 0) {
+          order.size -= share;
+          allocated += share;
+          listener.onFill(order, share);
+        }
+      }
+      idx = (short) ((idx + 1) % DEFAULT_CHUNK_SIZE);
+    }
+    chunkVolume -= allocated;
+    return allocated;
+  }
+
+  // Live orders from the head, cancelled slots are skipped
+  public void forEachOrder(Limit.OrderVisitor visitor) {
+    int idx = head;
+    for (int i = 0; i < count; i++) {
+      if (orders[idx].initialized) {
+        visitor.visit(orders[idx], reserves[idx], displaySizes[idx]);
+      }
+      idx = (short) ((idx + 1) % DEFAULT_CHUNK_SIZE);
+    }
+  }
+
+  // Hidden size behind the head order, 0 unless it is an iceberg
+  public int peekReserve() {
+    return count > 0 ? reserves[head] : 0;
+  }
+
+  public int peekDisplaySize() {
+    return count > 0 ? displaySizes[head] : 0;
+  }
+
   public boolean isEmpty() {
     return count == 0;
   }
 
+  public boolean isFull() {
+    return count == capacity;
+  }
+
   public void reset() {
     // TODO: Check how this negotiates with the orderbook pruning
     // Clear only the active orders (from head, count times)
@@ -91,6 +215,9 @@ public class LimitChunk {
       orders[idx].initialized = false;
       orders[idx].size = 0;
       orders[idx].id = 0;
+      orders[idx].participantId = 0;
+      reserves[idx] = 0;
+      displaySizes[idx] = 0;
       idx = (short) ((idx + 1) % DEFAULT_CHUNK_SIZE);
     }
     chunkVolume = 0;
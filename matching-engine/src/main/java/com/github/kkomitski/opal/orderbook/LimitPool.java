@@ -22,7 +22,14 @@ public class LimitPool {
   }
 
   public LimitPool(int limitPoolSize, int limitChunkPoolSize, int maxChunksPerLevel) {
-    this(new LimitChunkPool(limitChunkPoolSize), limitPoolSize, maxChunksPerLevel);
+    this(new LimitChunkPool(limitChunkPoolSize), limitPoolSize, maxChunksPerLevel, null);
+  }
+
+  /**
+   * Limits of this pool keep every resting order in orderIndex.
+   */
+  public LimitPool(int limitPoolSize, int limitChunkPoolSize, int maxChunksPerLevel, OrderIndex orderIndex) {
+    this(new LimitChunkPool(limitChunkPoolSize), limitPoolSize, maxChunksPerLevel, orderIndex);
   }
 
   public LimitPool(LimitChunkPool limitChunkPool) {
@@ -34,10 +41,14 @@ public class LimitPool {
   }
 
   public LimitPool(LimitChunkPool limitChunkPool, int poolSize, int maxChunksPerLevel) {
+    this(limitChunkPool, poolSize, maxChunksPerLevel, null);
+  }
+
+  public LimitPool(LimitChunkPool limitChunkPool, int poolSize, int maxChunksPerLevel, OrderIndex orderIndex) {
     this.limitChunkPool = limitChunkPool;
     this.pool = new Limit[poolSize];
     for (int i = 0; i < poolSize; i++) {
-      pool[i] = new Limit(limitChunkPool, maxChunksPerLevel);
+      pool[i] = new Limit(limitChunkPool, maxChunksPerLevel, orderIndex);
     }
   }
 
@@ -1,11 +1,25 @@
 package com.github.kkomitski.opal.orderbook;
 
 public class Order {
+  public static final long NO_TIMER = -1;
+
   // Header
   public boolean initialized;
 
+  // Where the order rests, so it can be removed in O(1) by id. The chunk and
+  // slot are fixed for the lifetime of this (pooled) object
+  public LimitChunk chunk;
+  public int slot;
+  public Limit limit;
+
   // Data
   public int size;
   public int id;
+  public int participantId; // 0 = anonymous
+  public long expiryTimerId = NO_TIMER; // GTD orders only
+
+  // Links of the participant's intrusive list in the OrderIndex
+  public Order participantPrev;
+  public Order participantNext;
   // public boolean isBid;
 }
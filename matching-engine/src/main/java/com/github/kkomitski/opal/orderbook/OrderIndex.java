@@ -0,0 +1,98 @@
+package com.github.kkomitski.opal.orderbook;
+
+import org.agrona.collections.Int2ObjectHashMap;
+
+/*
+Book-wide index of resting orders - by id, and as one intrusive list per
+participant threaded through the orders themselves. Cancels by id are O(1)
+and a participant's orders can be pulled without scanning any level
+*/
+public class OrderIndex {
+  private final Int2ObjectHashMap<Order> byId;
+  private final Int2ObjectHashMap<Order> participantHeads;
+  private ParticipantListener participantListener;
+
+  /**
+   * Told whenever an order of a participant (not 0) joins or leaves the book.
+   * Icebergs showing their next slice and amends that move an order leave and
+   * join again within the same event.
+   */
+  public static interface ParticipantListener {
+    void onRestingChanged(int participantId, int delta);
+  }
+
+  public OrderIndex(int initialCapacity) {
+    this.byId = new Int2ObjectHashMap<>(initialCapacity, 0.65f);
+    this.participantHeads = new Int2ObjectHashMap<>(64, 0.65f);
+  }
+
+  public void setParticipantListener(ParticipantListener participantListener) {
+    this.participantListener = participantListener;
+  }
+
+  public Order get(int id) {
+    return byId.get(id);
+  }
+
+  public int size() {
+    return byId.size();
+  }
+
+  /**
+   * Most recently rested order of the participant, or null if it has none.
+   */
+  public Order firstOf(int participantId) {
+    return participantHeads.get(participantId);
+  }
+
+  void add(Order order) {
+    byId.put(order.id, order);
+    if (order.participantId != 0) {
+      final Order head = participantHeads.get(order.participantId);
+      order.participantPrev = null;
+      order.participantNext = head;
+      if (head != null) {
+        head.participantPrev = order;
+      }
+      participantHeads.put(order.participantId, order);
+      if (participantListener != null) {
+        participantListener.onRestingChanged(order.participantId, 1);
+      }
+    }
+  }
+
+  void remove(Order order) {
+    // Ids are client supplied, only drop the entry if it still points here
+    if (byId.get(order.id) == order) {
+      byId.remove(order.id);
+    }
+    if (order.participantId != 0) {
+      if (order.participantPrev != null) {
+        order.participantPrev.participantNext = order.participantNext;
+      } else if (order.participantNext != null) {
+        participantHeads.put(order.participantId, order.participantNext);
+      } else {
+        participantHeads.remove(order.participantId);
+      }
+      if (order.participantNext != null) {
+        order.participantNext.participantPrev = order.participantPrev;
+      }
+      order.participantPrev = null;
+      order.participantNext = null;
+      if (participantListener != null) {
+        participantListener.onRestingChanged(order.participantId, -1);
+      }
+    }
+  }
+
+  /**
+   * Moves a resting order to a new id, it stays where it is on the book.
+   */
+  public void rekey(Order order, int newId) {
+    if (byId.get(order.id) == order) {
+      byId.remove(order.id);
+    }
+    order.id = newId;
+    byId.put(newId, order);
+  }
+}
@@ -1,35 +1,106 @@
 package com.github.kkomitski.opal.orderbook;
 
-import org.agrona.DirectBuffer;
-
 public class OrderRequest {
   public static enum RejectionReason {
     ORDERBOOK_FULL,
     PRICE_LIMIT_FULL,
     BID_PRICE_TOO_LOW,
     ASK_PRICE_TOO_HIGH,
-    AVG_PRICE_MOVED_TOO_FAR
+    AVG_PRICE_MOVED_TOO_FAR,
+    PRICE_NOT_ON_TICK,
+    UNSUPPORTED_ORDER_TYPE,
+    INSUFFICIENT_LIQUIDITY,
+    STOP_BOOK_FULL,
+    SELF_TRADE_PREVENTED,
+    AUCTION_IN_PROGRESS,
+    POST_ONLY_WOULD_CROSS,
+    MARKET_PROTECTION_REACHED,
+    UNKNOWN_ORDER,
+    USER_CANCELLED,
+    EXPIRED,
+    QUOTE_APPLIED, // Not a rejection, acknowledges a mass quote
+    USER_AMENDED,
+    PRICE_BAND_BREACHED,
+    TRADING_HALTED,
+    MAX_ORDER_SIZE_EXCEEDED, // Pre-trade risk, never reached the book
+    MAX_NOTIONAL_EXCEEDED,
+    OPEN_ORDER_LIMIT_REACHED,
+    POSITION_LIMIT_EXCEEDED,
+    RISK_TABLE_FULL,
+    BOOK_BUSY // The book's ring was full, never reached the book
+  }
+
+  public static enum PostOnly {
+    NONE,
+    REJECT, // Rejected if it would take liquidity
+    REPRICE // Slides to one tick behind the opposite best instead
+  }
+
+  /**
+   * What the ring event asks the book to do. START_AUCTION, UNCROSS and RESUME
+   * are published by the engine itself, never decoded off the wire.
+   */
+  public static enum Type {
+    ORDER,
+    START_AUCTION, // Stop matching, orders accumulate until the uncross
+    UNCROSS, // Execute the auction at its equilibrium price and resume matching
+    MASS_QUOTE, // Replace the participant's quote ladder, the levels ride in the quote arrays
+    AMEND, // Change the price / quantity of the resting order with this id
+    MASS_CANCEL, // Pull every resting order in the mass cancel scope
+    RESUME // Lift a price band halt, continuous matching resumes
   }
 
-  public static final int REQUEST_SIZE = 11;
+  public static enum MassCancelScope {
+    PARTICIPANT, // All of the participant's orders, on every instrument
+    PARTICIPANT_INSTRUMENT, // The participant's orders on this instrument
+    INSTRUMENT_SIDE // Every order on one side of this instrument
+  }
+
+  public static enum TimeInForce {
+    GTC, // Rests until filled or pruned
+    IOC, // Fills what it can, the remainder is dropped
+    FOK, // Fills completely or not at all
+    GTD; // Rests until its expiry time, or the session end if it has none (day)
 
-  private static final int INSTRUMENT_MASK = 32767;
-  private static final int BID_BIT_MASK = 0x8000;
-  private static final int BYTE_MASK = 255;
-  private static final int BYTE_SHIFT = 8;
-  private static final int TWO_BYTE_SHIFT = 16;
-  private static final int THREE_BYTE_SHIFT = 24;
+    // Whether a remainder may rest on the book
+    public boolean canRest() {
+      return this == GTC || this == GTD;
+    }
+  }
 
-  private static final int INSTRUMENT_INDEX_OFFSET = 0;
-  private static final int PRICE_OFFSET = 2;
-  private static final int QUANTITY_OFFSET = 5;
-  private static final int ID_OFFSET = 7;
+  public static final int MAX_QUOTE_LEVELS = 32; // Per side of a mass quote
 
   private int instrumentIndex;
   private boolean bid;
   private int price;
   private int quantity;
   private int id;
+  private Type type = Type.ORDER;
+  private TimeInForce timeInForce = TimeInForce.GTC;
+  private PostOnly postOnly = PostOnly.NONE;
+  // Visible slice of an iceberg order, 0 = fully displayed
+  private int displayQuantity;
+  // Trigger price of a stop order, 0 = not a stop
+  private int stopPrice;
+  // Sender firm/account used for self-trade prevention, 0 = anonymous
+  private int participantId;
+  // GTD expiry in epoch millis, 0 = end of the trading day
+  private long expiryTime;
+  private MassCancelScope massCancelScope;
+  // Set by the pre-trade risk stage - a rejection for the book to report, or
+  // that the order was counted against its account's open orders
+  private RejectionReason riskRejection;
+  private boolean riskAccepted;
+  // Length of the undecoded request waiting in the book's raw slot for this
+  // ring slot, 0 = the fields above are already decoded
+  private int rawLength;
+  // Mass quote levels, allocated the first time a slot carries a quote
+  private int quoteBidCount;
+  private int quoteAskCount;
+  private int[] quoteBidPrices;
+  private int[] quoteBidQuantities;
+  private int[] quoteAskPrices;
+  private int[] quoteAskQuantities;
 
   public OrderRequest() {
   }
@@ -54,45 +125,240 @@ public class OrderRequest {
     return id;
   }
 
+  public Type getType() {
+    return type;
+  }
+
+  public void setType(final Type type) {
+    this.type = type;
+  }
+
+  public TimeInForce getTimeInForce() {
+    return timeInForce;
+  }
+
+  public PostOnly getPostOnly() {
+    return postOnly;
+  }
+
+  public void setPostOnly(final PostOnly postOnly) {
+    this.postOnly = postOnly;
+  }
+
+  public int getDisplayQuantity() {
+    return displayQuantity;
+  }
+
+  public int getStopPrice() {
+    return stopPrice;
+  }
+
+  public boolean isStop() {
+    return stopPrice != 0;
+  }
+
+  public void setStopPrice(final int stopPrice) {
+    this.stopPrice = stopPrice;
+  }
+
+  public long getExpiryTime() {
+    return expiryTime;
+  }
+
+  public void setExpiryTime(final long expiryTime) {
+    this.expiryTime = expiryTime;
+  }
+
+  public MassCancelScope getMassCancelScope() {
+    return massCancelScope;
+  }
+
+  /**
+   * Turns this request into a mass cancel. The side only matters for the
+   * INSTRUMENT_SIDE scope.
+   */
+  public void setMassCancel(final int instrumentIndex, final int requestId, final MassCancelScope scope,
+      final boolean isBid, final int participantId) {
+    set(instrumentIndex, isBid, 0, 0, requestId);
+    this.type = Type.MASS_CANCEL;
+    this.massCancelScope = scope;
+    this.participantId = participantId;
+  }
+
+  public int getParticipantId() {
+    return participantId;
+  }
+
+  public void setParticipantId(final int participantId) {
+    this.participantId = participantId;
+  }
+
+  /**
+   * Why the risk stage turned the order away, null if it passed (or was never
+   * checked).
+   */
+  public RejectionReason getRiskRejection() {
+    return riskRejection;
+  }
+
+  public void setRiskRejection(final RejectionReason riskRejection) {
+    this.riskRejection = riskRejection;
+  }
+
+  /**
+   * Whether the order counts as open for its account until the book has
+   * processed it.
+   */
+  public boolean isRiskAccepted() {
+    return riskAccepted;
+  }
+
+  public void setRiskAccepted(final boolean riskAccepted) {
+    this.riskAccepted = riskAccepted;
+  }
+
+  public int getRawLength() {
+    return rawLength;
+  }
+
+  /**
+   * Marks the ring slot as carrying raw request bytes, see
+   * {@link com.github.kkomitski.opal.OrderBook#publishRaw}.
+   */
+  public void setRawLength(final int rawLength) {
+    this.rawLength = rawLength;
+  }
+
+  public int getQuoteCount(final boolean isBid) {
+    return isBid ? quoteBidCount : quoteAskCount;
+  }
+
+  public int getQuotePrice(final boolean isBid, final int level) {
+    return isBid ? quoteBidPrices[level] : quoteAskPrices[level];
+  }
+
+  public int getQuoteQuantity(final boolean isBid, final int level) {
+    return isBid ? quoteBidQuantities[level] : quoteAskQuantities[level];
+  }
+
+  /**
+   * Turns this request into an empty mass quote, levels are then appended best
+   * first with {@link #addQuote}.
+   */
+  public void setMassQuote(final int instrumentIndex, final int quoteId, final int participantId) {
+    set(instrumentIndex, false, 0, 0, quoteId);
+    this.type = Type.MASS_QUOTE;
+    this.participantId = participantId;
+    if (quoteBidPrices == null) {
+      quoteBidPrices = new int[MAX_QUOTE_LEVELS];
+      quoteBidQuantities = new int[MAX_QUOTE_LEVELS];
+      quoteAskPrices = new int[MAX_QUOTE_LEVELS];
+      quoteAskQuantities = new int[MAX_QUOTE_LEVELS];
+    }
+  }
+
+  /**
+   * Returns false once the side already holds MAX_QUOTE_LEVELS levels.
+   */
+  public boolean addQuote(final boolean isBid, final int price, final int quantity) {
+    if (isBid) {
+      if (quoteBidCount == MAX_QUOTE_LEVELS) {
+        return false;
+      }
+      quoteBidPrices[quoteBidCount] = price;
+      quoteBidQuantities[quoteBidCount++] = quantity;
+    } else {
+      if (quoteAskCount == MAX_QUOTE_LEVELS) {
+        return false;
+      }
+      quoteAskPrices[quoteAskCount] = price;
+      quoteAskQuantities[quoteAskCount++] = quantity;
+    }
+    return true;
+  }
+
+  public boolean isIceberg() {
+    return displayQuantity > 0 && displayQuantity < quantity;
+  }
+
+  /**
+   * Size shown on the book when the order rests, the first slice for icebergs.
+   */
+  public int getDisplayedQuantity() {
+    return isIceberg() ? displayQuantity : quantity;
+  }
+
+  /**
+   * Hidden size behind the displayed quantity, 0 for plain orders.
+   */
+  public int getReserveQuantity() {
+    return quantity - getDisplayedQuantity();
+  }
+
+  /**
+   * Used to rest the remainder of a partially matched order.
+   */
+  public void setQuantity(final int quantity) {
+    this.quantity = quantity;
+  }
+
   public void set(final int instrumentIndex, final boolean isBid, final int price, final int quantity, final int id) {
     this.instrumentIndex = instrumentIndex;
     this.bid = isBid;
     this.price = price;
     this.quantity = quantity;
     this.id = id;
+    this.timeInForce = TimeInForce.GTC;
+    this.displayQuantity = 0;
+    this.stopPrice = 0;
+    this.participantId = 0;
+    this.type = Type.ORDER;
+    this.postOnly = PostOnly.NONE;
+    this.expiryTime = 0;
+    this.quoteBidCount = 0;
+    this.quoteAskCount = 0;
+    this.massCancelScope = null;
+    this.riskRejection = null;
+    this.riskAccepted = false;
+    this.rawLength = 0;
   }
 
-  public void setFromOrder(final Order order, final boolean isBid, final int price, final int instrumentIndex) {
-    set(instrumentIndex, isBid, price, order.size, order.id);
-  }
-
-  public static int decodeInstrumentIndex(final DirectBuffer buffer, final int offset) {
-    final int header = ((buffer.getByte(offset + INSTRUMENT_INDEX_OFFSET) & BYTE_MASK) << BYTE_SHIFT)
-        | (buffer.getByte(offset + INSTRUMENT_INDEX_OFFSET + 1) & BYTE_MASK);
-    return header & INSTRUMENT_MASK;
+  public void set(final int instrumentIndex, final boolean isBid, final int price, final int quantity, final int id,
+      final TimeInForce timeInForce) {
+    set(instrumentIndex, isBid, price, quantity, id);
+    this.timeInForce = timeInForce;
   }
 
-  public static boolean decodeIsBid(final DirectBuffer buffer, final int offset) {
-    final int header = ((buffer.getByte(offset + INSTRUMENT_INDEX_OFFSET) & BYTE_MASK) << BYTE_SHIFT)
-        | (buffer.getByte(offset + INSTRUMENT_INDEX_OFFSET + 1) & BYTE_MASK);
-    return (header & BID_BIT_MASK) != 0;
+  public void set(final int instrumentIndex, final boolean isBid, final int price, final int quantity, final int id,
+      final TimeInForce timeInForce, final int displayQuantity) {
+    set(instrumentIndex, isBid, price, quantity, id, timeInForce);
+    this.displayQuantity = displayQuantity;
   }
 
-  public static int decodePrice(final DirectBuffer buffer, final int offset) {
-    return (buffer.getByte(offset + PRICE_OFFSET) & BYTE_MASK) << TWO_BYTE_SHIFT
-        | (buffer.getByte(offset + PRICE_OFFSET + 1) & BYTE_MASK) << BYTE_SHIFT
-        | (buffer.getByte(offset + PRICE_OFFSET + 2) & BYTE_MASK);
+  public void copyFrom(final OrderRequest other) {
+    set(other.instrumentIndex, other.bid, other.price, other.quantity, other.id, other.timeInForce,
+        other.displayQuantity);
+    this.stopPrice = other.stopPrice;
+    this.participantId = other.participantId;
+    this.type = other.type;
+    this.postOnly = other.postOnly;
+    this.expiryTime = other.expiryTime;
+    this.massCancelScope = other.massCancelScope;
+    this.riskRejection = other.riskRejection;
+    this.riskAccepted = other.riskAccepted;
+    if (other.type == Type.MASS_QUOTE) {
+      setMassQuote(other.instrumentIndex, other.id, other.participantId);
+      for (int i = 0; i < other.quoteBidCount; i++) {
+        addQuote(true, other.quoteBidPrices[i], other.quoteBidQuantities[i]);
+      }
+      for (int i = 0; i < other.quoteAskCount; i++) {
+        addQuote(false, other.quoteAskPrices[i], other.quoteAskQuantities[i]);
+      }
+    }
   }
 
-  public static int decodeQuantity(final DirectBuffer buffer, final int offset) {
-    return (buffer.getByte(offset + QUANTITY_OFFSET) & BYTE_MASK) << BYTE_SHIFT
-        | (buffer.getByte(offset + QUANTITY_OFFSET + 1) & BYTE_MASK);
-  }
-
-  public static int decodeId(final DirectBuffer buffer, final int offset) {
-    return (buffer.getByte(offset + ID_OFFSET) & BYTE_MASK) << THREE_BYTE_SHIFT
-        | (buffer.getByte(offset + ID_OFFSET + 1) & BYTE_MASK) << TWO_BYTE_SHIFT
-        | (buffer.getByte(offset + ID_OFFSET + 2) & BYTE_MASK) << BYTE_SHIFT
-        | (buffer.getByte(offset + ID_OFFSET + 3) & BYTE_MASK);
+  public void setFromOrder(final Order order, final boolean isBid, final int price, final int instrumentIndex) {
+    set(instrumentIndex, isBid, price, order.size, order.id);
+    this.participantId = order.participantId;
   }
 }
\ No newline at end of file
@@ -0,0 +1,129 @@
+package com.github.kkomitski.opal.orderbook;
+
+import org.agrona.DirectBuffer;
+
+import com.github.kkomitski.opal.sbe.AmendOrderDecoder;
+import com.github.kkomitski.opal.sbe.CancelOrderDecoder;
+import com.github.kkomitski.opal.sbe.MassCancelDecoder;
+import com.github.kkomitski.opal.sbe.MassQuoteDecoder;
+import com.github.kkomitski.opal.sbe.MessageHeaderDecoder;
+import com.github.kkomitski.opal.sbe.NewOrderDecoder;
+import com.github.kkomitski.opal.sbe.Side;
+
+/*
+Decodes the SBE framed ingress messages (sbe/src/main/resources/opal-schema.xml)
+into OrderRequests with the schema's generated flyweights. Holds its own
+flyweights so one instance belongs to one thread. The header's block length is
+honoured, so a client on a newer schema version with fields appended still
+decodes.
+*/
+public class RequestDecoder {
+  // Schema enums share their codes with the engine's, enum fields are read
+  // raw so that an unknown code is rejected by the book instead of throwing
+  private static final OrderRequest.TimeInForce[] TIME_IN_FORCE = OrderRequest.TimeInForce.values();
+  private static final OrderRequest.PostOnly[] POST_ONLY = OrderRequest.PostOnly.values();
+  private static final OrderRequest.MassCancelScope[] MASS_CANCEL_SCOPES = OrderRequest.MassCancelScope.values();
+
+  private final MessageHeaderDecoder headerDecoder = new MessageHeaderDecoder();
+  private final NewOrderDecoder newOrderDecoder = new NewOrderDecoder();
+  private final CancelOrderDecoder cancelDecoder = new CancelOrderDecoder();
+  private final AmendOrderDecoder amendDecoder = new AmendOrderDecoder();
+  private final MassCancelDecoder massCancelDecoder = new MassCancelDecoder();
+  private final MassQuoteDecoder massQuoteDecoder = new MassQuoteDecoder();
+
+  /**
+   * Decodes the message at the given offset into the request and returns its
+   * length. Returns -1 when the message runs past the limit or isn't from this
+   * schema, the rest of the fragment can't be framed then. Unknown templates
+   * and invalid enum values leave the request for the book to reject as
+   * unsupported.
+   */
+  public int decode(final DirectBuffer buffer, final int offset, final int limit, final OrderRequest request) {
+    final int length = RequestFrames.length(buffer, offset, limit);
+    if (length < 0) {
+      return -1;
+    }
+    headerDecoder.wrap(buffer, offset);
+    final int templateId = headerDecoder.templateId();
+    final int blockLength = headerDecoder.blockLength();
+    final int version = headerDecoder.version();
+    final int body = offset + MessageHeaderDecoder.ENCODED_LENGTH;
+
+    switch (templateId) {
+      case NewOrderDecoder.TEMPLATE_ID:
+        decodeNewOrder(buffer, body, blockLength, version, request);
+        break;
+      case CancelOrderDecoder.TEMPLATE_ID:
+        cancelDecoder.wrap(buffer, body, blockLength, version);
+        request.set(cancelDecoder.instrumentIndex(), false, 0, 0, cancelDecoder.orderId());
+        break;
+      case AmendOrderDecoder.TEMPLATE_ID:
+        amendDecoder.wrap(buffer, body, blockLength, version);
+        request.set(amendDecoder.instrumentIndex(), false, amendDecoder.price(), amendDecoder.quantity(),
+            amendDecoder.orderId());
+        request.setType(OrderRequest.Type.AMEND);
+        request.setParticipantId(amendDecoder.participantId());
+        break;
+      case MassCancelDecoder.TEMPLATE_ID:
+        decodeMassCancel(buffer, body, blockLength, version, request);
+        break;
+      case MassQuoteDecoder.TEMPLATE_ID:
+        decodeMassQuote(buffer, body, blockLength, version, request);
+        break;
+      default:
+        request.set(0, false, 0, 0, 0, null);
+        break;
+    }
+    return length;
+  }
+
+  private void decodeNewOrder(final DirectBuffer buffer, final int body, final int blockLength, final int version,
+      final OrderRequest request) {
+    newOrderDecoder.wrap(buffer, body, blockLength, version);
+    final int side = newOrderDecoder.sideRaw();
+    final int timeInForce = newOrderDecoder.timeInForceRaw();
+    final int postOnly = newOrderDecoder.postOnlyRaw();
+    final int quantity = newOrderDecoder.quantity();
+    request.set(newOrderDecoder.instrumentIndex(), side == Side.BID.value(), newOrderDecoder.price(),
+        quantity, newOrderDecoder.orderId(),
+        // A zero quantity would read as a cancel
+        quantity > 0 && timeInForce < TIME_IN_FORCE.length && side <= Side.BID.value()
+            ? TIME_IN_FORCE[timeInForce]
+            : null,
+        newOrderDecoder.displayQuantity());
+    request.setPostOnly(postOnly < POST_ONLY.length ? POST_ONLY[postOnly] : null);
+    request.setStopPrice(newOrderDecoder.stopPrice());
+    request.setParticipantId(newOrderDecoder.participantId());
+    request.setExpiryTime(newOrderDecoder.expiryTime());
+  }
+
+  private void decodeMassCancel(final DirectBuffer buffer, final int body, final int blockLength, final int version,
+      final OrderRequest request) {
+    massCancelDecoder.wrap(buffer, body, blockLength, version);
+    final int scope = massCancelDecoder.scopeRaw();
+    if (scope >= MASS_CANCEL_SCOPES.length) {
+      request.set(massCancelDecoder.instrumentIndex(), false, 0, 0, massCancelDecoder.requestId(), null);
+      return;
+    }
+    request.setMassCancel(massCancelDecoder.instrumentIndex(), massCancelDecoder.requestId(),
+        MASS_CANCEL_SCOPES[scope], massCancelDecoder.sideRaw() == Side.BID.value(),
+        massCancelDecoder.participantId());
+  }
+
+  private void decodeMassQuote(final DirectBuffer buffer, final int body, final int blockLength, final int version,
+      final OrderRequest request) {
+    massQuoteDecoder.wrap(buffer, body, blockLength, version);
+    request.setMassQuote(massQuoteDecoder.instrumentIndex(), massQuoteDecoder.quoteId(),
+        massQuoteDecoder.participantId());
+    boolean fits = true;
+    for (final MassQuoteDecoder.BidsDecoder bid : massQuoteDecoder.bids()) {
+      fits &= request.addQuote(true, bid.price(), bid.quantity());
+    }
+    for (final MassQuoteDecoder.AsksDecoder ask : massQuoteDecoder.asks()) {
+      fits &= request.addQuote(false, ask.price(), ask.quantity());
+    }
+    if (!fits) {
+      request.set(request.getInstrumentIndex(), false, 0, 0, request.getId(), null); // More than MAX_QUOTE_LEVELS
+    }
+  }
+}
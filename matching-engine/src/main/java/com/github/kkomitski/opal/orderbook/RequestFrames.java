@@ -0,0 +1,86 @@
+package com.github.kkomitski.opal.orderbook;
+
+import org.agrona.DirectBuffer;
+
+import com.github.kkomitski.opal.sbe.GroupSizeEncodingDecoder;
+import com.github.kkomitski.opal.sbe.MassCancelDecoder;
+import com.github.kkomitski.opal.sbe.MassQuoteDecoder;
+import com.github.kkomitski.opal.sbe.MessageHeaderDecoder;
+
+/*
+Frames and peeks at SBE framed requests (sbe/src/main/resources/opal-schema.xml)
+without decoding them, for code that only routes requests: raw ingress, the
+ingress router and the TCP gateway. Reads the header fields straight from the
+buffer, so it needs no flyweights and is safe from any thread.
+*/
+public final class RequestFrames {
+  // Fewer bytes than this left in a fragment can't hold another request
+  public static final int MIN_LENGTH = MessageHeaderDecoder.ENCODED_LENGTH;
+
+  // Schema enums share their codes with the engine's
+  private static final OrderRequest.MassCancelScope[] MASS_CANCEL_SCOPES = OrderRequest.MassCancelScope.values();
+
+  private RequestFrames() {}
+
+  /**
+   * Length of the request at the given offset, header and groups included, or
+   * -1 if it runs past the limit or isn't from this schema.
+   */
+  public static int length(final DirectBuffer buffer, final int offset, final int limit) {
+    if (offset + MessageHeaderDecoder.ENCODED_LENGTH > limit
+        || readUnsignedShort(buffer, offset + MessageHeaderDecoder.schemaIdEncodingOffset())
+            != MessageHeaderDecoder.SCHEMA_ID) {
+      return -1;
+    }
+    final int blockLength = readUnsignedShort(buffer, offset + MessageHeaderDecoder.blockLengthEncodingOffset());
+    final int length = templateId(buffer, offset) == MassQuoteDecoder.TEMPLATE_ID
+        ? massQuoteLength(buffer, offset + MessageHeaderDecoder.ENCODED_LENGTH, blockLength, limit)
+        : MessageHeaderDecoder.ENCODED_LENGTH + blockLength;
+    return length < 0 || offset + length > limit ? -1 : length;
+  }
+
+  public static int templateId(final DirectBuffer buffer, final int offset) {
+    return readUnsignedShort(buffer, offset + MessageHeaderDecoder.templateIdEncodingOffset());
+  }
+
+  /**
+   * Every ingress message starts its block with the instrument index, so it
+   * can be routed without decoding.
+   */
+  public static int instrumentIndex(final DirectBuffer buffer, final int offset) {
+    return readUnsignedShort(buffer, offset + MessageHeaderDecoder.ENCODED_LENGTH);
+  }
+
+  /**
+   * Scope of the mass cancel at the given offset, null if the request isn't a
+   * mass cancel or its scope isn't a valid one.
+   */
+  public static OrderRequest.MassCancelScope massCancelScope(final DirectBuffer buffer, final int offset) {
+    if (templateId(buffer, offset) != MassCancelDecoder.TEMPLATE_ID) {
+      return null;
+    }
+    final int scope = buffer.getByte(offset + MessageHeaderDecoder.ENCODED_LENGTH
+        + MassCancelDecoder.scopeEncodingOffset()) & 0xFF;
+    return scope < MASS_CANCEL_SCOPES.length ? MASS_CANCEL_SCOPES[scope] : null;
+  }
+
+  private static int readUnsignedShort(final DirectBuffer buffer, final int index) {
+    return buffer.getShort(index, MessageHeaderDecoder.BYTE_ORDER) & 0xFFFF;
+  }
+
+  // Walks the two level groups without decoding them, -1 if they run past the
+  // limit
+  private static int massQuoteLength(final DirectBuffer buffer, final int body, final int blockLength,
+      final int limit) {
+    int position = body + blockLength;
+    for (int group = 0; group < 2; group++) {
+      if (position + GroupSizeEncodingDecoder.ENCODED_LENGTH > limit) {
+        return -1;
+      }
+      final int entryLength = readUnsignedShort(buffer, position);
+      final int count = readUnsignedShort(buffer, position + 2);
+      position += GroupSizeEncodingDecoder.ENCODED_LENGTH + entryLength * count;
+    }
+    return position - body + MessageHeaderDecoder.ENCODED_LENGTH;
+  }
+}
@@ -0,0 +1,314 @@
+package com.github.kkomitski.opal.orderbook;
+
+import org.agrona.collections.Int2IntHashMap;
+
+import it.unimi.dsi.fastutil.ints.IntComparators;
+import it.unimi.dsi.fastutil.ints.IntHeapPriorityQueue;
+
+/*
+Off-book store for the stop orders of one instrument. Orders sit in
+preallocated slots chained into a FIFO per stop tick, and the ticks are kept
+in heaps ordered by how close they are to triggering - so a trade only ever
+touches the stops it actually releases. A cancel that empties a tick leaves it
+queued, marked EMPTY, until it reaches the head of its heap
+*/
+public class StopBook {
+  public static final int DEFAULT_CAPACITY = 4096;
+  private static final int NIL = -1;
+  private static final int EMPTY = -2; // Head of a tick still in its heap whose stops were all cancelled
+  private static final OrderRequest.TimeInForce[] TIME_IN_FORCE = OrderRequest.TimeInForce.values();
+
+  private final int capacity;
+
+  // Slot storage, free slots are chained through next[]
+  private final int[] ids;
+  private final int[] quantities;
+  private final int[] prices; // 0 = stop-market
+  private final int[] displayQuantities;
+  private final byte[] timeInForces;
+  private final boolean[] bids;
+  private final int[] participantIds;
+  private final long[] expiryTimes;
+  private final int[] stopTicks;
+  private final int[] next;
+  private int freeHead;
+  private int size = 0;
+
+  // Buy stops trigger when the last trade rises to their stop, sell stops when
+  // it falls to it, so each heap's head is the next tick to trigger
+  private final IntHeapPriorityQueue buyTicks; // Min-heap
+  private final IntHeapPriorityQueue sellTicks; // Max-heap
+
+  // First and last slot queued at each stop tick
+  private final Int2IntHashMap buyHeads;
+  private final Int2IntHashMap buyTails;
+  private final Int2IntHashMap sellHeads;
+  private final Int2IntHashMap sellTails;
+
+  // Slot of every parked stop by order id
+  private final Int2IntHashMap slots;
+
+  /**
+   * Is shown every parked stop as the plain order it releases.
+   */
+  public static interface StopVisitor {
+    void visit(int stopTick, OrderRequest stop);
+  }
+
+  public StopBook() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public StopBook(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be > 0");
+    }
+    this.capacity = capacity;
+    this.ids = new int[capacity];
+    this.quantities = new int[capacity];
+    this.prices = new int[capacity];
+    this.displayQuantities = new int[capacity];
+    this.timeInForces = new byte[capacity];
+    this.bids = new boolean[capacity];
+    this.participantIds = new int[capacity];
+    this.expiryTimes = new long[capacity];
+    this.stopTicks = new int[capacity];
+    this.next = new int[capacity];
+
+    for (int i = 0; i < capacity - 1; i++) {
+      next[i] = i + 1;
+    }
+    next[capacity - 1] = NIL;
+    freeHead = 0;
+
+    this.buyTicks = new IntHeapPriorityQueue(64);
+    this.sellTicks = new IntHeapPriorityQueue(64, IntComparators.OPPOSITE_COMPARATOR);
+    this.buyHeads = new Int2IntHashMap(64, 0.65f, NIL);
+    this.buyTails = new Int2IntHashMap(64, 0.65f, NIL);
+    this.sellHeads = new Int2IntHashMap(64, 0.65f, NIL);
+    this.sellTails = new Int2IntHashMap(64, 0.65f, NIL);
+    this.slots = new Int2IntHashMap(capacity * 2, 0.65f, NIL);
+  }
+
+  /**
+   * Parks a stop order at the given stop tick. Returns false if the book is
+   * full.
+   */
+  public boolean add(OrderRequest req, int stopTick) {
+    if (freeHead == NIL) {
+      return false;
+    }
+
+    final int slot = freeHead;
+    freeHead = next[slot];
+    next[slot] = NIL;
+
+    ids[slot] = req.getId();
+    quantities[slot] = req.getQuantity();
+    prices[slot] = req.getPrice();
+    displayQuantities[slot] = req.getDisplayQuantity();
+    timeInForces[slot] = (byte) req.getTimeInForce().ordinal();
+    bids[slot] = req.isBid();
+    participantIds[slot] = req.getParticipantId();
+    expiryTimes[slot] = req.getExpiryTime();
+    stopTicks[slot] = stopTick;
+    slots.put(req.getId(), slot);
+
+    final boolean isBid = req.isBid();
+    final Int2IntHashMap heads = isBid ? buyHeads : sellHeads;
+    final Int2IntHashMap tails = isBid ? buyTails : sellTails;
+
+    final int tail = tails.get(stopTick);
+    if (tail == NIL) {
+      if (heads.put(stopTick, slot) == NIL) {
+        (isBid ? buyTicks : sellTicks).enqueue(stopTick);
+      }
+    } else {
+      next[tail] = slot;
+    }
+    tails.put(stopTick, slot);
+    size++;
+    return true;
+  }
+
+  /**
+   * Removes the oldest stop triggered by a trade at the given tick and writes
+   * it into out as a plain order. Returns false once nothing is triggered.
+   */
+  public boolean pollTriggered(int lastTradeTick, int instrumentIndex, OrderRequest out) {
+    dropEmptyTicks(buyTicks, buyHeads);
+    dropEmptyTicks(sellTicks, sellHeads);
+    if (!buyTicks.isEmpty() && buyTicks.firstInt() <= lastTradeTick) {
+      poll(buyTicks, buyHeads, buyTails, instrumentIndex, out);
+      return true;
+    }
+    if (!sellTicks.isEmpty() && sellTicks.firstInt() >= lastTradeTick) {
+      poll(sellTicks, sellHeads, sellTails, instrumentIndex, out);
+      return true;
+    }
+    return false;
+  }
+
+  private void poll(IntHeapPriorityQueue ticks, Int2IntHashMap heads, Int2IntHashMap tails, int instrumentIndex,
+      OrderRequest out) {
+    final int stopTick = ticks.firstInt();
+    final int slot = heads.get(stopTick);
+
+    write(slot, instrumentIndex, out);
+
+    final int following = next[slot];
+    if (following == NIL) {
+      heads.remove(stopTick);
+      tails.remove(stopTick);
+      ticks.dequeueInt();
+    } else {
+      heads.put(stopTick, following);
+    }
+    release(slot);
+  }
+
+  private static void dropEmptyTicks(IntHeapPriorityQueue ticks, Int2IntHashMap heads) {
+    while (!ticks.isEmpty() && heads.get(ticks.firstInt()) == EMPTY) {
+      heads.remove(ticks.dequeueInt());
+    }
+  }
+
+  /**
+   * Cancels the stop with the given id and writes it into out. A participant
+   * id other than 0 only matches that participant's stop. Returns false if
+   * there is no such stop.
+   */
+  public boolean remove(int id, int participantId, int instrumentIndex, OrderRequest out) {
+    final int slot = slots.get(id);
+    if (slot == NIL || (participantId != 0 && participantIds[slot] != participantId)) {
+      return false;
+    }
+    write(slot, instrumentIndex, out);
+
+    final int stopTick = stopTicks[slot];
+    final Int2IntHashMap heads = bids[slot] ? buyHeads : sellHeads;
+    final Int2IntHashMap tails = bids[slot] ? buyTails : sellTails;
+    int previous = NIL;
+    for (int s = heads.get(stopTick); s != slot; s = next[s]) {
+      previous = s;
+    }
+    if (previous == NIL) {
+      if (next[slot] == NIL) {
+        heads.put(stopTick, EMPTY);
+        tails.remove(stopTick);
+      } else {
+        heads.put(stopTick, next[slot]);
+      }
+    } else {
+      next[previous] = next[slot];
+      if (tails.get(stopTick) == slot) {
+        tails.put(stopTick, previous);
+      }
+    }
+    release(slot);
+    return true;
+  }
+
+  /**
+   * Cancels every stop of the participant, showing each to the visitor as it
+   * goes. Returns how many were cancelled.
+   */
+  public int removeParticipant(int participantId, int instrumentIndex, OrderRequest scratch, StopVisitor visitor) {
+    return removeAll(buyHeads, buyTails, participantId, instrumentIndex, scratch, visitor)
+        + removeAll(sellHeads, sellTails, participantId, instrumentIndex, scratch, visitor);
+  }
+
+  /**
+   * Cancels every stop on one side, showing each to the visitor as it goes.
+   * Returns how many were cancelled.
+   */
+  public int removeSide(boolean isBid, int instrumentIndex, OrderRequest scratch, StopVisitor visitor) {
+    return isBid
+        ? removeAll(buyHeads, buyTails, 0, instrumentIndex, scratch, visitor)
+        : removeAll(sellHeads, sellTails, 0, instrumentIndex, scratch, visitor);
+  }
+
+  // Relinks each tick's chain from the stops it keeps, participant 0 keeps none
+  private int removeAll(Int2IntHashMap heads, Int2IntHashMap tails, int participantId, int instrumentIndex,
+      OrderRequest scratch, StopVisitor visitor) {
+    int removed = 0;
+    final Int2IntHashMap.EntryIterator it = heads.entrySet().iterator();
+    while (it.hasNext()) {
+      it.next();
+      final int stopTick = it.getIntKey();
+      int head = NIL;
+      int tail = NIL;
+      int slot = it.getIntValue();
+      while (slot != NIL && slot != EMPTY) {
+        final int following = next[slot];
+        if (participantId == 0 || participantIds[slot] == participantId) {
+          write(slot, instrumentIndex, scratch);
+          visitor.visit(stopTick, scratch);
+          release(slot);
+          removed++;
+        } else {
+          if (tail == NIL) {
+            head = slot;
+          } else {
+            next[tail] = slot;
+          }
+          tail = slot;
+        }
+        slot = following;
+      }
+      if (tail == NIL) {
+        heads.put(stopTick, EMPTY);
+        tails.remove(stopTick);
+      } else {
+        next[tail] = NIL;
+        heads.put(stopTick, head);
+        tails.put(stopTick, tail);
+      }
+    }
+    return removed;
+  }
+
+  private void release(int slot) {
+    if (slots.get(ids[slot]) == slot) {
+      slots.remove(ids[slot]);
+    }
+    next[slot] = freeHead;
+    freeHead = slot;
+    size--;
+  }
+
+  /**
+   * Shows every stop, oldest first within each stop tick. The request passed
+   * to the visitor is reused, add(stop, stopTick) on a fresh book restores it.
+   */
+  public void forEach(int instrumentIndex, OrderRequest scratch, StopVisitor visitor) {
+    forEach(buyHeads, instrumentIndex, scratch, visitor);
+    forEach(sellHeads, instrumentIndex, scratch, visitor);
+  }
+
+  private void forEach(Int2IntHashMap heads, int instrumentIndex, OrderRequest scratch, StopVisitor visitor) {
+    final Int2IntHashMap.EntryIterator it = heads.entrySet().iterator();
+    while (it.hasNext()) {
+      it.next();
+      for (int slot = it.getIntValue(); slot != NIL && slot != EMPTY; slot = next[slot]) {
+        write(slot, instrumentIndex, scratch);
+        visitor.visit(it.getIntKey(), scratch);
+      }
+    }
+  }
+
+  private void write(int slot, int instrumentIndex, OrderRequest out) {
+    out.set(instrumentIndex, bids[slot], prices[slot], quantities[slot], ids[slot],
+        TIME_IN_FORCE[timeInForces[slot]], displayQuantities[slot]);
+    out.setParticipantId(participantIds[slot]);
+    out.setExpiryTime(expiryTimes[slot]);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+}
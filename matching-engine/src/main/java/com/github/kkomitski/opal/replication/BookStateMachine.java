@@ -0,0 +1,245 @@
+package com.github.kkomitski.opal.replication;
+
+import org.agrona.DirectBuffer;
+import org.agrona.ExpandableDirectByteBuffer;
+import org.agrona.MutableDirectBuffer;
+import org.agrona.concurrent.CachedEpochClock;
+
+import com.github.kkomitski.opal.OrderBook;
+import com.github.kkomitski.opal.helpers.LoadOrderBooks;
+import com.github.kkomitski.opal.orderbook.OrderRequest;
+import com.github.kkomitski.opal.orderbook.RequestDecoder;
+import com.github.kkomitski.opal.orderbook.RequestFrames;
+import com.github.kkomitski.opal.risk.RiskCheck;
+import com.github.kkomitski.opal.services.EgressService;
+import com.github.kkomitski.opal.utils.Market;
+
+/*
+Every book of the engine, applied one committed log entry at a time on the
+replica's thread. The books run on the entries' timestamps instead of a clock
+of their own, so every replica applying the same log ends up with the same
+books, matching the same fills and expiring the same orders at the same
+entries. Pre-trade risk checks run on the same thread just before a request's
+book, so every replica rebuilds the same exposures from the log, and they are
+snapshotted with the books.
+
+Only the leader's egress is active. A muted replica keeps what it would have
+reported until the leader's ticks say the leader reported those entries,
+and re-sends what it still holds once it leads. Reports are
+at least once: the marker trails the old leader by up to a tick, so a new
+leader may repeat a few of them.
+*/
+public final class BookStateMachine {
+  private final Market[] markets;
+  private final EgressService[] egressServices;
+  private final CachedEpochClock clock = new CachedEpochClock();
+  private final RequestDecoder decoder = new RequestDecoder();
+  private final OrderRequest request = new OrderRequest();
+  private final RiskCheck riskCheck; // null = requests go straight to the books
+  private OrderBook[] orderBooks;
+
+  // Reports kept while muted, [entry position:8][book:4][length:4][message]
+  private static final int RETAINED_HEADER_LENGTH = 16;
+  private final ExpandableDirectByteBuffer retained = new ExpandableDirectByteBuffer(1 << 16);
+  private int retainedLength;
+  private long reportedPosition; // A leader has reported every entry before it
+  private long entryPosition; // Of the entry being applied
+  private boolean egressActive;
+
+  public BookStateMachine(final Market[] markets, final EgressService[] egressServices) {
+    this(markets, egressServices, null);
+  }
+
+  public BookStateMachine(final Market[] markets, final EgressService[] egressServices,
+      final RiskCheck riskCheck) {
+    if (markets.length != egressServices.length) {
+      throw new IllegalArgumentException("need one egress service per market");
+    }
+    this.markets = markets;
+    this.egressServices = egressServices;
+    this.riskCheck = riskCheck;
+    this.orderBooks = books();
+    this.egressActive = egressServices.length == 0 || egressServices[0].isActive();
+    for (int i = 0; i < egressServices.length; i++) {
+      final int book = i;
+      egressServices[i].setRetainer((buffer, offset, length) -> retain(book, buffer, offset, length));
+    }
+  }
+
+  private OrderBook[] books() {
+    final OrderBook[] books = LoadOrderBooks.unthreaded(markets, i -> egressServices[i], clock);
+    if (riskCheck != null) {
+      for (final OrderBook orderBook : books) {
+        orderBook.attachRiskCheck(riskCheck);
+      }
+    }
+    return books;
+  }
+
+  /**
+   * Going active first re-sends the reports kept while muted, those of the
+   * entries no leader is known to have reported.
+   */
+  public void setEgressActive(final boolean active) {
+    for (final EgressService egressService : egressServices) {
+      egressService.setActive(active);
+    }
+    if (active && !egressActive) {
+      for (int at = 0; at < retainedLength;) {
+        final int length = retained.getInt(at + 12);
+        egressServices[retained.getInt(at + 8)].egress(retained, at + RETAINED_HEADER_LENGTH, length);
+        at += RETAINED_HEADER_LENGTH + length;
+      }
+      retainedLength = 0;
+    }
+    egressActive = active;
+  }
+
+  private void retain(final int book, final DirectBuffer buffer, final int offset, final int length) {
+    retained.putLong(retainedLength, entryPosition);
+    retained.putInt(retainedLength + 8, book);
+    retained.putInt(retainedLength + 12, length);
+    retained.putBytes(retainedLength + RETAINED_HEADER_LENGTH, buffer, offset, length);
+    retainedLength += RETAINED_HEADER_LENGTH + length;
+  }
+
+  // Drops the reports of the entries before position
+  private void onReported(final long position) {
+    int at = 0;
+    while (at < retainedLength && retained.getLong(at) < position) {
+      at += RETAINED_HEADER_LENGTH + retained.getInt(at + 12);
+    }
+    retained.putBytes(0, retained, at, retainedLength - at);
+    retainedLength -= at;
+    reportedPosition = Math.max(reportedPosition, position);
+  }
+
+  /**
+   * Position a leader has reported every entry before, as far as this
+   * replica's log tells.
+   */
+  public long reportedPosition() {
+    return reportedPosition;
+  }
+
+  /**
+   * Bytes of reports kept while muted.
+   */
+  public int retainedLength() {
+    return retainedLength;
+  }
+
+  public OrderBook[] orderBooks() {
+    return orderBooks;
+  }
+
+  /**
+   * Clock time of the last entry applied.
+   */
+  public long time() {
+    return clock.time();
+  }
+
+  /**
+   * Applies the entry starting at the given log position.
+   */
+  public void apply(final long position, final int kind, final long timestamp, final DirectBuffer buffer,
+      final int offset, final int length) {
+    entryPosition = position;
+    clock.update(timestamp);
+    if (kind == ReplicatedLog.KIND_INGRESS) {
+      applyIngress(buffer, offset, length);
+    } else if (kind == ReplicatedLog.KIND_TICK) {
+      for (final OrderBook orderBook : orderBooks) {
+        orderBook.expire();
+      }
+      if (length >= 8) {
+        onReported(buffer.getLong(offset));
+      }
+    }
+  }
+
+  // Framed as IngressService frames the live stream
+  private void applyIngress(final DirectBuffer buffer, final int offset, final int length) {
+    final int end = offset + length;
+    int position = offset;
+    while (position + RequestFrames.MIN_LENGTH <= end) {
+      final int requestLength = RequestFrames.length(buffer, position, end);
+      if (requestLength < 0) {
+        System.err.println("Truncated or unreadable order request at offset " + position);
+        break;
+      }
+
+      decoder.decode(buffer, position, end, request);
+      final int instrumentIndex = request.getInstrumentIndex();
+
+      if (request.getType() == OrderRequest.Type.MASS_CANCEL
+          && request.getMassCancelScope() == OrderRequest.MassCancelScope.PARTICIPANT) {
+        for (final OrderBook orderBook : orderBooks) {
+          orderBook.process(request);
+        }
+      } else if (instrumentIndex >= orderBooks.length) {
+        System.err.println("Invalid instrument index: " + instrumentIndex);
+      } else {
+        if (riskCheck != null) {
+          riskCheck.check(request);
+        }
+        orderBooks[instrumentIndex].process(request);
+      }
+      position += requestLength;
+    }
+  }
+
+  /**
+   * Writes every book at offset, then the risk tables, returns the offset
+   * after them.
+   */
+  public int writeSnapshot(final MutableDirectBuffer buffer, final int offset) {
+    buffer.putInt(offset, orderBooks.length);
+    int position = offset + 4;
+    for (final OrderBook orderBook : orderBooks) {
+      position = orderBook.writeSnapshot(buffer, position);
+    }
+    return riskCheck == null ? position : riskCheck.writeSnapshot(buffer, position);
+  }
+
+  /**
+   * Writes the reports kept while muted at offset, returns the offset after
+   * them. They aren't part of the books, a replica keeps its own.
+   */
+  public int writeRetained(final MutableDirectBuffer buffer, final int offset) {
+    buffer.putLong(offset, reportedPosition);
+    buffer.putInt(offset + 8, retainedLength);
+    buffer.putBytes(offset + 12, retained, 0, retainedLength);
+    return offset + 12 + retainedLength;
+  }
+
+  /**
+   * Replaces the reports kept with the ones written by writeRetained.
+   */
+  public void loadRetained(final DirectBuffer buffer, final int offset) {
+    reportedPosition = buffer.getLong(offset);
+    retainedLength = buffer.getInt(offset + 8);
+    retained.putBytes(0, buffer, offset + 12, retainedLength);
+  }
+
+  /**
+   * Replaces every book and the risk tables with the ones of a snapshot taken
+   * at the given clock time, returns the offset after them.
+   */
+  public int loadSnapshot(final DirectBuffer buffer, final int offset, final long timestamp) {
+    final int bookCount = buffer.getInt(offset);
+    if (bookCount != markets.length) {
+      throw new IllegalStateException("Snapshot holds " + bookCount + " books, the engine has " + markets.length
+          + " markets");
+    }
+    clock.update(timestamp);
+    final OrderBook[] restored = books();
+    int position = offset + 4;
+    for (final OrderBook orderBook : restored) {
+      position = orderBook.restoreSnapshot(buffer, position);
+    }
+    orderBooks = restored;
+    return riskCheck == null ? position : riskCheck.restoreSnapshot(buffer, position);
+  }
+}
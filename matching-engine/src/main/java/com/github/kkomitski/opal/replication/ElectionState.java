@@ -0,0 +1,56 @@
+package com.github.kkomitski.opal.replication;
+
+import java.io.File;
+import java.nio.MappedByteBuffer;
+
+import org.agrona.IoUtil;
+import org.agrona.concurrent.UnsafeBuffer;
+
+/*
+The term a replica is in and who it voted for in that term. Kept in a memory
+mapped file so that a restarted replica can't vote twice in the same term.
+*/
+public final class ElectionState implements AutoCloseable {
+  public static final int NO_VOTE = -1;
+
+  private static final int TERM_OFFSET = 0;
+  private static final int VOTED_FOR_OFFSET = 4;
+  private static final int LENGTH = 8;
+
+  private final MappedByteBuffer mappedBuffer;
+  private final UnsafeBuffer buffer;
+
+  public ElectionState(final File file) {
+    if (file.exists()) {
+      mappedBuffer = IoUtil.mapExistingFile(file, "election state");
+      buffer = new UnsafeBuffer(mappedBuffer);
+    } else {
+      IoUtil.ensureDirectoryExists(file.getParentFile(), "replica directory");
+      mappedBuffer = IoUtil.mapNewFile(file, LENGTH);
+      buffer = new UnsafeBuffer(mappedBuffer);
+      buffer.putInt(VOTED_FOR_OFFSET, NO_VOTE);
+    }
+  }
+
+  public int term() {
+    return buffer.getInt(TERM_OFFSET);
+  }
+
+  public int votedFor() {
+    return buffer.getInt(VOTED_FOR_OFFSET);
+  }
+
+  /**
+   * Durable before it returns, a vote is only sent after it.
+   */
+  public void update(final int term, final int votedFor) {
+    buffer.putInt(VOTED_FOR_OFFSET, votedFor);
+    buffer.putInt(TERM_OFFSET, term);
+    mappedBuffer.force();
+  }
+
+  @Override
+  public void close() {
+    IoUtil.unmap(mappedBuffer);
+  }
+}
@@ -0,0 +1,247 @@
+package com.github.kkomitski.opal.replication;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.agrona.DirectBuffer;
+import org.agrona.IoUtil;
+import org.agrona.collections.LongArrayList;
+import org.agrona.concurrent.UnsafeBuffer;
+
+/*
+The replicated log on disk, so a restarted replica still holds every entry it
+acknowledged and comes back from its snapshot plus its log, never with an
+empty one. Entries are written as the in-memory log holds them to memory
+mapped segment files, log-<start position>.dat, a new one starting at every
+snapshot.
+
+A segment's header holds how many of its bytes are durable. force() flushes
+the bytes appended since the last call, then the header, and nothing past the
+header's length is read back, so a write torn by a crash is simply dropped.
+Truncating moves the header back straight away, before newer entries can
+overwrite the old ones.
+*/
+public final class LogSegments implements AutoCloseable {
+  private static final int DURABLE_LENGTH_OFFSET = 0;
+  private static final int SEGMENT_HEADER_LENGTH = 8;
+  private static final int MIN_CAPACITY = 1 << 20;
+  private static final String PREFIX = "log-";
+  private static final String SUFFIX = ".dat";
+  private static final byte[] UNMAPPED = new byte[0];
+
+  private final File directory;
+  private final LongArrayList starts = new LongArrayList(); // Of every segment on disk, ascending
+  private final UnsafeBuffer buffer = new UnsafeBuffer(UNMAPPED);
+  private FileChannel channel; // Last segment, the one appended to
+  private MappedByteBuffer mappedBuffer;
+  private long start;
+  private int length; // Entry bytes written
+  private int forcedLength; // Entry bytes durable
+
+  public LogSegments(final File directory) {
+    IoUtil.ensureDirectoryExists(directory, "replica directory");
+    this.directory = directory;
+    final File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+    final long[] found = new long[files == null ? 0 : files.length];
+    for (int i = 0; i < found.length; i++) {
+      final String name = files[i].getName();
+      found[i] = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+    Arrays.sort(found);
+    for (final long segmentStart : found) {
+      starts.addLong(segmentStart);
+    }
+  }
+
+  /**
+   * Feeds the durable entries from position on to the log, segment by
+   * segment, and carries on appending after the last one read. Segments that
+   * end before position are only kept until {@link #deleteBefore}, ones past a
+   * gap can't be used and are deleted.
+   */
+  public void recover(final long position, final ReplicatedLog log) {
+    long expected = position;
+    int last = -1;
+    for (int i = 0; i < starts.size(); i++) {
+      final long segmentStart = starts.getLong(i);
+      if (segmentStart > expected) {
+        break; // A gap, nothing from here on follows on from the snapshot
+      }
+      open(segmentStart, false);
+      if (segmentStart + length < expected) {
+        continue;
+      }
+      int entry = SEGMENT_HEADER_LENGTH;
+      final int end = SEGMENT_HEADER_LENGTH + length;
+      while (entry < end && segmentStart + entry - SEGMENT_HEADER_LENGTH < expected) {
+        entry += ReplicatedLog.entryLength(buffer, entry);
+      }
+      if (entry < end) {
+        log.recoverEntries(buffer, entry, end - entry);
+      }
+      expected = segmentStart + length;
+      last = i;
+    }
+
+    while (starts.size() > last + 1) {
+      delete(starts.removeAt(starts.size() - 1));
+    }
+    if (last < 0) {
+      closeSegment();
+      create(position);
+    } else {
+      open(starts.getLong(last), true);
+    }
+  }
+
+  /**
+   * Position after the entries that are durable.
+   */
+  public long durablePosition() {
+    return start + forcedLength;
+  }
+
+  public void append(final DirectBuffer entries, final int offset, final int entriesLength) {
+    ensureCapacity(length + entriesLength);
+    buffer.putBytes(SEGMENT_HEADER_LENGTH + length, entries, offset, entriesLength);
+    length += entriesLength;
+  }
+
+  /**
+   * Drops everything from position on, which must be in the last segment.
+   */
+  public void truncate(final long position) {
+    if (position < start) {
+      throw new IllegalStateException("Can't truncate to " + position + " before the segment at " + start);
+    }
+    length = (int) Math.min(length, position - start);
+    if (forcedLength > length) {
+      forcedLength = length;
+      writeDurableLength();
+    }
+  }
+
+  /**
+   * Makes every entry appended so far durable, returns the position after
+   * them.
+   */
+  public long force() {
+    if (length > forcedLength) {
+      mappedBuffer.force(SEGMENT_HEADER_LENGTH + forcedLength, length - forcedLength);
+      forcedLength = length;
+      writeDurableLength();
+    }
+    return durablePosition();
+  }
+
+  /**
+   * Starts a new segment at position, the snapshot just taken, holding the
+   * entries after it. The previous segment is cut back to end at position,
+   * so the two never overlap.
+   */
+  public void roll(final long position, final DirectBuffer entries, final int offset, final int entriesLength) {
+    if (position <= start) {
+      throw new IllegalStateException("New segment at " + position + " must follow the one at " + start);
+    }
+    truncate(Math.min(position, start + length));
+    force();
+
+    closeSegment();
+    create(position);
+    append(entries, offset, entriesLength);
+    force();
+  }
+
+  /**
+   * Deletes the segments holding nothing from position on, position being a
+   * snapshot that is durable.
+   */
+  public void deleteBefore(final long position) {
+    while (starts.size() > 1 && starts.getLong(1) <= position) {
+      delete(starts.removeAt(0));
+    }
+  }
+
+  private void create(final long segmentStart) {
+    starts.addLong(segmentStart);
+    open(segmentStart, true);
+  }
+
+  // Maps a segment, its durable bytes become the ones written
+  private void open(final long segmentStart, final boolean forAppend) {
+    closeSegment();
+    final File file = file(segmentStart);
+    try {
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+      final long size = Math.max(channel.size(), forAppend ? MIN_CAPACITY : SEGMENT_HEADER_LENGTH);
+      mappedBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to map log segment " + file, e);
+    }
+    buffer.wrap(mappedBuffer);
+    start = segmentStart;
+    length = (int) Math.min(buffer.getLong(DURABLE_LENGTH_OFFSET), buffer.capacity() - SEGMENT_HEADER_LENGTH);
+    forcedLength = length;
+  }
+
+  private void ensureCapacity(final int required) {
+    if (SEGMENT_HEADER_LENGTH + (long) required <= buffer.capacity()) {
+      return;
+    }
+    long capacity = buffer.capacity();
+    while (capacity < SEGMENT_HEADER_LENGTH + (long) required) {
+      capacity *= 2;
+    }
+    if (capacity > Integer.MAX_VALUE) {
+      throw new IllegalStateException("Log segment at " + start + " would outgrow a mapping, snapshot more often");
+    }
+    try {
+      IoUtil.unmap(mappedBuffer);
+      mappedBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to grow log segment " + file(start), e);
+    }
+    buffer.wrap(mappedBuffer);
+  }
+
+  private void writeDurableLength() {
+    buffer.putLong(DURABLE_LENGTH_OFFSET, forcedLength);
+    mappedBuffer.force(DURABLE_LENGTH_OFFSET, SEGMENT_HEADER_LENGTH);
+  }
+
+  private void delete(final long segmentStart) {
+    if (segmentStart == start) {
+      closeSegment();
+    }
+    IoUtil.delete(file(segmentStart), true);
+  }
+
+  private File file(final long segmentStart) {
+    return new File(directory, PREFIX + segmentStart + SUFFIX);
+  }
+
+  private void closeSegment() {
+    if (channel != null) {
+      IoUtil.unmap(mappedBuffer);
+      try {
+        channel.close();
+      } catch (IOException e) {
+        System.err.println("Failed to close log segment " + file(start) + ": " + e.getMessage());
+      }
+      channel = null;
+      mappedBuffer = null;
+      buffer.wrap(UNMAPPED);
+    }
+  }
+
+  @Override
+  public void close() {
+    closeSegment();
+  }
+}
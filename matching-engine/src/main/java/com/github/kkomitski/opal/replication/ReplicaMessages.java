@@ -0,0 +1,50 @@
+package com.github.kkomitski.opal.replication;
+
+/*
+Layouts of the messages replicas exchange, every one starts with its type, the
+sender's term and the sender's member id.
+
+  APPEND          leader -> follower, entries after prevPosition (none for a
+                  heartbeat) and the leader's commit position
+  APPEND_REPLY    follower -> leader, success and the position the follower's
+                  log matches the leader's up to, or on failure the position
+                  to carry on from
+  VOTE_REQUEST    candidate -> all, with the end of its log
+  VOTE_REPLY      all -> candidate
+  SNAPSHOT_CHUNK  leader -> follower, part of the leader's latest snapshot for
+                  a follower behind the leader's log, answered by an
+                  APPEND_REPLY once whole
+*/
+public final class ReplicaMessages {
+  public static final int APPEND = 1;
+  public static final int APPEND_REPLY = 2;
+  public static final int VOTE_REQUEST = 3;
+  public static final int VOTE_REPLY = 4;
+  public static final int SNAPSHOT_CHUNK = 5;
+
+  public static final int TYPE_OFFSET = 0;
+  public static final int TERM_OFFSET = 4;
+  public static final int SENDER_OFFSET = 8;
+
+  public static final int PREV_POSITION_OFFSET = 12;
+  public static final int PREV_TERM_OFFSET = 20;
+  public static final int COMMIT_POSITION_OFFSET = 24;
+  public static final int APPEND_HEADER_LENGTH = 32; // Log entries follow
+
+  public static final int SUCCESS_OFFSET = 12;
+  public static final int POSITION_OFFSET = 16;
+  public static final int APPEND_REPLY_LENGTH = 24;
+
+  public static final int LAST_POSITION_OFFSET = 12;
+  public static final int LAST_TERM_OFFSET = 20;
+  public static final int VOTE_REQUEST_LENGTH = 24;
+
+  public static final int GRANTED_OFFSET = 12;
+  public static final int VOTE_REPLY_LENGTH = 16;
+
+  public static final int CHUNK_OFFSET_OFFSET = 12;
+  public static final int SNAPSHOT_LENGTH_OFFSET = 16;
+  public static final int SNAPSHOT_CHUNK_HEADER_LENGTH = 20; // Snapshot bytes follow
+
+  private ReplicaMessages() {}
+}
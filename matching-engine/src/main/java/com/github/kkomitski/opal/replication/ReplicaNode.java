@@ -0,0 +1,799 @@
+package com.github.kkomitski.opal.replication;
+
+import static com.github.kkomitski.opal.replication.ReplicaMessages.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.agrona.DirectBuffer;
+import org.agrona.ExpandableDirectByteBuffer;
+import org.agrona.MutableDirectBuffer;
+import org.agrona.concurrent.BackoffIdleStrategy;
+import org.agrona.concurrent.EpochClock;
+import org.agrona.concurrent.IdleStrategy;
+import org.agrona.concurrent.SystemEpochClock;
+import org.agrona.concurrent.UnsafeBuffer;
+
+import com.github.kkomitski.opal.aeron.utils.AeronPublisher;
+import com.github.kkomitski.opal.aeron.utils.AeronSubscriber;
+import com.github.kkomitski.opal.aeron.utils.AttachAeronMediaDriver;
+import com.github.kkomitski.opal.risk.RiskCheck;
+import com.github.kkomitski.opal.risk.RiskLimits;
+import com.github.kkomitski.opal.services.EgressService;
+import com.github.kkomitski.opal.utils.IngressChannel;
+import com.github.kkomitski.opal.utils.Market;
+import com.github.kkomitski.opal.utils.MarketsLoader;
+import com.github.kkomitski.opal.utils.OpalConfig;
+
+import io.aeron.ExclusivePublication;
+import io.aeron.FragmentAssembler;
+import io.aeron.Subscription;
+import io.aeron.logbuffer.FragmentHandler;
+import io.aeron.logbuffer.Header;
+
+/*
+One replica of the engine's books (see BookStateMachine), a hot standby for
+the others. The replicas elect a leader among themselves, the only one that
+polls ingress. It appends every ingress fragment to the replicated log, ships
+the log to the followers and applies an entry (matching it and reporting its
+fills) once a majority of replicas hold it. Followers apply the same entries
+once the leader tells them they're committed, so their books stay in step
+with its books. A fill the leader reported is therefore held by a majority:
+when the followers stop hearing from the leader they elect a new one, only a
+replica holding every committed entry can win, and it carries on from the
+same books. A replica makes entries durable (see LogSegments) before it
+acknowledges them, and the leader before it counts itself towards a
+majority, so a restarted replica comes back from its snapshot plus its log
+with every entry it acknowledged and can't win an election with less.
+
+This is Raft (entries matched by term and position, majority commit, votes
+only for replicas at least as up to date) over Aeron UDP between the
+REPLICA_MEMBERS endpoints. Every REPLICA_SNAPSHOT_BYTES of applied log a
+replica snapshots its books to REPLICA_DIR, restarts from the snapshot and
+drops the log before its previous one. A follower too far behind the leader's
+log gets the leader's snapshot instead. Three replicas ride out one failure,
+e.g. three on one host sharing a standalone media driver:
+  -DREPLICA_ID=0, -DREPLICA_ID=1 and -DREPLICA_ID=2 with
+  REPLICA_MEMBERS=localhost:42090,localhost:42091,localhost:42092
+Publishers keep sending to the configured ingress channels, only the leader
+subscribes to them. Requests the failed leader hadn't replicated to a
+majority are lost, their reports aren't: the leader's ticks log how far it
+has reported, followers keep the reports of the entries after that and the
+new leader re-sends them before it reports live (see BookStateMachine).
+*/
+public final class ReplicaNode implements AutoCloseable {
+  private static final int MAX_BATCH_LENGTH = 64 * 1024; // Log or snapshot bytes per message
+  private static final int APPLY_LIMIT = 1024; // Entries applied per duty cycle
+  private static final long TICK_INTERVAL_MS = 16; // Clock entries, as the expiry wheel ticks
+  private static final long MAX_UNCOMMITTED_LENGTH = 64L << 20; // Ingress waits for followers beyond this
+
+  // Snapshot file layout, the books follow, then the reports kept for failover
+  private static final int SNAPSHOT_POSITION_OFFSET = 0;
+  private static final int SNAPSHOT_TERM_OFFSET = 8;
+  private static final int SNAPSHOT_TIMESTAMP_OFFSET = 12;
+  private static final int SNAPSHOT_BOOKS_OFFSET = 20;
+
+  public enum Role { FOLLOWER, CANDIDATE, LEADER }
+
+  private final int memberId;
+  private final int memberCount;
+  private final AttachAeronMediaDriver mediaDriver;
+  private final IngressChannel[] ingressChannels;
+  private final Subscription memberSubscription;
+  private final FragmentHandler memberHandler = new FragmentAssembler(this::onMemberMessage);
+  private final ExclusivePublication[] memberPublications; // null for this replica
+  private final BookStateMachine stateMachine;
+  private final ReplicatedLog log;
+  private final ElectionState election;
+  private final File snapshotFile;
+  private final EpochClock epochClock = SystemEpochClock.INSTANCE;
+  private final long electionTimeoutMs;
+  private final long heartbeatIntervalMs;
+  private final long snapshotIntervalBytes;
+  private final int fragmentLimit;
+  private final UnsafeBuffer messageBuffer = new UnsafeBuffer(new byte[64]);
+  private final UnsafeBuffer tickBuffer = new UnsafeBuffer(new byte[8]);
+  private final FragmentHandler ingressHandler = this::onIngress;
+
+  private Role role = Role.FOLLOWER;
+  private int leaderId = -1;
+  private long commitPosition;
+  private long appliedPosition;
+  private long electionDeadlineMs;
+  private int votes; // Bit per member granting this candidate its vote
+  private AeronSubscriber[] ingressSubscribers; // Leader only
+  private long lastTickMs;
+
+  // Per member, the leader's view of its followers
+  private final long[] nextPositions; // Where the next append starts
+  private final long[] matchPositions; // How far the follower's log is known to match
+  private final long[] heartbeatDeadlines;
+  private final long[] lastHeardMs;
+  private final int[] snapshotOffsets; // How much of the snapshot a follower catching up has been sent
+  private final long[] sortedPositions;
+
+  // Latest snapshot, the log is kept from the one before it
+  private final ExpandableDirectByteBuffer snapshot = new ExpandableDirectByteBuffer(1 << 16);
+  private int snapshotLength; // 0 until there is one
+  private long snapshotPosition;
+  // Snapshot being received from the leader
+  private final ExpandableDirectByteBuffer incomingSnapshot = new ExpandableDirectByteBuffer(1 << 16);
+  private int incomingLength;
+  // Snapshot files are written off the replica thread, which leaves the snapshot alone meanwhile
+  private final ExecutorService snapshotWriter = Executors.newSingleThreadExecutor(runnable -> {
+    final Thread thread = new Thread(runnable, "replica-snapshot-writer");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private Future<Boolean> pendingWrite; // null unless a write is in flight
+  private long pendingWritePosition;
+
+  private volatile boolean running = true;
+
+  public ReplicaNode(final int memberId, final String[] memberEndpoints, final int streamId,
+      final AttachAeronMediaDriver mediaDriver, final BookStateMachine stateMachine,
+      final IngressChannel[] ingressChannels, final File directory, final long electionTimeoutMs,
+      final long snapshotIntervalBytes, final int fragmentLimit) {
+    if (memberId < 0 || memberId >= memberEndpoints.length) {
+      throw new IllegalArgumentException("memberId must index memberEndpoints");
+    }
+    if (memberEndpoints.length > Integer.SIZE) {
+      throw new IllegalArgumentException("at most " + Integer.SIZE + " members");
+    }
+    if (electionTimeoutMs < 10) {
+      throw new IllegalArgumentException("electionTimeoutMs must be at least 10");
+    }
+    this.memberId = memberId;
+    this.memberCount = memberEndpoints.length;
+    this.mediaDriver = mediaDriver;
+    this.ingressChannels = ingressChannels;
+    this.electionTimeoutMs = electionTimeoutMs;
+    this.heartbeatIntervalMs = electionTimeoutMs / 5;
+    this.snapshotIntervalBytes = snapshotIntervalBytes;
+    this.fragmentLimit = fragmentLimit;
+    this.nextPositions = new long[memberCount];
+    this.matchPositions = new long[memberCount];
+    this.heartbeatDeadlines = new long[memberCount];
+    this.lastHeardMs = new long[memberCount];
+    this.snapshotOffsets = new int[memberCount];
+    this.sortedPositions = new long[memberCount];
+
+    this.stateMachine = stateMachine;
+    stateMachine.setEgressActive(false); // Quiet until leading
+
+    this.election = new ElectionState(new File(directory, "election.dat"));
+    this.snapshotFile = new File(directory, "snapshot.dat");
+    this.log = new ReplicatedLog(directory);
+    if (snapshotFile.exists()) {
+      loadSnapshotFile();
+      log.recover(snapshotPosition, snapshot.getInt(SNAPSHOT_TERM_OFFSET),
+          snapshot.getLong(SNAPSHOT_TIMESTAMP_OFFSET));
+    } else {
+      log.recover(0, 0, 0);
+    }
+
+    this.memberSubscription = mediaDriver.aeron().addSubscription(channel(memberEndpoints[memberId]), streamId);
+    this.memberPublications = new ExclusivePublication[memberCount];
+    for (int member = 0; member < memberCount; member++) {
+      if (member != memberId) {
+        memberPublications[member] = mediaDriver.aeron().addExclusivePublication(channel(memberEndpoints[member]),
+            streamId);
+      }
+    }
+    // A follower until the first timeout, however the node is driven
+    this.electionDeadlineMs = epochClock.time() + randomTimeout();
+  }
+
+  public static void main(String[] args) {
+    final String[] members = memberEndpoints(OpalConfig.REPLICA_MEMBERS);
+    final Market[] markets = MarketsLoader.load(OpalConfig.MARKETS_XML_URL);
+    final File directory = new File(OpalConfig.REPLICA_DIR, "node-" + OpalConfig.REPLICA_ID);
+
+    try (AttachAeronMediaDriver mediaDriver = AttachAeronMediaDriver.configured()) {
+      // Every book's egress is exclusive to the replica's thread
+      final EgressService[] egressServices = new EgressService[markets.length];
+      for (int i = 0; i < markets.length; i++) {
+        egressServices[i] = new EgressService(
+            new AeronPublisher(mediaDriver, "ipc", OpalConfig.MATCHER_EGRESS_STREAM_ID, true));
+      }
+      // Checked on the replica's thread as each entry is applied, every replica holds the same exposures
+      final RiskLimits riskLimits = new RiskLimits(OpalConfig.RISK_MAX_ORDER_QTY, OpalConfig.RISK_MAX_NOTIONAL,
+          OpalConfig.RISK_MAX_OPEN_ORDERS, OpalConfig.RISK_MAX_POSITION);
+      final BookStateMachine stateMachine = new BookStateMachine(markets, egressServices,
+          new RiskCheck(markets.length, OpalConfig.RISK_TABLE_CAPACITY, riskLimits));
+      try (ReplicaNode node = new ReplicaNode(OpalConfig.REPLICA_ID, members, OpalConfig.REPLICA_STREAM_ID,
+          mediaDriver, stateMachine, IngressChannel.configured(), directory, OpalConfig.REPLICA_ELECTION_TIMEOUT_MS,
+          OpalConfig.REPLICA_SNAPSHOT_BYTES, OpalConfig.AERON_FRAGMENT_LIMIT)) {
+        System.out.println("Replica " + OpalConfig.REPLICA_ID + " of " + members.length + " (books="
+            + markets.length + ", term " + node.election.term() + ", position " + node.appliedPosition
+            + ", log to " + node.log.endPosition() + ")");
+        node.run(new BackoffIdleStrategy());
+      }
+    }
+  }
+
+  /**
+   * Comma separated host:port UDP endpoints, one per member in member id
+   * order.
+   */
+  public static String[] memberEndpoints(final String spec) {
+    final List<String> endpoints = new ArrayList<>();
+    for (final String entry : spec.split(",")) {
+      if (!entry.isBlank()) {
+        endpoints.add(entry.trim());
+      }
+    }
+    if (endpoints.isEmpty()) {
+      throw new IllegalStateException("REPLICA_MEMBERS must list at least one member");
+    }
+    return endpoints.toArray(new String[0]);
+  }
+
+  private static String channel(final String endpoint) {
+    return endpoint.startsWith("aeron:") ? endpoint : "aeron:udp?endpoint=" + endpoint;
+  }
+
+  public Role role() {
+    return role;
+  }
+
+  public int leaderId() {
+    return leaderId;
+  }
+
+  public int term() {
+    return election.term();
+  }
+
+  public long commitPosition() {
+    return commitPosition;
+  }
+
+  public BookStateMachine stateMachine() {
+    return stateMachine;
+  }
+
+  ReplicatedLog log() {
+    return log;
+  }
+
+  public void run(final IdleStrategy idleStrategy) {
+    while (running) {
+      idleStrategy.idle(doWork(epochClock.time()));
+    }
+  }
+
+  public void stop() {
+    running = false;
+  }
+
+  public int doWork(final long now) {
+    int work = memberSubscription.poll(memberHandler, fragmentLimit);
+    if (role == Role.LEADER) {
+      work += lead(now);
+    } else if (now >= electionDeadlineMs) {
+      startElection(now);
+      work++;
+    }
+    work += applyCommitted();
+    if (pendingWrite != null && pendingWrite.isDone()) {
+      completeSnapshotWrite();
+      work++;
+    }
+    if (pendingWrite == null && appliedPosition > snapshotPosition
+        && appliedPosition - snapshotPosition >= snapshotIntervalBytes) {
+      takeSnapshot();
+      work++;
+    }
+    return work;
+  }
+
+  private int lead(final long now) {
+    if (!hasQuorum(now)) {
+      // Cut off from the majority, which will elect a leader of its own
+      System.out.println("Replica " + memberId + " lost its quorum in term " + election.term());
+      becomeFollower();
+      return 1;
+    }
+
+    int work = 0;
+    if (log.endPosition() - commitPosition <= MAX_UNCOMMITTED_LENGTH) {
+      for (final AeronSubscriber ingressSubscriber : ingressSubscribers) {
+        work += ingressSubscriber.poll(ingressHandler, fragmentLimit);
+      }
+    }
+    if (now - lastTickMs >= TICK_INTERVAL_MS) {
+      // Every entry applied so far is reported, followers drop what they kept of them
+      tickBuffer.putLong(0, appliedPosition);
+      append(ReplicatedLog.KIND_TICK, tickBuffer, 0, tickBuffer.capacity());
+      lastTickMs = now;
+      work++;
+    }
+
+    for (int member = 0; member < memberCount; member++) {
+      if (member == memberId) {
+        continue;
+      }
+      if (nextPositions[member] < log.basePosition()) {
+        work += sendSnapshotChunk(member, now);
+      } else if (nextPositions[member] < log.endPosition() || now >= heartbeatDeadlines[member]) {
+        work += sendAppend(member, now);
+      }
+    }
+    updateCommit();
+    return work;
+  }
+
+  private boolean hasQuorum(final long now) {
+    int heard = 1;
+    for (int member = 0; member < memberCount; member++) {
+      if (member != memberId && now - lastHeardMs[member] < electionTimeoutMs) {
+        heard++;
+      }
+    }
+    return heard > memberCount / 2;
+  }
+
+  private void onIngress(DirectBuffer buffer, int offset, int length, Header header) {
+    append(ReplicatedLog.KIND_INGRESS, buffer, offset, length);
+  }
+
+  private void append(final int kind, final DirectBuffer payload, final int offset, final int length) {
+    final long now = epochClock.time();
+    // The books' clock never goes back, whatever the leader's does
+    log.append(election.term(), Math.max(now, log.lastTimestamp()), kind, payload, offset, length);
+  }
+
+  // Commits the position a majority holds, only once it covers an entry of
+  // this term (entries of earlier terms commit along with it)
+  private void updateCommit() {
+    matchPositions[memberId] = log.force();
+    System.arraycopy(matchPositions, 0, sortedPositions, 0, memberCount);
+    Arrays.sort(sortedPositions);
+    final long majority = sortedPositions[(memberCount - 1) / 2];
+    if (majority > commitPosition && log.termEndingAt(majority) == election.term()) {
+      commitPosition = majority;
+    }
+  }
+
+  private int sendAppend(final int member, final long now) {
+    final long prevPosition = nextPositions[member];
+    // A follower's hint may fall inside an entry, it truncates back from there
+    final int prevTerm = log.termEndingAt(prevPosition);
+    final int entriesLength = prevTerm < 0 ? 0 : log.entriesLength(prevPosition, MAX_BATCH_LENGTH);
+
+    messageBuffer.putInt(TYPE_OFFSET, APPEND);
+    messageBuffer.putInt(TERM_OFFSET, election.term());
+    messageBuffer.putInt(SENDER_OFFSET, memberId);
+    messageBuffer.putLong(PREV_POSITION_OFFSET, prevPosition);
+    messageBuffer.putInt(PREV_TERM_OFFSET, prevTerm);
+    messageBuffer.putLong(COMMIT_POSITION_OFFSET, commitPosition);
+    final ExclusivePublication publication = memberPublications[member];
+    final long result = entriesLength == 0 ? publication.offer(messageBuffer, 0, APPEND_HEADER_LENGTH)
+        : publication.offer(messageBuffer, 0, APPEND_HEADER_LENGTH, log.buffer(), log.offset(prevPosition),
+            entriesLength);
+    if (result < 0) {
+      return 0; // Not connected or back pressured, tried again next cycle
+    }
+    nextPositions[member] = prevPosition + entriesLength;
+    heartbeatDeadlines[member] = now + heartbeatIntervalMs;
+    return 1;
+  }
+
+  private int sendSnapshotChunk(final int member, final long now) {
+    if (snapshotLength == 0) {
+      return 0;
+    }
+    final int chunkOffset = snapshotOffsets[member];
+    final int chunkLength = Math.min(MAX_BATCH_LENGTH, snapshotLength - chunkOffset);
+
+    messageBuffer.putInt(TYPE_OFFSET, SNAPSHOT_CHUNK);
+    messageBuffer.putInt(TERM_OFFSET, election.term());
+    messageBuffer.putInt(SENDER_OFFSET, memberId);
+    messageBuffer.putInt(CHUNK_OFFSET_OFFSET, chunkOffset);
+    messageBuffer.putInt(SNAPSHOT_LENGTH_OFFSET, snapshotLength);
+    if (memberPublications[member].offer(messageBuffer, 0, SNAPSHOT_CHUNK_HEADER_LENGTH, snapshot, chunkOffset,
+        chunkLength) < 0) {
+      return 0;
+    }
+    heartbeatDeadlines[member] = now + heartbeatIntervalMs;
+    snapshotOffsets[member] += chunkLength;
+    if (snapshotOffsets[member] == snapshotLength) {
+      snapshotOffsets[member] = 0;
+      nextPositions[member] = snapshotPosition;
+    }
+    return 1;
+  }
+
+  private void onMemberMessage(DirectBuffer buffer, int offset, int length, Header header) {
+    final int type = buffer.getInt(offset + TYPE_OFFSET);
+    final int term = buffer.getInt(offset + TERM_OFFSET);
+    final int sender = buffer.getInt(offset + SENDER_OFFSET);
+    if (sender < 0 || sender >= memberCount || sender == memberId) {
+      return;
+    }
+    if (term > election.term()) {
+      election.update(term, ElectionState.NO_VOTE);
+      becomeFollower();
+    }
+
+    switch (type) {
+      case APPEND -> onAppend(buffer, offset, length, term, sender);
+      case APPEND_REPLY -> onAppendReply(buffer, offset, term, sender);
+      case VOTE_REQUEST -> onVoteRequest(buffer, offset, term, sender);
+      case VOTE_REPLY -> onVoteReply(buffer, offset, term, sender);
+      case SNAPSHOT_CHUNK -> onSnapshotChunk(buffer, offset, length, term, sender);
+      default -> System.err.println("Unknown replica message type " + type + " from " + sender);
+    }
+  }
+
+  private void onAppend(final DirectBuffer buffer, final int offset, final int length, final int term,
+      final int leader) {
+    if (term < election.term()) {
+      replyAppend(leader, false, log.endPosition()); // Tells a stale leader about the newer term
+      return;
+    }
+    follow(leader);
+
+    final long prevPosition = buffer.getLong(offset + PREV_POSITION_OFFSET);
+    final int prevTerm = buffer.getInt(offset + PREV_TERM_OFFSET);
+    final long leaderCommit = buffer.getLong(offset + COMMIT_POSITION_OFFSET);
+    if (prevPosition > log.endPosition() || prevPosition < log.basePosition()) {
+      replyAppend(leader, false, log.endPosition()); // A gap, carry on from our end
+      return;
+    }
+    if (log.termEndingAt(prevPosition) != prevTerm) {
+      if (prevPosition <= commitPosition) {
+        System.err.println("Replica " + memberId + " disagrees with leader " + leader + " on committed position "
+            + prevPosition);
+        replyAppend(leader, false, log.endPosition());
+        return;
+      }
+      // Our entry there never committed, nor did anything after it
+      log.truncate(Math.max(log.entryStart(prevPosition - 1), commitPosition));
+      replyAppend(leader, false, log.endPosition());
+      return;
+    }
+
+    final int end = offset + length;
+    int entry = offset + APPEND_HEADER_LENGTH;
+    long position = prevPosition;
+    while (entry < end && position < log.endPosition()) {
+      if (log.termStartingAt(position) != buffer.getInt(entry + ReplicatedLog.TERM_OFFSET)) {
+        if (position < commitPosition) {
+          System.err.println("Replica " + memberId + " disagrees with leader " + leader + " on committed position "
+              + position);
+          replyAppend(leader, false, log.endPosition());
+          return;
+        }
+        log.truncate(log.entryStart(position)); // Conflicts from here on
+        break;
+      }
+      final int entryLength = ReplicatedLog.entryLength(buffer, entry);
+      entry += entryLength; // Already held
+      position += entryLength;
+    }
+    if (entry < end) {
+      log.appendEntries(buffer, entry, end - entry);
+      position += end - entry;
+    }
+
+    // Only as far as our log is known to match the leader's
+    commitPosition = Math.max(commitPosition, Math.min(leaderCommit, position));
+    log.force();
+    replyAppend(leader, true, position);
+  }
+
+  private void onAppendReply(final DirectBuffer buffer, final int offset, final int term, final int follower) {
+    if (role != Role.LEADER || term != election.term()) {
+      return;
+    }
+    lastHeardMs[follower] = epochClock.time();
+    final long position = buffer.getLong(offset + POSITION_OFFSET);
+    if (buffer.getInt(offset + SUCCESS_OFFSET) != 0) {
+      matchPositions[follower] = Math.max(matchPositions[follower], position);
+      nextPositions[follower] = Math.max(nextPositions[follower], position);
+    } else {
+      nextPositions[follower] = Math.min(position, log.endPosition());
+      snapshotOffsets[follower] = 0;
+    }
+  }
+
+  private void replyAppend(final int leader, final boolean success, final long position) {
+    messageBuffer.putInt(TYPE_OFFSET, APPEND_REPLY);
+    messageBuffer.putInt(TERM_OFFSET, election.term());
+    messageBuffer.putInt(SENDER_OFFSET, memberId);
+    messageBuffer.putInt(SUCCESS_OFFSET, success ? 1 : 0);
+    messageBuffer.putLong(POSITION_OFFSET, position);
+    memberPublications[leader].offer(messageBuffer, 0, APPEND_REPLY_LENGTH); // The leader retries if lost
+  }
+
+  private void onVoteRequest(final DirectBuffer buffer, final int offset, final int term, final int candidate) {
+    final long lastPosition = buffer.getLong(offset + LAST_POSITION_OFFSET);
+    final int lastTerm = buffer.getInt(offset + LAST_TERM_OFFSET);
+    final boolean upToDate = lastTerm > log.lastTerm()
+        || (lastTerm == log.lastTerm() && lastPosition >= log.endPosition());
+    final int votedFor = election.votedFor();
+    final boolean granted = term == election.term() && role == Role.FOLLOWER && upToDate
+        && (votedFor == ElectionState.NO_VOTE || votedFor == candidate);
+    if (granted) {
+      election.update(term, candidate);
+      electionDeadlineMs = epochClock.time() + randomTimeout();
+    }
+
+    messageBuffer.putInt(TYPE_OFFSET, VOTE_REPLY);
+    messageBuffer.putInt(TERM_OFFSET, election.term());
+    messageBuffer.putInt(SENDER_OFFSET, memberId);
+    messageBuffer.putInt(GRANTED_OFFSET, granted ? 1 : 0);
+    memberPublications[candidate].offer(messageBuffer, 0, VOTE_REPLY_LENGTH);
+  }
+
+  private void onVoteReply(final DirectBuffer buffer, final int offset, final int term, final int voter) {
+    if (role != Role.CANDIDATE || term != election.term() || buffer.getInt(offset + GRANTED_OFFSET) == 0) {
+      return;
+    }
+    votes |= 1 << voter;
+    if (Integer.bitCount(votes) > memberCount / 2) {
+      becomeLeader(epochClock.time());
+    }
+  }
+
+  private void onSnapshotChunk(final DirectBuffer buffer, final int offset, final int length, final int term,
+      final int leader) {
+    if (term < election.term()) {
+      replyAppend(leader, false, log.endPosition());
+      return;
+    }
+    follow(leader);
+
+    final int chunkOffset = buffer.getInt(offset + CHUNK_OFFSET_OFFSET);
+    final int totalLength = buffer.getInt(offset + SNAPSHOT_LENGTH_OFFSET);
+    if (chunkOffset == 0) {
+      incomingLength = 0;
+    }
+    if (chunkOffset != incomingLength) {
+      replyAppend(leader, false, log.endPosition()); // Missed a chunk, the leader starts over
+      return;
+    }
+    final int chunkLength = length - SNAPSHOT_CHUNK_HEADER_LENGTH;
+    incomingSnapshot.putBytes(incomingLength, buffer, offset + SNAPSHOT_CHUNK_HEADER_LENGTH, chunkLength);
+    incomingLength += chunkLength;
+    if (incomingLength < totalLength) {
+      return;
+    }
+
+    final long position = incomingSnapshot.getLong(SNAPSHOT_POSITION_OFFSET);
+    final int received = incomingLength;
+    incomingLength = 0;
+    if (position <= appliedPosition) {
+      replyAppend(leader, false, log.endPosition()); // Overtaken by entries meanwhile
+      return;
+    }
+    if (pendingWrite != null) {
+      completeSnapshotWrite(); // Still reading the snapshot about to be replaced
+    }
+    snapshot.putBytes(0, incomingSnapshot, 0, received);
+    snapshotLength = received;
+    installSnapshot();
+    log.reset(position, snapshot.getInt(SNAPSHOT_TERM_OFFSET), snapshot.getLong(SNAPSHOT_TIMESTAMP_OFFSET));
+    startSnapshotWrite();
+    System.out.println("Replica " + memberId + " installed leader " + leader + "'s snapshot at " + position);
+    replyAppend(leader, true, position);
+  }
+
+  private void follow(final int leader) {
+    if (role != Role.FOLLOWER) {
+      becomeFollower();
+    }
+    if (leaderId != leader) {
+      leaderId = leader;
+      System.out.println("Replica " + memberId + " following " + leader + " in term " + election.term());
+    }
+    electionDeadlineMs = epochClock.time() + randomTimeout();
+  }
+
+  void startElection(final long now) {
+    role = Role.CANDIDATE;
+    leaderId = -1;
+    election.update(election.term() + 1, memberId);
+    votes = 1 << memberId;
+    electionDeadlineMs = now + randomTimeout();
+    if (Integer.bitCount(votes) > memberCount / 2) {
+      becomeLeader(now); // Alone
+      return;
+    }
+
+    messageBuffer.putInt(TYPE_OFFSET, VOTE_REQUEST);
+    messageBuffer.putInt(TERM_OFFSET, election.term());
+    messageBuffer.putInt(SENDER_OFFSET, memberId);
+    messageBuffer.putLong(LAST_POSITION_OFFSET, log.endPosition());
+    messageBuffer.putInt(LAST_TERM_OFFSET, log.lastTerm());
+    for (final ExclusivePublication publication : memberPublications) {
+      if (publication != null) {
+        publication.offer(messageBuffer, 0, VOTE_REQUEST_LENGTH);
+      }
+    }
+  }
+
+  private void becomeLeader(final long now) {
+    role = Role.LEADER;
+    leaderId = memberId;
+    for (int member = 0; member < memberCount; member++) {
+      nextPositions[member] = log.endPosition();
+      matchPositions[member] = 0;
+      heartbeatDeadlines[member] = 0;
+      lastHeardMs[member] = now; // Followers get an election timeout to answer
+      snapshotOffsets[member] = 0;
+    }
+    // Commits everything before it once a majority holds it
+    append(ReplicatedLog.KIND_NO_OP, null, 0, 0);
+    // Only committed entries are applied, so their reports can go out from
+    // here on, after those the followers kept
+    stateMachine.setEgressActive(true);
+
+    ingressSubscribers = new AeronSubscriber[ingressChannels.length];
+    for (int i = 0; i < ingressChannels.length; i++) {
+      final IngressChannel channel = ingressChannels[i];
+      ingressSubscribers[i] = new AeronSubscriber(mediaDriver, channel.transport, channel.streamId, channel.port);
+    }
+    System.out.println("Replica " + memberId + " leading term " + election.term() + " from position "
+        + log.endPosition());
+  }
+
+  private void becomeFollower() {
+    if (role == Role.LEADER) {
+      for (final AeronSubscriber ingressSubscriber : ingressSubscribers) {
+        ingressSubscriber.close();
+      }
+      ingressSubscribers = null;
+      stateMachine.setEgressActive(false);
+    }
+    role = Role.FOLLOWER;
+    leaderId = -1;
+  }
+
+  private int applyCommitted() {
+    int applied = 0;
+    while (appliedPosition < commitPosition && applied < APPLY_LIMIT) {
+      final DirectBuffer buffer = log.buffer();
+      final int entry = log.offset(appliedPosition);
+      final int payloadLength = buffer.getInt(entry + ReplicatedLog.LENGTH_OFFSET);
+      stateMachine.apply(appliedPosition, buffer.getInt(entry + ReplicatedLog.KIND_OFFSET),
+          buffer.getLong(entry + ReplicatedLog.TIMESTAMP_OFFSET), buffer, entry + ReplicatedLog.HEADER_LENGTH,
+          payloadLength);
+      appliedPosition += ReplicatedLog.HEADER_LENGTH + payloadLength;
+      applied++;
+    }
+    return applied;
+  }
+
+  private void takeSnapshot() {
+    snapshot.putLong(SNAPSHOT_POSITION_OFFSET, appliedPosition);
+    snapshot.putInt(SNAPSHOT_TERM_OFFSET, log.termEndingAt(appliedPosition));
+    snapshot.putLong(SNAPSHOT_TIMESTAMP_OFFSET, stateMachine.time());
+    snapshotLength = stateMachine.writeRetained(snapshot, stateMachine.writeSnapshot(snapshot,
+        SNAPSHOT_BOOKS_OFFSET));
+
+    // Followers just behind the new snapshot can still catch up from the log
+    log.compact(snapshotPosition);
+    snapshotPosition = appliedPosition;
+    // On disk the log restarts from the new snapshot
+    log.startSegment(snapshotPosition);
+    startSnapshotWrite();
+    Arrays.fill(snapshotOffsets, 0); // Transfers in flight start over on the new one
+  }
+
+  // Hands the snapshot held to the writer, the log before it goes once it is durable
+  private void startSnapshotWrite() {
+    final ByteBuffer source = snapshot.byteBuffer().duplicate();
+    source.limit(snapshotLength).position(0);
+    pendingWritePosition = snapshotPosition;
+    pendingWrite = snapshotWriter.submit(() -> writeSnapshotFile(source));
+  }
+
+  // Waits for the write in flight
+  private void completeSnapshotWrite() {
+    boolean written;
+    try {
+      written = pendingWrite.get();
+    } catch (ExecutionException e) {
+      System.err.println("Failed to write snapshot " + snapshotFile + ": " + e.getCause());
+      written = false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      written = false;
+    }
+    pendingWrite = null;
+    if (written) {
+      log.deleteSegmentsBefore(pendingWritePosition);
+    }
+  }
+
+  // True once the snapshot is durable, runs on the writer thread
+  private boolean writeSnapshotFile(final ByteBuffer source) {
+    final Path target = snapshotFile.toPath();
+    final Path temp = target.resolveSibling(snapshotFile.getName() + ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING)) {
+        while (source.hasRemaining()) {
+          channel.write(source);
+        }
+        channel.force(true);
+      }
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      // The rename is only durable once the directory is
+      try (FileChannel directory = FileChannel.open(target.getParent(), StandardOpenOption.READ)) {
+        directory.force(true);
+      }
+      return true;
+    } catch (IOException e) {
+      // The snapshot still serves followers, a restart replays from an older one
+      System.err.println("Failed to write snapshot " + target + ": " + e.getMessage());
+      return false;
+    }
+  }
+
+  private void loadSnapshotFile() {
+    final byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(snapshotFile.toPath());
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to read snapshot " + snapshotFile, e);
+    }
+    snapshot.putBytes(0, bytes);
+    snapshotLength = bytes.length;
+    installSnapshot();
+  }
+
+  // Replaces the books with the snapshot held, the caller moves the log on
+  private void installSnapshot() {
+    final MutableDirectBuffer buffer = snapshot;
+    final long position = buffer.getLong(SNAPSHOT_POSITION_OFFSET);
+    stateMachine.loadRetained(buffer, stateMachine.loadSnapshot(buffer, SNAPSHOT_BOOKS_OFFSET,
+        buffer.getLong(SNAPSHOT_TIMESTAMP_OFFSET)));
+    commitPosition = position;
+    appliedPosition = position;
+    snapshotPosition = position;
+  }
+
+  private long randomTimeout() {
+    return electionTimeoutMs + ThreadLocalRandom.current().nextLong(electionTimeoutMs);
+  }
+
+  @Override
+  public void close() {
+    if (ingressSubscribers != null) {
+      for (final AeronSubscriber ingressSubscriber : ingressSubscribers) {
+        ingressSubscriber.close();
+      }
+    }
+    for (final ExclusivePublication publication : memberPublications) {
+      if (publication != null) {
+        publication.close();
+      }
+    }
+    memberSubscription.close();
+    if (pendingWrite != null) {
+      completeSnapshotWrite();
+    }
+    snapshotWriter.shutdown();
+    election.close();
+    log.close();
+  }
+}
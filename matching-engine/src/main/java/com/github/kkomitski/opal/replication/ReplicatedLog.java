@@ -0,0 +1,309 @@
+package com.github.kkomitski.opal.replication;
+
+import java.io.File;
+
+import org.agrona.DirectBuffer;
+import org.agrona.ExpandableDirectByteBuffer;
+import org.agrona.collections.IntArrayList;
+
+/*
+The ingress log as every replica holds it, in memory from its last snapshot on
+and, given a directory, on disk as well (see LogSegments). Positions count
+bytes from the very start of the log, so they can be compared between replicas
+whatever each has already dropped.
+
+An entry is its payload length, the term of the leader that appended it, the
+leader's clock at the time (the books run on it, not on the replica's own
+clock), its kind and the payload. Replicas exchange entries in this layout.
+*/
+public final class ReplicatedLog implements AutoCloseable {
+  public static final int KIND_NO_OP = 0; // A new leader's first entry
+  public static final int KIND_INGRESS = 1; // One ingress fragment, any number of requests
+  public static final int KIND_TICK = 2; // Clock, expires orders, and the position the leader has reported up to
+
+  public static final int LENGTH_OFFSET = 0;
+  public static final int TERM_OFFSET = 4;
+  public static final int TIMESTAMP_OFFSET = 8;
+  public static final int KIND_OFFSET = 16;
+  public static final int HEADER_LENGTH = 20;
+
+  private final ExpandableDirectByteBuffer buffer = new ExpandableDirectByteBuffer(1 << 20);
+  private final IntArrayList entryOffsets = new IntArrayList(); // Where every entry starts in buffer
+  private long basePosition; // Position of the first byte in buffer
+  private int baseTerm; // Of the entry ending at basePosition, 0 at the start of the log
+  private long baseTimestamp;
+  private int length;
+  private final LogSegments segments; // null = memory only
+
+  public ReplicatedLog() {
+    this.segments = null;
+  }
+
+  /**
+   * A log kept in directory too, call {@link #recover} before using it.
+   */
+  public ReplicatedLog(final File directory) {
+    this.segments = new LogSegments(directory);
+  }
+
+  /**
+   * Starts the log after a snapshot taken at position (0 for none) and reads
+   * back the durable entries that follow it.
+   */
+  public void recover(final long position, final int term, final long timestamp) {
+    length = 0;
+    entryOffsets.clear();
+    basePosition = position;
+    baseTerm = term;
+    baseTimestamp = timestamp;
+    if (segments != null) {
+      segments.recover(position, this);
+    }
+  }
+
+  public long basePosition() {
+    return basePosition;
+  }
+
+  public long endPosition() {
+    return basePosition + length;
+  }
+
+  public int lastTerm() {
+    return entryOffsets.isEmpty() ? baseTerm : buffer.getInt(lastEntryOffset() + TERM_OFFSET);
+  }
+
+  public long lastTimestamp() {
+    return entryOffsets.isEmpty() ? baseTimestamp : buffer.getLong(lastEntryOffset() + TIMESTAMP_OFFSET);
+  }
+
+  public DirectBuffer buffer() {
+    return buffer;
+  }
+
+  /**
+   * Offset in {@link #buffer()} of a position held in memory.
+   */
+  public int offset(final long position) {
+    return (int) (position - basePosition);
+  }
+
+  public static int entryLength(final DirectBuffer buffer, final int offset) {
+    return HEADER_LENGTH + buffer.getInt(offset + LENGTH_OFFSET);
+  }
+
+  /**
+   * Appends a new entry, returning the log's end position after it.
+   */
+  public long append(final int term, final long timestamp, final int kind, final DirectBuffer payload,
+      final int payloadOffset, final int payloadLength) {
+    final int offset = length;
+    buffer.putInt(offset + LENGTH_OFFSET, payloadLength);
+    buffer.putInt(offset + TERM_OFFSET, term);
+    buffer.putLong(offset + TIMESTAMP_OFFSET, timestamp);
+    buffer.putInt(offset + KIND_OFFSET, kind);
+    if (payloadLength > 0) {
+      buffer.putBytes(offset + HEADER_LENGTH, payload, payloadOffset, payloadLength);
+    }
+    entryOffsets.addInt(offset);
+    length += HEADER_LENGTH + payloadLength;
+    if (segments != null) {
+      segments.append(buffer, offset, HEADER_LENGTH + payloadLength);
+    }
+    return endPosition();
+  }
+
+  /**
+   * Appends whole entries copied from another replica's log.
+   */
+  public void appendEntries(final DirectBuffer entries, final int offset, final int entriesLength) {
+    if (segments != null) {
+      segments.append(entries, offset, entriesLength);
+    }
+    recoverEntries(entries, offset, entriesLength);
+  }
+
+  // Whole entries into memory only
+  void recoverEntries(final DirectBuffer entries, final int offset, final int entriesLength) {
+    buffer.putBytes(length, entries, offset, entriesLength);
+    final int end = length + entriesLength;
+    for (int entry = length; entry < end; entry += entryLength(buffer, entry)) {
+      entryOffsets.addInt(entry);
+    }
+    length = end;
+  }
+
+  /**
+   * Term of the entry starting at position, -1 if none does.
+   */
+  public int termStartingAt(final long position) {
+    final int index = entryIndex(position);
+    return index < 0 ? -1 : buffer.getInt(entryOffsets.getInt(index) + TERM_OFFSET);
+  }
+
+  /**
+   * Term of the entry ending at position, the base term at the base position,
+   * or -1 if no entry held ends there.
+   */
+  public int termEndingAt(final long position) {
+    if (position == basePosition) {
+      return baseTerm;
+    }
+    if (position == endPosition()) {
+      return lastTerm();
+    }
+    final int index = entryIndex(position);
+    return index <= 0 ? -1 : buffer.getInt(entryOffsets.getInt(index - 1) + TERM_OFFSET);
+  }
+
+  /**
+   * Start of the entry holding position, which must be within the log.
+   */
+  public long entryStart(final long position) {
+    final int offset = offset(position);
+    int low = 0;
+    int high = entryOffsets.size() - 1;
+    while (low < high) {
+      final int mid = (low + high + 1) >>> 1;
+      if (entryOffsets.getInt(mid) <= offset) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return basePosition + entryOffsets.getInt(low);
+  }
+
+  /**
+   * Entries from position on, whole ones up to maxLength bytes but at least
+   * one. Position must be the start of an entry, or the end of the log.
+   */
+  public int entriesLength(final long position, final int maxLength) {
+    final int start = offset(position);
+    int end = start;
+    while (end < length) {
+      final int next = end + entryLength(buffer, end);
+      if (next - start > maxLength && end > start) {
+        break;
+      }
+      end = next;
+    }
+    return end - start;
+  }
+
+  /**
+   * Drops every entry from position on, position being the start of one.
+   */
+  public void truncate(final long position) {
+    length = offset(position);
+    while (!entryOffsets.isEmpty() && lastEntryOffset() >= length) {
+      entryOffsets.removeAt(entryOffsets.size() - 1);
+    }
+    if (segments != null) {
+      segments.truncate(position);
+    }
+  }
+
+  /**
+   * Makes every entry appended so far durable, a replica only acknowledges
+   * entries up to the position returned.
+   */
+  public long force() {
+    return segments == null ? endPosition() : segments.force();
+  }
+
+  /**
+   * Starts a new segment on disk at position, a snapshot just taken, so the
+   * ones before it can go once the snapshot is durable.
+   */
+  public void startSegment(final long position) {
+    if (segments != null) {
+      segments.roll(position, buffer, offset(position), (int) (endPosition() - position));
+    }
+  }
+
+  /**
+   * Deletes the segments a durable snapshot at position covers.
+   */
+  public void deleteSegmentsBefore(final long position) {
+    if (segments != null) {
+      segments.deleteBefore(position);
+    }
+  }
+
+  /**
+   * Drops the entries before position, the end of an entry a snapshot covers,
+   * from memory. Segments on disk go with {@link #deleteSegmentsBefore}.
+   */
+  public void compact(final long position) {
+    final int shift = offset(position);
+    if (shift <= 0) {
+      return;
+    }
+    final int ending = entryOffsets.getInt(position == endPosition() ? entryOffsets.size() - 1
+        : entryIndex(position) - 1);
+    final int term = buffer.getInt(ending + TERM_OFFSET);
+    final long timestamp = buffer.getLong(ending + TIMESTAMP_OFFSET);
+
+    buffer.putBytes(0, buffer, shift, length - shift);
+    int kept = 0;
+    for (int i = 0; i < entryOffsets.size(); i++) {
+      final int offset = entryOffsets.getInt(i);
+      if (offset >= shift) {
+        entryOffsets.setInt(kept++, offset - shift);
+      }
+    }
+    while (entryOffsets.size() > kept) {
+      entryOffsets.removeAt(entryOffsets.size() - 1);
+    }
+    length -= shift;
+    basePosition = position;
+    baseTerm = term;
+    baseTimestamp = timestamp;
+  }
+
+  /**
+   * Empties the log, which carries on after a snapshot taken at position, in
+   * a new segment on disk.
+   */
+  public void reset(final long position, final int term, final long timestamp) {
+    length = 0;
+    entryOffsets.clear();
+    basePosition = position;
+    baseTerm = term;
+    baseTimestamp = timestamp;
+    if (segments != null) {
+      segments.roll(position, buffer, 0, 0);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (segments != null) {
+      segments.close();
+    }
+  }
+
+  private int lastEntryOffset() {
+    return entryOffsets.getInt(entryOffsets.size() - 1);
+  }
+
+  // Index of the entry starting at position, -1 if none does
+  private int entryIndex(final long position) {
+    final long offset = position - basePosition;
+    int low = 0;
+    int high = entryOffsets.size() - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final int midOffset = entryOffsets.getInt(mid);
+      if (midOffset < offset) {
+        low = mid + 1;
+      } else if (midOffset > offset) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,175 @@
+package com.github.kkomitski.opal.risk;
+
+import org.agrona.BitUtil;
+import org.agrona.BufferUtil;
+import org.agrona.DirectBuffer;
+import org.agrona.MutableDirectBuffer;
+import org.agrona.collections.Hashing;
+import org.agrona.concurrent.UnsafeBuffer;
+
+/*
+Open-addressing table of per account x instrument exposure, one 32 byte slot
+per key in a single off-heap buffer. Slots are only ever added, by the risk
+stage, and each column has a single writer - the risk stage counts submitted
+orders, the instrument's book thread owns the position and the closed count -
+so nothing is locked and a lookup is one hash and a short linear probe
+*/
+public class ExposureTable {
+  private static final int SLOT_SIZE = 32;
+  private static final int KEY_OFFSET = 0;
+  private static final int POSITION_OFFSET = 8;
+  private static final int SUBMITTED_OFFSET = 16; // Orders accepted by the risk stage
+  private static final int CLOSED_OFFSET = 20; // Of those, no longer open on the book
+  private static final int ENTRY_SIZE = 24; // Key and columns, as snapshotted
+  private static final long EMPTY = 0; // Account 0 is anonymous and never tracked
+
+  private final UnsafeBuffer slots;
+  private final int mask;
+  private final int maxEntries;
+  private int size = 0;
+
+  /**
+   * The table holds up to half of capacity (rounded up to a power of two)
+   * keys, it never resizes.
+   */
+  public ExposureTable(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be > 0");
+    }
+    final int slotCount = BitUtil.findNextPositivePowerOfTwo(capacity);
+    this.mask = slotCount - 1;
+    this.maxEntries = Math.max(1, slotCount / 2);
+    this.slots = new UnsafeBuffer(BufferUtil.allocateDirectAligned(slotCount * SLOT_SIZE, BitUtil.CACHE_LINE_LENGTH));
+  }
+
+  private static long key(int account, int instrument) {
+    return ((long) account << 32) | (instrument & 0xFFFF_FFFFL);
+  }
+
+  /**
+   * Slot of the key, or -1 if it has none yet.
+   */
+  public int find(int account, int instrument) {
+    if (account == 0) {
+      return -1;
+    }
+    final long key = key(account, instrument);
+    int slot = Hashing.hash(key, mask);
+    while (true) {
+      final long existing = slots.getLongVolatile(slot * SLOT_SIZE + KEY_OFFSET);
+      if (existing == key) {
+        return slot;
+      }
+      if (existing == EMPTY) {
+        return -1;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * Slot of the key, adding it if needed. Returns -1 for anonymous accounts or
+   * once the table is full. Risk stage thread only.
+   */
+  public int findOrInsert(int account, int instrument) {
+    if (account == 0) {
+      return -1;
+    }
+    final long key = key(account, instrument);
+    int slot = Hashing.hash(key, mask);
+    while (true) {
+      final long existing = slots.getLong(slot * SLOT_SIZE + KEY_OFFSET);
+      if (existing == key) {
+        return slot;
+      }
+      if (existing == EMPTY) {
+        if (size == maxEntries) {
+          return -1;
+        }
+        size++;
+        // Columns start zeroed, publishing the key makes the slot visible
+        slots.putLongRelease(slot * SLOT_SIZE + KEY_OFFSET, key);
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Writes every key with its columns at offset, returns the offset after
+   * them. Only while nothing writes to the table.
+   */
+  public int writeSnapshot(MutableDirectBuffer buffer, int offset) {
+    buffer.putInt(offset, size);
+    int position = offset + 4;
+    for (int slot = 0; slot <= mask; slot++) {
+      if (slots.getLong(slot * SLOT_SIZE + KEY_OFFSET) != EMPTY) {
+        buffer.putBytes(position, slots, slot * SLOT_SIZE, ENTRY_SIZE);
+        position += ENTRY_SIZE;
+      }
+    }
+    return position;
+  }
+
+  /**
+   * Replaces every entry with the ones written by writeSnapshot, returns the
+   * offset after them. Only while nothing reads or writes the table.
+   */
+  public int restoreSnapshot(DirectBuffer buffer, int offset) {
+    final int count = buffer.getInt(offset);
+    if (count > maxEntries) {
+      throw new IllegalStateException("Snapshot holds " + count + " exposures, the table takes " + maxEntries);
+    }
+    slots.setMemory(0, slots.capacity(), (byte) 0);
+    size = count;
+    int position = offset + 4;
+    for (int i = 0; i < count; i++) {
+      int slot = Hashing.hash(buffer.getLong(position + KEY_OFFSET), mask);
+      while (slots.getLong(slot * SLOT_SIZE + KEY_OFFSET) != EMPTY) {
+        slot = (slot + 1) & mask;
+      }
+      slots.putBytes(slot * SLOT_SIZE, buffer, position, ENTRY_SIZE);
+      position += ENTRY_SIZE;
+    }
+    return position;
+  }
+
+  /**
+   * Net filled quantity, positive long and negative short.
+   */
+  public long position(int slot) {
+    return slots.getLongVolatile(slot * SLOT_SIZE + POSITION_OFFSET);
+  }
+
+  /**
+   * Orders accepted and not yet filled, cancelled or rejected, plus any the
+   * book rested for the account without a check (quotes).
+   */
+  public int openOrders(int slot) {
+    return slots.getInt(slot * SLOT_SIZE + SUBMITTED_OFFSET)
+        - slots.getIntVolatile(slot * SLOT_SIZE + CLOSED_OFFSET);
+  }
+
+  // Risk stage thread only
+  void addSubmitted(int slot) {
+    slots.addIntRelease(slot * SLOT_SIZE + SUBMITTED_OFFSET, 1);
+  }
+
+  void removeSubmitted(int slot) {
+    slots.addIntRelease(slot * SLOT_SIZE + SUBMITTED_OFFSET, -1);
+  }
+
+  // Owning book thread only
+  void addPosition(int slot, long delta) {
+    slots.addLongRelease(slot * SLOT_SIZE + POSITION_OFFSET, delta);
+  }
+
+  // Owning book thread only
+  void addClosed(int slot, int delta) {
+    slots.addIntRelease(slot * SLOT_SIZE + CLOSED_OFFSET, delta);
+  }
+}
@@ -0,0 +1,258 @@
+package com.github.kkomitski.opal.risk;
+
+import org.agrona.DirectBuffer;
+import org.agrona.MutableDirectBuffer;
+import org.agrona.collections.Int2ObjectHashMap;
+import org.agrona.concurrent.UnsafeBuffer;
+
+import com.github.kkomitski.opal.orderbook.OrderRequest;
+
+/*
+Pre-trade risk stage, run on the ingress thread between decoding a request and
+publishing it to its book. New orders are checked against their account's
+limits - order size and notional on every order, open orders and net position
+for orders that carry a participant id. Mass quotes are checked leg by leg.
+Amends are checked by the book (checkAmend), only it knows the order being
+amended. The books feed fills and open order changes back into the exposure
+table from their own threads, each one only touching the entries of its
+instrument.
+
+A check is a table probe and a handful of compares, nothing allocates
+*/
+public class RiskCheck {
+  private static final int PRICE_SIZE = 4;
+
+  private final ExposureTable exposures;
+  private final RiskLimits defaultLimits;
+  private final Int2ObjectHashMap<RiskLimits> accountLimits = new Int2ObjectHashMap<>();
+
+  // Last fill price per instrument, market orders are valued at it
+  private final UnsafeBuffer lastPrices;
+  private final int instrumentCount;
+
+  public RiskCheck(int instrumentCount, int tableCapacity, RiskLimits defaultLimits) {
+    if (defaultLimits == null) {
+      throw new IllegalArgumentException("defaultLimits must not be null");
+    }
+    this.instrumentCount = instrumentCount;
+    this.exposures = new ExposureTable(tableCapacity);
+    this.defaultLimits = defaultLimits;
+    this.lastPrices = new UnsafeBuffer(new byte[Math.max(1, instrumentCount) * PRICE_SIZE]);
+  }
+
+  /**
+   * Overrides the default limits of one account. Set up before orders flow,
+   * the map is read without locking.
+   */
+  public void setLimits(int account, RiskLimits limits) {
+    accountLimits.put(account, limits);
+  }
+
+  private RiskLimits limitsOf(int account) {
+    final RiskLimits limits = account == 0 ? null : accountLimits.get(account);
+    return limits == null ? defaultLimits : limits;
+  }
+
+  /**
+   * Checks a decoded request in place. A failed order is marked with the
+   * reason for its book to reject it, a passing order with a participant id
+   * is counted as open until its book has processed it. Cancels, amends and
+   * mass cancels pass through.
+   */
+  public void check(OrderRequest request) {
+    final int account = request.getParticipantId();
+    final int instrument = request.getInstrumentIndex();
+    // Registering every tagged request lets the book attribute fills of
+    // unchecked orders (quotes, amends) as well
+    final int slot = exposures.findOrInsert(account, instrument);
+
+    final int price = request.getPrice();
+    final int quantity = request.getQuantity();
+    if (request.getType() == OrderRequest.Type.MASS_QUOTE) {
+      checkQuotes(request, account, slot);
+      return;
+    }
+    if (request.getType() != OrderRequest.Type.ORDER || (price == 0 && quantity == 0)) {
+      return;
+    }
+
+    final RiskLimits limits = limitsOf(account);
+    if (quantity > limits.maxOrderQuantity) {
+      request.setRiskRejection(OrderRequest.RejectionReason.MAX_ORDER_SIZE_EXCEEDED);
+      return;
+    }
+
+    final int valuedAt = price != 0 ? price : lastPrice(instrument);
+    if ((long) valuedAt * quantity > limits.maxNotional) {
+      request.setRiskRejection(OrderRequest.RejectionReason.MAX_NOTIONAL_EXCEEDED);
+      return;
+    }
+
+    if (account == 0) {
+      return;
+    }
+    if (slot < 0) {
+      request.setRiskRejection(OrderRequest.RejectionReason.RISK_TABLE_FULL);
+      return;
+    }
+
+    if (exposures.openOrders(slot) >= limits.maxOpenOrders) {
+      request.setRiskRejection(OrderRequest.RejectionReason.OPEN_ORDER_LIMIT_REACHED);
+      return;
+    }
+
+    // Assumes the order fills completely
+    final long position = exposures.position(slot) + (request.isBid() ? quantity : -quantity);
+    if (Math.abs(position) > limits.maxPosition) {
+      request.setRiskRejection(OrderRequest.RejectionReason.POSITION_LIMIT_EXCEEDED);
+      return;
+    }
+
+    exposures.addSubmitted(slot);
+    request.setRiskAccepted(true);
+  }
+
+  // Every leg is held to the order limits, and the position limit has to hold
+  // should either side of the ladder fill completely. The ladder replaces the
+  // account's previous one, so its legs are counted against the open order
+  // limit on their own
+  private void checkQuotes(OrderRequest request, int account, int slot) {
+    final RiskLimits limits = limitsOf(account);
+    long bought = 0;
+    long sold = 0;
+    for (int side = 0; side < 2; side++) {
+      final boolean isBid = side == 0;
+      for (int level = 0; level < request.getQuoteCount(isBid); level++) {
+        final int quantity = request.getQuoteQuantity(isBid, level);
+        if (quantity > limits.maxOrderQuantity) {
+          request.setRiskRejection(OrderRequest.RejectionReason.MAX_ORDER_SIZE_EXCEEDED);
+          return;
+        }
+        if ((long) request.getQuotePrice(isBid, level) * quantity > limits.maxNotional) {
+          request.setRiskRejection(OrderRequest.RejectionReason.MAX_NOTIONAL_EXCEEDED);
+          return;
+        }
+        if (isBid) {
+          bought += quantity;
+        } else {
+          sold += quantity;
+        }
+      }
+    }
+
+    if (account == 0) {
+      return;
+    }
+    if (slot < 0) {
+      request.setRiskRejection(OrderRequest.RejectionReason.RISK_TABLE_FULL);
+      return;
+    }
+    if (request.getQuoteCount(true) + request.getQuoteCount(false) > limits.maxOpenOrders) {
+      request.setRiskRejection(OrderRequest.RejectionReason.OPEN_ORDER_LIMIT_REACHED);
+      return;
+    }
+    final long position = exposures.position(slot);
+    if (Math.abs(position + bought) > limits.maxPosition || Math.abs(position - sold) > limits.maxPosition) {
+      request.setRiskRejection(OrderRequest.RejectionReason.POSITION_LIMIT_EXCEEDED);
+    }
+  }
+
+  /**
+   * An order the check accepted never reached its book (see
+   * IngressService.FlowControl.REJECT), it no longer counts as open.
+   */
+  public void onDropped(OrderRequest request) {
+    if (!request.isRiskAccepted()) {
+      return;
+    }
+    final int slot = exposures.find(request.getParticipantId(), request.getInstrumentIndex());
+    if (slot >= 0) {
+      exposures.removeSubmitted(slot);
+    }
+  }
+
+  // --- Book side, called from the thread of the instrument's book ---
+
+  /**
+   * Checks an amend of a resting order that grows its size or notional, with
+   * the order's side and its new quantity and price. The amended order is held
+   * to the same limits as a new one, the position limit assuming it fills
+   * completely. Returns why it fails, or null. It stays one open order.
+   */
+  public OrderRequest.RejectionReason checkAmend(int instrument, int account, boolean isBid, int quantity,
+      int price) {
+    final RiskLimits limits = limitsOf(account);
+    if (quantity > limits.maxOrderQuantity) {
+      return OrderRequest.RejectionReason.MAX_ORDER_SIZE_EXCEEDED;
+    }
+    if ((long) price * quantity > limits.maxNotional) {
+      return OrderRequest.RejectionReason.MAX_NOTIONAL_EXCEEDED;
+    }
+    final int slot = exposures.find(account, instrument);
+    if (slot >= 0 && Math.abs(exposures.position(slot) + (isBid ? quantity : -quantity)) > limits.maxPosition) {
+      return OrderRequest.RejectionReason.POSITION_LIMIT_EXCEEDED;
+    }
+    return null;
+  }
+
+  /**
+   * A fill of the account's order, quantity is signed (positive when it
+   * bought).
+   */
+  public void onFill(int instrument, int account, int signedQuantity, int price) {
+    if (instrument < instrumentCount) {
+      lastPrices.putIntRelease(instrument * PRICE_SIZE, price);
+    }
+    final int slot = exposures.find(account, instrument);
+    if (slot >= 0) {
+      exposures.addPosition(slot, signedQuantity);
+    }
+  }
+
+  /**
+   * The book finished processing an order the check accepted, whatever
+   * rested of it is counted by {@link #onRestingChanged}.
+   */
+  public void onProcessed(int instrument, int account) {
+    final int slot = exposures.find(account, instrument);
+    if (slot >= 0) {
+      exposures.addClosed(slot, 1);
+    }
+  }
+
+  /**
+   * An order of the account joined (+1) or left (-1) the book.
+   */
+  public void onRestingChanged(int instrument, int account, int delta) {
+    final int slot = exposures.find(account, instrument);
+    if (slot >= 0) {
+      exposures.addClosed(slot, -delta);
+    }
+  }
+
+  /**
+   * Writes the last prices and the exposure table at offset, returns the
+   * offset after them. The limits are configuration and aren't written.
+   */
+  public int writeSnapshot(MutableDirectBuffer buffer, int offset) {
+    buffer.putBytes(offset, lastPrices, 0, lastPrices.capacity());
+    return exposures.writeSnapshot(buffer, offset + lastPrices.capacity());
+  }
+
+  /**
+   * Replaces the last prices and the exposure table with the ones written by
+   * writeSnapshot, returns the offset after them.
+   */
+  public int restoreSnapshot(DirectBuffer buffer, int offset) {
+    lastPrices.putBytes(0, buffer, offset, lastPrices.capacity());
+    return exposures.restoreSnapshot(buffer, offset + lastPrices.capacity());
+  }
+
+  public int lastPrice(int instrument) {
+    return instrument < instrumentCount ? lastPrices.getIntVolatile(instrument * PRICE_SIZE) : 0;
+  }
+
+  public ExposureTable getExposures() {
+    return exposures;
+  }
+}
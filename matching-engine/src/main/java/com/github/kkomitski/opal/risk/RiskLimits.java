@@ -0,0 +1,36 @@
+package com.github.kkomitski.opal.risk;
+
+/*
+Pre-trade limits of one account, applied per instrument. 0 turns a limit off
+*/
+public final class RiskLimits {
+  public static final RiskLimits NONE = new RiskLimits(0, 0, 0, 0);
+
+  public final long maxOrderQuantity;
+  public final long maxNotional; // Raw price units x quantity
+  public final long maxOpenOrders;
+  public final long maxPosition; // Absolute net position
+
+  public RiskLimits(long maxOrderQuantity, long maxNotional, long maxOpenOrders, long maxPosition) {
+    if (maxOrderQuantity < 0 || maxNotional < 0 || maxOpenOrders < 0 || maxPosition < 0) {
+      throw new IllegalArgumentException("risk limits must be >= 0");
+    }
+    // Stored unbounded so a check is a single compare
+    this.maxOrderQuantity = orUnbounded(maxOrderQuantity);
+    this.maxNotional = orUnbounded(maxNotional);
+    this.maxOpenOrders = orUnbounded(maxOpenOrders);
+    this.maxPosition = orUnbounded(maxPosition);
+  }
+
+  /**
+   * Whether any of the limits is switched on.
+   */
+  public boolean hasLimits() {
+    return maxOrderQuantity != Long.MAX_VALUE || maxNotional != Long.MAX_VALUE || maxOpenOrders != Long.MAX_VALUE
+        || maxPosition != Long.MAX_VALUE;
+  }
+
+  private static long orUnbounded(long limit) {
+    return limit == 0 ? Long.MAX_VALUE : limit;
+  }
+}
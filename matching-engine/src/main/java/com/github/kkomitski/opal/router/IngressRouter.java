@@ -0,0 +1,191 @@
+package com.github.kkomitski.opal.router;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.agrona.DirectBuffer;
+import org.agrona.ExpandableDirectByteBuffer;
+import org.agrona.concurrent.BackoffIdleStrategy;
+import org.agrona.concurrent.IdleStrategy;
+
+import com.github.kkomitski.opal.aeron.utils.AeronPublisher;
+import com.github.kkomitski.opal.aeron.utils.AeronSubscriber;
+import com.github.kkomitski.opal.aeron.utils.AttachAeronMediaDriver;
+import com.github.kkomitski.opal.orderbook.OrderRequest;
+import com.github.kkomitski.opal.orderbook.RequestFrames;
+import com.github.kkomitski.opal.utils.MarketsLoader;
+import com.github.kkomitski.opal.utils.OpalConfig;
+
+import io.aeron.Publication;
+import io.aeron.logbuffer.FragmentHandler;
+import io.aeron.logbuffer.Header;
+
+/*
+Fronts several matching engine processes with the one public ingress stream.
+Every request is framed by its SBE header, routed by its instrument index
+through the PartitionMap and copied undecoded into a batch for its engine,
+each engine's batch goes out as one message per ingress fragment. Participant
+wide mass cancels go to every engine.
+
+An engine started with ENGINE_ID set loads only the markets the map gives it
+and subscribes to its own MATCHER_INGRESS_PORT, e.g. for two engines on one
+host (system properties override config.properties):
+  router:   ROUTER_ENGINE_CHANNELS=localhost:42070,localhost:42071
+  engine 0: -DENGINE_ID=0 -DMATCHER_INGRESS_PORT=42070
+  engine 1: -DENGINE_ID=1 -DMATCHER_INGRESS_PORT=42071
+Colocated engines can take IPC instead, each on a stream of its own, e.g.
+ROUTER_ENGINE_CHANNELS=aeron:ipc#11,aeron:ipc#12 and
+-DMATCHER_INGRESS_TRANSPORT=ipc -DMATCHER_INGRESS_STREAM_ID=11 for engine 0.
+Start the router first, it creates the map.
+
+Engines are back pressured in turn on the router thread, a slow engine holds
+up the others rather than reordering anyone's requests.
+*/
+public class IngressRouter implements FragmentHandler {
+  private final AeronSubscriber ingressSubscriber;
+  private final AeronPublisher[] engines;
+  private final PartitionMap partitionMap;
+  private final IdleStrategy idleStrategy;
+  private final IdleStrategy offerIdleStrategy = new BackoffIdleStrategy();
+  // Requests bound for each engine from the current fragment
+  private final ExpandableDirectByteBuffer[] batches;
+  private final int[] batchLengths;
+  private volatile boolean running = true;
+
+  public IngressRouter(final AeronSubscriber ingressSubscriber, final AeronPublisher[] engines,
+      final PartitionMap partitionMap, final IdleStrategy idleStrategy) {
+    if (ingressSubscriber == null) {
+      throw new IllegalArgumentException("ingressSubscriber must not be null");
+    }
+    if (engines == null || engines.length == 0) {
+      throw new IllegalArgumentException("need at least one engine");
+    }
+    this.ingressSubscriber = ingressSubscriber;
+    this.engines = engines;
+    this.partitionMap = partitionMap;
+    this.idleStrategy = idleStrategy;
+    this.batches = new ExpandableDirectByteBuffer[engines.length];
+    this.batchLengths = new int[engines.length];
+    for (int i = 0; i < engines.length; i++) {
+      batches[i] = new ExpandableDirectByteBuffer(4096);
+    }
+  }
+
+  public static void main(String[] args) {
+    final String[] engineChannels = engineChannels(OpalConfig.ROUTER_ENGINE_CHANNELS);
+    if (engineChannels.length == 0) {
+      throw new IllegalStateException("ROUTER_ENGINE_CHANNELS must list at least one engine");
+    }
+    final int instrumentCount = MarketsLoader.load(OpalConfig.MARKETS_XML_URL).length;
+
+    try (AttachAeronMediaDriver aeronMediaDriver = AttachAeronMediaDriver.configured();
+        PartitionMap partitionMap = PartitionMap.openOrCreate(new File(OpalConfig.PARTITION_MAP_FILE),
+            instrumentCount, engineChannels.length);
+        AeronSubscriber ingressSubscriber = new AeronSubscriber(aeronMediaDriver,
+            OpalConfig.MATCHER_INGRESS_TRANSPORT, OpalConfig.MATCHER_INGRESS_STREAM_ID,
+            OpalConfig.MATCHER_INGRESS_PORT)) {
+      final AeronPublisher[] engines = new AeronPublisher[engineChannels.length];
+      for (int i = 0; i < engineChannels.length; i++) {
+        final String entry = engineChannels[i];
+        final int hash = entry.lastIndexOf('#');
+        final String channel = hash < 0 ? entry : entry.substring(0, hash);
+        final int streamId = hash < 0 ? OpalConfig.MATCHER_INGRESS_STREAM_ID : Integer.parseInt(entry.substring(hash + 1));
+        // Only the router thread offers to them
+        engines[i] = new AeronPublisher(aeronMediaDriver,
+            channel.startsWith("aeron:") ? channel : "aeron:udp?endpoint=" + channel, streamId, true);
+        engines[i].setSendTimestamps(true);
+        System.out.println("Engine " + i + ": " + engines[i].channel() + " stream " + streamId);
+      }
+      System.out.println("Routing " + instrumentCount + " instruments from " + ingressSubscriber.channel()
+          + " (map " + OpalConfig.PARTITION_MAP_FILE + ")");
+
+      try {
+        new IngressRouter(ingressSubscriber, engines, partitionMap, new BackoffIdleStrategy()).run();
+      } finally {
+        for (final AeronPublisher engine : engines) {
+          engine.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Comma separated engine ingress channels, each host:port (UDP) or a full
+   * Aeron channel URI, optionally followed by #streamId.
+   */
+  private static String[] engineChannels(final String spec) {
+    final List<String> channels = new ArrayList<>();
+    for (final String entry : spec.split(",")) {
+      if (!entry.isBlank()) {
+        channels.add(entry.trim());
+      }
+    }
+    return channels.toArray(new String[0]);
+  }
+
+  public void run() {
+    while (running) {
+      idleStrategy.idle(ingressSubscriber.poll(this, OpalConfig.AERON_FRAGMENT_LIMIT));
+    }
+  }
+
+  public void stop() {
+    running = false;
+  }
+
+  @Override
+  public void onFragment(DirectBuffer buffer, int offset, int length, Header header) {
+    final int end = offset + length;
+    int position = offset;
+    while (position + RequestFrames.MIN_LENGTH <= end) {
+      final int requestLength = RequestFrames.length(buffer, position, end);
+      if (requestLength < 0) {
+        System.err.println("Truncated or unreadable order request at offset " + position);
+        break;
+      }
+
+      if (RequestFrames.massCancelScope(buffer, position) == OrderRequest.MassCancelScope.PARTICIPANT) {
+        // The participant may rest on any engine
+        for (int engine = 0; engine < engines.length; engine++) {
+          append(engine, buffer, position, requestLength);
+        }
+      } else {
+        final int instrumentIndex = RequestFrames.instrumentIndex(buffer, position);
+        final int engine = partitionMap.engineFor(instrumentIndex);
+        if (engine < 0 || engine >= engines.length) {
+          System.err.println("Instrument " + instrumentIndex + " isn't assigned to an engine");
+        } else {
+          append(engine, buffer, position, requestLength);
+        }
+      }
+      position += requestLength;
+    }
+
+    for (int engine = 0; engine < engines.length; engine++) {
+      if (batchLengths[engine] > 0) {
+        send(engine);
+      }
+    }
+  }
+
+  private void append(int engine, DirectBuffer buffer, int offset, int length) {
+    batches[engine].putBytes(batchLengths[engine], buffer, offset, length);
+    batchLengths[engine] += length;
+  }
+
+  private void send(int engine) {
+    long result;
+    while ((result = engines[engine].offer(batches[engine], 0, batchLengths[engine])) < 0) {
+      if (result == Publication.NOT_CONNECTED || result == Publication.CLOSED
+          || result == Publication.MAX_POSITION_EXCEEDED) {
+        System.err.println("Engine " + engine + " unavailable (" + result + "), dropped "
+            + batchLengths[engine] + " bytes");
+        break;
+      }
+      offerIdleStrategy.idle(); // Back pressured or admin action, retry
+    }
+    offerIdleStrategy.reset();
+    batchLengths[engine] = 0;
+  }
+}
@@ -0,0 +1,143 @@
+package com.github.kkomitski.opal.router;
+
+import java.io.File;
+import java.nio.MappedByteBuffer;
+
+import org.agrona.IoUtil;
+import org.agrona.concurrent.UnsafeBuffer;
+
+/*
+Which engine process every instrument is routed to. The map lives in a memory
+mapped file (PARTITION_MAP_FILE, next to the Aeron directory by default) shared
+by the router, its engines and PartitionMapTool. Entries are read and written
+volatile, so a reassignment reaches the router on its next request and the
+new engine loads the book when that request arrives, neither restarts.
+
+Books don't move with their instrument, so the hosting engine publishes how
+many orders (stops included) rest on each of its books, and PartitionMapTool
+only reassigns instruments whose book is empty.
+
+Layout: instrument count and engine count as ints, then per instrument its
+engine index or UNASSIGNED and its resting order count, one int each.
+*/
+public final class PartitionMap implements AutoCloseable {
+  public static final int UNASSIGNED = -1;
+
+  private static final int INSTRUMENT_COUNT_OFFSET = 0;
+  private static final int ENGINE_COUNT_OFFSET = 4;
+  private static final int ENTRIES_OFFSET = 8;
+  private static final int ENTRY_SIZE = 8;
+  private static final int RESTING_ORDERS_OFFSET = 4;
+
+  private final MappedByteBuffer mappedBuffer;
+  private final UnsafeBuffer buffer;
+  private final int instrumentCount;
+  private final int engineCount;
+
+  private PartitionMap(final MappedByteBuffer mappedBuffer) {
+    this.mappedBuffer = mappedBuffer;
+    this.buffer = new UnsafeBuffer(mappedBuffer);
+    this.instrumentCount = buffer.getInt(INSTRUMENT_COUNT_OFFSET);
+    this.engineCount = buffer.getInt(ENGINE_COUNT_OFFSET);
+  }
+
+  /**
+   * Creates the map, replacing any existing file, with the instruments dealt
+   * round robin across the engines.
+   */
+  public static PartitionMap create(final File file, final int instrumentCount, final int engineCount) {
+    if (instrumentCount < 0 || engineCount < 1) {
+      throw new IllegalArgumentException("need at least one engine and a non negative instrument count");
+    }
+    final MappedByteBuffer mappedBuffer = IoUtil.mapNewFile(file, length(instrumentCount));
+    final UnsafeBuffer buffer = new UnsafeBuffer(mappedBuffer);
+    for (int i = 0; i < instrumentCount; i++) {
+      buffer.putInt(ENTRIES_OFFSET + ENTRY_SIZE * i, i % engineCount);
+    }
+    buffer.putInt(ENGINE_COUNT_OFFSET, engineCount);
+    buffer.putIntVolatile(INSTRUMENT_COUNT_OFFSET, instrumentCount);
+    return new PartitionMap(mappedBuffer);
+  }
+
+  public static PartitionMap open(final File file) {
+    if (!file.exists()) {
+      throw new IllegalStateException("No partition map at " + file + ", start the ingress router first");
+    }
+    return new PartitionMap(IoUtil.mapExistingFile(file, "partition map"));
+  }
+
+  /**
+   * Keeps an existing map with the same shape, so reassignments survive a
+   * router restart, and creates a fresh one otherwise.
+   */
+  public static PartitionMap openOrCreate(final File file, final int instrumentCount, final int engineCount) {
+    if (file.exists()) {
+      final PartitionMap existing = open(file);
+      if (existing.instrumentCount == instrumentCount && existing.engineCount == engineCount
+          && existing.mappedBuffer.capacity() == length(instrumentCount)) {
+        return existing;
+      }
+      existing.close();
+    }
+    return create(file, instrumentCount, engineCount);
+  }
+
+  /**
+   * Engine hosting the instrument, UNASSIGNED for instruments the map doesn't
+   * cover.
+   */
+  public int engineFor(final int instrumentIndex) {
+    if (instrumentIndex < 0 || instrumentIndex >= instrumentCount) {
+      return UNASSIGNED;
+    }
+    return buffer.getIntVolatile(ENTRIES_OFFSET + ENTRY_SIZE * instrumentIndex);
+  }
+
+  public void assign(final int instrumentIndex, final int engine) {
+    if (instrumentIndex < 0 || instrumentIndex >= instrumentCount) {
+      throw new IllegalArgumentException("instrumentIndex must be within 0-" + (instrumentCount - 1));
+    }
+    if (engine < UNASSIGNED || engine >= engineCount) {
+      throw new IllegalArgumentException("engine must be within 0-" + (engineCount - 1) + " or " + UNASSIGNED);
+    }
+    buffer.putIntVolatile(ENTRIES_OFFSET + ENTRY_SIZE * instrumentIndex, engine);
+  }
+
+  /**
+   * Orders resting on the instrument's book as last published by the engine
+   * hosting it, 0 for instruments the map doesn't cover.
+   */
+  public int restingOrders(final int instrumentIndex) {
+    if (instrumentIndex < 0 || instrumentIndex >= instrumentCount) {
+      return 0;
+    }
+    return buffer.getIntVolatile(ENTRIES_OFFSET + ENTRY_SIZE * instrumentIndex + RESTING_ORDERS_OFFSET);
+  }
+
+  /**
+   * Written by the book's own thread at the end of each batch, an ordered
+   * write is enough for the tool polling it.
+   */
+  public void publishRestingOrders(final int instrumentIndex, final int count) {
+    if (instrumentIndex >= 0 && instrumentIndex < instrumentCount) {
+      buffer.putIntOrdered(ENTRIES_OFFSET + ENTRY_SIZE * instrumentIndex + RESTING_ORDERS_OFFSET, count);
+    }
+  }
+
+  public int instrumentCount() {
+    return instrumentCount;
+  }
+
+  public int engineCount() {
+    return engineCount;
+  }
+
+  private static long length(final int instrumentCount) {
+    return ENTRIES_OFFSET + (long) ENTRY_SIZE * instrumentCount;
+  }
+
+  @Override
+  public void close() {
+    IoUtil.unmap(mappedBuffer);
+  }
+}
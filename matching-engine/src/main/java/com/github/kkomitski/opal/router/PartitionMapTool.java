@@ -0,0 +1,80 @@
+package com.github.kkomitski.opal.router;
+
+import java.io.File;
+
+import com.github.kkomitski.opal.utils.OpalConfig;
+
+/*
+Shows or edits the live partition map while the router and engines run.
+
+  show                          every instrument and its engine
+  assign <instrument> <engine>  route the instrument to another engine, -1 = drop it
+
+Books don't move with their instrument, so only empty ones are reassigned:
+mass cancel the instrument first. Pending stop orders can't be cancelled and
+keep it on its engine until they trigger. The tool stops routing
+the instrument, waits for requests already sent to settle and checks the
+resting order count the old engine publishes again, putting the instrument
+back if anything rested in between. Requests arriving during that wait are
+dropped by the router.
+*/
+public class PartitionMapTool {
+  // Longer than a book's idle timeout, after which it publishes its count
+  private static final long DRAIN_MILLIS = 500;
+
+  public static void main(String[] args) throws InterruptedException {
+    if (args.length == 0) {
+      System.out.println("Usage: show | assign <instrument> <engine>");
+      return;
+    }
+
+    try (PartitionMap partitionMap = PartitionMap.open(new File(OpalConfig.PARTITION_MAP_FILE))) {
+      if ("show".equalsIgnoreCase(args[0])) {
+        System.out.println(partitionMap.instrumentCount() + " instruments, " + partitionMap.engineCount() + " engines");
+        for (int i = 0; i < partitionMap.instrumentCount(); i++) {
+          System.out.println("  " + i + " -> " + partitionMap.engineFor(i));
+        }
+      } else if ("assign".equalsIgnoreCase(args[0]) && args.length == 3) {
+        final int instrumentIndex = Integer.parseInt(args[1]);
+        final int engine = Integer.parseInt(args[2]);
+        final int previous = partitionMap.engineFor(instrumentIndex);
+        if (reassign(partitionMap, instrumentIndex, previous, engine)) {
+          System.out.println("Instrument " + instrumentIndex + ": engine " + previous + " -> " + engine);
+        } else {
+          System.out.println("Instrument " + instrumentIndex + " still has "
+              + partitionMap.restingOrders(instrumentIndex) + " orders resting on engine " + previous
+              + ", mass cancel it before moving it");
+        }
+      } else {
+        System.out.println("Usage: show | assign <instrument> <engine>");
+      }
+    }
+  }
+
+  /**
+   * Moves (or drops) the instrument unless its book on the previous engine
+   * still holds orders, which nothing could reach or cancel afterwards.
+   */
+  static boolean reassign(final PartitionMap partitionMap, final int instrumentIndex, final int previous,
+      final int engine) throws InterruptedException {
+    if (previous == engine) {
+      return true;
+    }
+    if (partitionMap.restingOrders(instrumentIndex) > 0) {
+      return false;
+    }
+    if (previous == PartitionMap.UNASSIGNED) {
+      partitionMap.assign(instrumentIndex, engine);
+      return true;
+    }
+
+    partitionMap.assign(instrumentIndex, PartitionMap.UNASSIGNED);
+    Thread.sleep(DRAIN_MILLIS);
+    if (partitionMap.restingOrders(instrumentIndex) > 0) {
+      partitionMap.assign(instrumentIndex, previous);
+      return false;
+    }
+    partitionMap.assign(instrumentIndex, engine);
+    return true;
+  }
+}
@@ -10,6 +10,15 @@ public class EgressService {
       .withInitial(() -> new UnsafeBuffer(new byte[0]));
 
   private final AeronPublisher publisher;
+  private boolean active = true; // Only written by the thread that egresses
+  private Retainer retainer; // null = an inactive service drops everything
+
+  /**
+   * Is handed what an inactive service would have published.
+   */
+  public static interface Retainer {
+    void retain(DirectBuffer buffer, int offset, int length);
+  }
 
   public EgressService() {
     this.publisher = null;
@@ -19,13 +28,34 @@ public class EgressService {
     this.publisher = publisher;
   }
 
+  /**
+   * An inactive service drops everything, or hands it to its retainer, a
+   * standby replica keeps its books in step with the leader without
+   * reporting twice.
+   */
+  public void setActive(final boolean active) {
+    this.active = active;
+  }
+
+  public void setRetainer(final Retainer retainer) {
+    this.retainer = retainer;
+  }
+
+  public boolean isActive() {
+    return active;
+  }
+
   public void egress(final byte[] bytes, final int offset, final int length) {
-    if (publisher == null || bytes == null || length <= 0) {
+    if (bytes == null || length <= 0 || (active ? publisher == null : retainer == null)) {
       return;
     }
 
     final UnsafeBuffer buffer = TL_BUFFER.get();
     buffer.wrap(bytes);
+    if (!active) {
+      retainer.retain(buffer, offset, length);
+      return;
+    }
 
     // Extremely thin: single offer attempt; drop if back-pressured.
     // OrderBook must stay hot; do not block here.
@@ -33,7 +63,11 @@ public class EgressService {
   }
 
   public void egress(final DirectBuffer buffer, final int offset, final int length) {
-    if (publisher == null || buffer == null || length <= 0) {
+    if (buffer == null || length <= 0 || (active ? publisher == null : retainer == null)) {
+      return;
+    }
+    if (!active) {
+      retainer.retain(buffer, offset, length);
       return;
     }
 
@@ -34,21 +34,58 @@ package com.github.kkomitski.opal.services;
  * - Setup messaging on separate thread
  */
 
+import java.util.function.IntFunction;
+
 import org.agrona.DirectBuffer;
 import org.agrona.concurrent.BackoffIdleStrategy;
 import org.agrona.concurrent.IdleStrategy;
+import org.agrona.concurrent.SystemEpochClock;
+import org.agrona.concurrent.UnsafeBuffer;
 
 import com.github.kkomitski.opal.OrderBook;
 import com.github.kkomitski.opal.aeron.utils.AeronSubscriber;
 import com.github.kkomitski.opal.orderbook.OrderRequest;
+import com.github.kkomitski.opal.orderbook.RequestDecoder;
+import com.github.kkomitski.opal.orderbook.RequestFrames;
+import com.github.kkomitski.opal.risk.RiskCheck;
+import com.github.kkomitski.opal.sbe.OrderStatusEncoder;
+import com.github.kkomitski.opal.sbe.OrderStatusType;
+import com.github.kkomitski.opal.utils.IngressChannel;
 import com.github.kkomitski.opal.utils.OpalConfig;
 
+import io.aeron.logbuffer.ControlledFragmentHandler;
+import io.aeron.logbuffer.ControlledFragmentHandler.Action;
 import io.aeron.logbuffer.FragmentHandler;
 import io.aeron.logbuffer.Header;
 
 public class IngressService {
+  /**
+   * What the ingress thread does with a request for a book whose ring is
+   * busy. A book only drains its ring on its own thread, so one hot book
+   * fills up while the rest of the channel's books idle.
+   */
+  public static enum FlowControl {
+    BLOCK, // Wait for room in the ring, holding up every book of the channel
+    // Leave the fragment in the stream while any book it targets is above the
+    // high water mark, other channels carry on and the sender sees back pressure
+    ABORT,
+    // Reject orders the full ring can't take with BOOK_BUSY, the other books
+    // of the channel carry on. Cancels still wait for room, they relieve the book
+    REJECT
+  }
+
   private final AeronSubscriber ingressSubscriber;
   private final IdleStrategy idleStrategy;
+  private final RiskCheck riskCheck; // null = no pre-trade checks
+  private final boolean raw; // Route undecoded requests, the books decode them
+  // Books whose instrument maps to this channel (see IngressChannel), the
+  // only ones this service publishes to apart from participant mass cancels
+  private final int channelIndex;
+  private final int channelCount;
+  private IntFunction<OrderBook> bookLoader; // null = every hosted book is loaded up front
+  private FlowControl flowControl = FlowControl.BLOCK;
+  private int highWaterPercent = 100;
+  private EgressService busyEgress; // BOOK_BUSY rejects, this thread's own
   private volatile boolean running = true;
 
   public IngressService(final AeronSubscriber ingressSubscriber) {
@@ -56,6 +93,31 @@ public class IngressService {
   }
 
   public IngressService(final AeronSubscriber ingressSubscriber, final IdleStrategy idleStrategy) {
+    this(ingressSubscriber, idleStrategy, null);
+  }
+
+  public IngressService(final AeronSubscriber ingressSubscriber, final IdleStrategy idleStrategy,
+      final RiskCheck riskCheck) {
+    this(ingressSubscriber, idleStrategy, riskCheck, false);
+  }
+
+  /**
+   * With raw set, requests are only framed and routed here and copied into the
+   * books' rings as bytes, moving decoding onto the shard threads. Risk checks
+   * need the decoded request on this thread, so the two don't combine.
+   */
+  public IngressService(final AeronSubscriber ingressSubscriber, final IdleStrategy idleStrategy,
+      final RiskCheck riskCheck, final boolean raw) {
+    this(ingressSubscriber, idleStrategy, riskCheck, raw, 0, 1);
+  }
+
+  /**
+   * One of several ingress services, each polling its own channel. The risk
+   * check (if any) must be this channel's own, it is single threaded and only
+   * sees the instruments the channel owns.
+   */
+  public IngressService(final AeronSubscriber ingressSubscriber, final IdleStrategy idleStrategy,
+      final RiskCheck riskCheck, final boolean raw, final int channelIndex, final int channelCount) {
     if (ingressSubscriber == null) {
       throw new IllegalArgumentException("ingressSubscriber must not be null");
     }
@@ -64,11 +126,62 @@ public class IngressService {
     }
     this.ingressSubscriber = ingressSubscriber;
     this.idleStrategy = idleStrategy;
+    if (raw && riskCheck != null) {
+      throw new IllegalArgumentException("raw ingress can't run pre-trade risk checks");
+    }
+    if (channelCount < 1 || channelIndex < 0 || channelIndex >= channelCount) {
+      throw new IllegalArgumentException("channelIndex must be within 0-" + (channelCount - 1));
+    }
+    this.riskCheck = riskCheck;
+    this.raw = raw;
+    this.channelIndex = channelIndex;
+    this.channelCount = channelCount;
+  }
+
+  /**
+   * Books may be missing (null) on a partitioned engine. The loader is asked
+   * for the book the first time one of those instruments sees a request, on
+   * this thread, and returns null while the instrument isn't hosted here. Set
+   * before subscribing.
+   */
+  public void setBookLoader(final IntFunction<OrderBook> bookLoader) {
+    this.bookLoader = bookLoader;
+  }
+
+  /**
+   * How requests for a busy book are handled, BLOCK unless set. ABORT counts
+   * a book as busy from highWaterPercent of its ring, the rest of the ring is
+   * headroom for the fragment that gets through. REJECT sends its rejects
+   * through busyEgress, which this thread must be the only one to offer to.
+   * Set before subscribing.
+   */
+  public void setFlowControl(final FlowControl flowControl, final int highWaterPercent,
+      final EgressService busyEgress) {
+    if (flowControl == null) {
+      throw new IllegalArgumentException("flowControl must not be null");
+    }
+    if (flowControl == FlowControl.ABORT && (highWaterPercent < 1 || highWaterPercent > 99)) {
+      throw new IllegalArgumentException("highWaterPercent must be within 1-99");
+    }
+    if (flowControl == FlowControl.REJECT && busyEgress == null) {
+      throw new IllegalArgumentException("busyEgress must not be null");
+    }
+    this.flowControl = flowControl;
+    this.highWaterPercent = highWaterPercent;
+    this.busyEgress = busyEgress;
   }
 
   public void subscribe(OrderBook[] orderBooks) {
     // Create fragment handler
-    FragmentHandler handler = new OrderFragmentHandler(orderBooks);
+    OrderFragmentHandler handler = new OrderFragmentHandler(orderBooks, riskCheck, raw, channelIndex, channelCount,
+        bookLoader, flowControl == FlowControl.ABORT ? highWaterPercent : 100,
+        flowControl == FlowControl.REJECT ? busyEgress : null);
+    final ControlledFragmentHandler controlledHandler = handler::onControlledFragment;
+    for (int i = channelIndex; i < orderBooks.length; i += channelCount) {
+      if (orderBooks[i] != null) {
+        handler.prepare(orderBooks[i]);
+      }
+    }
 
     System.out.println("\n\n\u001B[32m" +
         "##########################\n" +
@@ -78,7 +191,9 @@ public class IngressService {
 
     try {
       while (running) {
-        int fragmentsRead = ingressSubscriber.poll(handler, OpalConfig.AERON_FRAGMENT_LIMIT);
+        final int fragmentsRead = flowControl == FlowControl.ABORT
+            ? ingressSubscriber.controlledPoll(controlledHandler, OpalConfig.AERON_FRAGMENT_LIMIT)
+            : ingressSubscriber.poll(handler, OpalConfig.AERON_FRAGMENT_LIMIT);
         idleStrategy.idle(fragmentsRead);
       }
     } finally {
@@ -92,40 +207,178 @@ public class IngressService {
 
   private static class OrderFragmentHandler implements FragmentHandler {
     private final OrderBook[] orderBooks;
+    private final RiskCheck riskCheck;
+    private final RequestDecoder decoder = new RequestDecoder();
+    private final boolean raw;
+    private final int channelIndex;
+    private final int channelCount;
+    private final IntFunction<OrderBook> bookLoader;
+    private final int highWaterPercent; // 100 = never busy before the ring is full
+    private final EgressService busyEgress; // null = publishing waits for room
+    // Decode target, copied into the ring slot on publish
+    private final OrderRequest request = new OrderRequest();
+    private final OrderStatusEncoder statusEncoder = new OrderStatusEncoder();
+    private final UnsafeBuffer statusEventBuffer = new UnsafeBuffer(new byte[OrderStatusEncoder.BLOCK_LENGTH]);
 
-    public OrderFragmentHandler(OrderBook[] orderBooks) {
+    public OrderFragmentHandler(OrderBook[] orderBooks, RiskCheck riskCheck, boolean raw, int channelIndex,
+        int channelCount, IntFunction<OrderBook> bookLoader, int highWaterPercent,
+        EgressService busyEgress) {
       this.orderBooks = orderBooks;
+      this.riskCheck = riskCheck;
+      this.raw = raw;
+      this.channelIndex = channelIndex;
+      this.channelCount = channelCount;
+      this.bookLoader = bookLoader;
+      this.highWaterPercent = highWaterPercent;
+      this.busyEgress = busyEgress;
+    }
+
+    void prepare(OrderBook orderBook) {
+      if (raw) {
+        orderBook.enableRawIngress();
+      }
+      if (riskCheck != null) {
+        orderBook.attachRiskCheck(riskCheck);
+      }
     }
 
     @Override
     public void onFragment(DirectBuffer buffer, int offset, int length, Header header) {
-      // Process messages in 11-byte chunks
+      // SBE messages back to back, each framed by its header
+      final int end = offset + length;
       int position = offset;
-      while (position + OrderRequest.REQUEST_SIZE <= offset + length) {
-        final int headerWord = ((buffer.getByte(position) & 0xFF) << 8) | (buffer.getByte(position + 1) & 0xFF);
-        final boolean isBid = (headerWord & 0x8000) != 0;
-        final int instrumentIndex = headerWord & 0x7FFF;
+      while (position + RequestFrames.MIN_LENGTH <= end) {
+        final int requestLength = RequestFrames.length(buffer, position, end);
+        if (requestLength < 0) {
+          System.err.println("Truncated or unreadable order request at offset " + position);
+          break;
+        }
+        if (raw && publishRaw(buffer, position, requestLength)) {
+          position += requestLength;
+          continue;
+        }
 
-        final int price = (buffer.getByte(position + 2) & 0xFF) << 16 |
-            (buffer.getByte(position + 3) & 0xFF) << 8 |
-            (buffer.getByte(position + 4) & 0xFF);
+        decoder.decode(buffer, position, end, request);
+        final int instrumentIndex = request.getInstrumentIndex();
 
-        final int quantity = (buffer.getByte(position + 5) & 0xFF) << 8 |
-            (buffer.getByte(position + 6) & 0xFF);
+        if (request.getType() == OrderRequest.Type.MASS_CANCEL
+            && request.getMassCancelScope() == OrderRequest.MassCancelScope.PARTICIPANT) {
+          // The participant may rest on any book, each pulls its own share
+          for (final OrderBook orderBook : orderBooks) {
+            if (orderBook != null) {
+              orderBook.publishOrder(request);
+            }
+          }
+        } else if (instrumentIndex >= orderBooks.length) {
+          System.err.println("Invalid instrument index: " + instrumentIndex);
+        } else if (!owns(instrumentIndex)) {
+          // Taking it would give the book a second source, out of order
+          // with the owning channel
+          System.err.println("Instrument " + instrumentIndex + " belongs to ingress channel "
+              + IngressChannel.channelFor(instrumentIndex, channelCount) + ", not " + channelIndex);
+        } else if (book(instrumentIndex) == null) {
+          System.err.println("Instrument " + instrumentIndex + " isn't hosted on this engine");
+        } else {
+          if (riskCheck != null) {
+            riskCheck.check(request);
+          }
+          publish(orderBooks[instrumentIndex]);
+        }
 
-        final int orderId = (buffer.getByte(position + 7) & 0xFF) << 24 |
-            (buffer.getByte(position + 8) & 0xFF) << 16 |
-            (buffer.getByte(position + 9) & 0xFF) << 8 |
-            (buffer.getByte(position + 10) & 0xFF);
+        position += requestLength;
+      }
+    }
 
-        if (instrumentIndex >= 0 && instrumentIndex < orderBooks.length) {
-          orderBooks[instrumentIndex].publishOrder(instrumentIndex, isBid, price, quantity, orderId);
+    // Under ABORT the whole fragment waits until none of its books is busy,
+    // a fragment holds far fewer requests than the headroom above the mark
+    // so it then publishes without blocking
+    Action onControlledFragment(DirectBuffer buffer, int offset, int length, Header header) {
+      final int end = offset + length;
+      int position = offset;
+      while (position + RequestFrames.MIN_LENGTH <= end) {
+        final int requestLength = RequestFrames.length(buffer, position, end);
+        if (requestLength < 0) {
+          break; // Logged when the fragment is handled
+        }
+        if (RequestFrames.massCancelScope(buffer, position) == OrderRequest.MassCancelScope.PARTICIPANT) {
+          for (final OrderBook orderBook : orderBooks) {
+            if (orderBook != null && busy(orderBook)) {
+              return Action.ABORT;
+            }
+          }
         } else {
-          System.err.println("Invalid instrument index: " + instrumentIndex);
+          final int instrumentIndex = RequestFrames.instrumentIndex(buffer, position);
+          if (instrumentIndex < orderBooks.length && orderBooks[instrumentIndex] != null
+              && busy(orderBooks[instrumentIndex])) {
+            return Action.ABORT;
+          }
+        }
+        position += requestLength;
+      }
+      onFragment(buffer, offset, length, header);
+      return Action.CONTINUE;
+    }
+
+    private boolean busy(OrderBook orderBook) {
+      return orderBook.getRingOccupancy() * 100 >= orderBook.getRingBufferCapacity() * highWaterPercent;
+    }
+
+    // Under REJECT orders, quotes and amends the full ring can't take are
+    // rejected on this thread, anything else waits for room
+    private void publish(OrderBook orderBook) {
+      final OrderRequest.Type type = request.getType();
+      final boolean sheddable = type == OrderRequest.Type.MASS_QUOTE || type == OrderRequest.Type.AMEND
+          || (type == OrderRequest.Type.ORDER && (request.getPrice() != 0 || request.getQuantity() != 0));
+      if (busyEgress == null || !sheddable) {
+        orderBook.publishOrder(request);
+      } else if (!orderBook.tryPublishOrder(request)) {
+        if (riskCheck != null) {
+          riskCheck.onDropped(request);
         }
+        statusEncoder.wrap(statusEventBuffer, 0)
+            .orderId(request.getId())
+            .status(OrderStatusType.REJECTED)
+            .reason((short) OrderRequest.RejectionReason.BOOK_BUSY.ordinal())
+            .quantity(request.getQuantity())
+            .price(request.getPrice())
+            .timestamp(SystemEpochClock.INSTANCE.time());
+        busyEgress.egress(statusEventBuffer, 0, OrderStatusEncoder.BLOCK_LENGTH);
+      }
+    }
+
+    private boolean owns(int instrumentIndex) {
+      return IngressChannel.channelFor(instrumentIndex, channelCount) == channelIndex;
+    }
+
+    // The instrument's book, loaded on first use when the engine picks it up
+    // after start, or null if it isn't hosted here
+    private OrderBook book(int instrumentIndex) {
+      OrderBook orderBook = orderBooks[instrumentIndex];
+      if (orderBook == null && bookLoader != null && (orderBook = bookLoader.apply(instrumentIndex)) != null) {
+        prepare(orderBook);
+        orderBooks[instrumentIndex] = orderBook;
+      }
+      return orderBook;
+    }
 
-        position += OrderRequest.REQUEST_SIZE;
+    // Hands the request to its book undecoded. Mass quotes don't fit a raw
+    // slot and mass cancels may fan out to every book, both are decoded here
+    // instead, as are requests for unknown or unhosted instruments so they get
+    // logged, and under REJECT ones the full ring can't take
+    private boolean publishRaw(DirectBuffer buffer, int position, int requestLength) {
+      if (requestLength > OrderBook.RAW_SLOT_SIZE) {
+        return false;
+      }
+      final int instrumentIndex = RequestFrames.instrumentIndex(buffer, position);
+      if (RequestFrames.massCancelScope(buffer, position) != null
+          || instrumentIndex >= orderBooks.length || !owns(instrumentIndex) || book(instrumentIndex) == null) {
+        return false;
+      }
+      if (busyEgress != null) {
+        return orderBooks[instrumentIndex].tryPublishRaw(buffer, position, requestLength);
       }
+      orderBooks[instrumentIndex].publishRaw(buffer, position, requestLength);
+      return true;
     }
   }
 }
@@ -0,0 +1,67 @@
+package com.github.kkomitski.opal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.kkomitski.opal.orderbook.LevelVolumeTree;
+import com.github.kkomitski.opal.orderbook.Limit;
+import com.github.kkomitski.opal.orderbook.LimitChunkPool;
+import com.github.kkomitski.opal.orderbook.OrderRequest;
+
+public class LevelVolumeTreeTest {
+
+  @Test
+  void testCumulativeVolume() {
+    LevelVolumeTree tree = new LevelVolumeTree(16, 100);
+    tree.add(101, 5);
+    tree.add(104, 7);
+    tree.add(110, 3);
+
+    assertEquals(0, tree.cumulativeUpTo(100), "Nothing rests at or below 100");
+    assertEquals(5, tree.cumulativeUpTo(103), "Only 101 is at or below 103");
+    assertEquals(12, tree.cumulativeUpTo(104), "101 and 104 are at or below 104");
+    assertEquals(15, tree.cumulativeUpTo(500), "Ticks above the window return the total");
+    assertEquals(10, tree.cumulativeFrom(104), "104 and 110 are at or above 104");
+    assertEquals(15, tree.getTotalVolume());
+  }
+
+  @Test
+  void testWindowAndReset() {
+    LevelVolumeTree tree = new LevelVolumeTree(10, 50);
+    assertTrue(tree.contains(50));
+    assertTrue(tree.contains(59));
+    assertFalse(tree.contains(60));
+    assertFalse(tree.contains(49));
+
+    tree.add(55, 9);
+    tree.reset(200);
+    assertEquals(0, tree.getTotalVolume(), "Reset clears all volume");
+    assertTrue(tree.contains(205), "Reset moves the window");
+  }
+
+  @Test
+  void testLimitMirrorsVolumeChanges() {
+    LevelVolumeTree tree = new LevelVolumeTree(16, 100);
+    Limit limit = new Limit(new LimitChunkPool());
+    limit.bind(tree, 108);
+
+    for (int i = 0; i < 3; i++) {
+      OrderRequest orderRequest = new OrderRequest();
+      orderRequest.set(1, true, 108, 4, i);
+      limit.addOrder(orderRequest);
+    }
+    assertEquals(12, tree.cumulativeFrom(108), "Adds are mirrored in the tree");
+
+    limit.partialFill(1);
+    assertEquals(9, tree.getTotalVolume(), "Partial fills are mirrored in the tree");
+
+    limit.removeOrder();
+    assertEquals(8, tree.getTotalVolume(), "Removals are mirrored in the tree");
+
+    limit.reset();
+    assertEquals(0, tree.getTotalVolume(), "Reset removes the remaining volume");
+  }
+}
@@ -9,6 +9,7 @@ import org.junit.jupiter.api.Test;
 
 import com.github.kkomitski.opal.orderbook.Limit;
 import com.github.kkomitski.opal.orderbook.LimitChunkPool;
+import com.github.kkomitski.opal.orderbook.OrderIndex;
 import com.github.kkomitski.opal.orderbook.OrderRequest;
 
 public class LimitTest {
@@ -316,4 +317,36 @@ public class LimitTest {
     assertEquals((270 - 100) * 3 + 50 * 4, limit.getTotalVolume(), 
                  "Volume should be correct after add following partial removal");
   }
-}
\ No newline at end of file
+
+  @Test
+  void testCancelOrderById() {
+    LimitChunkPool chunkPool = new LimitChunkPool();
+    OrderIndex index = new OrderIndex(512);
+    Limit limit = new Limit(chunkPool, Limit.DEFAULT_MAX_CHUNKS_PER_LIMIT, index);
+
+    // Spans two chunks
+    for (int i = 1; i <= 300; i++) {
+      OrderRequest orderRequest = new OrderRequest();
+      orderRequest.set(1, true, 100, 2, i);
+      limit.addOrder(orderRequest);
+    }
+    assertEquals(300, index.size(), "Every resting order should be indexed");
+
+    // Cancel the whole first chunk except its last order, plus one in the second
+    for (int i = 1; i < 256; i++) {
+      limit.cancelOrder(index.get(i));
+    }
+    limit.cancelOrder(index.get(280));
+
+    assertEquals(44, limit.getOrderCount());
+    assertEquals(88, limit.getTotalVolume());
+    assertEquals(256, limit.peek().id, "Cancelled orders should be skipped");
+    assertNull(index.get(280));
+
+    assertEquals(256, limit.removeOrder().id);
+    assertEquals(257, limit.peek().id, "Emptied head chunk should be released");
+
+    limit.reset();
+    assertEquals(0, index.size(), "Reset should drop the remaining ids");
+  }
+}
@@ -1,15 +1,30 @@
 package com.github.kkomitski.opal;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.lang.reflect.Field;
+import java.util.Map;
 
+import org.agrona.DirectBuffer;
 import org.agrona.concurrent.SystemEpochClock;
+import org.agrona.concurrent.UnsafeBuffer;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
+import com.github.kkomitski.opal.orderbook.Limit;
+import com.github.kkomitski.opal.orderbook.Order;
+import com.github.kkomitski.opal.orderbook.OrderRequest;
+import com.github.kkomitski.opal.sbe.CancelOrderEncoder;
+import com.github.kkomitski.opal.sbe.MessageHeaderEncoder;
+import com.github.kkomitski.opal.sbe.NewOrderEncoder;
+import com.github.kkomitski.opal.sbe.PostOnly;
+import com.github.kkomitski.opal.sbe.Side;
+import com.github.kkomitski.opal.sbe.TimeInForce;
+import com.github.kkomitski.opal.sbe.TopOfBookDecoder;
 import com.github.kkomitski.opal.services.EgressService;
+import com.github.kkomitski.opal.utils.Market;
 
 public class OrderBookTest {
 
@@ -17,6 +32,14 @@ public class OrderBookTest {
 
   private static final EgressService DUMMY_EGRESS_SERVICE = new EgressService();
 
+  // Price levels of one side by tick, read once the book has caught up
+  @SuppressWarnings("unchecked")
+  private static Map<Integer, Limit> limits(OrderBook book, boolean isBid) throws ReflectiveOperationException {
+    Field field = OrderBook.class.getDeclaredField(isBid ? "bidLimits" : "askLimits");
+    field.setAccessible(true);
+    return (Map<Integer, Limit>) field.get(book);
+  }
+
   @Test
   @DisplayName("Limit order clears multiple bid limits across price levels")
   void testLimitOrderClearsMultipleBidLevels() throws Exception {
@@ -42,27 +65,21 @@ public class OrderBookTest {
     // CRITICAL: Wait for Disruptor to process all orders asynchronously
     Thread.sleep(200);
     
-    Field askLimitsField = OrderBook.class.getDeclaredField("askLimits");
-    askLimitsField.setAccessible(true);
-    @SuppressWarnings("unchecked")
-    java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit> askLimits = (java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit>) askLimitsField.get(book);
-    Field bidLimitsField = OrderBook.class.getDeclaredField("bidLimits");
-    bidLimitsField.setAccessible(true);
-    @SuppressWarnings("unchecked")
-    java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit> bidLimits = (java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit>) bidLimitsField.get(book);
+    Map<Integer, Limit> askLimits = limits(book, false);
+    Map<Integer, Limit> bidLimits = limits(book, true);
     // Assert that bids at 120, 121, 122 are still present (not cleared)
     for (int p : bidPrices) {
-      com.github.kkomitski.opal.orderbook.Limit lim = bidLimits.get(p);
+      Limit lim = bidLimits.get(p);
       assertTrue(lim != null, "Bid limit should exist for price " + p);
-      com.github.kkomitski.opal.orderbook.Order o = lim.peek();
+      Order o = lim.peek();
       assertTrue(o != null && o.initialized, "Bid order at price " + p + " should NOT be cleared before crossing ask arrives");
     }
     Thread.sleep(500);
     // Assert that asks at 124, 125, 126 are still present (not cleared)
     for (int p : askPrices) {
-      com.github.kkomitski.opal.orderbook.Limit lim = askLimits.get(p);
+      Limit lim = askLimits.get(p);
       assertTrue(lim != null, "Ask limit should exist for price " + p);
-      com.github.kkomitski.opal.orderbook.Order o = lim.peek();
+      Order o = lim.peek();
       assertTrue(o != null && o.initialized, "Ask order at price " + p + " should NOT be cleared before crossing bid arrives");
     }
     Thread.sleep(200);
@@ -72,7 +89,7 @@ public class OrderBookTest {
     book.publishOrder(0, false, 120, totalBidQty, 1000);
     Thread.sleep(300);
     for (int p : bidPrices) {
-      com.github.kkomitski.opal.orderbook.Limit lim = bidLimits.get(p);
+      Limit lim = bidLimits.get(p);
       if (lim != null) {
         assertEquals(0, lim.getTotalVolume(), "Total volume at price " + p + " should be zero after clearing");
       }
@@ -83,7 +100,7 @@ public class OrderBookTest {
     book.publishOrder(0, true, 126, totalAskQty, 1100);
     Thread.sleep(500);
     for (int p : askPrices) {
-      com.github.kkomitski.opal.orderbook.Limit lim = askLimits.get(p);
+      Limit lim = askLimits.get(p);
       if (lim != null) {
         assertEquals(0, lim.getTotalVolume(), "Total volume at price " + p + " should be zero after clearing");
       }
@@ -97,16 +114,9 @@ public class OrderBookTest {
     int ordersPerLevel = 3;
     OrderBook book = new OrderBook("TEST", 1, priceLevels, ordersPerLevel, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
 
-    // Access bidLimits and askLimits via reflection
-    Field bidLimitsField = OrderBook.class.getDeclaredField("bidLimits");
-    bidLimitsField.setAccessible(true);
-    @SuppressWarnings("unchecked")
-    java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit> bidLimits = (java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit>) bidLimitsField.get(book);
+    Map<Integer, Limit> bidLimits = limits(book, true);
 
-    Field askLimitsField = OrderBook.class.getDeclaredField("askLimits");
-    askLimitsField.setAccessible(true);
-    @SuppressWarnings("unchecked")
-    java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit> askLimits = (java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit>) askLimitsField.get(book);
+    Map<Integer, Limit> askLimits = limits(book, false);
 
     // OrderBook now uses dynamic allocation, so initially maps are empty
     assertEquals(0, bidLimits.size(), "Bid limits map should be empty initially");
@@ -141,48 +151,42 @@ public class OrderBookTest {
     // Wait for disruptor to process
     Thread.sleep(200);
 
-    Field bidLimitsField = OrderBook.class.getDeclaredField("bidLimits");
-    bidLimitsField.setAccessible(true);
-    @SuppressWarnings("unchecked")
-    java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit> bidLimits = (java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit>) bidLimitsField.get(book);
+    Map<Integer, Limit> bidLimits = limits(book, true);
 
-    Field askLimitsField = OrderBook.class.getDeclaredField("askLimits");
-    askLimitsField.setAccessible(true);
-    @SuppressWarnings("unchecked")
-    java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit> askLimits = (java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit>) askLimitsField.get(book);
+    Map<Integer, Limit> askLimits = limits(book, false);
 
     // Check bid orders
     int bidIndex101 = 101;
     int bidIndex102 = 102;
-    com.github.kkomitski.opal.orderbook.Limit lim101 = bidLimits.get(bidIndex101);
-    com.github.kkomitski.opal.orderbook.Limit lim102 = bidLimits.get(bidIndex102);
+    Limit lim101 = bidLimits.get(bidIndex101);
+    Limit lim102 = bidLimits.get(bidIndex102);
     assertTrue(lim101 != null, "Bid limit 101 should be initialized");
     assertTrue(lim102 != null, "Bid limit 102 should be initialized");
     // Check first order at 101: id 1
-    com.github.kkomitski.opal.orderbook.Order o101_0 = lim101.peek();
+    Order o101_0 = lim101.peek();
     assertEquals(1, o101_0.id);
     assertEquals(2, o101_0.size);
     assertTrue(o101_0.initialized);
     assertEquals(3, lim101.getTotalVolume(), "Total volume should be 3 (2+1)");
     // Order at 102: id 2
-    com.github.kkomitski.opal.orderbook.Order o102_0 = lim102.peek();
+    Order o102_0 = lim102.peek();
     assertEquals(2, o102_0.id);
     assertEquals(3, o102_0.size);
     assertTrue(o102_0.initialized);
     // Check ask orders
     int askIndex103 = 103;
     int askIndex104 = 104;
-    com.github.kkomitski.opal.orderbook.Limit lim103 = askLimits.get(askIndex103);
-    com.github.kkomitski.opal.orderbook.Limit lim104 = askLimits.get(askIndex104);
+    Limit lim103 = askLimits.get(askIndex103);
+    Limit lim104 = askLimits.get(askIndex104);
     assertTrue(lim103 != null, "Ask limit 103 should be initialized");
     assertTrue(lim104 != null, "Ask limit 104 should be initialized");
     // Order at 103: id 3
-    com.github.kkomitski.opal.orderbook.Order o103_0 = lim103.peek();
+    Order o103_0 = lim103.peek();
     assertEquals(3, o103_0.id);
     assertEquals(4, o103_0.size);
     assertTrue(o103_0.initialized);
     // Check first order at 104: id 4
-    com.github.kkomitski.opal.orderbook.Order o104_0 = lim104.peek();
+    Order o104_0 = lim104.peek();
     assertEquals(4, o104_0.id);
     assertEquals(5, o104_0.size);
     assertTrue(o104_0.initialized);
@@ -207,12 +211,9 @@ public class OrderBookTest {
     } catch (InterruptedException ignored) {
     }
 
-    Field bidLimitsField = OrderBook.class.getDeclaredField("bidLimits");
-    bidLimitsField.setAccessible(true);
-    @SuppressWarnings("unchecked")
-    java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit> bidLimits = (java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit>) bidLimitsField.get(book);
-    com.github.kkomitski.opal.orderbook.Limit limit = bidLimits.get(price);
-    com.github.kkomitski.opal.orderbook.Order o = limit.peek();
+    Map<Integer, Limit> bidLimits = limits(book, true);
+    Limit limit = bidLimits.get(price);
+    Order o = limit.peek();
     assertTrue(o != null && o.initialized, "Order should be marked initialized");
     assertEquals(1, o.id, "Order ID should match");
     assertEquals(quantity, o.size, "Order quantity should match");
@@ -237,12 +238,9 @@ public class OrderBookTest {
     } catch (InterruptedException ignored) {
     }
 
-    Field askLimitsField = OrderBook.class.getDeclaredField("askLimits");
-    askLimitsField.setAccessible(true);
-    @SuppressWarnings("unchecked")
-    java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit> askLimits = (java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit>) askLimitsField.get(book);
-    com.github.kkomitski.opal.orderbook.Limit limit = askLimits.get(price);
-    com.github.kkomitski.opal.orderbook.Order o = limit.peek();
+    Map<Integer, Limit> askLimits = limits(book, false);
+    Limit limit = askLimits.get(price);
+    Order o = limit.peek();
     assertTrue(o != null && o.initialized, "Order should be marked initialized");
     assertEquals(orderId, o.id, "Order ID should match");
     assertEquals(quantity, o.size, "Order quantity should match");
@@ -268,14 +266,11 @@ public class OrderBookTest {
     } catch (InterruptedException ignored) {
     }
 
-    Field bidLimitsField = OrderBook.class.getDeclaredField("bidLimits");
-    bidLimitsField.setAccessible(true);
-    @SuppressWarnings("unchecked")
-    java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit> bidLimits = (java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit>) bidLimitsField.get(book);
-    com.github.kkomitski.opal.orderbook.Limit limit = bidLimits.get(price);
+    Map<Integer, Limit> bidLimits = limits(book, true);
+    Limit limit = bidLimits.get(price);
     assertEquals(2, limit.getTotalVolume(),
         "Total volume should be 2 (1+1)");
-    com.github.kkomitski.opal.orderbook.Order o = limit.peek();
+    Order o = limit.peek();
     assertTrue(o != null && o.initialized, "Order should be initialized");
 
   }
@@ -295,11 +290,8 @@ public class OrderBookTest {
     int totalQuantity = quantity * 3;
     book.publishOrder(0, true, price, totalQuantity, 200);
     Thread.sleep(200);
-    Field askLimitsField = OrderBook.class.getDeclaredField("askLimits");
-    askLimitsField.setAccessible(true);
-    @SuppressWarnings("unchecked")
-    java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit> askLimits = (java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit>) askLimitsField.get(book);
-    com.github.kkomitski.opal.orderbook.Limit limit = askLimits.get(price);
+    Map<Integer, Limit> askLimits = limits(book, false);
+    Limit limit = askLimits.get(price);
     if (limit != null) {
       assertEquals(0, limit.getTotalVolume(), "Total volume should be zero after clearing");
     }
@@ -319,11 +311,8 @@ public class OrderBookTest {
     Thread.sleep(100);
     book.publishOrder(0, true, 123, quantity * 2, 400);
     Thread.sleep(200);
-    Field askLimitsField = OrderBook.class.getDeclaredField("askLimits");
-    askLimitsField.setAccessible(true);
-    @SuppressWarnings("unchecked")
-    java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit> askLimits = (java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit>) askLimitsField.get(book);
-    com.github.kkomitski.opal.orderbook.Limit limit2 = askLimits.get(price2);
+    Map<Integer, Limit> askLimits = limits(book, false);
+    Limit limit2 = askLimits.get(price2);
     if (limit2 != null) {
       assertEquals(0, limit2.getTotalVolume(), "Total volume should be zero after clearing with higher bid");
     }
@@ -349,25 +338,19 @@ public class OrderBookTest {
       }
     }
     Thread.sleep(500);
-    Field askLimitsField = OrderBook.class.getDeclaredField("askLimits");
-    askLimitsField.setAccessible(true);
-    @SuppressWarnings("unchecked")
-    java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit> askLimits = (java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit>) askLimitsField.get(book);
-    Field bidLimitsField = OrderBook.class.getDeclaredField("bidLimits");
-    bidLimitsField.setAccessible(true);
-    @SuppressWarnings("unchecked")
-    java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit> bidLimits = (java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit>) bidLimitsField.get(book);
+    Map<Integer, Limit> askLimits = limits(book, false);
+    Map<Integer, Limit> bidLimits = limits(book, true);
     // Assert that asks at 124, 125, 126 are still present (not cleared)
     for (int p : askPrices) {
-      com.github.kkomitski.opal.orderbook.Limit lim = askLimits.get(p);
-      com.github.kkomitski.opal.orderbook.Order o = lim.peek();
+      Limit lim = askLimits.get(p);
+      Order o = lim.peek();
       assertTrue(o != null && o.initialized, "Ask order at price " + p + " should NOT be cleared before crossing bid arrives");
     }
     Thread.sleep(500);
     // Assert that bids at 120, 121, 122 are still present (not cleared)
     for (int p : bidPrices) {
-      com.github.kkomitski.opal.orderbook.Limit lim = bidLimits.get(p);
-      com.github.kkomitski.opal.orderbook.Order o = lim.peek();
+      Limit lim = bidLimits.get(p);
+      Order o = lim.peek();
       assertTrue(o != null && o.initialized, "Bid order at price " + p + " should NOT be cleared before crossing ask arrives");
     }
     Thread.sleep(200);
@@ -377,7 +360,7 @@ public class OrderBookTest {
     book.publishOrder(0, true, 126, totalAskQty, 700);
     Thread.sleep(300);
     for (int p : askPrices) {
-      com.github.kkomitski.opal.orderbook.Limit lim = askLimits.get(p);
+      Limit lim = askLimits.get(p);
       if (lim != null) {
         assertEquals(0, lim.getTotalVolume(), "Total volume at price " + p + " should be zero after clearing");
       }
@@ -388,7 +371,7 @@ public class OrderBookTest {
     book.publishOrder(0, false, 120, totalBidQty, 800);
     Thread.sleep(500);
     for (int p : bidPrices) {
-      com.github.kkomitski.opal.orderbook.Limit lim = bidLimits.get(p);
+      Limit lim = bidLimits.get(p);
       if (lim != null) {
         assertEquals(0, lim.getTotalVolume(), "Total volume at price " + p + " should be zero after clearing");
       }
@@ -417,11 +400,8 @@ public class OrderBookTest {
 
     Thread.sleep(300);
 
-    Field askLimitsField = OrderBook.class.getDeclaredField("askLimits");
-    askLimitsField.setAccessible(true);
-    @SuppressWarnings("unchecked")
-    java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit> askLimits = (java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit>) askLimitsField.get(book);
-    com.github.kkomitski.opal.orderbook.Limit limit = askLimits.get(price);
+    Map<Integer, Limit> askLimits = limits(book, false);
+    Limit limit = askLimits.get(price);
     if (limit != null) {
       assertEquals(0, limit.getTotalVolume(), "Total volume should be zero after market order clears limit");
     }
@@ -450,13 +430,10 @@ public class OrderBookTest {
 
     Thread.sleep(400);
 
-    Field askLimitsField = OrderBook.class.getDeclaredField("askLimits");
-    askLimitsField.setAccessible(true);
-    @SuppressWarnings("unchecked")
-    java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit> askLimits = (java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit>) askLimitsField.get(book);
+    Map<Integer, Limit> askLimits = limits(book, false);
     // All orders at all levels should be cleared
     for (int price : prices) {
-      com.github.kkomitski.opal.orderbook.Limit limit = askLimits.get(price);
+      Limit limit = askLimits.get(price);
       if (limit != null) {
         assertEquals(0, limit.getTotalVolume(), "Total volume at price " + price + " should be zero after market order");
       }
@@ -482,10 +459,7 @@ public class OrderBookTest {
     Thread.sleep(100);
 
     // The order should be rejected, so it should not appear in bidLimits
-    Field bidLimitsField = OrderBook.class.getDeclaredField("bidLimits");
-    bidLimitsField.setAccessible(true);
-    @SuppressWarnings("unchecked")
-    java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit> bidLimits = (java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit>) bidLimitsField.get(book);
+    Map<Integer, Limit> bidLimits = limits(book, true);
 
     // The negative price should not be in the book
     assertTrue(!bidLimits.containsKey(-400), "Out-of-band bid price should be rejected and not in book");
@@ -507,10 +481,7 @@ public class OrderBookTest {
     Thread.sleep(100);
 
     // The order should be rejected, so it should not appear in askLimits
-    Field askLimitsField = OrderBook.class.getDeclaredField("askLimits");
-    askLimitsField.setAccessible(true);
-    @SuppressWarnings("unchecked")
-    java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit> askLimits = (java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit>) askLimitsField.get(book);
+    Map<Integer, Limit> askLimits = limits(book, false);
 
     // The high price should not be in the book (outside 601 upper bound)
     assertTrue(!askLimits.containsKey(1000), "Out-of-band ask price should be rejected and not in book");
@@ -533,15 +504,9 @@ public class OrderBookTest {
     Thread.sleep(100);
 
     // Verify orders are in the book
-    Field bidLimitsField = OrderBook.class.getDeclaredField("bidLimits");
-    bidLimitsField.setAccessible(true);
-    @SuppressWarnings("unchecked")
-    java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit> bidLimits = (java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit>) bidLimitsField.get(book);
+    Map<Integer, Limit> bidLimits = limits(book, true);
 
-    Field askLimitsField = OrderBook.class.getDeclaredField("askLimits");
-    askLimitsField.setAccessible(true);
-    @SuppressWarnings("unchecked")
-    java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit> askLimits = (java.util.Map<Integer, com.github.kkomitski.opal.orderbook.Limit>) askLimitsField.get(book);
+    Map<Integer, Limit> askLimits = limits(book, false);
 
     assertTrue(bidLimits.containsKey(50), "Low bid should be in book initially");
     assertTrue(askLimits.containsKey(550), "High ask should be in book initially");
@@ -557,4 +522,767 @@ public class OrderBookTest {
     // This depends on the exact pruning logic and tick buffer
   }
 
-}
\ No newline at end of file
+  @Test
+  @DisplayName("Limits are indexed by tick and off-tick prices are rejected")
+  void testLimitsIndexedByTick() throws Exception {
+    Market market = new Market("TEST", 5000, 100, 10, 5, 2, 0);
+    OrderBook book = new OrderBook(market, 1, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+
+    book.publishOrder(0, true, 5000, 3, 1);
+    book.publishOrder(0, false, 5010, 4, 2);
+    book.publishOrder(0, true, 5003, 5, 3); // off the 5 unit grid
+    Thread.sleep(200);
+
+    Map<Integer, Limit> bidLimits = limits(book, true);
+    Map<Integer, Limit> askLimits = limits(book, false);
+
+    assertEquals(1, bidLimits.size(), "Off-tick bid should be rejected");
+    assertEquals(3, bidLimits.get(1000).getTotalVolume(), "Bid at 5000 should rest at tick 1000");
+    assertEquals(4, askLimits.get(1002).getTotalVolume(), "Ask at 5010 should rest at tick 1002");
+    assertEquals(5000, book.getBestBid(), "Best bid is reported in raw price units");
+    assertEquals(5010, book.getBestAsk(), "Best ask is reported in raw price units");
+  }
+
+  @Test
+  @DisplayName("Percentage collar scales with price and is capped by the book size")
+  void testPercentageCollar() throws Exception {
+    // 1% of a 10_000 tick mid = 100 ticks, capped at limitsPerBook / 2 = 50
+    Market market = new Market("TEST", 10_000, 100, 10, 1, 0, 1.0);
+    OrderBook book = new OrderBook(market, 1, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+
+    book.publishOrder(0, true, 9_999, 1, 1);
+    book.publishOrder(0, false, 10_001, 1, 2);
+    Thread.sleep(100);
+
+    book.publishOrder(0, true, 9_955, 1, 3); // inside the 50 tick collar
+    book.publishOrder(0, true, 9_940, 1, 4); // outside the 50 tick collar
+    Thread.sleep(200);
+
+    Map<Integer, Limit> bidLimits = limits(book, true);
+
+    assertTrue(bidLimits.containsKey(9_955), "Bid inside the collar should rest");
+    assertTrue(!bidLimits.containsKey(9_940), "Bid outside the collar should be rejected");
+  }
+
+  @Test
+  @DisplayName("FOK order that cannot fill completely is rejected without touching the book")
+  void testFillOrKillRejectedWithoutLiquidity() throws Exception {
+    OrderBook book = new OrderBook("TEST", 1, 1000, 10, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    book.publishOrder(0, false, 120, 5, 1);
+    book.publishOrder(0, false, 121, 5, 2);
+    book.publishOrder(0, false, 125, 5, 3);
+    Thread.sleep(100);
+
+    // Only 10 available at or below 121
+    OrderRequest fok = new OrderRequest();
+    fok.set(0, true, 121, 12, 10, OrderRequest.TimeInForce.FOK);
+    book.publishOrder(fok);
+    Thread.sleep(200);
+
+    Map<Integer, Limit> askLimits = limits(book, false);
+    assertEquals(5, askLimits.get(120).getTotalVolume(), "Rejected FOK should leave 120 untouched");
+    assertEquals(5, askLimits.get(121).getTotalVolume(), "Rejected FOK should leave 121 untouched");
+
+    // 15 available at or below 125
+    fok.set(0, true, 125, 12, 11, OrderRequest.TimeInForce.FOK);
+    book.publishOrder(fok);
+    Thread.sleep(200);
+
+    assertEquals(3, askLimits.get(125).getTotalVolume(), "Filled FOK should sweep up to 125");
+  }
+
+  @Test
+  @DisplayName("IOC order fills what it can and never rests")
+  void testImmediateOrCancelDoesNotRest() throws Exception {
+    OrderBook book = new OrderBook("TEST", 1, 1000, 10, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    book.publishOrder(0, false, 120, 5, 1);
+    Thread.sleep(100);
+
+    OrderRequest ioc = new OrderRequest();
+    ioc.set(0, true, 120, 8, 2, OrderRequest.TimeInForce.IOC);
+    book.publishOrder(ioc);
+    Thread.sleep(200);
+
+    Map<Integer, Limit> bidLimits = limits(book, true);
+    assertTrue(!bidLimits.containsKey(120), "IOC remainder should not rest on the book");
+    assertEquals(0, book.getBestAsk(), "IOC should have taken the resting ask");
+  }
+
+  @Test
+  void testIcebergReplenishesAtTail() throws Exception {
+    OrderBook book = new OrderBook("TEST", 1, 1000, 10, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+
+    OrderRequest iceberg = new OrderRequest();
+    iceberg.set(0, false, 120, 30, 1, OrderRequest.TimeInForce.GTC, 10);
+    book.publishOrder(iceberg);
+    book.publishOrder(0, false, 120, 5, 2);
+    Thread.sleep(100);
+
+    Map<Integer, Limit> askLimits = limits(book, false);
+    assertEquals(15, askLimits.get(120).getTotalVolume(), "Only the iceberg's displayed slice should show");
+
+    // Filling the first slice re-queues the iceberg behind order 2
+    book.publishOrder(0, true, 120, 10, 3);
+    Thread.sleep(100);
+    assertEquals(15, askLimits.get(120).getTotalVolume(), "Next slice should be shown");
+    assertEquals(2, askLimits.get(120).peek().id, "Replenished iceberg should lose priority");
+
+    book.publishOrder(0, true, 120, 5, 4);
+    Thread.sleep(100);
+    assertEquals(1, askLimits.get(120).peek().id);
+
+    // Takes the last two slices and rests the remainder
+    book.publishOrder(0, true, 120, 25, 5);
+    Thread.sleep(200);
+    assertTrue(!askLimits.containsKey(120), "Iceberg should be exhausted");
+
+    Map<Integer, Limit> bidLimits = limits(book, true);
+    assertEquals(5, bidLimits.get(120).getTotalVolume(), "Only the unmatched remainder should rest");
+  }
+
+  @Test
+  void testStopOrderReleasedOnTrade() throws Exception {
+    OrderBook book = new OrderBook("TEST", 1, 1000, 10, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    book.publishOrder(0, false, 120, 5, 1);
+    book.publishOrder(0, false, 125, 5, 2);
+
+    // Buy stop at 120 that becomes a market order once it triggers
+    OrderRequest stop = new OrderRequest();
+    stop.set(0, true, 0, 5, 3);
+    stop.setStopPrice(120);
+    book.publishOrder(stop);
+    Thread.sleep(100);
+
+    assertEquals(1, book.getPendingStopCount(), "Stop should wait off book");
+    assertEquals(120, book.getBestAsk(), "Stop should not touch the book yet");
+
+    // Trade at 120 triggers the stop, which then lifts the 125 ask
+    book.publishOrder(0, true, 120, 5, 4);
+    Thread.sleep(200);
+
+    assertEquals(0, book.getPendingStopCount(), "Stop should have been released");
+    assertEquals(0, book.getBestAsk(), "Released stop should have taken the 125 ask");
+    assertEquals(125, book.getLastTradePrice());
+  }
+
+  @Test
+  void testSelfTradeCancelNewest() throws Exception {
+    OrderBook book = new OrderBook("TEST", 1, 1000, 10, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+
+    OrderRequest order = new OrderRequest();
+    order.set(0, false, 120, 5, 1);
+    order.setParticipantId(7);
+    book.publishOrder(order);
+
+    order.set(0, true, 120, 5, 2);
+    order.setParticipantId(7);
+    book.publishOrder(order);
+    Thread.sleep(150);
+
+    assertEquals(120, book.getBestAsk(), "Resting order should be untouched");
+    assertEquals(0, book.getBestBid(), "Incoming order should be cancelled, not rested");
+    assertEquals(0, book.getLastTradePrice(), "No self trade should print");
+  }
+
+  @Test
+  void testSelfTradeCancelOldest() throws Exception {
+    Market market = new Market("TEST", 120, 1000, 10, 1, 0, 0, Market.SelfTradePrevention.CANCEL_OLDEST);
+    OrderBook book = new OrderBook(market, 0, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+
+    OrderRequest order = new OrderRequest();
+    order.set(0, false, 120, 5, 1);
+    order.setParticipantId(7);
+    book.publishOrder(order);
+    book.publishOrder(0, false, 120, 5, 2); // Anonymous
+
+    order.set(0, true, 120, 5, 3);
+    order.setParticipantId(7);
+    book.publishOrder(order);
+    Thread.sleep(150);
+
+    assertEquals(0, book.getBestAsk(), "Own order cancelled, the other one filled");
+    assertEquals(0, book.getBestBid());
+    assertEquals(120, book.getLastTradePrice());
+  }
+
+  @Test
+  @DisplayName("DECREMENT_BOTH reduces the own resting order and the incoming one without a fill")
+  void testSelfTradeDecrementBoth() throws Exception {
+    Market market = new Market("TEST", 120, 1000, 10, 1, 0, 0, Market.SelfTradePrevention.DECREMENT_BOTH);
+    OrderBook book = new OrderBook(market, 0, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+
+    OrderRequest order = new OrderRequest();
+    order.set(0, false, 120, 5, 1);
+    order.setParticipantId(7);
+    book.publishOrder(order);
+    book.publishOrder(0, false, 121, 5, 2); // Anonymous
+
+    // 5 cancel against the own ask, the other 3 buy from the anonymous one
+    order.set(0, true, 121, 8, 3);
+    order.setParticipantId(7);
+    book.publishOrder(order);
+    Thread.sleep(150);
+
+    Map<Integer, Limit> askLimits = limits(book, false);
+    assertTrue(!askLimits.containsKey(120), "Own ask should be decremented away");
+    assertEquals(2, askLimits.get(121).getTotalVolume(), "Only the remainder past the own ask fills");
+    assertEquals(121, book.getLastTradePrice());
+    assertEquals(0, book.getBestBid(), "Incoming order fully used up");
+
+    // Smaller incoming order, the resting one keeps the difference
+    order.set(0, false, 125, 5, 4);
+    order.setParticipantId(7);
+    book.publishOrder(order);
+    order.set(0, true, 125, 2, 5);
+    order.setParticipantId(8);
+    book.publishOrder(order); // Takes the anonymous remainder at 121
+    order.set(0, true, 125, 3, 6);
+    order.setParticipantId(7);
+    book.publishOrder(order);
+    Thread.sleep(150);
+
+    assertEquals(2, askLimits.get(125).getTotalVolume(), "Own ask reduced by the incoming size");
+    assertEquals(121, book.getLastTradePrice(), "No self trade should print");
+    assertEquals(0, book.getBestBid(), "Incoming order must not rest");
+  }
+
+  @Test
+  @DisplayName("FOK order does not count the participant's own resting quantity")
+  void testFillOrKillAgainstOwnOrder() throws Exception {
+    Market market = new Market("TEST", 120, 1000, 10, 1, 0, 0, Market.SelfTradePrevention.CANCEL_OLDEST);
+    OrderBook book = new OrderBook(market, 0, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+
+    OrderRequest order = new OrderRequest();
+    order.set(0, false, 120, 5, 1);
+    order.setParticipantId(7);
+    book.publishOrder(order);
+    book.publishOrder(0, false, 121, 5, 2); // Anonymous
+
+    // 10 rest at or below 121, but 5 of them would be cancelled, not filled
+    order.set(0, true, 121, 8, 3, OrderRequest.TimeInForce.FOK);
+    order.setParticipantId(7);
+    book.publishOrder(order);
+    Thread.sleep(150);
+
+    assertEquals(120, book.getBestAsk(), "Rejected FOK should not cancel the own order");
+    assertEquals(0, book.getLastTradePrice(), "Rejected FOK should not fill");
+
+    order.set(0, true, 121, 5, 4, OrderRequest.TimeInForce.FOK);
+    order.setParticipantId(7);
+    book.publishOrder(order);
+    Thread.sleep(150);
+
+    assertEquals(0, book.getBestAsk(), "Own order cancelled, the other one filled");
+    assertEquals(121, book.getLastTradePrice());
+
+    // CANCEL_NEWEST would stop the sweep at the own order, so reject up front
+    book = new OrderBook("TEST", 1, 1000, 10, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    book.publishOrder(0, false, 120, 5, 1);
+    order.set(0, false, 121, 5, 2);
+    order.setParticipantId(7);
+    book.publishOrder(order);
+    book.publishOrder(0, false, 121, 10, 3);
+
+    order.set(0, true, 121, 10, 4, OrderRequest.TimeInForce.FOK);
+    order.setParticipantId(7);
+    book.publishOrder(order);
+    Thread.sleep(150);
+
+    assertEquals(120, book.getBestAsk(), "Nothing should trade ahead of the own order");
+    assertEquals(0, book.getLastTradePrice());
+  }
+
+  @Test
+  void testAuctionUncrossAtEquilibrium() throws Exception {
+    OrderBook book = new OrderBook("TEST", 1, 1000, 10, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    book.startAuction();
+    book.publishOrder(0, true, 105, 10, 1);
+    book.publishOrder(0, true, 104, 4, 2);
+    book.publishOrder(0, true, 103, 5, 3);
+    book.publishOrder(0, false, 101, 8, 4);
+    book.publishOrder(0, false, 104, 10, 5);
+    Thread.sleep(150);
+
+    assertTrue(book.isInAuction());
+    assertEquals(105, book.getBestBid(), "Nothing should match during the auction");
+    assertEquals(101, book.getBestAsk());
+
+    // 104 executes 14 (bids 105+104 vs asks 101+104), more than any other tick
+    book.uncross();
+    Thread.sleep(150);
+
+    assertTrue(!book.isInAuction());
+    assertEquals(104, book.getLastTradePrice(), "Uncross should print at the equilibrium price");
+    assertEquals(103, book.getBestBid(), "Bid at 103 does not cross and stays");
+    assertEquals(104, book.getBestAsk(), "4 of the ask at 104 should be left");
+  }
+
+  @Test
+  @DisplayName("Uncross applies self-trade prevention between a participant's own orders")
+  void testAuctionUncrossSelfTradePrevention() throws Exception {
+    // Participant 7 bids first and offers later, both cross at 104
+    OrderBook book = new OrderBook("TEST", 1, 1000, 10, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    publishAuctionSelfCross(book);
+    book.uncross();
+    Thread.sleep(150);
+
+    assertEquals(104, book.getLastTradePrice());
+    assertEquals(104, book.getBestBid(), "Newer own ask cancelled, so the anonymous bid finds no seller");
+    assertEquals(0, book.getBestAsk(), "Own bid should have bought the anonymous ask");
+
+    Market market = new Market("TEST", 120, 1000, 10, 1, 0, 0, Market.SelfTradePrevention.CANCEL_OLDEST);
+    book = new OrderBook(market, 0, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    publishAuctionSelfCross(book);
+    book.uncross();
+    Thread.sleep(150);
+
+    assertEquals(104, book.getLastTradePrice());
+    assertEquals(0, book.getBestBid(), "Older own bid cancelled, the anonymous bid bought the own ask");
+    assertEquals(104, book.getBestAsk(), "Anonymous ask finds no buyer");
+  }
+
+  private static void publishAuctionSelfCross(OrderBook book) throws Exception {
+    book.startAuction();
+    OrderRequest order = new OrderRequest();
+    order.set(0, true, 105, 5, 1);
+    order.setParticipantId(7);
+    book.publishOrder(order);
+    book.publishOrder(0, true, 104, 5, 2);
+    order.set(0, false, 101, 5, 3);
+    order.setParticipantId(7);
+    book.publishOrder(order);
+    book.publishOrder(0, false, 104, 5, 4);
+    Thread.sleep(150);
+  }
+
+  @Test
+  void testProRataAllocation() throws Exception {
+    Market market = new Market("TEST", 120, 1000, 10, 1, 0, 0, Market.DEFAULT_SELF_TRADE_PREVENTION,
+        Market.Allocation.PRO_RATA);
+    OrderBook book = new OrderBook(market, 0, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    book.publishOrder(0, false, 120, 30, 1);
+    book.publishOrder(0, false, 120, 10, 2);
+
+    // 21 splits 15 / 5, the leftover lot goes to the oldest order
+    book.publishOrder(0, true, 120, 21, 3);
+    Thread.sleep(150);
+
+    Map<Integer, Limit> askLimits = limits(book, false);
+    Limit level = askLimits.get(120);
+    assertEquals(19, level.getTotalVolume());
+    assertEquals(2, level.getOrderCount(), "Pro-rata never fully fills a resting order");
+    assertEquals(14, level.peek().size, "Oldest order gets 15 pro-rata plus the leftover lot");
+  }
+
+  @Test
+  void testFifoTopProRataAllocation() throws Exception {
+    Market market = new Market("TEST", 120, 1000, 10, 1, 0, 0, Market.DEFAULT_SELF_TRADE_PREVENTION,
+        Market.Allocation.FIFO_TOP_PRO_RATA);
+    OrderBook book = new OrderBook(market, 0, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    book.publishOrder(0, false, 120, 10, 1);
+    book.publishOrder(0, false, 120, 30, 2);
+    book.publishOrder(0, false, 120, 10, 3);
+
+    // Order 1 fills first, the remaining 20 splits 15 / 5
+    book.publishOrder(0, true, 120, 30, 4);
+    Thread.sleep(150);
+
+    Map<Integer, Limit> askLimits = limits(book, false);
+    Limit level = askLimits.get(120);
+    assertEquals(20, level.getTotalVolume());
+    assertEquals(2, level.peek().id, "Top order should be gone");
+    assertEquals(15, level.peek().size);
+  }
+
+  @Test
+  void testPostOnly() throws Exception {
+    OrderBook book = new OrderBook("TEST", 1, 1000, 10, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    book.publishOrder(0, false, 120, 5, 1);
+
+    OrderRequest post = new OrderRequest();
+    post.set(0, true, 120, 5, 2);
+    post.setPostOnly(OrderRequest.PostOnly.REJECT);
+    book.publishOrder(post);
+    Thread.sleep(100);
+    assertEquals(120, book.getBestAsk(), "Post-only must not take liquidity");
+    assertEquals(0, book.getBestBid(), "Crossing post-only should be rejected");
+
+    post.set(0, true, 121, 5, 3);
+    post.setPostOnly(OrderRequest.PostOnly.REPRICE);
+    book.publishOrder(post);
+    Thread.sleep(100);
+    assertEquals(120, book.getBestAsk());
+    assertEquals(119, book.getBestBid(), "Should rest one tick behind the best ask");
+  }
+
+  @Test
+  void testProtectedMarketOrder() throws Exception {
+    Market market = new Market("TEST", 120, 1000, 10, 1, 0, 0, Market.DEFAULT_SELF_TRADE_PREVENTION,
+        Market.DEFAULT_ALLOCATION, 2);
+    OrderBook book = new OrderBook(market, 0, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    book.publishOrder(0, false, 120, 5, 1);
+    book.publishOrder(0, false, 121, 5, 2);
+    book.publishOrder(0, false, 125, 5, 3);
+
+    // May trade up to 122, the remaining 10 is cancelled
+    book.publishOrder(0, true, 0, 20, 4);
+    Thread.sleep(150);
+
+    assertEquals(125, book.getBestAsk(), "Ask beyond the protection band should survive");
+    assertEquals(121, book.getLastTradePrice());
+    assertEquals(0, book.getBestBid(), "Market remainder never rests");
+  }
+
+  @Test
+  void testCancelRestingOrder() throws Exception {
+    OrderBook book = new OrderBook("TEST", 1, 1000, 10, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    book.publishOrder(0, true, 100, 5, 1);
+    book.publishOrder(0, true, 100, 7, 2);
+    book.publishOrder(0, true, 99, 3, 3);
+
+    // Cancel from the middle of the queue, then the whole 99 level
+    book.publishOrder(0, true, 0, 0, 1);
+    book.publishOrder(0, true, 0, 0, 3);
+    Thread.sleep(100);
+
+    Map<Integer, Limit> bidLimits = limits(book, true);
+
+    assertEquals(7, bidLimits.get(100).getTotalVolume());
+    assertEquals(1, bidLimits.get(100).getOrderCount());
+    assertEquals(2, bidLimits.get(100).peek().id, "Remaining order keeps its place");
+    assertNull(bidLimits.get(99), "Emptied level should be released");
+
+    // The remaining order still trades
+    book.publishOrder(0, false, 100, 7, 4);
+    Thread.sleep(100);
+    assertEquals(0, book.getBestBid());
+    assertEquals(100, book.getLastTradePrice());
+  }
+
+  @Test
+  void testGoodTillDateExpires() throws Exception {
+    OrderBook book = new OrderBook("TEST", 1, 1000, 10, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    OrderRequest gtd = new OrderRequest();
+    gtd.set(0, false, 120, 5, 1, OrderRequest.TimeInForce.GTD);
+    gtd.setExpiryTime(TEST_CLOCK.time() + 50);
+    book.publishOrder(gtd);
+    book.publishOrder(0, false, 121, 5, 2);
+    Thread.sleep(20);
+    assertEquals(120, book.getBestAsk(), "GTD order rests until its expiry");
+
+    // Expires on an idle ring, without any further orders
+    Thread.sleep(200);
+    assertEquals(121, book.getBestAsk(), "GTD order should have expired");
+
+    // Already expired orders never rest
+    gtd.set(0, false, 119, 5, 3, OrderRequest.TimeInForce.GTD);
+    gtd.setExpiryTime(TEST_CLOCK.time() - 1);
+    book.publishOrder(gtd);
+    Thread.sleep(100);
+    assertEquals(121, book.getBestAsk());
+  }
+
+  @Test
+  void testMassQuoteReplacesLadder() throws Exception {
+    OrderBook book = new OrderBook("TEST", 1, 1000, 10, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    OrderRequest quote = new OrderRequest();
+    quote.setMassQuote(0, 100, 7);
+    quote.addQuote(true, 99, 10);
+    quote.addQuote(true, 98, 10);
+    quote.addQuote(false, 101, 10);
+    book.publishOrder(quote);
+    book.publishOrder(0, true, 99, 5, 1);
+
+    // Same price and a smaller size keeps the level's place in the queue
+    quote.setMassQuote(0, 200, 7);
+    quote.addQuote(true, 99, 8);
+    quote.addQuote(true, 97, 10);
+    quote.addQuote(false, 102, 10);
+    book.publishOrder(quote);
+    Thread.sleep(100);
+
+    Map<Integer, Limit> bidLimits = limits(book, true);
+
+    assertEquals(102, book.getBestAsk(), "Old ask level should be pulled");
+    assertNull(bidLimits.get(98), "Old bid level should be pulled");
+    assertEquals(10, bidLimits.get(97).getTotalVolume());
+    assertEquals(13, bidLimits.get(99).getTotalVolume());
+    assertEquals(200, bidLimits.get(99).peek().id, "Kept level is re-keyed and stays first");
+
+    book.publishOrder(0, false, 99, 8, 2);
+    Thread.sleep(100);
+    assertEquals(5, bidLimits.get(99).getTotalVolume());
+    assertEquals(1, bidLimits.get(99).peek().id);
+  }
+
+  @Test
+  void testAmendKeepsPriorityOnlyWhenReducing() throws Exception {
+    OrderBook book = new OrderBook("TEST", 1, 1000, 10, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    book.publishOrder(0, true, 100, 10, 1);
+    book.publishOrder(0, true, 100, 10, 2);
+    book.publishOrder(0, true, 100, 10, 3);
+
+    OrderRequest amend = new OrderRequest();
+    amend.set(0, true, 100, 4, 1);
+    amend.setType(OrderRequest.Type.AMEND);
+    book.publishOrder(amend);
+    Thread.sleep(100);
+
+    Map<Integer, Limit> bidLimits = limits(book, true);
+
+    assertEquals(24, bidLimits.get(100).getTotalVolume());
+    assertEquals(1, bidLimits.get(100).peek().id, "Size reduction keeps time priority");
+
+    // A size increase goes to the back of the queue
+    amend.set(0, true, 100, 12, 1);
+    amend.setType(OrderRequest.Type.AMEND);
+    book.publishOrder(amend);
+    Thread.sleep(100);
+    assertEquals(32, bidLimits.get(100).getTotalVolume());
+    assertEquals(2, bidLimits.get(100).peek().id);
+
+    // A price change moves the order to the new level
+    amend.set(0, true, 101, 12, 3);
+    amend.setType(OrderRequest.Type.AMEND);
+    book.publishOrder(amend);
+    Thread.sleep(100);
+    assertEquals(101, book.getBestBid());
+    assertEquals(22, bidLimits.get(100).getTotalVolume());
+    assertEquals(12, bidLimits.get(101).getTotalVolume());
+  }
+
+  @Test
+  @DisplayName("An amend outside the price collar is rejected and the order keeps resting where it was")
+  void testAmendRejectedOutsidePriceCollar() throws Exception {
+    OrderBook book = new OrderBook("TEST", 1, 1000, 10, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    book.publishOrder(0, true, 100, 10, 1);
+    book.publishOrder(0, false, 102, 10, 2);
+    book.publishOrder(0, false, 102, 10, 3);
+
+    // Mid is 101, so the collar tops out at 601
+    OrderRequest amend = new OrderRequest();
+    amend.set(0, false, 1000, 10, 2);
+    amend.setType(OrderRequest.Type.AMEND);
+    book.publishOrder(amend);
+    Thread.sleep(100);
+
+    Map<Integer, Limit> askLimits = limits(book, false);
+
+    assertTrue(!askLimits.containsKey(1000), "The rejected amend should not open the new level");
+    assertEquals(20, askLimits.get(102).getTotalVolume());
+    assertEquals(2, askLimits.get(102).peek().id, "A rejected amend keeps time priority");
+    assertEquals(102, book.getBestAsk());
+  }
+
+  @Test
+  void testMassCancel() throws Exception {
+    OrderBook book = new OrderBook("TEST", 1, 1000, 10, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    OrderRequest order = new OrderRequest();
+    for (int i = 0; i < 3; i++) {
+      order.set(0, true, 100 - i, 5, 10 + i);
+      order.setParticipantId(7);
+      book.publishOrder(order);
+      order.set(0, false, 110 + i, 5, 20 + i);
+      order.setParticipantId(7);
+      book.publishOrder(order);
+    }
+    book.publishOrder(0, true, 99, 5, 30);
+    book.publishOrder(0, false, 111, 5, 31);
+
+    OrderRequest massCancel = new OrderRequest();
+    massCancel.setMassCancel(0, 40, OrderRequest.MassCancelScope.PARTICIPANT_INSTRUMENT, false, 7);
+    book.publishOrder(massCancel);
+    Thread.sleep(100);
+
+    assertEquals(99, book.getBestBid(), "Only the other participant's bid should be left");
+    assertEquals(111, book.getBestAsk(), "Only the other participant's ask should be left");
+
+    massCancel.setMassCancel(0, 41, OrderRequest.MassCancelScope.INSTRUMENT_SIDE, true, 0);
+    book.publishOrder(massCancel);
+    Thread.sleep(100);
+    assertEquals(0, book.getBestBid(), "Every bid should be cancelled");
+    assertEquals(111, book.getBestAsk());
+  }
+
+  @Test
+  @DisplayName("Cancels and mass cancels pull parked stops, which then never trigger")
+  void testCancelsPullParkedStops() throws Exception {
+    OrderBook book = new OrderBook("TEST", 1, 1000, 10, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    book.publishOrder(0, false, 120, 5, 1);
+    book.publishOrder(0, false, 125, 20, 2);
+
+    OrderRequest stop = new OrderRequest();
+    for (int id = 10; id < 13; id++) {
+      stop.set(0, true, 0, 5, id);
+      stop.setStopPrice(120);
+      stop.setParticipantId(7);
+      book.publishOrder(stop);
+    }
+    stop.set(0, true, 0, 5, 20);
+    stop.setStopPrice(120);
+    stop.setParticipantId(8);
+    book.publishOrder(stop);
+    Thread.sleep(100);
+    assertEquals(4, book.getPendingStopCount());
+
+    book.publishOrder(0, true, 0, 0, 11);
+    Thread.sleep(100);
+    assertEquals(3, book.getPendingStopCount(), "A cancel by id should pull the stop");
+
+    OrderRequest massCancel = new OrderRequest();
+    massCancel.setMassCancel(0, 40, OrderRequest.MassCancelScope.PARTICIPANT_INSTRUMENT, false, 7);
+    book.publishOrder(massCancel);
+    Thread.sleep(100);
+    assertEquals(1, book.getPendingStopCount(), "Only the other participant's stop should be left");
+
+    // Trade at 120 releases the one stop left, which takes 5 of the 125 ask
+    book.publishOrder(0, true, 120, 5, 30);
+    Thread.sleep(200);
+    assertEquals(0, book.getPendingStopCount());
+    assertEquals(15, limits(book, false).get(125).getTotalVolume(), "Cancelled stops must not trigger");
+  }
+
+  @Test
+  void testPriceBandHaltsTrading() throws Exception {
+    Market market = new Market("TEST", 100, 1000, 10, 1, 0, 0, Market.DEFAULT_SELF_TRADE_PREVENTION,
+        Market.DEFAULT_ALLOCATION, 0, Market.DEFAULT_SESSION_END_MILLIS, 5, Market.BandBreach.HALT);
+    OrderBook book = new OrderBook(market, 0, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    book.publishOrder(0, false, 100, 5, 1);
+    book.publishOrder(0, false, 104, 5, 2);
+    book.publishOrder(0, false, 110, 5, 3);
+    book.publishOrder(0, true, 100, 5, 4); // Reference trade at 100, band 95-105
+    Thread.sleep(100);
+
+    // Sweeps through 104, stops before printing at 110
+    book.publishOrder(0, true, 0, 10, 5);
+    Thread.sleep(100);
+    assertEquals(104, book.getLastTradePrice());
+    assertTrue(book.isHalted());
+    assertEquals(110, book.getBestAsk(), "The level outside the band must not trade");
+
+    book.publishOrder(0, true, 110, 5, 6);
+    Thread.sleep(100);
+    assertEquals(110, book.getBestAsk(), "Orders are rejected while halted");
+
+    // The band follows the last trade, 104 +/- 5
+    book.resume();
+    book.publishOrder(0, false, 108, 5, 7);
+    book.publishOrder(0, true, 108, 5, 8);
+    Thread.sleep(100);
+    assertTrue(!book.isHalted());
+    assertEquals(108, book.getLastTradePrice());
+  }
+
+  @Test
+  @DisplayName("FOK order that would run into the price band is rejected without touching the book")
+  void testFillOrKillRespectsPriceBand() throws Exception {
+    Market market = new Market("TEST", 100, 1000, 10, 1, 0, 0, Market.DEFAULT_SELF_TRADE_PREVENTION,
+        Market.DEFAULT_ALLOCATION, 0, Market.DEFAULT_SESSION_END_MILLIS, 5, Market.BandBreach.HALT);
+    OrderBook book = new OrderBook(market, 0, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    book.publishOrder(0, false, 100, 5, 1);
+    book.publishOrder(0, false, 104, 5, 2);
+    book.publishOrder(0, false, 110, 5, 3);
+    book.publishOrder(0, true, 100, 5, 4); // Reference trade at 100, band 95-105
+    Thread.sleep(100);
+
+    // 10 rest on the ask side, but only 5 inside the band
+    OrderRequest fok = new OrderRequest();
+    fok.set(0, true, 0, 10, 5, OrderRequest.TimeInForce.FOK);
+    book.publishOrder(fok);
+    Thread.sleep(100);
+    assertEquals(104, book.getBestAsk(), "Rejected FOK should leave 104 untouched");
+    assertEquals(100, book.getLastTradePrice());
+    assertTrue(!book.isHalted(), "Rejected FOK should not trip the band");
+
+    fok.set(0, true, 0, 5, 6, OrderRequest.TimeInForce.FOK);
+    book.publishOrder(fok);
+    Thread.sleep(100);
+    assertEquals(104, book.getLastTradePrice());
+    assertEquals(110, book.getBestAsk());
+    assertTrue(!book.isHalted());
+  }
+
+  @Test
+  void testRawIngressDecodesOnTheBook() throws Exception {
+    OrderBook book = new OrderBook("TEST", 0, 1000, 10, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    book.enableRawIngress();
+    UnsafeBuffer buffer = new UnsafeBuffer(new byte[64]);
+    book.publishRaw(buffer, 0, encodeNewOrder(buffer, 0, 100, 5, true, 1));
+    book.publishRaw(buffer, 0, encodeNewOrder(buffer, 0, 101, 5, false, 2));
+    // Decoded requests still go through the same ring
+    book.publishOrder(0, true, 99, 5, 3);
+    Thread.sleep(100);
+    assertEquals(100, book.getBestBid());
+    assertEquals(101, book.getBestAsk());
+
+    final int length = MessageHeaderEncoder.ENCODED_LENGTH + new CancelOrderEncoder()
+        .wrapAndApplyHeader(buffer, 0, new MessageHeaderEncoder()).instrumentIndex(0).orderId(1).encodedLength();
+    book.publishRaw(buffer, 0, length);
+    Thread.sleep(100);
+    assertEquals(99, book.getBestBid(), "The raw cancel should pull the bid at 100");
+  }
+
+  @Test
+  void testTryPublishDrainsTheRing() throws Exception {
+    OrderBook book = new OrderBook("TEST", 0, 1000, 10, DUMMY_EGRESS_SERVICE, TEST_CLOCK);
+    book.enableRawIngress();
+    OrderRequest request = new OrderRequest();
+    request.set(0, true, 100, 5, 1);
+    assertTrue(book.tryPublishOrder(request));
+    UnsafeBuffer buffer = new UnsafeBuffer(new byte[64]);
+    assertTrue(book.tryPublishRaw(buffer, 0, encodeNewOrder(buffer, 0, 101, 5, false, 2)));
+    Thread.sleep(100);
+    assertEquals(100, book.getBestBid());
+    assertEquals(101, book.getBestAsk());
+    assertEquals(0, book.getRingOccupancy(), "Processed requests leave the ring");
+  }
+
+  @Test
+  @DisplayName("Top of book goes out when the best prices, quantities or last trade change")
+  void testPublishesTopOfBook() {
+    final TopOfBookDecoder decoder = new TopOfBookDecoder();
+    final int[] published = new int[1];
+    final int[] last = new int[5];
+    OrderBook book = new OrderBook(new Market("TEST", 0, 1000, 10), 0, new EgressService() {
+      @Override
+      public void egress(final DirectBuffer buffer, final int offset, final int length) {
+        if (length == TopOfBookDecoder.BLOCK_LENGTH) {
+          decoder.wrap(buffer, offset, TopOfBookDecoder.BLOCK_LENGTH, TopOfBookDecoder.SCHEMA_VERSION);
+          published[0]++;
+          last[0] = decoder.bestBid();
+          last[1] = decoder.bidQuantity();
+          last[2] = decoder.bestAsk();
+          last[3] = decoder.askQuantity();
+          last[4] = decoder.lastPrice();
+        }
+      }
+    }, TEST_CLOCK, false);
+
+    OrderRequest request = new OrderRequest();
+    request.set(0, true, 100, 5, 1);
+    book.process(request);
+    assertEquals(1, published[0]);
+    assertEquals(100, last[0]);
+    assertEquals(5, last[1]);
+
+    // Deeper than the best bid, nothing to report
+    request.set(0, true, 99, 5, 2);
+    book.process(request);
+    assertEquals(1, published[0]);
+
+    request.set(0, false, 100, 2, 3);
+    book.process(request);
+    assertEquals(2, published[0]);
+    assertEquals(3, last[1], "The trade takes 2 off the best bid");
+    assertEquals(100, last[4]);
+  }
+
+  private static int encodeNewOrder(final UnsafeBuffer buffer, final int offset, final int price,
+      final int quantity, final boolean isBid, final int id) {
+    return MessageHeaderEncoder.ENCODED_LENGTH + new NewOrderEncoder()
+        .wrapAndApplyHeader(buffer, offset, new MessageHeaderEncoder()).instrumentIndex(0)
+        .side(isBid ? Side.BID : Side.ASK).timeInForce(TimeInForce.GTC).price(price).quantity(quantity).orderId(id)
+        .postOnly(PostOnly.NONE).encodedLength();
+  }
+
+}
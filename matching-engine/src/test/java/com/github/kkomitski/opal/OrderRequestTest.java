@@ -0,0 +1,189 @@
+package com.github.kkomitski.opal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteOrder;
+
+import org.agrona.concurrent.UnsafeBuffer;
+import org.junit.jupiter.api.Test;
+
+import com.github.kkomitski.opal.orderbook.OrderRequest;
+import com.github.kkomitski.opal.orderbook.RequestDecoder;
+import com.github.kkomitski.opal.orderbook.RequestFrames;
+import com.github.kkomitski.opal.sbe.AmendOrderEncoder;
+import com.github.kkomitski.opal.sbe.CancelOrderEncoder;
+import com.github.kkomitski.opal.sbe.FillEncoder;
+import com.github.kkomitski.opal.sbe.MassCancelEncoder;
+import com.github.kkomitski.opal.sbe.MassCancelScope;
+import com.github.kkomitski.opal.sbe.MassQuoteEncoder;
+import com.github.kkomitski.opal.sbe.MessageHeaderEncoder;
+import com.github.kkomitski.opal.sbe.NewOrderEncoder;
+import com.github.kkomitski.opal.sbe.OrderStatusEncoder;
+import com.github.kkomitski.opal.sbe.OrderStatusType;
+import com.github.kkomitski.opal.sbe.PostOnly;
+import com.github.kkomitski.opal.sbe.Side;
+import com.github.kkomitski.opal.sbe.TimeInForce;
+import com.github.kkomitski.opal.utils.OrderStatusBatch;
+
+public class OrderRequestTest {
+
+  @Test
+  void testDecodesNewOrderAndCancel() {
+    UnsafeBuffer buffer = new UnsafeBuffer(new byte[256]);
+    NewOrderEncoder encoder = new NewOrderEncoder().wrapAndApplyHeader(buffer, 0, new MessageHeaderEncoder())
+        .instrumentIndex(3).side(Side.BID).timeInForce(TimeInForce.GTD).price(1_500).quantity(40).orderId(77)
+        .postOnly(PostOnly.REJECT).displayQuantity(10).stopPrice(1_400).participantId(9).expiryTime(123_456L);
+    final int length = MessageHeaderEncoder.ENCODED_LENGTH + encoder.encodedLength();
+    // A cancel packed behind it in the same fragment
+    UnsafeBuffer cancel = new UnsafeBuffer(buffer, length, buffer.capacity() - length);
+    final int cancelLength = MessageHeaderEncoder.ENCODED_LENGTH + new CancelOrderEncoder()
+        .wrapAndApplyHeader(cancel, 0, new MessageHeaderEncoder()).instrumentIndex(3).orderId(77).encodedLength();
+
+    RequestDecoder decoder = new RequestDecoder();
+    OrderRequest request = new OrderRequest();
+    assertEquals(length, decoder.decode(buffer, 0, length + cancelLength, request));
+    assertEquals(OrderRequest.Type.ORDER, request.getType());
+    assertEquals(3, request.getInstrumentIndex());
+    assertTrue(request.isBid());
+    assertEquals(1_500, request.getPrice());
+    assertEquals(40, request.getQuantity());
+    assertEquals(77, request.getId());
+    assertEquals(OrderRequest.TimeInForce.GTD, request.getTimeInForce());
+    assertEquals(OrderRequest.PostOnly.REJECT, request.getPostOnly());
+    assertEquals(10, request.getDisplayQuantity());
+    assertEquals(1_400, request.getStopPrice());
+    assertEquals(9, request.getParticipantId());
+    assertEquals(123_456L, request.getExpiryTime());
+
+    assertEquals(cancelLength, decoder.decode(buffer, length, length + cancelLength, request));
+    assertEquals(0, request.getPrice());
+    assertEquals(0, request.getQuantity());
+    assertEquals(77, request.getId());
+
+    // Truncated messages can't be framed
+    assertEquals(-1, decoder.decode(buffer, 0, length - 1, request));
+  }
+
+  @Test
+  void testFramesStreamCutAnywhere() {
+    UnsafeBuffer buffer = new UnsafeBuffer(new byte[256]);
+    final int first = MessageHeaderEncoder.ENCODED_LENGTH + new NewOrderEncoder()
+        .wrapAndApplyHeader(buffer, 0, new MessageHeaderEncoder()).instrumentIndex(1).side(Side.BID)
+        .timeInForce(TimeInForce.GTC).price(100).quantity(5).orderId(7).postOnly(PostOnly.NONE).encodedLength();
+    MassQuoteEncoder quote = new MassQuoteEncoder()
+        .wrapAndApplyHeader(new UnsafeBuffer(buffer, first, buffer.capacity() - first), 0, new MessageHeaderEncoder())
+        .quoteId(100).participantId(4);
+    quote.bidsCount(2).next().price(99).quantity(5).next().price(98).quantity(6);
+    quote.asksCount(1).next().price(101).quantity(7);
+    final int second = MessageHeaderEncoder.ENCODED_LENGTH + quote.encodedLength();
+
+    // Every cut of the stream is read only up to the cut
+    for (int limit = 0; limit <= first + second; limit++) {
+      assertEquals(limit < first ? -1 : first, RequestFrames.length(buffer, 0, limit));
+      if (limit >= first) {
+        assertEquals(limit < first + second ? -1 : second, RequestFrames.length(buffer, first, limit));
+      }
+    }
+  }
+
+  @Test
+  void testWideFieldsAndTypes() {
+    UnsafeBuffer buffer = new UnsafeBuffer(new byte[256]);
+    RequestDecoder decoder = new RequestDecoder();
+    OrderRequest request = new OrderRequest();
+
+    // Indexes, prices and quantities are full 32 bits
+    int length = MessageHeaderEncoder.ENCODED_LENGTH + new NewOrderEncoder()
+        .wrapAndApplyHeader(buffer, 0, new MessageHeaderEncoder()).instrumentIndex(20_000).side(Side.ASK)
+        .timeInForce(TimeInForce.GTC).price(50_000_000).quantity(1_000_000).orderId(5).postOnly(PostOnly.NONE)
+        .encodedLength();
+    assertEquals(length, decoder.decode(buffer, 0, length, request));
+    assertEquals(20_000, request.getInstrumentIndex());
+    assertEquals(50_000_000, request.getPrice());
+    assertEquals(1_000_000, request.getQuantity());
+    assertEquals(OrderRequest.TimeInForce.GTC, request.getTimeInForce());
+
+    length = MessageHeaderEncoder.ENCODED_LENGTH + new AmendOrderEncoder()
+        .wrapAndApplyHeader(buffer, 0, new MessageHeaderEncoder()).instrumentIndex(1).orderId(5).price(101)
+        .quantity(3).participantId(9).encodedLength();
+    assertEquals(length, decoder.decode(buffer, 0, length, request));
+    assertEquals(OrderRequest.Type.AMEND, request.getType());
+    assertEquals(9, request.getParticipantId());
+
+    length = MessageHeaderEncoder.ENCODED_LENGTH + new MassCancelEncoder()
+        .wrapAndApplyHeader(buffer, 0, new MessageHeaderEncoder()).instrumentIndex(1).requestId(6)
+        .scope(MassCancelScope.INSTRUMENT_SIDE).side(Side.BID).participantId(0).encodedLength();
+    assertEquals(length, decoder.decode(buffer, 0, length, request));
+    assertEquals(OrderRequest.Type.MASS_CANCEL, request.getType());
+    assertEquals(OrderRequest.MassCancelScope.INSTRUMENT_SIDE, request.getMassCancelScope());
+    assertEquals(OrderRequest.MassCancelScope.INSTRUMENT_SIDE, RequestFrames.massCancelScope(buffer, 0));
+    assertTrue(request.isBid());
+  }
+
+  @Test
+  void testUnknownEnumCodesAreLeftForTheBook() {
+    UnsafeBuffer buffer = new UnsafeBuffer(new byte[256]);
+    NewOrderEncoder encoder = new NewOrderEncoder().wrapAndApplyHeader(buffer, 0, new MessageHeaderEncoder())
+        .instrumentIndex(1).side(Side.BID).timeInForce(TimeInForce.GTC).price(100).quantity(5).orderId(7)
+        .postOnly(PostOnly.NONE);
+    final int length = MessageHeaderEncoder.ENCODED_LENGTH + encoder.encodedLength();
+    // Codes the generated enums don't know decode without throwing
+    buffer.putByte(MessageHeaderEncoder.ENCODED_LENGTH + NewOrderEncoder.timeInForceEncodingOffset(), (byte) 9);
+    buffer.putByte(MessageHeaderEncoder.ENCODED_LENGTH + NewOrderEncoder.postOnlyEncodingOffset(), (byte) 9);
+
+    OrderRequest request = new OrderRequest();
+    assertEquals(length, new RequestDecoder().decode(buffer, 0, length, request));
+    assertNull(request.getTimeInForce());
+    assertNull(request.getPostOnly());
+  }
+
+  @Test
+  void testSbeMassQuote() {
+    UnsafeBuffer buffer = new UnsafeBuffer(new byte[256]);
+    MassQuoteEncoder encoder = new MassQuoteEncoder().wrapAndApplyHeader(buffer, 0, new MessageHeaderEncoder())
+        .quoteId(100).participantId(4);
+    encoder.bidsCount(2).next().price(99).quantity(5).next().price(98).quantity(6);
+    encoder.asksCount(1).next().price(101).quantity(7);
+    final int length = MessageHeaderEncoder.ENCODED_LENGTH + encoder.encodedLength();
+
+    OrderRequest request = new OrderRequest();
+    assertEquals(length, new RequestDecoder().decode(buffer, 0, length, request));
+    assertEquals(OrderRequest.Type.MASS_QUOTE, request.getType());
+    assertEquals(4, request.getParticipantId());
+    assertEquals(2, request.getQuoteCount(true));
+    assertEquals(1, request.getQuoteCount(false));
+    assertEquals(98, request.getQuotePrice(true, 1));
+    assertEquals(7, request.getQuoteQuantity(false, 0));
+  }
+
+  @Test
+  void testSbeEgressKeepsEventLayouts() {
+    // Consumers read egress by offset and tell messages apart by length
+    UnsafeBuffer fill = new UnsafeBuffer(new byte[FillEncoder.BLOCK_LENGTH]);
+    new FillEncoder().wrap(fill, 0).takerOrderId(1).makerOrderId(2).price(300).quantity(40).timestamp(5_000L);
+    assertEquals(24, FillEncoder.BLOCK_LENGTH);
+    assertEquals(1, fill.getInt(0, ByteOrder.BIG_ENDIAN));
+    assertEquals(2, fill.getInt(4, ByteOrder.BIG_ENDIAN));
+    assertEquals(300, fill.getInt(8, ByteOrder.BIG_ENDIAN));
+    assertEquals(40, fill.getInt(12, ByteOrder.BIG_ENDIAN));
+    assertEquals(5_000L, fill.getLong(16, ByteOrder.BIG_ENDIAN));
+
+    UnsafeBuffer status = new UnsafeBuffer(new byte[OrderStatusEncoder.BLOCK_LENGTH]);
+    new OrderStatusEncoder().wrap(status, 0).orderId(9).status(OrderStatusType.REPRICED).reason((short) 11)
+        .quantity(5_000_000).price(250).timestamp(7_000L);
+    assertEquals(OrderStatusBatch.EVENT_SIZE, OrderStatusEncoder.BLOCK_LENGTH);
+    assertEquals(9, status.getInt(0, ByteOrder.BIG_ENDIAN));
+    assertEquals(3, status.getByte(4));
+    assertEquals(11, status.getByte(5));
+    assertEquals(5_000_000, status.getInt(8, ByteOrder.BIG_ENDIAN), "Quantities don't fit 16 bits");
+    assertEquals(250, status.getInt(12, ByteOrder.BIG_ENDIAN));
+    assertEquals(7_000L, status.getLong(16, ByteOrder.BIG_ENDIAN));
+
+    UnsafeBuffer batch = new UnsafeBuffer(new byte[OrderStatusBatch.HEADER_SIZE + 3 * OrderStatusBatch.EVENT_SIZE]);
+    OrderStatusBatch.encodeCount(3, batch, 0);
+    assertTrue(OrderStatusBatch.isBatch(batch, 0, batch.capacity()));
+    assertEquals(3, OrderStatusBatch.getCount(batch, 0));
+  }
+}
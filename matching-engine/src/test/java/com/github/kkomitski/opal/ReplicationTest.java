@@ -0,0 +1,142 @@
+package com.github.kkomitski.opal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.agrona.ExpandableDirectByteBuffer;
+import org.agrona.IoUtil;
+import org.agrona.concurrent.CachedEpochClock;
+import org.agrona.concurrent.UnsafeBuffer;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.github.kkomitski.opal.orderbook.OrderRequest;
+import com.github.kkomitski.opal.replication.ReplicatedLog;
+import com.github.kkomitski.opal.services.EgressService;
+import com.github.kkomitski.opal.utils.Market;
+
+public class ReplicationTest {
+
+  private static final Market MARKET = new Market("TEST", 100, 200, 10);
+
+  @Test
+  @DisplayName("A restored book snapshots the same and matches the same")
+  void testSnapshotRoundTrip() {
+    CachedEpochClock clock = new CachedEpochClock();
+    clock.update(1_000_000);
+    OrderBook book = new OrderBook(MARKET, 0, new EgressService(), clock, false);
+    OrderRequest req = new OrderRequest();
+
+    req.set(0, true, 95, 5, 1);
+    book.process(req);
+    req.set(0, true, 96, 3, 2);
+    req.setParticipantId(7);
+    book.process(req);
+    req.set(0, false, 104, 20, 3, OrderRequest.TimeInForce.GTC, 5);
+    book.process(req);
+    req.set(0, false, 105, 4, 4, OrderRequest.TimeInForce.GTD);
+    req.setExpiryTime(1_060_000);
+    book.process(req);
+    req.set(0, true, 0, 2, 5);
+    req.setStopPrice(106);
+    book.process(req);
+
+    ExpandableDirectByteBuffer first = new ExpandableDirectByteBuffer(1024);
+    int length = book.writeSnapshot(first, 0);
+
+    OrderBook restored = new OrderBook(MARKET, 0, new EgressService(), clock, false);
+    assertEquals(length, restored.restoreSnapshot(first, 0));
+    ExpandableDirectByteBuffer second = new ExpandableDirectByteBuffer(1024);
+    assertEquals(length, restored.writeSnapshot(second, 0));
+    assertEquals(new UnsafeBuffer(first, 0, length), new UnsafeBuffer(second, 0, length));
+    assertEquals(96, restored.getBestBid());
+    assertEquals(104, restored.getBestAsk());
+    assertEquals(1, restored.getPendingStopCount());
+
+    // Same request, same outcome on both
+    for (OrderBook each : new OrderBook[] { book, restored }) {
+      req.set(0, true, 105, 12, 6);
+      each.process(req);
+    }
+    length = book.writeSnapshot(first, 0);
+    assertEquals(length, restored.writeSnapshot(second, 0));
+    assertEquals(new UnsafeBuffer(first, 0, length), new UnsafeBuffer(second, 0, length));
+    assertEquals(book.getBestAsk(), restored.getBestAsk());
+    assertEquals(book.getLastTradePrice(), restored.getLastTradePrice());
+  }
+
+  @Test
+  @DisplayName("Log positions survive truncation and compaction")
+  void testReplicatedLog() {
+    ReplicatedLog log = new ReplicatedLog();
+    UnsafeBuffer payload = new UnsafeBuffer(new byte[16]);
+
+    long first = log.append(1, 10, ReplicatedLog.KIND_NO_OP, null, 0, 0);
+    long second = log.append(1, 11, ReplicatedLog.KIND_INGRESS, payload, 0, 16);
+    long third = log.append(2, 12, ReplicatedLog.KIND_INGRESS, payload, 0, 8);
+    assertEquals(ReplicatedLog.HEADER_LENGTH, first);
+    assertEquals(third, log.endPosition());
+    assertEquals(1, log.termEndingAt(second));
+    assertEquals(2, log.termStartingAt(second));
+    assertEquals(-1, log.termEndingAt(second - 1), "Not the end of an entry");
+    assertEquals(first, log.entryStart(second - 1));
+    assertEquals(second - first, log.entriesLength(first, 1), "At least one entry");
+
+    log.truncate(second);
+    assertEquals(second, log.endPosition());
+    assertEquals(1, log.lastTerm());
+
+    log.append(3, 13, ReplicatedLog.KIND_TICK, null, 0, 0);
+    log.compact(second);
+    assertEquals(second, log.basePosition());
+    assertEquals(1, log.termEndingAt(second), "Base keeps the term of the entry before it");
+    assertEquals(3, log.termStartingAt(second));
+    assertEquals(13, log.lastTimestamp());
+    assertEquals(ReplicatedLog.HEADER_LENGTH, log.offset(log.endPosition()));
+  }
+
+  @Test
+  @DisplayName("A reopened log holds exactly the entries forced to disk")
+  void testLogRecoversFromDisk() throws Exception {
+    File directory = Files.createTempDirectory("opal-log").toFile();
+    UnsafeBuffer payload = new UnsafeBuffer(new byte[16]);
+
+    ReplicatedLog log = new ReplicatedLog(directory);
+    log.recover(0, 0, 0);
+    log.append(1, 10, ReplicatedLog.KIND_NO_OP, null, 0, 0);
+    long second = log.append(1, 11, ReplicatedLog.KIND_INGRESS, payload, 0, 16);
+    log.append(1, 12, ReplicatedLog.KIND_INGRESS, payload, 0, 16);
+    log.force();
+    log.truncate(second); // Uncommitted, replaced by the new leader's entry
+    long forced = log.append(2, 13, ReplicatedLog.KIND_INGRESS, payload, 0, 8);
+    assertEquals(forced, log.force());
+    log.append(2, 14, ReplicatedLog.KIND_TICK, null, 0, 0); // Never forced
+    log.close();
+
+    log = new ReplicatedLog(directory);
+    log.recover(0, 0, 0);
+    assertEquals(forced, log.endPosition());
+    assertEquals(2, log.lastTerm());
+    assertEquals(1, log.termEndingAt(second));
+    assertEquals(13, log.lastTimestamp());
+
+    // A snapshot at second starts a new segment, the log restarts from it
+    log.startSegment(second);
+    log.deleteSegmentsBefore(second);
+    long last = log.append(2, 15, ReplicatedLog.KIND_TICK, null, 0, 0);
+    log.force();
+    log.close();
+
+    log = new ReplicatedLog(directory);
+    log.recover(second, 1, 11);
+    assertEquals(second, log.basePosition());
+    assertEquals(last, log.endPosition());
+    assertEquals(2, log.termStartingAt(second));
+    assertEquals("log-" + second + ".dat", String.join(",", directory.list()),
+        "Segments before the snapshot are deleted");
+    log.close();
+    IoUtil.delete(directory, true);
+  }
+}
@@ -0,0 +1,192 @@
+package com.github.kkomitski.opal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.agrona.concurrent.SystemEpochClock;
+import org.junit.jupiter.api.Test;
+
+import com.github.kkomitski.opal.orderbook.OrderRequest;
+import com.github.kkomitski.opal.risk.ExposureTable;
+import com.github.kkomitski.opal.risk.RiskCheck;
+import com.github.kkomitski.opal.risk.RiskLimits;
+import com.github.kkomitski.opal.services.EgressService;
+import com.github.kkomitski.opal.utils.Market;
+
+public class RiskCheckTest {
+
+  private static final EgressService DUMMY_EGRESS_SERVICE = new EgressService();
+
+  @Test
+  void testOrderSizeAndNotionalLimits() {
+    RiskCheck riskCheck = new RiskCheck(1, 64, new RiskLimits(10, 500, 0, 0));
+    OrderRequest order = new OrderRequest();
+
+    order.set(0, true, 100, 11, 1);
+    riskCheck.check(order);
+    assertEquals(OrderRequest.RejectionReason.MAX_ORDER_SIZE_EXCEEDED, order.getRiskRejection());
+
+    order.set(0, true, 100, 6, 2);
+    riskCheck.check(order);
+    assertEquals(OrderRequest.RejectionReason.MAX_NOTIONAL_EXCEEDED, order.getRiskRejection());
+
+    order.set(0, true, 100, 5, 3);
+    riskCheck.check(order);
+    assertNull(order.getRiskRejection());
+    assertFalse(order.isRiskAccepted(), "Anonymous orders are not counted");
+
+    // Cancels are never checked
+    order.set(0, true, 0, 0, 3);
+    riskCheck.check(order);
+    assertNull(order.getRiskRejection());
+  }
+
+  @Test
+  void testExposureFollowsFills() throws Exception {
+    RiskCheck riskCheck = new RiskCheck(1, 64, RiskLimits.NONE);
+    riskCheck.setLimits(7, new RiskLimits(0, 0, 1, 0));
+    riskCheck.setLimits(8, new RiskLimits(0, 0, 0, 5));
+    OrderBook book = new OrderBook("TEST", 0, 1000, 10, DUMMY_EGRESS_SERVICE, SystemEpochClock.INSTANCE);
+    book.attachRiskCheck(riskCheck);
+    ExposureTable exposures = riskCheck.getExposures();
+    OrderRequest order = new OrderRequest();
+
+    order.set(0, true, 100, 5, 1);
+    order.setParticipantId(7);
+    riskCheck.check(order);
+    assertTrue(order.isRiskAccepted());
+    book.publishOrder(order);
+
+    order.set(0, false, 100, 3, 2);
+    order.setParticipantId(8);
+    riskCheck.check(order);
+    book.publishOrder(order);
+    Thread.sleep(100);
+
+    final int buyer = exposures.find(7, 0);
+    final int seller = exposures.find(8, 0);
+    assertEquals(3, exposures.position(buyer));
+    assertEquals(-3, exposures.position(seller));
+    assertEquals(1, exposures.openOrders(buyer), "The bid still rests");
+    assertEquals(0, exposures.openOrders(seller), "The ask filled completely");
+    assertEquals(100, riskCheck.lastPrice(0));
+
+    order.set(0, true, 99, 1, 3);
+    order.setParticipantId(7);
+    riskCheck.check(order);
+    assertEquals(OrderRequest.RejectionReason.OPEN_ORDER_LIMIT_REACHED, order.getRiskRejection());
+    book.publishOrder(order);
+
+    order.set(0, false, 0, 3, 4);
+    order.setParticipantId(8);
+    riskCheck.check(order);
+    assertEquals(OrderRequest.RejectionReason.POSITION_LIMIT_EXCEEDED, order.getRiskRejection());
+    book.publishOrder(order);
+    Thread.sleep(100);
+
+    assertEquals(100, book.getBestBid(), "Rejected orders must not reach the book");
+    assertEquals(3, exposures.position(buyer));
+
+    // Cancelling the bid frees the open order slot
+    order.set(0, true, 0, 0, 1);
+    order.setParticipantId(7);
+    riskCheck.check(order);
+    book.publishOrder(order);
+    Thread.sleep(100);
+    assertEquals(0, exposures.openOrders(buyer));
+  }
+
+  @Test
+  void testDroppedOrderIsNoLongerOpen() {
+    RiskCheck riskCheck = new RiskCheck(1, 64, RiskLimits.NONE);
+    riskCheck.setLimits(7, new RiskLimits(0, 0, 1, 0));
+    OrderRequest order = new OrderRequest();
+
+    order.set(0, true, 100, 5, 1);
+    order.setParticipantId(7);
+    riskCheck.check(order);
+    assertTrue(order.isRiskAccepted());
+    // Rejected as busy at ingress, the book never sees it
+    riskCheck.onDropped(order);
+    assertEquals(0, riskCheck.getExposures().openOrders(riskCheck.getExposures().find(7, 0)));
+
+    order.set(0, true, 100, 5, 2);
+    order.setParticipantId(7);
+    riskCheck.check(order);
+    assertNull(order.getRiskRejection(), "The dropped order doesn't count against the limit");
+  }
+
+  @Test
+  void testMassQuoteLegsAreChecked() {
+    RiskCheck riskCheck = new RiskCheck(1, 64, RiskLimits.NONE);
+    riskCheck.setLimits(7, new RiskLimits(10, 2_000, 3, 15));
+    OrderRequest quote = new OrderRequest();
+
+    quote.setMassQuote(0, 1, 7);
+    quote.addQuote(true, 99, 10);
+    quote.addQuote(false, 101, 11);
+    riskCheck.check(quote);
+    assertEquals(OrderRequest.RejectionReason.MAX_ORDER_SIZE_EXCEEDED, quote.getRiskRejection());
+
+    quote.setMassQuote(0, 2, 7);
+    quote.addQuote(true, 99, 10);
+    quote.addQuote(false, 201, 10);
+    riskCheck.check(quote);
+    assertEquals(OrderRequest.RejectionReason.MAX_NOTIONAL_EXCEEDED, quote.getRiskRejection());
+
+    quote.setMassQuote(0, 3, 7);
+    quote.addQuote(true, 99, 1);
+    quote.addQuote(true, 98, 1);
+    quote.addQuote(false, 101, 1);
+    quote.addQuote(false, 102, 1);
+    riskCheck.check(quote);
+    assertEquals(OrderRequest.RejectionReason.OPEN_ORDER_LIMIT_REACHED, quote.getRiskRejection());
+
+    // Both bids filling would leave the account long 16
+    quote.setMassQuote(0, 4, 7);
+    quote.addQuote(true, 99, 8);
+    quote.addQuote(true, 98, 8);
+    quote.addQuote(false, 101, 8);
+    riskCheck.check(quote);
+    assertEquals(OrderRequest.RejectionReason.POSITION_LIMIT_EXCEEDED, quote.getRiskRejection());
+
+    quote.setMassQuote(0, 5, 7);
+    quote.addQuote(true, 99, 8);
+    quote.addQuote(false, 101, 8);
+    riskCheck.check(quote);
+    assertNull(quote.getRiskRejection());
+  }
+
+  @Test
+  void testAmendCannotGrowPastTheLimits() {
+    RiskCheck riskCheck = new RiskCheck(1, 64, RiskLimits.NONE);
+    riskCheck.setLimits(7, new RiskLimits(10, 0, 0, 0));
+    OrderBook book = new OrderBook(new Market("TEST", 100, 200, 10), 0, DUMMY_EGRESS_SERVICE,
+        SystemEpochClock.INSTANCE, false);
+    book.attachRiskCheck(riskCheck);
+    OrderRequest order = new OrderRequest();
+
+    order.set(0, true, 100, 5, 1);
+    order.setParticipantId(7);
+    riskCheck.check(order);
+    assertTrue(order.isRiskAccepted());
+    book.process(order);
+
+    // A small order amended up would otherwise dodge the size limit
+    order.set(0, true, 100, 50, 1);
+    order.setParticipantId(7);
+    order.setType(OrderRequest.Type.AMEND);
+    riskCheck.check(order);
+    book.process(order);
+    assertEquals(5, book.getBidLimits().get(100).getTotalVolume(), "The amend must be rejected");
+
+    order.set(0, true, 100, 10, 1);
+    order.setParticipantId(7);
+    order.setType(OrderRequest.Type.AMEND);
+    riskCheck.check(order);
+    book.process(order);
+    assertEquals(10, book.getBidLimits().get(100).getTotalVolume());
+  }
+}
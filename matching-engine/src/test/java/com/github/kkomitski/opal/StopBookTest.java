@@ -0,0 +1,97 @@
+package com.github.kkomitski.opal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.kkomitski.opal.orderbook.OrderRequest;
+import com.github.kkomitski.opal.orderbook.StopBook;
+
+public class StopBookTest {
+
+  @Test
+  void testReleasesOnlyCrossedStopsInOrder() {
+    StopBook stops = new StopBook(8);
+    OrderRequest req = new OrderRequest();
+
+    req.set(0, true, 0, 5, 1);
+    stops.add(req, 105);
+    req.set(0, true, 110, 5, 2);
+    stops.add(req, 103);
+    req.set(0, true, 0, 5, 3);
+    stops.add(req, 103);
+    req.set(0, false, 0, 5, 4);
+    stops.add(req, 95);
+
+    OrderRequest out = new OrderRequest();
+    assertFalse(stops.pollTriggered(100, 0, out), "Nothing is crossed at 100");
+
+    assertTrue(stops.pollTriggered(104, 0, out));
+    assertEquals(2, out.getId(), "Oldest stop at the lowest buy tick goes first");
+    assertEquals(110, out.getPrice(), "Stop-limit keeps its limit price");
+    assertFalse(out.isStop(), "Released orders are plain orders");
+    assertTrue(stops.pollTriggered(104, 0, out));
+    assertEquals(3, out.getId());
+    assertFalse(stops.pollTriggered(104, 0, out), "105 is not crossed by 104");
+
+    assertTrue(stops.pollTriggered(95, 0, out));
+    assertEquals(4, out.getId(), "Sell stops trigger when the price falls to them");
+    assertEquals(1, stops.size());
+  }
+
+  @Test
+  void testRemovesByIdParticipantAndSide() {
+    StopBook stops = new StopBook(8);
+    OrderRequest req = new OrderRequest();
+    for (int id = 1; id <= 4; id++) {
+      req.set(0, true, 0, 5, id);
+      req.setParticipantId(id % 2 == 0 ? 7 : 8);
+      stops.add(req, 103);
+    }
+    req.set(0, false, 0, 5, 5);
+    req.setParticipantId(7);
+    stops.add(req, 95);
+
+    OrderRequest out = new OrderRequest();
+    assertFalse(stops.remove(1, 7, 0, out), "Only the owner's cancel matches");
+    assertTrue(stops.remove(1, 0, 0, out));
+    assertEquals(1, out.getId());
+    assertFalse(stops.remove(1, 0, 0, out), "Already removed");
+
+    int[] removed = new int[1];
+    assertEquals(3, stops.removeParticipant(7, 0, out, (stopTick, stop) -> removed[0]++));
+    assertEquals(3, removed[0]);
+    assertEquals(1, stops.size());
+
+    // The emptied sell tick is skipped, and a re-parked stop at it triggers
+    assertTrue(stops.pollTriggered(120, 0, out));
+    assertEquals(3, out.getId());
+    req.set(0, false, 0, 5, 6);
+    stops.add(req, 95);
+    assertTrue(stops.pollTriggered(95, 0, out));
+    assertEquals(6, out.getId());
+
+    req.set(0, true, 0, 5, 7);
+    stops.add(req, 110);
+    assertEquals(1, stops.removeSide(true, 0, out, (stopTick, stop) -> { }));
+    assertEquals(0, stops.size());
+    assertFalse(stops.pollTriggered(200, 0, out));
+  }
+
+  @Test
+  void testCapacity() {
+    StopBook stops = new StopBook(2);
+    OrderRequest req = new OrderRequest();
+    req.set(0, true, 0, 5, 1);
+
+    assertTrue(stops.add(req, 100));
+    assertTrue(stops.add(req, 101));
+    assertFalse(stops.add(req, 102), "Book should be full");
+
+    OrderRequest out = new OrderRequest();
+    assertTrue(stops.pollTriggered(100, 0, out));
+    assertTrue(stops.add(req, 102), "Released slots are reused");
+  }
+}
@@ -0,0 +1,118 @@
+package com.github.kkomitski.opal.gateway;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.agrona.CloseHelper;
+import org.agrona.IoUtil;
+import org.agrona.concurrent.UnsafeBuffer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.github.kkomitski.opal.aeron.utils.AeronPublisher;
+import com.github.kkomitski.opal.aeron.utils.AttachAeronMediaDriver;
+import com.github.kkomitski.opal.orderbook.OrderRequest;
+import com.github.kkomitski.opal.orderbook.RequestDecoder;
+import com.github.kkomitski.opal.sbe.MessageHeaderEncoder;
+import com.github.kkomitski.opal.sbe.NewOrderEncoder;
+import com.github.kkomitski.opal.sbe.PostOnly;
+import com.github.kkomitski.opal.sbe.Side;
+import com.github.kkomitski.opal.sbe.TimeInForce;
+
+import io.aeron.Subscription;
+import io.aeron.driver.MediaDriver;
+import io.aeron.driver.ThreadingMode;
+import io.aeron.logbuffer.FrameDescriptor;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+public class GatewaySessionTest {
+
+  private static final int STREAM_ID = 9003;
+  private static final long AWAIT_MS = 10_000;
+  private static final int REQUEST_LENGTH = MessageHeaderEncoder.ENCODED_LENGTH + NewOrderEncoder.BLOCK_LENGTH;
+
+  private File directory;
+  private MediaDriver driver;
+  private AttachAeronMediaDriver mediaDriver;
+  private Subscription ingress;
+  private AeronPublisher channel;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    directory = Files.createTempDirectory("opal-gateway").toFile();
+    driver = MediaDriver.launchEmbedded(new MediaDriver.Context()
+        .aeronDirectoryName(new File(directory, "aeron").getAbsolutePath())
+        .threadingMode(ThreadingMode.SHARED)
+        .ipcTermBufferLength(1 << 20)
+        .dirDeleteOnStart(true)
+        .dirDeleteOnShutdown(true));
+    mediaDriver = new AttachAeronMediaDriver(driver.aeronDirectoryName());
+    ingress = mediaDriver.aeron().addSubscription("aeron:ipc", STREAM_ID);
+    channel = new AeronPublisher(mediaDriver, "ipc", STREAM_ID, true);
+  }
+
+  @AfterEach
+  void tearDown() {
+    CloseHelper.closeAll(channel, ingress, mediaDriver, driver);
+    IoUtil.delete(directory, true);
+  }
+
+  @Test
+  @DisplayName("A read larger than one fragment goes out as several offers of whole requests")
+  void testReadLargerThanOneFragment() {
+    final int maxPayloadLength = channel.publication().maxPayloadLength();
+    final int requests = 3 * maxPayloadLength / REQUEST_LENGTH;
+    final UnsafeBuffer encoded = new UnsafeBuffer(new byte[requests * REQUEST_LENGTH]);
+    final NewOrderEncoder encoder = new NewOrderEncoder();
+    for (int i = 0; i < requests; i++) {
+      encoder.wrapAndApplyHeader(encoded, i * REQUEST_LENGTH, new MessageHeaderEncoder()).instrumentIndex(0)
+          .side(Side.BID).timeInForce(TimeInForce.GTC).price(100).quantity(1).orderId(i + 1)
+          .postOnly(PostOnly.NONE);
+    }
+    final ByteBuf read = Unpooled.wrappedBuffer(encoded.byteArray());
+
+    final long deadline = System.currentTimeMillis() + AWAIT_MS;
+    while (!channel.publication().isConnected()) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Ingress never connected");
+      }
+      Thread.yield();
+    }
+    final EmbeddedChannel client = new EmbeddedChannel(new GatewaySession(new AeronPublisher[] { channel }));
+    client.writeInbound(read);
+
+    final ByteBuf response = client.readOutbound();
+    assertEquals(GatewaySession.ACK, response.readIntLE());
+    response.readIntLE();
+    assertEquals(requests, response.readLongLE(), "Every request should be acked, none rejected");
+    response.release();
+
+    final RequestDecoder decoder = new RequestDecoder();
+    final OrderRequest request = new OrderRequest();
+    final int[] received = new int[1];
+    while (received[0] < requests) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Only " + received[0] + " of " + requests + " requests arrived");
+      }
+      ingress.poll((buffer, offset, length, header) -> {
+        assertEquals(FrameDescriptor.UNFRAGMENTED, header.flags(), "Each offer should fit one fragment");
+        assertTrue(length <= maxPayloadLength);
+        assertEquals(0, length % REQUEST_LENGTH, "Fragments should hold whole requests");
+        for (int position = offset; position < offset + length; position += REQUEST_LENGTH) {
+          assertEquals(REQUEST_LENGTH, decoder.decode(buffer, position, offset + length, request));
+          assertEquals(++received[0], request.getId(), "Requests should arrive in order");
+        }
+      }, 10);
+    }
+    client.finishAndReleaseAll();
+  }
+}
@@ -0,0 +1,360 @@
+package com.github.kkomitski.opal.replication;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import org.agrona.CloseHelper;
+import org.agrona.DirectBuffer;
+import org.agrona.ExpandableDirectByteBuffer;
+import org.agrona.IoUtil;
+import org.agrona.collections.LongHashSet;
+import org.agrona.concurrent.UnsafeBuffer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.github.kkomitski.opal.aeron.utils.AeronPublisher;
+import com.github.kkomitski.opal.aeron.utils.AttachAeronMediaDriver;
+import com.github.kkomitski.opal.risk.ExposureTable;
+import com.github.kkomitski.opal.risk.RiskCheck;
+import com.github.kkomitski.opal.risk.RiskLimits;
+import com.github.kkomitski.opal.sbe.FillDecoder;
+import com.github.kkomitski.opal.sbe.MessageHeaderEncoder;
+import com.github.kkomitski.opal.sbe.NewOrderEncoder;
+import com.github.kkomitski.opal.sbe.PostOnly;
+import com.github.kkomitski.opal.sbe.Side;
+import com.github.kkomitski.opal.sbe.TimeInForce;
+import com.github.kkomitski.opal.services.EgressService;
+import com.github.kkomitski.opal.utils.IngressChannel;
+import com.github.kkomitski.opal.utils.Market;
+
+import io.aeron.ExclusivePublication;
+import io.aeron.Subscription;
+import io.aeron.driver.MediaDriver;
+import io.aeron.driver.ThreadingMode;
+
+/*
+Three replicas in one process on an embedded driver, each driven from the test
+thread. The books snapshot the number of requests they processed along with
+every resting order, so a replica's books identify exactly how many orders it
+has applied, and that each filled the way it did on the reference books. Every
+replica egresses to one stream, which has to carry each fill of the reference
+books whichever replica reported it.
+*/
+public class ReplicaNodeTest {
+
+  private static final Market MARKET = new Market("TEST", 100, 200, 10);
+  private static final int MEMBER_STREAM_ID = 9001;
+  private static final int INGRESS_STREAM_ID = 9002;
+  private static final int EGRESS_STREAM_ID = 9004;
+  private static final long ELECTION_TIMEOUT_MS = 200;
+  private static final long SNAPSHOT_BYTES = 1024; // Snapshots and new log segments every few dozen entries
+  private static final long AWAIT_MS = 20_000;
+  private static final int ORDERS = 120;
+  private static final int ORDER_LENGTH = MessageHeaderEncoder.ENCODED_LENGTH + NewOrderEncoder.BLOCK_LENGTH;
+
+  private final ReplicaNode[] nodes = new ReplicaNode[3];
+  private final List<byte[]> expected = new ArrayList<>(); // Books after each number of orders
+  private final LongHashSet expectedFills = new LongHashSet(); // Taker and maker order ids
+  private final LongHashSet reportedFills = new LongHashSet();
+  private final FillDecoder fillDecoder = new FillDecoder();
+  private final List<AeronPublisher> egressPublishers = new ArrayList<>();
+  private File directory;
+  private MediaDriver driver;
+  private AttachAeronMediaDriver mediaDriver;
+  private ExclusivePublication ingress;
+  private Subscription egress;
+  private String[] members;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    directory = Files.createTempDirectory("opal-replicas").toFile();
+    driver = MediaDriver.launchEmbedded(new MediaDriver.Context()
+        .aeronDirectoryName(new File(directory, "aeron").getAbsolutePath())
+        .threadingMode(ThreadingMode.SHARED)
+        .publicationTermBufferLength(1 << 20)
+        .ipcTermBufferLength(1 << 20)
+        .dirDeleteOnStart(true)
+        .dirDeleteOnShutdown(true));
+    mediaDriver = new AttachAeronMediaDriver(driver.aeronDirectoryName());
+    ingress = mediaDriver.aeron().addExclusivePublication("aeron:ipc", INGRESS_STREAM_ID);
+    egress = mediaDriver.aeron().addSubscription("aeron:ipc", EGRESS_STREAM_ID);
+    members = new String[nodes.length];
+    for (int id = 0; id < nodes.length; id++) {
+      members[id] = "localhost:" + freePort();
+    }
+
+    final BookStateMachine reference = new BookStateMachine(new Market[] { MARKET },
+        new EgressService[] { new EgressService() {
+          @Override
+          public void egress(final DirectBuffer buffer, final int offset, final int length) {
+            onEgress(expectedFills, buffer, offset, length);
+          }
+        } });
+    expected.add(books(reference));
+    for (int i = 0; i < ORDERS; i++) {
+      reference.apply(0, ReplicatedLog.KIND_INGRESS, 0, order(i), 0, ORDER_LENGTH);
+      expected.add(books(reference));
+    }
+    assertTrue(expectedFills.size() > ORDERS / 2);
+  }
+
+  @AfterEach
+  void tearDown() {
+    CloseHelper.closeAll(nodes);
+    CloseHelper.closeAll(egressPublishers);
+    CloseHelper.closeAll(ingress, egress, mediaDriver, driver);
+    IoUtil.delete(directory, true);
+  }
+
+  @Test
+  @DisplayName("A new leader carries on from every committed order, a restarted replica catches up")
+  void testLeaderFailover() {
+    for (int id = 0; id < nodes.length; id++) {
+      start(id);
+    }
+    final int first = awaitLeader(1);
+    final ReplicaNode leader = nodes[first];
+    final int term = leader.term();
+
+    for (int i = 0; i < 40; i++) {
+      send(i, nodes);
+    }
+    awaitApplied(40);
+
+    // Orders still streaming in, some committed, some only in the leader's log
+    for (int i = 40; i < 60; i++) {
+      send(i, nodes);
+    }
+    for (int i = 60; i < 70; i++) {
+      send(i, leader);
+    }
+    final long deadline = System.currentTimeMillis() + ELECTION_TIMEOUT_MS / 4;
+    while (System.currentTimeMillis() < deadline) {
+      leader.doWork(System.currentTimeMillis());
+    }
+    final long commitPosition = leader.commitPosition();
+    final int committed = applied(leader);
+    assertTrue(committed >= 40, "The leader applies committed orders only, once each");
+    leader.close();
+    nodes[first] = null;
+
+    final int second = awaitLeader(term + 1);
+    final long noOp = nodes[second].log().endPosition(); // Commits the log before it
+    awaitUntil(() -> nodes[second].commitPosition() >= noOp, "The new leader commits its first entry");
+    final int recovered = applied(nodes[second]);
+    assertTrue(recovered >= committed, "Committed orders are neither lost nor applied twice, applied "
+        + recovered + " of the " + committed + " committed");
+
+    // The client resends whatever the group didn't take
+    for (int i = recovered; i < ORDERS; i++) {
+      send(i, nodes);
+    }
+    awaitApplied(ORDERS);
+
+    start(first);
+    assertTrue(nodes[first].log().endPosition() >= commitPosition,
+        "The restarted replica's log holds every entry it counted towards a commit");
+    awaitApplied(ORDERS);
+
+    // Including those of the orders the old leader committed and never reported
+    awaitUntil(() -> {
+      egress.poll((buffer, offset, length, header) -> onEgress(reportedFills, buffer, offset, length), 100);
+      return reportedFills.containsAll(expectedFills);
+    }, "Fills were lost in the failover");
+  }
+
+  @Test
+  @DisplayName("A split vote elects no one, the next election does")
+  void testSplitVote() {
+    for (int id = 0; id < nodes.length; id++) {
+      start(id);
+    }
+    final int first = awaitLeader(1);
+    final int term = nodes[first].term();
+    nodes[first].close();
+    nodes[first] = null;
+
+    // Both survivors stand at once, each votes for itself
+    final int a = (first + 1) % nodes.length;
+    final int b = (first + 2) % nodes.length;
+    final long now = System.currentTimeMillis();
+    nodes[a].startElection(now);
+    nodes[b].startElection(now);
+    assertEquals(ReplicaNode.Role.CANDIDATE, nodes[a].role());
+    assertEquals(ReplicaNode.Role.CANDIDATE, nodes[b].role());
+    assertEquals(term + 1, nodes[a].term());
+    assertEquals(term + 1, nodes[b].term());
+
+    final int leader = awaitLeader(term + 1);
+    assertTrue(nodes[leader].term() >= term + 2, "No one wins a split vote, a later term does");
+
+    for (int i = 0; i < 10; i++) {
+      send(i, nodes);
+    }
+    awaitApplied(10);
+  }
+
+  @Test
+  @DisplayName("Risk exposures are rebuilt from the log and carried in snapshots")
+  void testRiskSurvivesSnapshot() {
+    final RiskLimits limits = new RiskLimits(0, 0, 0, 10);
+    final BookStateMachine leader = new BookStateMachine(new Market[] { MARKET },
+        new EgressService[] { new EgressService() }, new RiskCheck(1, 64, limits));
+    // Participant 7 buys 8 from an anonymous ask
+    leader.apply(0, ReplicatedLog.KIND_INGRESS, 0, order(100, 8, false, 1, 0), 0, ORDER_LENGTH);
+    leader.apply(0, ReplicatedLog.KIND_INGRESS, 0, order(100, 8, true, 2, 7), 0, ORDER_LENGTH);
+
+    final ExpandableDirectByteBuffer snapshot = new ExpandableDirectByteBuffer(4096);
+    leader.writeSnapshot(snapshot, 0);
+    final RiskCheck restoredRisk = new RiskCheck(1, 64, limits);
+    final BookStateMachine restored = new BookStateMachine(new Market[] { MARKET },
+        new EgressService[] { new EgressService() }, restoredRisk);
+    restored.loadSnapshot(snapshot, 0, 0);
+    final ExposureTable exposures = restoredRisk.getExposures();
+    assertEquals(8, exposures.position(exposures.find(7, 0)));
+
+    // Another 5 would take the position past 10
+    restored.apply(0, ReplicatedLog.KIND_INGRESS, 0, order(99, 5, true, 3, 7), 0, ORDER_LENGTH);
+    assertEquals(0, restored.orderBooks()[0].getBestBid(), "The order breaking the limit should be rejected");
+  }
+
+  private void start(final int id) {
+    nodes[id] = new ReplicaNode(id, members, MEMBER_STREAM_ID, mediaDriver, stateMachine(),
+        new IngressChannel[] { new IngressChannel("ipc", 0, INGRESS_STREAM_ID) }, new File(directory, "node-" + id),
+        ELECTION_TIMEOUT_MS, SNAPSHOT_BYTES, 10);
+  }
+
+  private BookStateMachine stateMachine() {
+    final AeronPublisher publisher = new AeronPublisher(mediaDriver, "ipc", EGRESS_STREAM_ID, true);
+    egressPublishers.add(publisher);
+    return new BookStateMachine(new Market[] { MARKET }, new EgressService[] { new EgressService(publisher) });
+  }
+
+  private void onEgress(final LongHashSet fills, final DirectBuffer buffer, final int offset, final int length) {
+    if (length == FillDecoder.BLOCK_LENGTH) {
+      fillDecoder.wrap(buffer, offset, FillDecoder.BLOCK_LENGTH, FillDecoder.SCHEMA_VERSION);
+      fills.add(((long) fillDecoder.takerOrderId() << 32) | fillDecoder.makerOrderId());
+    }
+  }
+
+  // Four resting orders, then bids at 101 and asks at 99 growing by one, each
+  // filling the remainder of the one before and resting its own
+  private static DirectBuffer order(final int i) {
+    final boolean isBid = i % 2 == 0;
+    if (i < 4) {
+      return order(isBid ? 95 - i / 2 : 105 + i / 2, 5 - i / 2, isBid, i + 1, 0);
+    }
+    return order(isBid ? 101 : 99, i - 2, isBid, i + 1, 0);
+  }
+
+  private static DirectBuffer order(final int price, final int quantity, final boolean isBid, final int id,
+      final int participantId) {
+    final UnsafeBuffer buffer = new UnsafeBuffer(new byte[ORDER_LENGTH]);
+    new NewOrderEncoder().wrapAndApplyHeader(buffer, 0, new MessageHeaderEncoder()).instrumentIndex(0)
+        .side(isBid ? Side.BID : Side.ASK).timeInForce(TimeInForce.GTC).price(price).quantity(quantity).orderId(id)
+        .postOnly(PostOnly.NONE).participantId(participantId);
+    return buffer;
+  }
+
+  private void send(final int i, final ReplicaNode... pumped) {
+    final DirectBuffer order = order(i);
+    final long deadline = System.currentTimeMillis() + AWAIT_MS;
+    while (ingress.offer(order, 0, ORDER_LENGTH) < 0) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("No leader took order " + i);
+      }
+      pump(pumped);
+    }
+  }
+
+  private static void pump(final ReplicaNode... pumped) {
+    for (final ReplicaNode node : pumped) {
+      if (node != null) {
+        node.doWork(System.currentTimeMillis());
+      }
+    }
+  }
+
+  private void awaitUntil(final BooleanSupplier condition, final String message) {
+    final long deadline = System.currentTimeMillis() + AWAIT_MS;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        fail(message);
+      }
+      pump(nodes);
+      Thread.yield();
+    }
+  }
+
+  // Once every live replica follows it
+  private int awaitLeader(final int minTerm) {
+    final int[] leader = new int[1];
+    awaitUntil(() -> (leader[0] = leader(minTerm)) >= 0, "No leader elected from term " + minTerm);
+    return leader[0];
+  }
+
+  private int leader(final int minTerm) {
+    for (int id = 0; id < nodes.length; id++) {
+      final ReplicaNode candidate = nodes[id];
+      if (candidate == null || candidate.role() != ReplicaNode.Role.LEADER || candidate.term() < minTerm) {
+        continue;
+      }
+      for (final ReplicaNode node : nodes) {
+        if (node != null && node != candidate && (node.leaderId() != id || node.term() != candidate.term())) {
+          return -1;
+        }
+      }
+      return id;
+    }
+    return -1;
+  }
+
+  private void awaitApplied(final int orders) {
+    awaitUntil(() -> {
+      for (final ReplicaNode node : nodes) {
+        if (node != null && applied(node) != orders) {
+          return false;
+        }
+      }
+      return true;
+    }, "Replicas didn't all apply the first " + orders + " orders");
+  }
+
+  // How many orders the replica's books are the outcome of, -1 if none
+  private int applied(final ReplicaNode node) {
+    final byte[] books = books(node.stateMachine());
+    for (int orders = expected.size() - 1; orders >= 0; orders--) {
+      if (Arrays.equals(expected.get(orders), books)) {
+        return orders;
+      }
+    }
+    return -1;
+  }
+
+  private static byte[] books(final BookStateMachine stateMachine) {
+    final ExpandableDirectByteBuffer buffer = new ExpandableDirectByteBuffer(4096);
+    final int length = stateMachine.writeSnapshot(buffer, 0);
+    buffer.setMemory(4 + 18, 8, (byte) 0); // The book's clock, on the leader's timestamps
+    final byte[] bytes = new byte[length];
+    buffer.getBytes(0, bytes);
+    return bytes;
+  }
+
+  private static int freePort() throws IOException {
+    try (DatagramSocket socket = new DatagramSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
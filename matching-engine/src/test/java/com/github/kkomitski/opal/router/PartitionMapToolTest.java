@@ -0,0 +1,52 @@
+package com.github.kkomitski.opal.router;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.agrona.concurrent.SystemEpochClock;
+import org.junit.jupiter.api.Test;
+
+import com.github.kkomitski.opal.OrderBook;
+import com.github.kkomitski.opal.orderbook.OrderRequest;
+import com.github.kkomitski.opal.services.EgressService;
+import com.github.kkomitski.opal.utils.Market;
+
+public class PartitionMapToolTest {
+
+  @Test
+  void testNonEmptyBookIsNotReassigned() throws Exception {
+    final File file = new File(Files.createTempDirectory("opal").toFile(), "partition-map.dat");
+    file.getParentFile().deleteOnExit(); // Deleted in reverse order, after the file
+    file.deleteOnExit();
+    try (PartitionMap partitionMap = PartitionMap.create(file, 2, 2)) {
+      OrderBook book = new OrderBook(new Market("TEST", 100, 1000, 10), 0, new EgressService(),
+          SystemEpochClock.INSTANCE);
+      book.attachPartitionMap(partitionMap);
+      book.publishOrder(0, true, 100, 5, 1);
+      OrderRequest stop = new OrderRequest();
+      stop.set(0, true, 0, 5, 3);
+      stop.setStopPrice(120);
+      book.publishOrder(stop);
+      Thread.sleep(100);
+
+      assertEquals(2, partitionMap.restingOrders(0), "Parked stops count as resting");
+      assertFalse(PartitionMapTool.reassign(partitionMap, 0, 0, 1), "The resting bid would be stranded");
+      assertFalse(PartitionMapTool.reassign(partitionMap, 0, 0, PartitionMap.UNASSIGNED));
+      assertEquals(0, partitionMap.engineFor(0));
+
+      OrderRequest massCancel = new OrderRequest();
+      massCancel.setMassCancel(0, 2, OrderRequest.MassCancelScope.INSTRUMENT_SIDE, true, 0);
+      book.publishOrder(massCancel);
+      Thread.sleep(100);
+
+      assertEquals(0, partitionMap.restingOrders(0));
+      assertTrue(PartitionMapTool.reassign(partitionMap, 0, 0, 1));
+      assertEquals(1, partitionMap.engineFor(0));
+      book.shutdown();
+    }
+  }
+}
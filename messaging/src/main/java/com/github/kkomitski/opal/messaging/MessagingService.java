@@ -2,15 +2,26 @@ package com.github.kkomitski.opal.messaging;
 
 import java.nio.ByteOrder;
 
+import org.agrona.DirectBuffer;
+
 import com.github.kkomitski.opal.aeron.utils.AeronSubscriber;
 import com.github.kkomitski.opal.aeron.utils.AttachAeronMediaDriver;
-import com.github.kkomitski.opal.utils.MatchEventDecoder;
+import com.github.kkomitski.opal.sbe.FillDecoder;
+import com.github.kkomitski.opal.sbe.OrderStatusDecoder;
+import com.github.kkomitski.opal.sbe.TopOfBookDecoder;
 import com.github.kkomitski.opal.utils.OpalConfig;
+import com.github.kkomitski.opal.utils.OrderStatusBatch;
 
 import io.aeron.logbuffer.FragmentHandler;
 import net.openhft.affinity.AffinityLock;
 
 public class MessagingService {
+    // Egress events carry no SBE header, the flyweights are wrapped at the
+    // schema's block length and version. Only the consumer thread uses them
+    private static final FillDecoder FILL_DECODER = new FillDecoder();
+    private static final OrderStatusDecoder STATUS_DECODER = new OrderStatusDecoder();
+    private static final TopOfBookDecoder TOP_OF_BOOK_DECODER = new TopOfBookDecoder();
+
     public static void main(String[] args) {
         final Thread worker = new Thread(MessagingService::runLoop, "messaging-ipc-consumer");
         worker.setDaemon(false);
@@ -23,33 +34,63 @@ public class MessagingService {
         }
     }
 
+    private static void printStatus(final DirectBuffer buffer, final int offset) {
+        STATUS_DECODER.wrap(buffer, offset, OrderStatusDecoder.BLOCK_LENGTH, OrderStatusDecoder.SCHEMA_VERSION);
+        System.out.println(
+                "STATUS order=" + STATUS_DECODER.orderId() +
+                " status=" + STATUS_DECODER.statusRaw() +
+                " reason=" + STATUS_DECODER.reason() +
+                " qty=" + STATUS_DECODER.quantity() +
+                " price=" + STATUS_DECODER.price() +
+                " ts=" + STATUS_DECODER.timestamp());
+    }
+
     // TODO: Add a ring buffer to swallow incoming messages
     private static void runLoop() {
         try (AffinityLock lock = AffinityLock.acquireLock(OpalConfig.MESSAGING_SERVICE_CORE);
-             AttachAeronMediaDriver mediaDriver = new AttachAeronMediaDriver();
+             AttachAeronMediaDriver mediaDriver = AttachAeronMediaDriver.configured();
              AeronSubscriber subscriber = new AeronSubscriber(mediaDriver, "ipc", OpalConfig.MATCHER_EGRESS_STREAM_ID)) {
 
             final FragmentHandler handler = (buffer, offset, length, header) -> {
-                if (length == MatchEventDecoder.SIZE) {
-                    // final int takerOrderId = buffer.getInt(offset + MatchEventDecoder.TAKER_ORDER_ID_OFFSET, ByteOrder.BIG_ENDIAN);
-                    // final int makerOrderId = buffer.getInt(offset + MatchEventDecoder.MAKER_ORDER_ID_OFFSET, ByteOrder.BIG_ENDIAN);
-                    // final int price = buffer.getInt(offset + MatchEventDecoder.PRICE_OFFSET, ByteOrder.BIG_ENDIAN);
-                    // final int quantity = buffer.getInt(offset + MatchEventDecoder.QUANTITY_OFFSET, ByteOrder.BIG_ENDIAN);
-                    // final long timestamp = buffer.getLong(offset + MatchEventDecoder.TIMESTAMP_OFFSET, ByteOrder.BIG_ENDIAN);
-                    byte[] bytes = buffer.byteArray();
-
-                    final int takerOrderId = MatchEventDecoder.getTakerOrderId(bytes);
-                    final int makerOrderId = MatchEventDecoder.getMakerOrderId(bytes); 
-                    final int price = MatchEventDecoder.getPrice(bytes);
-                    final int quantity = MatchEventDecoder.getQuantity(bytes);
-                    final long timestamp = MatchEventDecoder.getTimestamp(bytes);
+                if (length == OrderStatusDecoder.BLOCK_LENGTH) {
+                    printStatus(buffer, offset);
+                    return;
+                }
 
+                // Market data, sent by a book whenever its best prices move
+                if (length == TopOfBookDecoder.BLOCK_LENGTH) {
+                    TOP_OF_BOOK_DECODER.wrap(buffer, offset, TopOfBookDecoder.BLOCK_LENGTH,
+                            TopOfBookDecoder.SCHEMA_VERSION);
                     System.out.println(
-                            "MATCH taker=" + takerOrderId +
-                            " maker=" + makerOrderId +
-                            " price=" + price +
-                            " qty=" + quantity +
-                            " ts=" + timestamp);
+                            "TOP instrument=" + TOP_OF_BOOK_DECODER.instrumentIndex() +
+                            " bid=" + TOP_OF_BOOK_DECODER.bidQuantity() + "@" + TOP_OF_BOOK_DECODER.bestBid() +
+                            " ask=" + TOP_OF_BOOK_DECODER.askQuantity() + "@" + TOP_OF_BOOK_DECODER.bestAsk() +
+                            " last=" + TOP_OF_BOOK_DECODER.lastPrice() +
+                            " ts=" + TOP_OF_BOOK_DECODER.timestamp());
+                    return;
+                }
+
+                // Status events packed behind a count (mass cancels)
+                if (OrderStatusBatch.isBatch(buffer, offset, length)) {
+                    for (int event = offset + OrderStatusBatch.HEADER_SIZE; event < offset + length;
+                            event += OrderStatusDecoder.BLOCK_LENGTH) {
+                        printStatus(buffer, event);
+                    }
+                    return;
+                }
+
+                // Match events arrive one per message, or packed back to back
+                // (auction uncross bursts)
+                if (length > 0 && length % FillDecoder.BLOCK_LENGTH == 0) {
+                    for (int event = offset; event < offset + length; event += FillDecoder.BLOCK_LENGTH) {
+                        FILL_DECODER.wrap(buffer, event, FillDecoder.BLOCK_LENGTH, FillDecoder.SCHEMA_VERSION);
+                        System.out.println(
+                                "MATCH taker=" + FILL_DECODER.takerOrderId() +
+                                " maker=" + FILL_DECODER.makerOrderId() +
+                                " price=" + FILL_DECODER.price() +
+                                " qty=" + FILL_DECODER.quantity() +
+                                " ts=" + FILL_DECODER.timestamp());
+                    }
                     return;
                 }
 
@@ -0,0 +1,93 @@
+package com.github.kkomitski.opal.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+One of the engine's ingress subscriptions, each polled by its own thread.
+Instruments are dealt out across the channels by index, a book only ever
+takes requests from the channel that owns its instrument, so every book keeps
+a single ordered source.
+
+MATCHER_INGRESS_CHANNELS lists the channels, comma separated. An entry is a
+UDP port, ipc or a full Aeron channel URI (e.g. an MDC subscription),
+optionally followed by #streamId:
+  42069,ipc#3,aeron:udp?endpoint=0.0.0.0:42071|alias=ingress-2
+Left empty the engine has the single MATCHER_INGRESS_TRANSPORT channel, UDP on
+MATCHER_INGRESS_PORT or IPC.
+*/
+public final class IngressChannel {
+  public final String transport; // "udp", "ipc", or the channel URI itself
+  public final int port; // UDP entries only
+  public final int streamId;
+
+  public IngressChannel(final String transport, final int port, final int streamId) {
+    this.transport = transport;
+    this.port = port;
+    this.streamId = streamId;
+  }
+
+  /**
+   * Index of the channel that owns the instrument, clients send its requests
+   * there.
+   */
+  public static int channelFor(final int instrumentIndex, final int channelCount) {
+    return instrumentIndex % channelCount;
+  }
+
+  public static IngressChannel[] configured() {
+    return parse(OpalConfig.MATCHER_INGRESS_CHANNELS, OpalConfig.MATCHER_INGRESS_TRANSPORT,
+        OpalConfig.MATCHER_INGRESS_PORT, OpalConfig.MATCHER_INGRESS_STREAM_ID);
+  }
+
+  public static IngressChannel[] parse(final String spec, final int defaultPort, final int defaultStreamId) {
+    return parse(spec, "udp", defaultPort, defaultStreamId);
+  }
+
+  /**
+   * The default channel, used when the spec is empty, is UDP on the default
+   * port or IPC as the default transport says.
+   */
+  public static IngressChannel[] parse(final String spec, final String defaultTransport, final int defaultPort,
+      final int defaultStreamId) {
+    final List<IngressChannel> channels = new ArrayList<>();
+    if (spec != null) {
+      for (final String entry : spec.split(",")) {
+        final String trimmed = entry.trim();
+        if (trimmed.isEmpty()) {
+          continue;
+        }
+        final int hash = trimmed.lastIndexOf('#');
+        final String channel = hash < 0 ? trimmed : trimmed.substring(0, hash);
+        final int streamId = hash < 0 ? defaultStreamId : Integer.parseInt(trimmed.substring(hash + 1));
+        if (channel.startsWith("aeron:")) {
+          channels.add(new IngressChannel(channel, 0, streamId));
+        } else if ("ipc".equalsIgnoreCase(channel)) {
+          channels.add(new IngressChannel("ipc", 0, streamId));
+        } else {
+          channels.add(new IngressChannel("udp", Integer.parseInt(channel), streamId));
+        }
+      }
+    }
+    if (channels.isEmpty()) {
+      final boolean ipc = "ipc".equalsIgnoreCase(defaultTransport.trim());
+      channels.add(new IngressChannel(ipc ? "ipc" : "udp", ipc ? 0 : defaultPort, defaultStreamId));
+    }
+    return channels.toArray(new IngressChannel[0]);
+  }
+
+  /**
+   * Aeron channel URI the engine subscribes to.
+   */
+  public String uri() {
+    if ("udp".equals(transport)) {
+      return "aeron:udp?endpoint=0.0.0.0:" + port;
+    }
+    return "ipc".equals(transport) ? "aeron:ipc" : transport;
+  }
+
+  @Override
+  public String toString() {
+    return ("udp".equals(transport) ? "udp:" + port : transport) + " stream " + streamId;
+  }
+}
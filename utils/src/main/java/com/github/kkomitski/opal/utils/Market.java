@@ -1,15 +1,170 @@
 package com.github.kkomitski.opal.utils;
 
+import java.math.BigDecimal;
+
 public class Market {
+    /**
+     * What happens when an order would trade against a resting order from the
+     * same participant.
+     */
+    public static enum SelfTradePrevention {
+        CANCEL_NEWEST, // Cancel the incoming order's remainder
+        CANCEL_OLDEST, // Cancel the resting order and keep matching
+        DECREMENT_BOTH // Reduce both by the smaller size, no fill is printed
+    }
+
+    /**
+     * How an incoming order's quantity is shared among the resting orders of a
+     * price level.
+     */
+    public static enum Allocation {
+        FIFO, // Strict time priority
+        PRO_RATA, // In proportion to resting size, leftover lots in time priority
+        FIFO_TOP_PRO_RATA // The oldest order fills first, the rest is pro-rata
+    }
+
+    /**
+     * What the book does when a fill would print outside its price band.
+     */
+    public static enum BandBreach {
+        HALT, // Stop trading until resumed, only cancels are accepted
+        AUCTION // Switch to a call auction, orders rest until the uncross
+    }
+
+    public static final int DEFAULT_TICK_SIZE = 1;
+    public static final int DEFAULT_PRICE_SCALE = 0;
+    public static final double DEFAULT_COLLAR_PERCENT = 0.0;
+    public static final SelfTradePrevention DEFAULT_SELF_TRADE_PREVENTION = SelfTradePrevention.CANCEL_NEWEST;
+    public static final Allocation DEFAULT_ALLOCATION = Allocation.FIFO;
+    public static final int DEFAULT_MARKET_PROTECTION_TICKS = 0;
+    public static final long DEFAULT_SESSION_END_MILLIS = 0; // Midnight UTC
+    public static final double DEFAULT_PRICE_BAND_PERCENT = 0.0;
+    public static final BandBreach DEFAULT_BAND_BREACH = BandBreach.AUCTION;
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+
     public final String symbol;
     public final int price;
     public final int limitsPerBook;
     public final int ordersPerLimit;
 
+    // Smallest price increment, in raw wire price units
+    public final int tickSize;
+    // Number of implied decimal places in the raw wire price (display only)
+    public final int priceScale;
+    // Collar half-width as a percentage of the mid price, 0 = fixed limitsPerBook / 2 ticks
+    public final double collarPercent;
+    public final SelfTradePrevention selfTradePrevention;
+    public final Allocation allocation;
+    // How many ticks past the best opposite price a market order may trade, 0 = unbounded
+    public final int marketProtectionTicks;
+    // Time of day (millis after midnight UTC) at which day orders expire
+    public final long sessionEndMillis;
+    // Band half-width around the last trade as a percentage of it, 0 = no band
+    public final double priceBandPercent;
+    public final BandBreach bandBreach;
+
     public Market(String symbol, int price, int limitsPerBook, int ordersPerLimit) {
+        this(symbol, price, limitsPerBook, ordersPerLimit, DEFAULT_TICK_SIZE, DEFAULT_PRICE_SCALE,
+                DEFAULT_COLLAR_PERCENT);
+    }
+
+    public Market(String symbol, int price, int limitsPerBook, int ordersPerLimit, int tickSize, int priceScale,
+            double collarPercent) {
+        this(symbol, price, limitsPerBook, ordersPerLimit, tickSize, priceScale, collarPercent,
+                DEFAULT_SELF_TRADE_PREVENTION);
+    }
+
+    public Market(String symbol, int price, int limitsPerBook, int ordersPerLimit, int tickSize, int priceScale,
+            double collarPercent, SelfTradePrevention selfTradePrevention) {
+        this(symbol, price, limitsPerBook, ordersPerLimit, tickSize, priceScale, collarPercent, selfTradePrevention,
+                DEFAULT_ALLOCATION);
+    }
+
+    public Market(String symbol, int price, int limitsPerBook, int ordersPerLimit, int tickSize, int priceScale,
+            double collarPercent, SelfTradePrevention selfTradePrevention, Allocation allocation) {
+        this(symbol, price, limitsPerBook, ordersPerLimit, tickSize, priceScale, collarPercent, selfTradePrevention,
+                allocation, DEFAULT_MARKET_PROTECTION_TICKS);
+    }
+
+    public Market(String symbol, int price, int limitsPerBook, int ordersPerLimit, int tickSize, int priceScale,
+            double collarPercent, SelfTradePrevention selfTradePrevention, Allocation allocation,
+            int marketProtectionTicks) {
+        this(symbol, price, limitsPerBook, ordersPerLimit, tickSize, priceScale, collarPercent, selfTradePrevention,
+                allocation, marketProtectionTicks, DEFAULT_SESSION_END_MILLIS);
+    }
+
+    public Market(String symbol, int price, int limitsPerBook, int ordersPerLimit, int tickSize, int priceScale,
+            double collarPercent, SelfTradePrevention selfTradePrevention, Allocation allocation,
+            int marketProtectionTicks, long sessionEndMillis) {
+        this(symbol, price, limitsPerBook, ordersPerLimit, tickSize, priceScale, collarPercent, selfTradePrevention,
+                allocation, marketProtectionTicks, sessionEndMillis, DEFAULT_PRICE_BAND_PERCENT, DEFAULT_BAND_BREACH);
+    }
+
+    public Market(String symbol, int price, int limitsPerBook, int ordersPerLimit, int tickSize, int priceScale,
+            double collarPercent, SelfTradePrevention selfTradePrevention, Allocation allocation,
+            int marketProtectionTicks, long sessionEndMillis, double priceBandPercent, BandBreach bandBreach) {
+        if (tickSize <= 0) {
+            throw new IllegalArgumentException("tickSize must be > 0 for market " + symbol);
+        }
+        if (priceScale < 0) {
+            throw new IllegalArgumentException("priceScale must be >= 0 for market " + symbol);
+        }
+        if (collarPercent < 0) {
+            throw new IllegalArgumentException("collarPercent must be >= 0 for market " + symbol);
+        }
+        if (selfTradePrevention == null) {
+            throw new IllegalArgumentException("selfTradePrevention must be set for market " + symbol);
+        }
+        if (allocation == null) {
+            throw new IllegalArgumentException("allocation must be set for market " + symbol);
+        }
+        if (marketProtectionTicks < 0) {
+            throw new IllegalArgumentException("marketProtectionTicks must be >= 0 for market " + symbol);
+        }
+        if (sessionEndMillis < 0 || sessionEndMillis >= MILLIS_PER_DAY) {
+            throw new IllegalArgumentException("sessionEndMillis must be within a day for market " + symbol);
+        }
+        if (priceBandPercent < 0) {
+            throw new IllegalArgumentException("priceBandPercent must be >= 0 for market " + symbol);
+        }
+        if (bandBreach == null) {
+            throw new IllegalArgumentException("bandBreach must be set for market " + symbol);
+        }
         this.symbol = symbol;
         this.price = price;
         this.limitsPerBook = limitsPerBook;
         this.ordersPerLimit = ordersPerLimit;
+        this.tickSize = tickSize;
+        this.priceScale = priceScale;
+        this.collarPercent = collarPercent;
+        this.selfTradePrevention = selfTradePrevention;
+        this.allocation = allocation;
+        this.marketProtectionTicks = marketProtectionTicks;
+        this.sessionEndMillis = sessionEndMillis;
+        this.priceBandPercent = priceBandPercent;
+        this.bandBreach = bandBreach;
+    }
+
+    /**
+     * The first session end strictly after the given epoch millis.
+     */
+    public long nextSessionEnd(long now) {
+        long sessionEnd = now - Math.floorMod(now, MILLIS_PER_DAY) + sessionEndMillis;
+        return sessionEnd > now ? sessionEnd : sessionEnd + MILLIS_PER_DAY;
+    }
+
+    /**
+     * Formats a raw wire price using the market's decimal precision, e.g. 37210
+     * with a price scale of 2 becomes "372.10".
+     */
+    public String formatPrice(int rawPrice) {
+        return formatPrice(rawPrice, priceScale);
+    }
+
+    public static String formatPrice(int rawPrice, int priceScale) {
+        if (priceScale == 0) {
+            return Integer.toString(rawPrice);
+        }
+        return BigDecimal.valueOf(rawPrice, priceScale).toPlainString();
     }
 }
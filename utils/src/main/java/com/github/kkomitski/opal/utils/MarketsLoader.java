@@ -3,6 +3,7 @@ package com.github.kkomitski.opal.utils;
 import java.io.File;
 import java.io.InputStream;
 import java.net.URL;
+import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -46,7 +47,28 @@ public class MarketsLoader {
                     int price = Integer.parseInt(elem.getElementsByTagName("price").item(0).getTextContent());
                     int limitsPerBook = Integer.parseInt(elem.getElementsByTagName("limits_per_book").item(0).getTextContent());
                     int ordersPerLimit = Integer.parseInt(elem.getElementsByTagName("orders_per_limit").item(0).getTextContent());
-                    markets.add(new Market(symbol, price, limitsPerBook, ordersPerLimit));
+
+                    // Optional - older markets.xml files only carry the fields above
+                    int tickSize = Integer.parseInt(optional(elem, "tick_size", Integer.toString(Market.DEFAULT_TICK_SIZE)));
+                    int priceScale = Integer.parseInt(optional(elem, "price_scale", Integer.toString(Market.DEFAULT_PRICE_SCALE)));
+                    double collarPercent = Double.parseDouble(optional(elem, "collar_percent", Double.toString(Market.DEFAULT_COLLAR_PERCENT)));
+
+                    Market.SelfTradePrevention selfTradePrevention = Market.SelfTradePrevention.valueOf(
+                            optional(elem, "stp_policy", Market.DEFAULT_SELF_TRADE_PREVENTION.name()).toUpperCase());
+                    Market.Allocation allocation = Market.Allocation.valueOf(
+                            optional(elem, "allocation", Market.DEFAULT_ALLOCATION.name()).toUpperCase());
+                    int marketProtectionTicks = Integer.parseInt(optional(elem, "market_protection_ticks",
+                            Integer.toString(Market.DEFAULT_MARKET_PROTECTION_TICKS)));
+                    long sessionEndMillis = LocalTime.parse(optional(elem, "session_end_utc", "00:00"))
+                            .toSecondOfDay() * 1000L;
+                    double priceBandPercent = Double.parseDouble(optional(elem, "price_band_percent",
+                            Double.toString(Market.DEFAULT_PRICE_BAND_PERCENT)));
+                    Market.BandBreach bandBreach = Market.BandBreach.valueOf(
+                            optional(elem, "band_breach", Market.DEFAULT_BAND_BREACH.name()).toUpperCase());
+
+                    markets.add(new Market(symbol, price, limitsPerBook, ordersPerLimit, tickSize, priceScale, collarPercent,
+                            selfTradePrevention, allocation, marketProtectionTicks, sessionEndMillis, priceBandPercent,
+                            bandBreach));
                 }
             }
             inputStream.close();
@@ -56,4 +78,13 @@ public class MarketsLoader {
         }
         return markets.toArray(new Market[0]);
     }
+
+    private static String optional(Element elem, String tag, String defaultValue) {
+        NodeList nodes = elem.getElementsByTagName(tag);
+        if (nodes.getLength() == 0) {
+            return defaultValue;
+        }
+        String value = nodes.item(0).getTextContent().trim();
+        return value.isEmpty() ? defaultValue : value;
+    }
 }
@@ -2,15 +2,62 @@ package com.github.kkomitski.opal.utils;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Properties;
 
 public final class OpalConfig {
     public static final String MARKETS_XML_URL;
     public static final int MATCHER_INGRESS_PORT;
+    public static final String MATCHER_INGRESS_TRANSPORT; // udp (MATCHER_INGRESS_PORT) or ipc for colocated gateways
     public static final int MATCHER_INGRESS_STREAM_ID;
     public static final int MATCHER_EGRESS_STREAM_ID;
     public static final int PROMETHEUS_PORT;
     public static final int AERON_FRAGMENT_LIMIT;
+    public static final boolean MATCHER_INGRESS_RAW; // Books decode their own requests, no risk checks
+    public static final String MATCHER_INGRESS_CHANNELS; // See IngressChannel, empty = MATCHER_INGRESS_PORT only
+    public static final int[] MATCHER_INGRESS_CORES; // One per channel, missing = unpinned
+    public static final String MATCHER_INGRESS_FLOW_CONTROL; // block, abort or reject requests for a busy book
+    public static final int MATCHER_RING_HIGH_WATER_PERCENT; // Ring occupancy a book counts as busy from (abort)
+
+    // Partitioned engines behind an ingress router
+    public static final int ENGINE_ID; // This engine's partition, -1 = unpartitioned, loads every market
+    public static final String PARTITION_MAP_FILE; // Shared by the router and its engines
+    public static final String ROUTER_ENGINE_CHANNELS; // Router only, one publication per engine
+
+    // TCP order entry gateway, see TcpGateway
+    public static final int GATEWAY_PORT;
+    public static final int GATEWAY_THREADS; // Event loops serving sessions
+    public static final String GATEWAY_INGRESS_CHANNELS; // Empty = localhost:MATCHER_INGRESS_PORT
+
+    // Aeron media driver, the tuning applies wherever the driver runs
+    public static final String AERON_DRIVER; // external (attach) or embedded (launched in process)
+    public static final String AERON_THREADING_MODE; // DEDICATED, SHARED_NETWORK or SHARED
+    public static final String AERON_CONDUCTOR_IDLE; // busy, noop, yield, backoff or sleep
+    public static final String AERON_SENDER_IDLE;
+    public static final String AERON_RECEIVER_IDLE;
+    public static final String AERON_SHARED_IDLE; // The shared agents of SHARED and SHARED_NETWORK
+    public static final int AERON_TERM_BUFFER_LENGTH; // Power of two, 0 = driver default
+    public static final int AERON_MTU; // 0 = driver default
+    public static final int AERON_SOCKET_SNDBUF; // 0 = OS default
+    public static final int AERON_SOCKET_RCVBUF; // 0 = OS default
+    public static final boolean AERON_PRE_TOUCH; // Allocate term buffers up front, not sparse
+    public static final boolean AERON_ARCHIVE; // Record ingress and egress next to the driver
+    public static final String AERON_ARCHIVE_DIR;
+
+    // Replicated engine, see ReplicaNode
+    public static final int REPLICA_ID; // Index of this replica in REPLICA_MEMBERS
+    public static final String REPLICA_MEMBERS; // host:port of every replica, in id order
+    public static final int REPLICA_STREAM_ID;
+    public static final String REPLICA_DIR; // Election state and snapshots, node-<id> per replica
+    public static final long REPLICA_ELECTION_TIMEOUT_MS; // Heartbeats every fifth of it
+    public static final long REPLICA_SNAPSHOT_BYTES; // Log applied between snapshots
+
+    // Pre-trade risk, defaults for every account (0 = no limit)
+    public static final long RISK_MAX_ORDER_QTY;
+    public static final long RISK_MAX_NOTIONAL;
+    public static final long RISK_MAX_OPEN_ORDERS;
+    public static final long RISK_MAX_POSITION;
+    public static final int RISK_TABLE_CAPACITY;
 
     // CPU Core Affinity
     public static final int OS_CORE;
@@ -35,10 +82,51 @@ public final class OpalConfig {
 
         MARKETS_XML_URL = require(props, "MARKETS_XML_URL");
         MATCHER_INGRESS_PORT = Integer.parseInt(require(props, "MATCHER_INGRESS_PORT"));
+        MATCHER_INGRESS_TRANSPORT = optional(props, "MATCHER_INGRESS_TRANSPORT", "udp");
         MATCHER_INGRESS_STREAM_ID = Integer.parseInt(require(props, "MATCHER_INGRESS_STREAM_ID"));
         MATCHER_EGRESS_STREAM_ID = Integer.parseInt(require(props, "MATCHER_EGRESS_STREAM_ID"));
         PROMETHEUS_PORT = Integer.parseInt(require(props, "PROMETHEUS_PORT"));
         AERON_FRAGMENT_LIMIT = Integer.parseInt(require(props, "AERON_FRAGMENT_LIMIT"));
+        MATCHER_INGRESS_RAW = Boolean.parseBoolean(optional(props, "MATCHER_INGRESS_RAW", "false"));
+        MATCHER_INGRESS_CHANNELS = optional(props, "MATCHER_INGRESS_CHANNELS", "");
+        MATCHER_INGRESS_CORES = intList(optional(props, "MATCHER_INGRESS_CORES", ""));
+        MATCHER_INGRESS_FLOW_CONTROL = optional(props, "MATCHER_INGRESS_FLOW_CONTROL", "block");
+        MATCHER_RING_HIGH_WATER_PERCENT = Integer.parseInt(optional(props, "MATCHER_RING_HIGH_WATER_PERCENT", "90"));
+
+        ENGINE_ID = Integer.parseInt(optional(props, "ENGINE_ID", "-1"));
+        PARTITION_MAP_FILE = optional(props, "PARTITION_MAP_FILE", "shared-memory/partition-map.dat");
+        ROUTER_ENGINE_CHANNELS = optional(props, "ROUTER_ENGINE_CHANNELS", "");
+
+        GATEWAY_PORT = Integer.parseInt(optional(props, "GATEWAY_PORT", "42069"));
+        GATEWAY_THREADS = Integer.parseInt(optional(props, "GATEWAY_THREADS", "1"));
+        GATEWAY_INGRESS_CHANNELS = optional(props, "GATEWAY_INGRESS_CHANNELS", "");
+
+        AERON_DRIVER = optional(props, "AERON_DRIVER", "external");
+        AERON_THREADING_MODE = optional(props, "AERON_THREADING_MODE", "DEDICATED");
+        AERON_CONDUCTOR_IDLE = optional(props, "AERON_CONDUCTOR_IDLE", "backoff");
+        AERON_SENDER_IDLE = optional(props, "AERON_SENDER_IDLE", "backoff");
+        AERON_RECEIVER_IDLE = optional(props, "AERON_RECEIVER_IDLE", "backoff");
+        AERON_SHARED_IDLE = optional(props, "AERON_SHARED_IDLE", "backoff");
+        AERON_TERM_BUFFER_LENGTH = Integer.parseInt(optional(props, "AERON_TERM_BUFFER_LENGTH", "0"));
+        AERON_MTU = Integer.parseInt(optional(props, "AERON_MTU", "0"));
+        AERON_SOCKET_SNDBUF = Integer.parseInt(optional(props, "AERON_SOCKET_SNDBUF", "0"));
+        AERON_SOCKET_RCVBUF = Integer.parseInt(optional(props, "AERON_SOCKET_RCVBUF", "0"));
+        AERON_PRE_TOUCH = Boolean.parseBoolean(optional(props, "AERON_PRE_TOUCH", "false"));
+        AERON_ARCHIVE = Boolean.parseBoolean(optional(props, "AERON_ARCHIVE", "false"));
+        AERON_ARCHIVE_DIR = optional(props, "AERON_ARCHIVE_DIR", "archive");
+
+        REPLICA_ID = Integer.parseInt(optional(props, "REPLICA_ID", "0"));
+        REPLICA_MEMBERS = optional(props, "REPLICA_MEMBERS", "localhost:42090,localhost:42091,localhost:42092");
+        REPLICA_STREAM_ID = Integer.parseInt(optional(props, "REPLICA_STREAM_ID", "20"));
+        REPLICA_DIR = optional(props, "REPLICA_DIR", "replica");
+        REPLICA_ELECTION_TIMEOUT_MS = Long.parseLong(optional(props, "REPLICA_ELECTION_TIMEOUT_MS", "1000"));
+        REPLICA_SNAPSHOT_BYTES = Long.parseLong(optional(props, "REPLICA_SNAPSHOT_BYTES", "16777216"));
+
+        RISK_MAX_ORDER_QTY = Long.parseLong(optional(props, "RISK_MAX_ORDER_QTY", "0"));
+        RISK_MAX_NOTIONAL = Long.parseLong(optional(props, "RISK_MAX_NOTIONAL", "0"));
+        RISK_MAX_OPEN_ORDERS = Long.parseLong(optional(props, "RISK_MAX_OPEN_ORDERS", "0"));
+        RISK_MAX_POSITION = Long.parseLong(optional(props, "RISK_MAX_POSITION", "0"));
+        RISK_TABLE_CAPACITY = Integer.parseInt(optional(props, "RISK_TABLE_CAPACITY", "65536"));
 
         // CPU Core Affinity
         OS_CORE = Integer.parseInt(require(props, "OS_CORE"));
@@ -56,11 +144,23 @@ public final class OpalConfig {
 
     private OpalConfig() {}
 
+    // A -D system property of the same name wins over the file, so several
+    // processes can share one config.properties
     private static String require(Properties props, String key) {
-        String value = props.getProperty(key);
+        String value = System.getProperty(key, props.getProperty(key));
         if (value == null || value.isEmpty()) {
             throw new RuntimeException("Missing required config property: " + key);
         }
         return value;
     }
+
+    private static String optional(Properties props, String key, String defaultValue) {
+        String value = System.getProperty(key, props.getProperty(key));
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    private static int[] intList(String value) {
+        return value.isBlank() ? new int[0]
+                : Arrays.stream(value.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+    }
 }
\ No newline at end of file
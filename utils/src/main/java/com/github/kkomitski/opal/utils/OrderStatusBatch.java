@@ -0,0 +1,39 @@
+package com.github.kkomitski.opal.utils;
+
+import java.nio.ByteOrder;
+
+import org.agrona.DirectBuffer;
+import org.agrona.MutableDirectBuffer;
+
+/*
+Several order status events in one egress message (mass cancels): a 2 byte
+count, then the events back to back. Each event is the schema's 28 byte
+OrderStatus block, sent without a message header like single events. 2 + 28n
+is never a multiple of a fill's 24 bytes nor a TopOfBook's 32, so consumers
+tell batches, single events, fills and market data apart by length alone
+*/
+public final class OrderStatusBatch {
+  public static final int HEADER_SIZE = 2;
+  public static final int EVENT_SIZE = 28; // OrderStatusEncoder.BLOCK_LENGTH
+
+  private static final int SHORT_MASK = 0xFFFF;
+
+  private OrderStatusBatch() {}
+
+  public static void encodeCount(final int count, final MutableDirectBuffer buffer, final int offset) {
+    buffer.putShort(offset, (short) count, ByteOrder.BIG_ENDIAN);
+  }
+
+  /**
+   * Whether a message of this length is a batch, its events start at
+   * HEADER_SIZE.
+   */
+  public static boolean isBatch(final DirectBuffer buffer, final int offset, final int length) {
+    return length > HEADER_SIZE && (length - HEADER_SIZE) % EVENT_SIZE == 0
+        && getCount(buffer, offset) == (length - HEADER_SIZE) / EVENT_SIZE;
+  }
+
+  public static int getCount(final DirectBuffer buffer, final int offset) {
+    return buffer.getShort(offset, ByteOrder.BIG_ENDIAN) & SHORT_MASK;
+  }
+}